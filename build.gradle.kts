@@ -11,6 +11,16 @@ java {
     targetCompatibility = JavaVersion.VERSION_11
 }
 
+// JMH benchmarks for the storage engine live in src/jmh
+sourceSets {
+    create("jmh") {
+        compileClasspath += sourceSets["main"].output
+        runtimeClasspath += sourceSets["main"].output
+    }
+}
+
+configurations["jmhCompile"].extendsFrom(configurations["compile"])
+
 repositories {
     jcenter()
 }
@@ -35,12 +45,36 @@ dependencies {
     // JUnit Jupiter test framework
     testCompile("org.junit.jupiter:junit-jupiter-api:5.4.0")
     testRuntime("org.junit.jupiter:junit-jupiter-engine:5.4.0")
+
+    // JMH benchmark harness
+    "jmhCompile"("org.openjdk.jmh:jmh-core:1.22")
+    "jmhAnnotationProcessor"("org.openjdk.jmh:jmh-generator-annprocess:1.22")
 }
 
 val run by tasks.getting(JavaExec::class) {
     standardInput = System.`in`
 }
 
+// Runs benchmarks with allocation profiling, extra JMH options go to -Pjmh, e.g. -Pjmh="-t 8 MemTable"
+val jmh by tasks.registering(JavaExec::class) {
+    group = "verification"
+    description = "Runs JMH benchmarks"
+    classpath = sourceSets["jmh"].runtimeClasspath
+    main = "org.openjdk.jmh.Main"
+    args("-prof", "gc")
+    (project.findProperty("jmh") as String?)?.let { args(it.split(" ")) }
+}
+
+// Runs open-loop HTTP load, options go to -Pload, e.g. -Pload="--cluster=3 --rate=5000 --distribution=zipfian"
+val load by tasks.registering(JavaExec::class) {
+    group = "verification"
+    description = "Runs HTTP load generator"
+    classpath = sourceSets["main"].runtimeClasspath
+    main = "ru.mail.polis.load.LoadGenerator"
+    maxHeapSize = "256m"
+    (project.findProperty("load") as String?)?.let { args(it.split(" ")) }
+}
+
 tasks {
     test {
         maxHeapSize = "256m"
@@ -66,4 +100,10 @@ tasks.withType<JavaCompile> {
 // Error prone options
 tasks.named<JavaCompile>("compileTestJava") {
     options.errorprone.isEnabled.set(false)
+}
+
+tasks.named<JavaCompile>("compileJmhJava") {
+    options.errorprone.isEnabled.set(false)
+    // JMH processor leaves other annotations unclaimed
+    options.compilerArgs.add("-Xlint:-processing")
 }
\ No newline at end of file
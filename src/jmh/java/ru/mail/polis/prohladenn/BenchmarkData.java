@@ -0,0 +1,90 @@
+package ru.mail.polis.prohladenn;
+
+import org.jetbrains.annotations.NotNull;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.Random;
+
+/**
+ * Deterministic keys and values shared by benchmarks.
+ */
+public final class BenchmarkData {
+    private static final long SEED = 42L;
+
+    private BenchmarkData() {
+    }
+
+    /**
+     * Generates distinct keys in ascending order.
+     *
+     * @param count   number of keys
+     * @param keySize size of every key, at least 4 bytes
+     * @return sorted keys
+     */
+    @NotNull
+    public static ByteBuffer[] sortedKeys(final int count, final int keySize) {
+        assert keySize >= Integer.BYTES;
+        final Random random = new Random(SEED);
+        final ByteBuffer[] keys = new ByteBuffer[count];
+        for (int i = 0; i < count; i++) {
+            final byte[] key = new byte[keySize];
+            random.nextBytes(key);
+            // Unique big-endian prefix keeps keys distinct and sorted
+            ByteBuffer.wrap(key).putInt(i ^ Integer.MIN_VALUE);
+            keys[i] = ByteBuffer.wrap(key);
+        }
+        Arrays.sort(keys);
+        return keys;
+    }
+
+    /**
+     * Generates random value.
+     *
+     * @param size value size
+     * @return value
+     */
+    @NotNull
+    public static ByteBuffer value(final int size) {
+        final byte[] value = new byte[size];
+        new Random(SEED).nextBytes(value);
+        return ByteBuffer.wrap(value);
+    }
+
+    /**
+     * Writes overlapping tables where every key is present in two neighbouring tables.
+     *
+     * @param base         directory for tables named as {@link LSMDao} expects
+     * @param tables       number of tables
+     * @param rowsPerTable rows in every table
+     * @param keySize      key size
+     * @param valueSize    value size
+     * @return keys present in tables
+     * @throws IOException if an I/O error occurred
+     */
+    @NotNull
+    public static ByteBuffer[] writeTables(@NotNull final File base,
+                                           final int tables,
+                                           final int rowsPerTable,
+                                           final int keySize,
+                                           final int valueSize) throws IOException {
+        final ByteBuffer[] keys = sortedKeys(rowsPerTable * tables / 2 + rowsPerTable / 2, keySize);
+        final ByteBuffer value = value(valueSize);
+        final MemoryManager memory = new MemoryManager(Long.MAX_VALUE);
+        for (int t = 0; t < tables; t++) {
+            final MemTable source = new MemTable(t, memory);
+            for (int i = 0; i < rowsPerTable; i++) {
+                source.upsert(keys[(t * rowsPerTable / 2 + i) % keys.length], value);
+            }
+            FileTable.write(source.iterator(LSMDao.EMPTY), tableFile(base, t));
+        }
+        return keys;
+    }
+
+    @NotNull
+    static File tableFile(@NotNull final File base, final long generation) {
+        return new File(base, generation + LSMDao.TABLE + LSMDao.SUFFIX);
+    }
+}
@@ -0,0 +1,101 @@
+package ru.mail.polis.prohladenn;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import ru.mail.polis.Files;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Binary search, cell decoding and serialization of {@link FileTable}.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 1, jvmArgsAppend = "-Xmx256m")
+public class FileTableBenchmark {
+    @Param({"16", "64"})
+    private int keySize;
+
+    @Param({"100", "1024"})
+    private int valueSize;
+
+    @Param("100000")
+    private int rows;
+
+    private File base;
+    private ByteBuffer[] keys;
+    private MemTable source;
+    private FileTable table;
+    private int written;
+
+    /**
+     * Writes table to read from.
+     *
+     * @throws IOException if an I/O error occurred
+     */
+    @Setup(Level.Trial)
+    public void setUp() throws IOException {
+        base = Files.createTempDirectory();
+        keys = BenchmarkData.sortedKeys(rows, keySize);
+        final ByteBuffer value = BenchmarkData.value(valueSize);
+        source = new MemTable(0L, new MemoryManager(Long.MAX_VALUE));
+        for (final ByteBuffer key : keys) {
+            source.upsert(key, value);
+        }
+        final File file = BenchmarkData.tableFile(base, 0L);
+        FileTable.write(source.iterator(LSMDao.EMPTY), file);
+        table = new FileTable(file, new ValueLog(new File(base, LSMDao.VALUE_LOG)));
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException {
+        Files.recursiveDelete(base);
+    }
+
+    private ByteBuffer randomKey() {
+        return keys[ThreadLocalRandom.current().nextInt(keys.length)];
+    }
+
+    @Benchmark
+    public int position() {
+        return table.position(randomKey());
+    }
+
+    @Benchmark
+    public Cell cellAt() {
+        return table.cellAt(ThreadLocalRandom.current().nextInt(rows));
+    }
+
+    /**
+     * Serializes the whole table, so the score is per {@code rows} cells.
+     *
+     * @throws IOException if an I/O error occurred
+     */
+    @Benchmark
+    @BenchmarkMode(Mode.SingleShotTime)
+    @OutputTimeUnit(TimeUnit.MILLISECONDS)
+    @Measurement(iterations = 20)
+    public void write() throws IOException {
+        final File file = BenchmarkData.tableFile(base, ++written);
+        FileTable.write(source.iterator(LSMDao.EMPTY), file);
+        java.nio.file.Files.delete(file.toPath());
+    }
+}
@@ -0,0 +1,84 @@
+package ru.mail.polis.prohladenn;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Upserts into shared {@link MemTable} and {@link MemTablePool} from several threads.
+ * Thread count is set with {@code -t}.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 1, jvmArgsAppend = "-Xmx256m")
+@Threads(4)
+public class MemTableBenchmark {
+    @Param({"16", "64"})
+    private int keySize;
+
+    @Param({"100", "1024"})
+    private int valueSize;
+
+    @Param("16384")
+    private int keys;
+
+    private ByteBuffer[] keyPool;
+    private ByteBuffer value;
+    private MemTable memTable;
+    private MemTablePool memTablePool;
+
+    /**
+     * Generates keys and value.
+     */
+    @Setup(Level.Trial)
+    public void generate() {
+        keyPool = BenchmarkData.sortedKeys(keys, keySize);
+        value = BenchmarkData.value(valueSize);
+    }
+
+    /**
+     * Starts every iteration with empty tables which never get flushed.
+     */
+    @Setup(Level.Iteration)
+    public void reset() {
+        final MemoryManager memory = new MemoryManager(Long.MAX_VALUE);
+        memTable = new MemTable(0L, memory);
+        memTablePool = new MemTablePool(0L, Long.MAX_VALUE, memory);
+    }
+
+    private ByteBuffer randomKey() {
+        return keyPool[ThreadLocalRandom.current().nextInt(keyPool.length)];
+    }
+
+    @Benchmark
+    public void memTableUpsert() {
+        memTable.upsert(randomKey(), value);
+    }
+
+    @Benchmark
+    public void memTablePoolUpsert() {
+        memTablePool.upsert(randomKey(), value);
+    }
+
+    @Benchmark
+    public void memTablePoolRemove() {
+        memTablePool.remove(randomKey());
+    }
+}
@@ -0,0 +1,88 @@
+package ru.mail.polis.prohladenn;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+import ru.mail.polis.Files;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Short range scans through {@link IterUtils#collapse} over several overlapping tables.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 1, jvmArgsAppend = "-Xmx256m")
+public class MergeBenchmark {
+    @Param({"16", "64"})
+    private int keySize;
+
+    @Param({"100", "1024"})
+    private int valueSize;
+
+    @Param({"1", "4", "16"})
+    private int tables;
+
+    @Param("20000")
+    private int rowsPerTable;
+
+    @Param("100")
+    private int scanLength;
+
+    private File base;
+    private ByteBuffer[] keys;
+    private MemTable memTable;
+    private Collection<FileTable> fileTables;
+
+    /**
+     * Writes tables to merge.
+     *
+     * @throws IOException if an I/O error occurred
+     */
+    @Setup(Level.Trial)
+    public void setUp() throws IOException {
+        base = Files.createTempDirectory();
+        keys = BenchmarkData.writeTables(base, tables, rowsPerTable, keySize, valueSize);
+        fileTables = new ArrayList<>(tables);
+        final ValueLog log = new ValueLog(new File(base, LSMDao.VALUE_LOG));
+        for (int t = 0; t < tables; t++) {
+            fileTables.add(new FileTable(BenchmarkData.tableFile(base, t), log));
+        }
+        memTable = new MemTable(tables, new MemoryManager(Long.MAX_VALUE));
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException {
+        Files.recursiveDelete(base);
+    }
+
+    @Benchmark
+    public void scan(final Blackhole bh) {
+        final ByteBuffer from = keys[ThreadLocalRandom.current().nextInt(keys.length)];
+        final Iterator<Cell> cells = IterUtils.collapse(memTable, fileTables, from);
+        for (int i = 0; i < scanLength && cells.hasNext(); i++) {
+            bh.consume(cells.next());
+        }
+    }
+}
@@ -0,0 +1,47 @@
+package ru.mail.polis.service.prohladenn;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import ru.mail.polis.Record;
+import ru.mail.polis.prohladenn.BenchmarkData;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Encoding of range records into chunks by {@link StorageSession}.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 1, jvmArgsAppend = "-Xmx256m")
+public class ChunkBenchmark {
+    @Param({"16", "64"})
+    private int keySize;
+
+    @Param({"100", "1024", "65536"})
+    private int valueSize;
+
+    private Record record;
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        record = Record.of(BenchmarkData.sortedKeys(1, keySize)[0], BenchmarkData.value(valueSize));
+    }
+
+    @Benchmark
+    public byte[] chunk() {
+        return StorageSession.chunk(record);
+    }
+}
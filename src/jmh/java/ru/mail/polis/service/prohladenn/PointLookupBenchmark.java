@@ -0,0 +1,99 @@
+package ru.mail.polis.service.prohladenn;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import ru.mail.polis.Files;
+import ru.mail.polis.prohladenn.BenchmarkData;
+import ru.mail.polis.prohladenn.Bytes;
+import ru.mail.polis.prohladenn.LSMDao;
+import ru.mail.polis.prohladenn.MemoryManager;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Point lookups through {@link Value#get(byte[], LSMDao)} of keys in several tables and in the memTable.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 1, jvmArgsAppend = "-Xmx256m")
+public class PointLookupBenchmark {
+    @Param({"16", "64"})
+    private int keySize;
+
+    @Param({"100", "1024"})
+    private int valueSize;
+
+    @Param({"1", "4", "16"})
+    private int tables;
+
+    @Param("20000")
+    private int rowsPerTable;
+
+    private File base;
+    private byte[][] keys;
+    private byte[][] memoryKeys;
+    private LSMDao dao;
+
+    /**
+     * Writes tables, opens dao over them and fills its memTable.
+     *
+     * @throws IOException if an I/O error occurred
+     */
+    @Setup(Level.Trial)
+    public void setUp() throws IOException {
+        base = Files.createTempDirectory();
+        final ByteBuffer[] written = BenchmarkData.writeTables(base, tables, rowsPerTable, keySize, valueSize);
+        keys = new byte[written.length][];
+        for (int i = 0; i < written.length; i++) {
+            keys[i] = Bytes.toArray(written[i]);
+        }
+        dao = new LSMDao(base, Long.MAX_VALUE, new MemoryManager(Long.MAX_VALUE));
+        // Never flushed
+        final ByteBuffer value = BenchmarkData.value(valueSize);
+        memoryKeys = new byte[rowsPerTable][];
+        for (int i = 0; i < rowsPerTable; i++) {
+            memoryKeys[i] = new byte[keySize];
+            ThreadLocalRandom.current().nextBytes(memoryKeys[i]);
+            dao.upsert(ByteBuffer.wrap(memoryKeys[i]), value);
+        }
+    }
+
+    /**
+     * Closes dao and removes tables.
+     *
+     * @throws IOException if an I/O error occurred
+     */
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException {
+        dao.close();
+        Files.recursiveDelete(base);
+    }
+
+    @Benchmark
+    public Value get() {
+        return Value.get(keys[ThreadLocalRandom.current().nextInt(keys.length)], dao);
+    }
+
+    @Benchmark
+    public Value getFromMemTable() {
+        return Value.get(memoryKeys[ThreadLocalRandom.current().nextInt(memoryKeys.length)], dao);
+    }
+}
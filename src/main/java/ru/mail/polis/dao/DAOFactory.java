@@ -18,6 +18,7 @@ package ru.mail.polis.dao;
 
 import org.jetbrains.annotations.NotNull;
 import ru.mail.polis.prohladenn.LSMDao;
+import ru.mail.polis.prohladenn.MemoryManager;
 
 import java.io.File;
 import java.io.IOException;
@@ -54,6 +55,6 @@ public final class DAOFactory {
             throw new IllegalArgumentException("Path is not a directory: " + data);
         }
 
-        return new LSMDao(data, MAX_HEAP / 60);
+        return new LSMDao(data, MAX_HEAP / 60, new MemoryManager(MAX_HEAP / 4));
     }
 }
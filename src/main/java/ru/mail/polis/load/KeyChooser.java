@@ -0,0 +1,163 @@
+package ru.mail.polis.load;
+
+import org.jetbrains.annotations.NotNull;
+
+import java.util.Locale;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * YCSB-style key distributions over key indices in range [0, keys).
+ */
+public abstract class KeyChooser {
+    protected final long keys;
+
+    KeyChooser(final long keys) {
+        assert keys > 0;
+        this.keys = keys;
+    }
+
+    /**
+     * Creates key chooser by name.
+     *
+     * @param name one of uniform, zipfian or latest
+     * @param keys size of key space
+     * @return key chooser
+     */
+    @NotNull
+    public static KeyChooser of(@NotNull final String name, final long keys) {
+        switch (name.toLowerCase(Locale.ENGLISH)) {
+            case "uniform":
+                return new Uniform(keys);
+            case "zipfian":
+                return new Zipfian(keys);
+            case "latest":
+                return new Latest(keys);
+            default:
+                throw new IllegalArgumentException("Unknown distribution: " + name);
+        }
+    }
+
+    /**
+     * Chooses key to read or scan from.
+     *
+     * @param random random source
+     * @return key index
+     */
+    public abstract long nextRead(@NotNull Random random);
+
+    /**
+     * Chooses key to write.
+     *
+     * @param random random source
+     * @return key index
+     */
+    public long nextWrite(@NotNull final Random random) {
+        return nextRead(random);
+    }
+
+    static final class Uniform extends KeyChooser {
+        Uniform(final long keys) {
+            super(keys);
+        }
+
+        @Override
+        public long nextRead(@NotNull final Random random) {
+            return (long) (random.nextDouble() * keys);
+        }
+    }
+
+    /**
+     * Zipfian popularity with hot keys scattered over the key space.
+     */
+    static final class Zipfian extends KeyChooser {
+        private final ZipfianRank rank;
+
+        Zipfian(final long keys) {
+            super(keys);
+            this.rank = new ZipfianRank(keys);
+        }
+
+        @Override
+        public long nextRead(@NotNull final Random random) {
+            return Math.floorMod(fnv(rank.next(random)), keys);
+        }
+
+        private static long fnv(final long value) {
+            long hash = 0xCBF29CE484222325L;
+            long v = value;
+            for (int i = 0; i < Long.BYTES; i++) {
+                hash ^= v & 0xFF;
+                hash *= 0x100000001B3L;
+                v >>>= Byte.SIZE;
+            }
+            return hash;
+        }
+    }
+
+    /**
+     * Writes append new keys while reads prefer the most recently written ones.
+     */
+    static final class Latest extends KeyChooser {
+        private final ZipfianRank rank;
+        private final AtomicLong latest;
+
+        Latest(final long keys) {
+            super(keys);
+            this.rank = new ZipfianRank(keys);
+            this.latest = new AtomicLong(keys - 1);
+        }
+
+        @Override
+        public long nextRead(@NotNull final Random random) {
+            return Math.floorMod(latest.get() - rank.next(random), keys);
+        }
+
+        @Override
+        public long nextWrite(@NotNull final Random random) {
+            return Math.floorMod(latest.incrementAndGet(), keys);
+        }
+    }
+
+    /**
+     * Rank generator from Gray et al. "Quickly generating billion-record synthetic databases", as used by YCSB.
+     */
+    static final class ZipfianRank {
+        private static final double THETA = 0.99;
+
+        private final long items;
+        private final double zetan;
+        private final double alpha;
+        private final double eta;
+        private final double half;
+
+        ZipfianRank(final long items) {
+            this.items = items;
+            this.zetan = zeta(items);
+            final double zeta2 = zeta(2);
+            this.alpha = 1.0 / (1.0 - THETA);
+            this.eta = (1 - Math.pow(2.0 / items, 1 - THETA)) / (1 - zeta2 / zetan);
+            this.half = 1.0 + Math.pow(0.5, THETA);
+        }
+
+        private static double zeta(final long n) {
+            double sum = 0;
+            for (long i = 1; i <= n; i++) {
+                sum += 1 / Math.pow(i, THETA);
+            }
+            return sum;
+        }
+
+        long next(@NotNull final Random random) {
+            final double u = random.nextDouble();
+            final double uz = u * zetan;
+            if (uz < 1.0) {
+                return 0;
+            }
+            if (uz < half) {
+                return 1;
+            }
+            return Math.min(items - 1, (long) (items * Math.pow(eta * u - eta + 1, alpha)));
+        }
+    }
+}
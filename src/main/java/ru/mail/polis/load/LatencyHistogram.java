@@ -0,0 +1,83 @@
+package ru.mail.polis.load;
+
+import javax.annotation.concurrent.ThreadSafe;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Log-linear histogram in the spirit of HdrHistogram.
+ * Every power of two is split into 64 linear buckets, so relative error stays under 2%.
+ */
+@ThreadSafe
+public final class LatencyHistogram {
+    private static final int SUB_BUCKET_BITS = 7;
+    private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+    private static final int HALF = SUB_BUCKETS / 2;
+    private static final int MAX_SHIFT = Long.SIZE - SUB_BUCKET_BITS;
+
+    private final AtomicLongArray counts = new AtomicLongArray((MAX_SHIFT + 2) * HALF);
+    private final AtomicLong count = new AtomicLong();
+    private final AtomicLong max = new AtomicLong();
+
+    static int indexOf(final long value) {
+        if (value < SUB_BUCKETS) {
+            return (int) value;
+        }
+        final int shift = Long.SIZE - 1 - Long.numberOfLeadingZeros(value) - (SUB_BUCKET_BITS - 1);
+        return shift * HALF + (int) (value >>> shift);
+    }
+
+    static long highestEquivalent(final int index) {
+        if (index < SUB_BUCKETS) {
+            return index;
+        }
+        final int shift = index / HALF - 1;
+        final long sub = index - (long) shift * HALF;
+        return ((sub + 1) << shift) - 1;
+    }
+
+    /**
+     * Records single value.
+     *
+     * @param value non-negative value, e.g. latency in microseconds
+     */
+    public void record(final long value) {
+        final long v = Math.max(0L, value);
+        counts.incrementAndGet(indexOf(v));
+        count.incrementAndGet();
+        long current = max.get();
+        while (v > current && !max.compareAndSet(current, v)) {
+            current = max.get();
+        }
+    }
+
+    public long getCount() {
+        return count.get();
+    }
+
+    public long getMax() {
+        return max.get();
+    }
+
+    /**
+     * Returns value at given percentile.
+     *
+     * @param percentile percentile in range [0, 100]
+     * @return highest value equivalent to the bucket where percentile falls
+     */
+    public long percentile(final double percentile) {
+        final long total = count.get();
+        if (total == 0) {
+            return 0L;
+        }
+        final long target = Math.max(1L, (long) Math.ceil(percentile / 100.0 * total));
+        long seen = 0;
+        for (int i = 0; i < counts.length(); i++) {
+            seen += counts.get(i);
+            if (seen >= target) {
+                return Math.min(highestEquivalent(i), max.get());
+            }
+        }
+        return max.get();
+    }
+}
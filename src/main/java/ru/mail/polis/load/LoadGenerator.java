@@ -0,0 +1,232 @@
+package ru.mail.polis.load;
+
+import org.jetbrains.annotations.NotNull;
+
+import java.io.IOException;
+import java.io.PrintStream;
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse.BodyHandlers;
+import java.time.Duration;
+import java.util.List;
+import java.util.Locale;
+import java.util.Random;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Open-loop HTTP load generator for {@code /v0/entity} and {@code /v0/entities}.
+ * Requests are issued on a fixed schedule regardless of responses, and latency is measured
+ * from the intended send time, so stalls are not hidden by coordinated omission.
+ *
+ * <p>Runs against given {@code --nodes=http://host:port,...} or an in-process cluster of {@code --cluster=N} nodes.
+ */
+public final class LoadGenerator {
+    private static final Duration TIMEOUT = Duration.ofSeconds(10);
+    private static final int PRELOAD_CONCURRENCY = 64;
+    private static final double[] PERCENTILES = {50, 90, 99, 99.9, 99.99};
+
+    private final LoadOptions options;
+    private final List<String> nodes;
+    private final KeyChooser keyChooser;
+    private final HttpClient client;
+    private final byte[] value;
+    private final OpStats[] stats;
+    private final AtomicInteger inFlight = new AtomicInteger();
+    private final AtomicInteger nextNode = new AtomicInteger();
+
+    private enum Op {
+        READ,
+        WRITE,
+        SCAN;
+
+        boolean isSuccess(final int status) {
+            switch (this) {
+                case READ:
+                    return status == 200 || status == 404;
+                case WRITE:
+                    return status == 201;
+                default:
+                    return status == 200;
+            }
+        }
+    }
+
+    private static final class OpStats {
+        final LatencyHistogram corrected = new LatencyHistogram();
+        final LatencyHistogram uncorrected = new LatencyHistogram();
+        final AtomicLong errors = new AtomicLong();
+    }
+
+    private LoadGenerator(@NotNull final LoadOptions options, @NotNull final List<String> nodes) {
+        this.options = options;
+        this.nodes = nodes;
+        this.keyChooser = KeyChooser.of(options.distribution, options.keys);
+        this.client = HttpClient.newBuilder().version(HttpClient.Version.HTTP_1_1).build();
+        this.value = new byte[options.valueSize];
+        new Random().nextBytes(value);
+        this.stats = new OpStats[Op.values().length];
+        for (int i = 0; i < stats.length; i++) {
+            stats[i] = new OpStats();
+        }
+    }
+
+    /**
+     * Runs load and prints report to stdout.
+     *
+     * @param args options as {@code --name=value}
+     * @throws IOException          in case of any IO error
+     * @throws InterruptedException if interrupted
+     */
+    public static void main(final String[] args) throws IOException, InterruptedException {
+        final LoadOptions options = LoadOptions.parse(args);
+        if (options.nodes.isEmpty()) {
+            try (LocalCluster cluster = LocalCluster.start(options.port, options.cluster)) {
+                new LoadGenerator(options, cluster.endpoints()).run(System.out);
+            }
+        } else {
+            new LoadGenerator(options, options.nodes).run(System.out);
+        }
+    }
+
+    private void run(@NotNull final PrintStream out) throws InterruptedException {
+        preload();
+        measure();
+        report(out);
+    }
+
+    private void preload() throws InterruptedException {
+        final Semaphore permits = new Semaphore(PRELOAD_CONCURRENCY);
+        for (long key = 0; key < Math.min(options.preload, options.keys); key++) {
+            permits.acquire();
+            client.sendAsync(request(Op.WRITE, key), BodyHandlers.discarding())
+                    .whenComplete((response, error) -> permits.release());
+        }
+        permits.acquire(PRELOAD_CONCURRENCY);
+    }
+
+    private void measure() throws InterruptedException {
+        final Random random = new Random();
+        final long interval = TimeUnit.SECONDS.toNanos(1) / options.rate;
+        final long start = System.nanoTime();
+        final long recordFrom = start + TimeUnit.SECONDS.toNanos(options.warmupSeconds);
+        final long end = recordFrom + TimeUnit.SECONDS.toNanos(options.durationSeconds);
+        for (long i = 0; ; i++) {
+            final long intended = start + i * interval;
+            if (intended >= end) {
+                break;
+            }
+            final long delay = intended - System.nanoTime();
+            if (delay > 0) {
+                LockSupport.parkNanos(delay);
+            }
+            final Op op = nextOp(random);
+            final long key = op == Op.WRITE ? keyChooser.nextWrite(random) : keyChooser.nextRead(random);
+            final boolean recorded = intended >= recordFrom;
+            if (inFlight.get() >= options.maxInFlight) {
+                // Generator can not keep up, the request is lost rather than silently delayed
+                if (recorded) {
+                    stats[op.ordinal()].errors.incrementAndGet();
+                }
+                continue;
+            }
+            send(op, request(op, key), intended, recorded);
+        }
+        final long deadline = System.nanoTime() + TIMEOUT.toNanos();
+        while (inFlight.get() > 0 && System.nanoTime() < deadline) {
+            TimeUnit.MILLISECONDS.sleep(10);
+        }
+    }
+
+    private Op nextOp(@NotNull final Random random) {
+        final double x = random.nextDouble() * (options.read + options.write + options.scan);
+        if (x < options.read) {
+            return Op.READ;
+        }
+        return x < options.read + options.write ? Op.WRITE : Op.SCAN;
+    }
+
+    private void send(@NotNull final Op op,
+                      @NotNull final HttpRequest request,
+                      final long intended,
+                      final boolean recorded) {
+        inFlight.incrementAndGet();
+        final long sent = System.nanoTime();
+        client.sendAsync(request, BodyHandlers.discarding()).whenComplete((response, error) -> {
+            final long now = System.nanoTime();
+            inFlight.decrementAndGet();
+            if (!recorded) {
+                return;
+            }
+            final OpStats opStats = stats[op.ordinal()];
+            if (error != null || !op.isSuccess(response.statusCode())) {
+                opStats.errors.incrementAndGet();
+            }
+            opStats.corrected.record(TimeUnit.NANOSECONDS.toMicros(now - intended));
+            opStats.uncorrected.record(TimeUnit.NANOSECONDS.toMicros(now - sent));
+        });
+    }
+
+    @NotNull
+    private HttpRequest request(@NotNull final Op op, final long key) {
+        final String node = nodes.get(Math.floorMod(nextNode.getAndIncrement(), nodes.size()));
+        final StringBuilder uri = new StringBuilder(node);
+        if (op == Op.SCAN) {
+            uri.append("/v0/entities?start=").append(key(key))
+                    .append("&end=").append(key(Math.min(options.keys, key + options.scanLength)));
+        } else {
+            uri.append("/v0/entity?id=").append(key(key));
+            if (options.replicas != null) {
+                uri.append("&replicas=").append(options.replicas);
+            }
+            if (op == Op.WRITE && options.ttl != null) {
+                uri.append("&ttl=").append(options.ttl);
+            }
+        }
+        final HttpRequest.Builder builder = HttpRequest.newBuilder(URI.create(uri.toString())).timeout(TIMEOUT);
+        if (op == Op.WRITE) {
+            builder.PUT(HttpRequest.BodyPublishers.ofByteArray(value));
+        } else {
+            builder.GET();
+        }
+        return builder.build();
+    }
+
+    private static String key(final long key) {
+        return String.format(Locale.ENGLISH, "key%012d", key);
+    }
+
+    private void report(@NotNull final PrintStream out) {
+        out.printf(Locale.ENGLISH, "nodes=%d rate=%d/s duration=%ds distribution=%s read/write/scan=%s/%s/%s"
+                        + " replicas=%s ttl=%s value=%dB%n",
+                nodes.size(), options.rate, options.durationSeconds, options.distribution,
+                options.read, options.write, options.scan, options.replicas, options.ttl, options.valueSize);
+        out.printf(Locale.ENGLISH, "%-6s %-11s %9s %7s %9s %9s %9s %9s %9s %9s%n",
+                "op", "latency", "count", "errors", "p50", "p90", "p99", "p99.9", "p99.99", "max ms");
+        for (final Op op : Op.values()) {
+            final OpStats opStats = stats[op.ordinal()];
+            if (opStats.corrected.getCount() == 0 && opStats.errors.get() == 0) {
+                continue;
+            }
+            print(out, op, "corrected", opStats.corrected, opStats.errors.get());
+            print(out, op, "service", opStats.uncorrected, opStats.errors.get());
+        }
+    }
+
+    private static void print(@NotNull final PrintStream out,
+                              @NotNull final Op op,
+                              @NotNull final String kind,
+                              @NotNull final LatencyHistogram histogram,
+                              final long errors) {
+        out.printf(Locale.ENGLISH, "%-6s %-11s %9d %7d", op.name().toLowerCase(Locale.ENGLISH), kind,
+                histogram.getCount(), errors);
+        for (final double percentile : PERCENTILES) {
+            out.printf(Locale.ENGLISH, " %9.3f", histogram.percentile(percentile) / 1000.0);
+        }
+        out.printf(Locale.ENGLISH, " %9.3f%n", histogram.getMax() / 1000.0);
+    }
+}
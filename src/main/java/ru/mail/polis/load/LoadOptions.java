@@ -0,0 +1,96 @@
+package ru.mail.polis.load;
+
+import com.google.common.base.Splitter;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Command line options of {@link LoadGenerator} given as {@code --name=value}.
+ */
+final class LoadOptions {
+    final List<String> nodes;
+    final int cluster;
+    final int port;
+    final int rate;
+    final long durationSeconds;
+    final long warmupSeconds;
+    final long keys;
+    final long preload;
+    final String distribution;
+    final double read;
+    final double write;
+    final double scan;
+    final int scanLength;
+    final int valueSize;
+    final int maxInFlight;
+    @Nullable
+    final String replicas;
+    @Nullable
+    final String ttl;
+
+    private LoadOptions(@NotNull final Map<String, String> args) {
+        final String urls = args.get("nodes");
+        this.nodes = urls == null ? List.of() : Splitter.on(',').omitEmptyStrings().trimResults().splitToList(urls);
+        this.cluster = intOf(args, "cluster", 3);
+        this.port = intOf(args, "port", 8080);
+        this.rate = intOf(args, "rate", 1000);
+        this.durationSeconds = longOf(args, "duration", 30);
+        this.warmupSeconds = longOf(args, "warmup", 5);
+        this.keys = longOf(args, "keys", 100_000);
+        this.preload = longOf(args, "preload", 0);
+        this.distribution = args.getOrDefault("distribution", "uniform");
+        this.read = doubleOf(args, "read", 0.5);
+        this.write = doubleOf(args, "write", 0.5);
+        this.scan = doubleOf(args, "scan", 0.0);
+        this.scanLength = intOf(args, "scan-length", 10);
+        this.valueSize = intOf(args, "value-size", 256);
+        this.maxInFlight = intOf(args, "max-in-flight", 10_000);
+        this.replicas = args.get("replicas");
+        this.ttl = args.get("ttl");
+        if (rate <= 0 || keys <= 0 || read < 0 || write < 0 || scan < 0 || read + write + scan <= 0) {
+            throw new IllegalArgumentException("Wrong load options: " + args);
+        }
+    }
+
+    /**
+     * Parses options.
+     *
+     * @param args command line arguments
+     * @return options
+     */
+    @NotNull
+    static LoadOptions parse(@NotNull final String... args) {
+        final Map<String, String> options = new HashMap<>();
+        for (final String arg : args) {
+            if (!arg.startsWith("--")) {
+                throw new IllegalArgumentException("Unexpected argument: " + arg);
+            }
+            final int eq = arg.indexOf('=');
+            if (eq < 0) {
+                options.put(arg.substring(2), "true");
+            } else {
+                options.put(arg.substring(2, eq), arg.substring(eq + 1));
+            }
+        }
+        return new LoadOptions(options);
+    }
+
+    private static int intOf(final Map<String, String> args, final String name, final int defaultValue) {
+        final String value = args.get(name);
+        return value == null ? defaultValue : Integer.parseInt(value);
+    }
+
+    private static long longOf(final Map<String, String> args, final String name, final long defaultValue) {
+        final String value = args.get(name);
+        return value == null ? defaultValue : Long.parseLong(value);
+    }
+
+    private static double doubleOf(final Map<String, String> args, final String name, final double defaultValue) {
+        final String value = args.get(name);
+        return value == null ? defaultValue : Double.parseDouble(value);
+    }
+}
@@ -0,0 +1,73 @@
+package ru.mail.polis.load;
+
+import org.jetbrains.annotations.NotNull;
+import ru.mail.polis.Files;
+import ru.mail.polis.dao.DAO;
+import ru.mail.polis.dao.DAOFactory;
+import ru.mail.polis.service.Service;
+import ru.mail.polis.service.ServiceFactory;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * In-process cluster on temporary directories to run load against.
+ */
+final class LocalCluster implements Closeable {
+    private final Set<String> endpoints = new LinkedHashSet<>();
+    private final List<File> data = new ArrayList<>();
+    private final List<DAO> daos = new ArrayList<>();
+    private final List<Service> services = new ArrayList<>();
+
+    private LocalCluster() {
+    }
+
+    /**
+     * Starts nodes on consecutive ports.
+     *
+     * @param port  port of the first node
+     * @param nodes number of nodes
+     * @return running cluster
+     * @throws IOException if an I/O error occurred
+     */
+    @NotNull
+    static LocalCluster start(final int port, final int nodes) throws IOException {
+        final LocalCluster cluster = new LocalCluster();
+        for (int i = 0; i < nodes; i++) {
+            cluster.endpoints.add("http://localhost:" + (port + i));
+        }
+        for (int i = 0; i < nodes; i++) {
+            final File dir = Files.createTempDirectory();
+            cluster.data.add(dir);
+            final DAO dao = DAOFactory.create(dir);
+            cluster.daos.add(dao);
+            final Service service = ServiceFactory.create(port + i, dao, cluster.endpoints);
+            service.start();
+            cluster.services.add(service);
+        }
+        return cluster;
+    }
+
+    @NotNull
+    List<String> endpoints() {
+        return List.copyOf(endpoints);
+    }
+
+    @Override
+    public void close() throws IOException {
+        for (final Service service : services) {
+            service.stop();
+        }
+        for (final DAO dao : daos) {
+            dao.close();
+        }
+        for (final File dir : data) {
+            Files.recursiveDelete(dir);
+        }
+    }
+}
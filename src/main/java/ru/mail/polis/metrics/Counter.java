@@ -0,0 +1,28 @@
+package ru.mail.polis.metrics;
+
+import javax.annotation.concurrent.ThreadSafe;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Monotonic counter striped across cells, so concurrent increments do not contend.
+ */
+@ThreadSafe
+public final class Counter {
+    private final LongAdder value = new LongAdder();
+
+    Counter() {
+        // Created by registry only
+    }
+
+    public void inc() {
+        value.increment();
+    }
+
+    public void add(final long delta) {
+        value.add(delta);
+    }
+
+    public long get() {
+        return value.sum();
+    }
+}
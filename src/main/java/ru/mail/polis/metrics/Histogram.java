@@ -0,0 +1,84 @@
+package ru.mail.polis.metrics;
+
+import org.jetbrains.annotations.NotNull;
+
+import javax.annotation.concurrent.ThreadSafe;
+import java.util.Locale;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Lock-free duration histogram with fixed buckets from 10 microseconds to 10 seconds.
+ * Every bucket is a striped counter, so recording never blocks and never allocates.
+ */
+@ThreadSafe
+public final class Histogram {
+    private static final long[] BOUNDS = bounds();
+
+    private final LongAdder[] buckets = new LongAdder[BOUNDS.length + 1];
+    private final LongAdder sum = new LongAdder();
+
+    Histogram() {
+        for (int i = 0; i < buckets.length; i++) {
+            buckets[i] = new LongAdder();
+        }
+    }
+
+    private static long[] bounds() {
+        final long[] micros = {
+                10, 25, 50, 100, 250, 500,
+                1_000, 2_500, 5_000, 10_000, 25_000, 50_000,
+                100_000, 250_000, 500_000, 1_000_000, 2_500_000, 5_000_000, 10_000_000};
+        final long[] result = new long[micros.length];
+        for (int i = 0; i < micros.length; i++) {
+            result[i] = TimeUnit.MICROSECONDS.toNanos(micros[i]);
+        }
+        return result;
+    }
+
+    /**
+     * Records single duration.
+     *
+     * @param nanos duration in nanoseconds
+     */
+    public void record(final long nanos) {
+        int i = 0;
+        while (i < BOUNDS.length && nanos > BOUNDS[i]) {
+            i++;
+        }
+        buckets[i].increment();
+        sum.add(nanos);
+    }
+
+    /**
+     * Returns number of recorded durations.
+     *
+     * @return count of all buckets
+     */
+    public long getCount() {
+        long count = 0;
+        for (final LongAdder bucket : buckets) {
+            count += bucket.sum();
+        }
+        return count;
+    }
+
+    void write(@NotNull final StringBuilder out,
+               @NotNull final String name,
+               @NotNull final String labels) {
+        final String prefix = labels.isEmpty() ? "" : labels + ",";
+        long cumulative = 0;
+        for (int i = 0; i < buckets.length; i++) {
+            cumulative += buckets[i].sum();
+            final String le = i < BOUNDS.length ? seconds(BOUNDS[i]) : "+Inf";
+            out.append(name).append("_bucket{").append(prefix).append("le=\"").append(le).append("\"} ")
+                    .append(cumulative).append('\n');
+        }
+        MetricRegistry.sample(out, name + "_sum", labels, seconds(sum.sum()));
+        MetricRegistry.sample(out, name + "_count", labels, Long.toString(cumulative));
+    }
+
+    private static String seconds(final long nanos) {
+        return String.format(Locale.ENGLISH, "%.6f", nanos / 1e9).replaceAll("\\.?0+$", "");
+    }
+}
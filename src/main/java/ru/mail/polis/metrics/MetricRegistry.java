@@ -0,0 +1,148 @@
+package ru.mail.polis.metrics;
+
+import org.jetbrains.annotations.NotNull;
+
+import javax.annotation.concurrent.ThreadSafe;
+import java.util.LinkedHashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.function.LongSupplier;
+import java.util.function.Supplier;
+
+/**
+ * Node-wide set of metrics rendered in Prometheus text exposition format.
+ * Series are registered once and then updated without touching the registry,
+ * so callers on hot paths keep references to their counters and histograms.
+ */
+@ThreadSafe
+public final class MetricRegistry {
+    private final Map<String, Family> families = new LinkedHashMap<>();
+
+    private enum Type {
+        COUNTER,
+        GAUGE,
+        HISTOGRAM
+    }
+
+    private static final class Family {
+        final String help;
+        final Type type;
+        final Map<String, Object> series = new LinkedHashMap<>();
+
+        Family(@NotNull final String help, @NotNull final Type type) {
+            this.help = help;
+            this.type = type;
+        }
+    }
+
+    /**
+     * Returns counter with given name and labels, registering it on first call.
+     *
+     * @param name   metric name
+     * @param help   description
+     * @param labels label names and values one after another
+     * @return counter
+     */
+    @NotNull
+    public Counter counter(@NotNull final String name,
+                           @NotNull final String help,
+                           @NotNull final String... labels) {
+        return (Counter) series(name, help, Type.COUNTER, labels(labels), Counter::new);
+    }
+
+    /**
+     * Returns histogram with given name and labels, registering it on first call.
+     *
+     * @param name   metric name, durations are exposed in seconds
+     * @param help   description
+     * @param labels label names and values one after another
+     * @return histogram
+     */
+    @NotNull
+    public Histogram histogram(@NotNull final String name,
+                               @NotNull final String help,
+                               @NotNull final String... labels) {
+        return (Histogram) series(name, help, Type.HISTOGRAM, labels(labels), Histogram::new);
+    }
+
+    /**
+     * Registers gauge which is evaluated on every scrape.
+     *
+     * @param name   metric name
+     * @param help   description
+     * @param value  current value supplier
+     * @param labels label names and values one after another
+     */
+    public void gauge(@NotNull final String name,
+                      @NotNull final String help,
+                      @NotNull final LongSupplier value,
+                      @NotNull final String... labels) {
+        series(name, help, Type.GAUGE, labels(labels), () -> value);
+    }
+
+    private synchronized Object series(@NotNull final String name,
+                                       @NotNull final String help,
+                                       @NotNull final Type type,
+                                       @NotNull final String labels,
+                                       @NotNull final Supplier<Object> factory) {
+        final Family family = families.computeIfAbsent(name, n -> new Family(help, type));
+        if (family.type != type) {
+            throw new IllegalArgumentException("Metric " + name + " is already registered as " + family.type);
+        }
+        return family.series.computeIfAbsent(labels, l -> factory.get());
+    }
+
+    /**
+     * Renders all metrics.
+     *
+     * @return Prometheus text format
+     */
+    @NotNull
+    public synchronized String scrape() {
+        final StringBuilder out = new StringBuilder();
+        for (final Map.Entry<String, Family> entry : families.entrySet()) {
+            final String name = entry.getKey();
+            final Family family = entry.getValue();
+            out.append("# HELP ").append(name).append(' ').append(family.help).append('\n');
+            out.append("# TYPE ").append(name).append(' ').append(family.type.name().toLowerCase(Locale.ENGLISH)).append('\n');
+            for (final Map.Entry<String, Object> series : family.series.entrySet()) {
+                final Object metric = series.getValue();
+                if (metric instanceof Histogram) {
+                    ((Histogram) metric).write(out, name, series.getKey());
+                } else if (metric instanceof Counter) {
+                    sample(out, name, series.getKey(), Long.toString(((Counter) metric).get()));
+                } else {
+                    sample(out, name, series.getKey(), Long.toString(((LongSupplier) metric).getAsLong()));
+                }
+            }
+        }
+        return out.toString();
+    }
+
+    static void sample(@NotNull final StringBuilder out,
+                       @NotNull final String name,
+                       @NotNull final String labels,
+                       @NotNull final String value) {
+        out.append(name);
+        if (!labels.isEmpty()) {
+            out.append('{').append(labels).append('}');
+        }
+        out.append(' ').append(value).append('\n');
+    }
+
+    @NotNull
+    private static String labels(@NotNull final String... labels) {
+        if (labels.length % 2 != 0) {
+            throw new IllegalArgumentException("Labels must be name and value pairs");
+        }
+        final StringBuilder result = new StringBuilder();
+        for (int i = 0; i < labels.length; i += 2) {
+            if (i > 0) {
+                result.append(',');
+            }
+            result.append(labels[i]).append("=\"")
+                    .append(labels[i + 1].replace("\\", "\\\\").replace("\"", "\\\"")).append('"');
+        }
+        return result.toString();
+    }
+}
@@ -1,6 +1,9 @@
 package ru.mail.polis.prohladenn;
 
+import com.google.common.collect.Iterators;
+import com.google.common.collect.PeekingIterator;
 import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
 
 import java.io.File;
 import java.io.IOException;
@@ -8,36 +11,60 @@ import java.nio.ByteBuffer;
 import java.nio.ByteOrder;
 import java.nio.IntBuffer;
 import java.nio.channels.FileChannel;
+import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.StandardOpenOption;
 import java.time.Duration;
 import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
 import java.util.Iterator;
 import java.util.List;
+import java.util.Map;
 
 public final class FileTable implements Table {
+    /**
+     * Size of the largest table, cells are addressed by int offsets.
+     */
+    public static final long MAX_BYTES = Integer.MAX_VALUE;
+    // Value size of a cell pointing to value log, followed by segment, offset and length
+    private static final int POINTER = -1;
+    private static final int POINTER_BYTES = Integer.BYTES + Long.BYTES * 2 + Integer.BYTES;
+    // Ends every table since live cells carry expiration, tables of older formats have none
+    private static final long FORMAT = 0x50524F484C534D02L;
+    // Segments of value log when the table was opened, the ones it points to are among them
+    private final Map<Long, ValueLog.Segment> segments;
     private final int rows;
     private final IntBuffer offsets;
     private final ByteBuffer cells;
     private final long sizeInBytes;
     private final Path path;
 
-    FileTable(final File file) throws IOException {
+    FileTable(final File file, @NotNull final ValueLog log) throws IOException {
+        this.segments = log.snapshot();
         this.sizeInBytes = file.length();
         this.path = file.toPath();
-        assert sizeInBytes != 0 && sizeInBytes <= Integer.MAX_VALUE;
-        final ByteBuffer mapped;
-        try (FileChannel fc = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
-            mapped = fc.map(FileChannel.MapMode.READ_ONLY, 0L, fc.size()).order(ByteOrder.BIG_ENDIAN);
+        assert sizeInBytes <= Integer.MAX_VALUE;
+        final ByteBuffer mapped = map(file);
+
+        // Format
+        final int end = mapped.limit() - Long.BYTES;
+        if (!isCurrent(mapped)) {
+            throw new IOException("Unsupported format of table " + path
+                    + ", it was written by an older version or is not a table");
         }
 
         // Rows
-        rows = mapped.getInt((int) (sizeInBytes - Integer.BYTES));
+        rows = mapped.getInt(end - Integer.BYTES);
+        if (rows < 0 || rows > (end - Integer.BYTES) / Integer.BYTES) {
+            throw new IOException("Malformed table " + path + ": " + rows + " rows");
+        }
 
         // Offset
         final ByteBuffer offsetBuffer = mapped.duplicate();
-        offsetBuffer.position(mapped.limit() - Integer.BYTES * rows - Integer.BYTES);
-        offsetBuffer.limit(mapped.limit() - Integer.BYTES);
+        offsetBuffer.position(end - Integer.BYTES * rows - Integer.BYTES);
+        offsetBuffer.limit(end - Integer.BYTES);
         this.offsets = offsetBuffer.slice().asIntBuffer();
 
         // Cells
@@ -46,18 +73,185 @@ public final class FileTable implements Table {
         this.cells = cellBuffer.slice();
     }
 
+    @NotNull
+    private static ByteBuffer map(@NotNull final File file) throws IOException {
+        try (FileChannel fc = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+            return fc.map(FileChannel.MapMode.READ_ONLY, 0L, fc.size()).order(ByteOrder.BIG_ENDIAN);
+        }
+    }
+
+    private static boolean isCurrent(@NotNull final ByteBuffer mapped) {
+        final int end = mapped.limit() - Long.BYTES;
+        return end >= Integer.BYTES && mapped.getLong(end) == FORMAT;
+    }
+
+    /**
+     * Checks whether the table is written in the current format.
+     *
+     * @param file table
+     * @return false if the table has no format trailer, as tables written before values could expire
+     * @throws IOException if an I/O error occurred
+     */
+    static boolean isCurrent(@NotNull final File file) throws IOException {
+        return isCurrent(map(file));
+    }
+
+    /**
+     * Rewrites table of the format without expiration and trailer, its live cells never expire.
+     *
+     * @param legacy table of the older format
+     * @param to     path of the converted table
+     * @throws IOException if the table is not of the older format or an I/O error occurred
+     */
+    static void upgrade(@NotNull final File legacy, @NotNull final File to) throws IOException {
+        final ByteBuffer mapped = map(legacy);
+        final int end = mapped.limit() - Integer.BYTES;
+        final int rows = end < 0 ? -1 : mapped.getInt(end);
+        if (rows < 0 || rows > end / Integer.BYTES) {
+            throw new IOException("Unsupported format of table " + legacy);
+        }
+        final int offsets = end - Integer.BYTES * rows;
+        final List<Cell> cells = new ArrayList<>(rows);
+        try {
+            for (int i = 0; i < rows; i++) {
+                final Cell cell = legacyCell(mapped, mapped.getInt(offsets + Integer.BYTES * i), offsets);
+                if (!cells.isEmpty() && cells.get(cells.size() - 1).getKey().compareTo(cell.getKey()) >= 0) {
+                    throw new IOException("Unsupported format of table " + legacy + ": keys out of order");
+                }
+                cells.add(cell);
+            }
+        } catch (IndexOutOfBoundsException | IllegalArgumentException e) {
+            throw new IOException("Unsupported format of table " + legacy, e);
+        }
+        write(cells.iterator(), to);
+    }
+
+    @NotNull
+    private static Cell legacyCell(@NotNull final ByteBuffer mapped, final int offset, final int limit) {
+        final int keySize = mapped.getInt(offset);
+        final ByteBuffer key = slice(mapped, offset + Integer.BYTES, keySize, limit);
+        final long timestamp = mapped.getLong(key.limit());
+        if (timestamp < 0) {
+            return new Cell(key.slice(), new Value(-timestamp, null));
+        }
+        final int valueSize = mapped.getInt(key.limit() + Long.BYTES);
+        final ByteBuffer value = slice(mapped, key.limit() + Long.BYTES + Integer.BYTES, valueSize, limit);
+        return new Cell(key.slice(), new Value(timestamp, value.slice()));
+    }
+
+    @NotNull
+    private static ByteBuffer slice(@NotNull final ByteBuffer mapped, final int from, final int size, final int limit) {
+        if (from < 0 || size < 0 || from > limit - size) {
+            throw new IndexOutOfBoundsException(from + "+" + size);
+        }
+        final ByteBuffer slice = mapped.duplicate();
+        slice.position(from);
+        slice.limit(from + size);
+        return slice;
+    }
+
+    /**
+     * Writes self-contained table with all values inline, so that it may be moved to another node.
+     *
+     * @param cells cells in key order
+     * @param to    path of the file where data needs to be written
+     * @throws IOException if an I/O error occurred
+     */
+    public static void write(@NotNull final Iterator<Cell> cells, @NotNull final File to) throws IOException {
+        write(cells, to, null, new HashMap<>(), Collections.emptySet());
+    }
+
+    /**
+     * Writes self-contained tables with all values inline, starting another table before one would exceed
+     * {@code maxBytes}: {@code to} is followed by tables named as it with suffixes {@code .1}, {@code .2} and so on.
+     *
+     * @param cells    cells in key order
+     * @param to       path of the first table
+     * @param maxBytes size limit of every table
+     * @return tables written, at least one
+     * @throws IOException if an I/O error occurred or a cell alone exceeds the limit
+     */
+    @NotNull
+    public static List<File> write(@NotNull final Iterator<Cell> cells,
+                                   @NotNull final File to,
+                                   final long maxBytes) throws IOException {
+        final PeekingIterator<Cell> remaining = Iterators.peekingIterator(cells);
+        final List<File> tables = new ArrayList<>();
+        do {
+            final File table = tables.isEmpty() ? to : new File(to.getPath() + "." + tables.size());
+            write(remaining, table, null, new HashMap<>(), Collections.emptySet(), maxBytes);
+            tables.add(table);
+        } while (remaining.hasNext());
+        return tables;
+    }
+
+    /**
+     * Writes a self-contained table with all values inline of the first cells which fit {@code maxBytes}.
+     *
+     * @param cells    cells in key order, the ones not written are left
+     * @param to       path of the file where data needs to be written
+     * @param maxBytes size limit of the table
+     * @throws IOException if an I/O error occurred or the first cell alone exceeds the limit
+     */
+    public static void write(@NotNull final PeekingIterator<Cell> cells,
+                             @NotNull final File to,
+                             final long maxBytes) throws IOException {
+        write(cells, to, null, new HashMap<>(), Collections.emptySet(), maxBytes);
+    }
+
     /**
-     * Writes MemTable data to disk.
+     * Writes MemTable data to disk, large values go to value log.
      *
      * @param cells iterator of MemTable
      * @param to    path of the file where data needs to be written
+     * @param log   value log
      * @throws IOException if an I/O error occurred
      */
-    static void write(final Iterator<Cell> cells, final File to) throws IOException {
+    static void write(final Iterator<Cell> cells, final File to, @NotNull final ValueLog log) throws IOException {
+        write(cells, to, log, new HashMap<>(), Collections.emptySet());
+    }
+
+    /**
+     * Writes cells to disk, large values go to value log.
+     *
+     * @param cells  cells in key order
+     * @param to     path of the file where data needs to be written
+     * @param log    value log or null to keep all values inline
+     * @param live   incremented by size of values left in value log by segment
+     * @param sparse segments which values are appended to value log anew
+     * @throws IOException if an I/O error occurred or cells exceed {@link #MAX_BYTES}
+     */
+    static void write(final Iterator<Cell> cells,
+                      final File to,
+                      @Nullable final ValueLog log,
+                      @NotNull final Map<Long, Long> live,
+                      @NotNull final Collection<Long> sparse) throws IOException {
+        final PeekingIterator<Cell> remaining = Iterators.peekingIterator(cells);
+        write(remaining, to, log, live, sparse, MAX_BYTES);
+        if (remaining.hasNext()) {
+            Files.delete(to.toPath());
+            throw new IOException("Table exceeds " + MAX_BYTES + " bytes: " + to);
+        }
+    }
+
+    private static void write(final PeekingIterator<Cell> cells,
+                              final File to,
+                              @Nullable final ValueLog log,
+                              @NotNull final Map<Long, Long> live,
+                              @NotNull final Collection<Long> sparse,
+                              final long maxBytes) throws IOException {
         try (FileChannel fc = FileChannel.open(to.toPath(), StandardOpenOption.CREATE_NEW, StandardOpenOption.WRITE)) {
             final List<Integer> offsets = new ArrayList<>();
             int offset = 0;
             while (cells.hasNext()) {
+                // Offsets, number of cells and format follow the cells
+                final long trailer = (long) Integer.BYTES * (offsets.size() + 2) + Long.BYTES;
+                if (offset + maxCellBytes(cells.peek()) + trailer > maxBytes) {
+                    if (offsets.isEmpty()) {
+                        throw new IOException("Cell exceeds " + maxBytes + " bytes of table " + to);
+                    }
+                    break;
+                }
                 offsets.add(offset);
 
                 final Cell cell = cells.next();
@@ -70,26 +264,41 @@ public final class FileTable implements Table {
                 fc.write(key);
                 offset += keySize;
 
-                // Value
-                final Value value = cell.getValue();
-
                 // Timestamp
+                final Value value = cell.getValue();
                 if (value.isRemoved()) {
-                    fc.write(Bytes.fromLong(-cell.getValue().getTimeStamp()));
-                } else {
-                    fc.write(Bytes.fromLong(cell.getValue().getTimeStamp()));
+                    fc.write(Bytes.fromLong(-value.getTimeStamp()));
+                    offset += Long.BYTES;
+                    continue;
                 }
+                fc.write(Bytes.fromLong(value.getTimeStamp()));
                 offset += Long.BYTES;
 
                 // Value
-                if (!value.isRemoved()) {
-                    final ByteBuffer valueData = value.getData();
-                    final int valueSize = value.getData().remaining();
-                    fc.write(Bytes.fromInt(valueSize));
-                    offset += Integer.BYTES;
-                    fc.write(valueData);
-                    offset += valueSize;
+                fc.write(Bytes.fromLong(value.getExpiresAt()));
+                offset += Long.BYTES;
+                final ValueLog.Pointer kept = value.getPointer();
+                final ValueLog.Pointer pointer;
+                if (log != null && kept != null && !sparse.contains(kept.segmentId())) {
+                    pointer = kept;
+                } else {
+                    // Value expiring since the check above is written with its data, it expires on reading
+                    final ByteBuffer valueData = value.storedData();
+                    if (log == null || valueData.remaining() < ValueLog.THRESHOLD) {
+                        final int valueSize = valueData.remaining();
+                        fc.write(Bytes.fromInt(valueSize));
+                        offset += Integer.BYTES;
+                        fc.write(valueData);
+                        offset += valueSize;
+                        continue;
+                    }
+                    pointer = log.append(cell.getKey(), value.getTimeStamp(), valueData);
                 }
+                live.merge(pointer.segmentId(), (long) pointer.length, Long::sum);
+                final ByteBuffer reference = ByteBuffer.allocate(POINTER_BYTES);
+                reference.putInt(POINTER).putLong(pointer.segmentId()).putLong(pointer.offset).putInt(pointer.length);
+                fc.write(reference.flip());
+                offset += POINTER_BYTES;
             }
 
             // Offsets
@@ -99,7 +308,28 @@ public final class FileTable implements Table {
 
             // Cells
             fc.write(Bytes.fromInt(offsets.size()));
+
+            // Format
+            fc.write(Bytes.fromLong(FORMAT));
+
+            // Values and table are on disk before the table is renamed into place
+            if (log != null) {
+                log.sync();
+            }
+            fc.force(false);
+        }
+    }
+
+    private static long maxCellBytes(@NotNull final Cell cell) {
+        final long keyBytes = Integer.BYTES + cell.getKey().remaining() + Long.BYTES;
+        final Value value = cell.getValue();
+        if (value.isRemoved()) {
+            return keyBytes;
         }
+        final ValueLog.Pointer pointer = value.getPointer();
+        final int valueSize = pointer == null ? value.storedData().remaining() : pointer.length;
+        // Either inline or pointing to value log
+        return keyBytes + Long.BYTES + Math.max(Integer.BYTES + valueSize, POINTER_BYTES);
     }
 
     @Override
@@ -107,6 +337,44 @@ public final class FileTable implements Table {
         return sizeInBytes;
     }
 
+    int rows() {
+        return rows;
+    }
+
+    /**
+     * Checks that table came from another node is well-formed: keys are strictly ascending,
+     * cells fit the file and values are inline, as pointers make sense to value log of their node only.
+     *
+     * @throws IOException if table is malformed
+     */
+    void check() throws IOException {
+        final int limit = cells.limit();
+        ByteBuffer previous = null;
+        for (int i = 0; i < rows; i++) {
+            final int offset = offsets.get(i);
+            if (offset < 0 || offset > limit - Integer.BYTES || cells.getInt(offset) < 0
+                    || cells.getInt(offset) > limit - offset - Integer.BYTES - Long.BYTES) {
+                throw new IOException("Malformed table " + path + ": cell " + i + " is out of bounds");
+            }
+            final ByteBuffer key = keyAt(i);
+            if (previous != null && previous.compareTo(key) >= 0) {
+                throw new IOException("Malformed table " + path + ": keys are not ascending at " + i);
+            }
+            previous = key;
+            final int at = offset + Integer.BYTES + key.remaining();
+            if (cells.getLong(at) >= 0) {
+                final int valueAt = at + Long.BYTES * 2;
+                if (valueAt > limit - Integer.BYTES) {
+                    throw new IOException("Malformed table " + path + ": value " + i + " is out of bounds");
+                }
+                final int valueSize = cells.getInt(valueAt);
+                if (valueSize < 0 || valueSize > limit - valueAt - Integer.BYTES) {
+                    throw new IOException("Malformed table " + path + ": value " + i + " is not inline");
+                }
+            }
+        }
+    }
+
     private ByteBuffer keyAt(final int i) {
         assert 0 <= i && i < rows;
         final int offset = offsets.get(i);
@@ -117,7 +385,7 @@ public final class FileTable implements Table {
         return key.slice();
     }
 
-    private Cell cellAt(final int i) {
+    Cell cellAt(final int i) {
         assert 0 <= i && i < rows;
         int offset = offsets.get(i);
 
@@ -133,18 +401,25 @@ public final class FileTable implements Table {
         if (timestamp < 0) {
             return new Cell(key.slice(), new Value(-timestamp, null));
         } else {
+            final long expiresAt = cells.getLong(offset);
+            offset += Long.BYTES;
             final int valueSize = cells.getInt(offset);
             offset += Integer.BYTES;
+            if (valueSize == POINTER) {
+                final ValueLog.Pointer pointer = ValueLog.pointer(segments, cells.getLong(offset),
+                        cells.getLong(offset + Long.BYTES), cells.getInt(offset + Long.BYTES * 2));
+                return new Cell(key.slice(), new Value(timestamp, pointer, expiresAt));
+            }
             final ByteBuffer value = cells.duplicate();
             value.position(offset);
             value.limit(value.position() + valueSize)
                     .position(offset)
                     .limit(offset + valueSize);
-            return new Cell(key.slice(), new Value(timestamp, value.slice()));
+            return new Cell(key.slice(), new Value(timestamp, value.slice(), expiresAt));
         }
     }
 
-    private int position(final ByteBuffer from) {
+    int position(final ByteBuffer from) {
         int left = 0;
         int right = rows - 1;
         while (left <= right) {
@@ -180,6 +455,13 @@ public final class FileTable implements Table {
         };
     }
 
+    @Nullable
+    @Override
+    public Cell get(@NotNull final ByteBuffer key) {
+        final int position = position(key);
+        return position < rows && keyAt(position).equals(key) ? cellAt(position) : null;
+    }
+
     @Override
     public void upsert(@NotNull final ByteBuffer key, @NotNull final ByteBuffer value) {
         throw new UnsupportedOperationException("");
@@ -2,12 +2,14 @@ package ru.mail.polis.prohladenn;
 
 import com.google.common.collect.Iterators;
 import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
 import ru.mail.polis.dao.Iters;
 
 import java.nio.ByteBuffer;
 import java.util.ArrayList;
 import java.util.Collection;
 import java.util.Iterator;
+import java.util.concurrent.atomic.AtomicLong;
 
 final class IterUtils {
     private IterUtils() {
@@ -24,13 +26,60 @@ final class IterUtils {
     public static Iterator<Cell> collapse(@NotNull final Table memTable,
                                           @NotNull final Collection<FileTable> fileTables,
                                           @NotNull final ByteBuffer from) {
+        return Iterators.filter(latest(memTable, fileTables, from), cell -> !cell.getValue().isRemoved());
+    }
+
+    /**
+     * Collapses iterators from fileTable and memTable for compaction.
+     * Tombstones and expired cells are kept until {@code purgeBefore},
+     * so that a replica which missed the removal is repaired rather than brings the value back.
+     *
+     * @param memTable    MemTable
+     * @param fileTables  FileTable
+     * @param purgeBefore wall clock millis, cells removed before are dropped
+     * @param dropped     incremented for every tombstone or expired cell dropped
+     */
+    @NotNull
+    public static Iterator<Cell> purge(@NotNull final Table memTable,
+                                       @NotNull final Collection<FileTable> fileTables,
+                                       final long purgeBefore,
+                                       @NotNull final AtomicLong dropped) {
+        return Iterators.filter(latest(memTable, fileTables, LSMDao.EMPTY), cell -> {
+            if (cell.getValue().isRemoved() && cell.getValue().removedAt() < purgeBefore) {
+                dropped.incrementAndGet();
+                return false;
+            }
+            return true;
+        });
+    }
+
+    /**
+     * Chooses the latest of two versions of a key.
+     *
+     * @param first  version or null
+     * @param second version or null
+     * @return the newer version, the first one on equal timestamps
+     */
+    @Nullable
+    static Cell newer(@Nullable final Cell first, @Nullable final Cell second) {
+        if (first == null) {
+            return second;
+        }
+        if (second == null) {
+            return first;
+        }
+        return second.getValue().getTimeStamp() > first.getValue().getTimeStamp() ? second : first;
+    }
+
+    @NotNull
+    private static Iterator<Cell> latest(@NotNull final Table memTable,
+                                         @NotNull final Collection<FileTable> fileTables,
+                                         @NotNull final ByteBuffer from) {
         final Collection<Iterator<Cell>> filesIterators = new ArrayList<>();
         for (final FileTable fileTable : fileTables) {
             filesIterators.add(fileTable.iterator(from));
         }
         filesIterators.add(memTable.iterator(from));
-        final Iterator<Cell> cells = Iters.collapseEquals(Iterators
-                .mergeSorted(filesIterators, Cell.COMPARATOR), Cell::getKey);
-        return Iterators.filter(cells, cell -> !cell.getValue().isRemoved());
+        return Iters.collapseEquals(Iterators.mergeSorted(filesIterators, Cell.COMPARATOR), Cell::getKey);
     }
 }
@@ -2,28 +2,39 @@ package ru.mail.polis.prohladenn;
 
 import com.google.common.base.Splitter;
 import com.google.common.collect.Iterators;
+import com.google.common.collect.PeekingIterator;
 import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import ru.mail.polis.Record;
 import ru.mail.polis.dao.DAO;
 import ru.mail.polis.dao.Iters;
+import ru.mail.polis.metrics.MetricRegistry;
 
 import java.io.File;
 import java.io.IOException;
 import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
 import java.nio.file.FileVisitOption;
 import java.nio.file.FileVisitResult;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.SimpleFileVisitor;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
 import java.nio.file.attribute.BasicFileAttributes;
 import java.time.Duration;
 import java.util.ArrayList;
 import java.util.Collection;
 import java.util.EnumSet;
 import java.util.Iterator;
+import java.util.List;
+import java.util.Locale;
+import java.util.NoSuchElementException;
+import java.util.concurrent.CopyOnWriteArrayList;
 import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Supplier;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 
@@ -32,46 +43,118 @@ public final class LSMDao implements DAO {
     public static final String TABLE = "FILE_TABLE";
     public static final String SUFFIX = ".db";
     public static final String TEMP = ".tmp";
+    public static final String VALUE_LOG = "vlog";
+    /**
+     * Folder of the storage holding files named by admin requests: tables to ingest and checkpoints.
+     */
+    public static final String STAGING = "staging";
+    /**
+     * Time tombstones and expired cells are kept for since removal, it must exceed a full repair cycle
+     * of replicas, or a replica which missed the removal brings the value back.
+     */
+    public static final Duration TOMBSTONE_GRACE = Duration.ofDays(1);
     private static final Logger log = LoggerFactory.getLogger(ru.mail.polis.prohladenn.LSMDao.class);
 
     private final File base;
     private final MemTablePool memTable;
     private final Thread flushedThread;
     private final long generation;
+    private final MemoryManager memory;
+    private final ValueLog valueLog;
+    private final MetricRegistry metrics = new MetricRegistry();
+    private final StorageStats stats = new StorageStats(metrics);
     private Collection<FileTable> fileTables;
+    // Publication of flushed and ingested tables along with notifications of the listener
+    private final Object publishing = new Object();
+    private volatile FlushListener listener;
+    // Incremented as tables change otherwise than by flushes
+    private final AtomicLong epoch = new AtomicLong();
+
+    /**
+     * Observer of the latest versions of keys in tables, excluding memTable.
+     */
+    public interface FlushListener {
+        /**
+         * Called as a flushed table makes a version of key the latest one among tables.
+         *
+         * @param key        key
+         * @param superseded the latest version among tables before or null if there was none
+         * @param latest     the new latest version among tables
+         */
+        void flushed(@NotNull ByteBuffer key, @Nullable Cell superseded, @NotNull Cell latest);
+    }
 
     /**
      * Creates persistence LSMDao.
      *
      * @param base           folder with FileTable
      * @param flushThreshold threshold memTable's size
+     * @param memory         node-wide memory manager
      * @throws IOException if an I/O error occurred
      */
     public LSMDao(
             final File base,
-            final long flushThreshold) throws IOException {
+            final long flushThreshold,
+            @NotNull final MemoryManager memory) throws IOException {
         assert flushThreshold >= 0L;
         this.base = base;
-        this.fileTables = new ArrayList<>();
+        this.memory = memory;
+        this.valueLog = new ValueLog(new File(base, VALUE_LOG));
+        this.fileTables = new CopyOnWriteArrayList<>();
         final AtomicLong maxGeneration = new AtomicLong();
+        try {
+            open(maxGeneration);
+        } catch (IOException e) {
+            valueLog.close();
+            throw e;
+        }
+        this.generation = maxGeneration.get() + 1;
+        this.memTable = new MemTablePool(generation, flushThreshold, memory);
+        registerGauges();
+        flushedThread = new FlusherThread();
+        flushedThread.start();
+    }
+
+    private void open(@NotNull final AtomicLong maxGeneration) throws IOException {
         Files.walkFileTree(base.toPath(), EnumSet.of(FileVisitOption.FOLLOW_LINKS), 1, new SimpleFileVisitor<>() {
             @Override
-            public FileVisitResult visitFile(final Path path, final BasicFileAttributes attrs) {
-                if (!path.getFileName().toString().contains("trash")) {
-                    try {
-                        maxGeneration.set(Math.max(maxGeneration.get(), getGeneration(path.toFile())));
-                        fileTables.add(new FileTable(path.toFile()));
-                    } catch (IOException e) {
-                        log.error(e.getMessage());
+            public FileVisitResult visitFile(final Path path, final BasicFileAttributes attrs) throws IOException {
+                final String name = path.getFileName().toString();
+                // Temporary files of interrupted compactions and ingests are skipped
+                if (attrs.isRegularFile() && name.endsWith(SUFFIX) && !name.contains("trash")) {
+                    // Storage with a table it can't read is not opened rather than served without its data
+                    maxGeneration.set(Math.max(maxGeneration.get(), getGeneration(path.toFile())));
+                    if (!FileTable.isCurrent(path.toFile())) {
+                        upgrade(path.toFile());
                     }
+                    fileTables.add(new FileTable(path.toFile(), valueLog));
                 }
                 return FileVisitResult.CONTINUE;
             }
         });
-        this.generation = maxGeneration.get() + 1;
-        this.memTable = new MemTablePool(generation, flushThreshold);
-        flushedThread = new FlusherThread();
-        flushedThread.start();
+    }
+
+    private static void upgrade(@NotNull final File table) throws IOException {
+        final File tmp = new File(table.getParentFile(), table.getName() + TEMP);
+        FileTable.upgrade(table, tmp);
+        Files.move(tmp.toPath(), table.toPath(), StandardCopyOption.ATOMIC_MOVE);
+        log.info("Converted table {} of the older format", table);
+    }
+
+    private void registerGauges() {
+        metrics.gauge("storage_memtable_bytes", "Size of the active memTable", memTable::sizeInBytes);
+        metrics.gauge("storage_pending_flushes", "MemTables waiting to be flushed", memTable::pendingFlushes);
+        metrics.gauge("storage_tables", "Number of tables on disk", () -> fileTables.size());
+        metrics.gauge("storage_disk_bytes", "Size of tables on disk",
+                () -> fileTables.stream().mapToLong(FileTable::sizeInBytes).sum());
+        metrics.gauge("storage_value_log_bytes", "Size of value log on disk", valueLog::sizeInBytes);
+        metrics.gauge("storage_value_log_segments", "Number of value log segments", valueLog::segments);
+        metrics.gauge("memory_budget_bytes", "Node-wide memory budget", memory::getBudget);
+        for (final MemoryManager.Consumer consumer : MemoryManager.Consumer.values()) {
+            metrics.gauge("memory_used_bytes", "Reserved memory by consumer",
+                    () -> memory.getUsed(consumer), "consumer", consumer.name().toLowerCase(Locale.ENGLISH));
+        }
+        metrics.gauge("memory_rejected_total", "Rejected memory reservations", memory::getRejected);
     }
 
     @NotNull
@@ -79,14 +162,53 @@ public final class LSMDao implements DAO {
     public Iterator<Record> iterator(@NotNull final ByteBuffer from) {
         return Iterators.transform(
                 cellIterator(from),
-                cell -> Record.of(cell.getKey(), cell.getValue().getData()));
+                cell -> Record.of(cell.getKey(), cell.getValue().storedData()));
     }
 
     @NotNull
     public Iterator<Cell> cellIterator(@NotNull final ByteBuffer from) {
+        stats.read(fileTables.size());
         return IterUtils.collapse(memTable, fileTables, from);
     }
 
+    /**
+     * Looks up the latest version of key: the stripe of the key in memTable and a binary search per table,
+     * without merging iterators of the whole storage as {@link #latestIterator} does.
+     *
+     * @param key key
+     * @return the latest version including a tombstone or null if there is none
+     */
+    @Nullable
+    public Cell latest(@NotNull final ByteBuffer key) {
+        stats.read(fileTables.size());
+        return IterUtils.newer(memTable.get(key), latestFlushed(key));
+    }
+
+    /**
+     * Looks up the latest version of key among tables, excluding memTable.
+     *
+     * @param key key
+     * @return the latest version including a tombstone or null if there is none
+     */
+    @Nullable
+    public Cell latestFlushed(@NotNull final ByteBuffer key) {
+        Cell latest = null;
+        for (final Table table : fileTables) {
+            latest = IterUtils.newer(latest, table.get(key));
+        }
+        return latest;
+    }
+
+    @NotNull
+    @Override
+    public ByteBuffer get(@NotNull final ByteBuffer key) throws NoSuchElementException {
+        final Cell cell = latest(key);
+        if (cell == null || cell.getValue().isRemoved()) {
+            throw new NoSuchElementException("Not found");
+        }
+        return cell.getValue().storedData();
+    }
+
     /**
      * Merged iterator of memTable and fileTables.
      *
@@ -95,6 +217,7 @@ public final class LSMDao implements DAO {
      */
     @NotNull
     public Iterator<Cell> latestIterator(@NotNull final ByteBuffer from) {
+        stats.read(fileTables.size());
         final Collection<Iterator<Cell>> iterators =
                 new ArrayList<>(fileTables.size() + 1);
 
@@ -106,35 +229,347 @@ public final class LSMDao implements DAO {
                 .mergeSorted(iterators, Cell.COMPARATOR), Cell::getKey);
     }
 
+    /**
+     * Merged iterator of tables excluding memTable.
+     *
+     * @return the latest versions of keys among tables
+     */
+    @NotNull
+    public Iterator<Cell> flushedIterator() {
+        stats.read(fileTables.size());
+        final Collection<Iterator<Cell>> iterators = new ArrayList<>(fileTables.size());
+        for (final Table table : fileTables) {
+            iterators.add(table.iterator(EMPTY));
+        }
+        return Iters.collapseEquals(Iterators.mergeSorted(iterators, Cell.COMPARATOR), Cell::getKey);
+    }
+
+    /**
+     * Iterator of memTable including tables being flushed.
+     *
+     * @return the latest versions of keys in memTable
+     */
+    @NotNull
+    public Iterator<Cell> memTableIterator() {
+        return memTable.iterator(EMPTY);
+    }
+
+    /**
+     * Sets observer of flushes, called before a flushed table becomes visible.
+     *
+     * @param listener listener or null
+     */
+    public void setFlushListener(@Nullable final FlushListener listener) {
+        synchronized (publishing) {
+            this.listener = listener;
+        }
+    }
+
+    /**
+     * Runs task while no table is published, so that tables and memTable the task reads
+     * agree with notifications of {@link FlushListener} delivered so far.
+     *
+     * @param task task
+     * @param <T>  type of result
+     * @return result of task
+     */
+    public <T> T withTablesFixed(@NotNull final Supplier<T> task) {
+        synchronized (publishing) {
+            return task.get();
+        }
+    }
+
+    /**
+     * Returns number of changes of tables other than flushes, that is ingests and compactions,
+     * so that state derived from tables and {@link FlushListener} notifications is known to be stale.
+     *
+     * @return epoch of tables
+     */
+    public long epoch() {
+        return epoch.get();
+    }
+
     @Override
     public void upsert(@NotNull final ByteBuffer key, @NotNull final ByteBuffer value) {
+        stats.written(key.remaining() + value.remaining());
         memTable.upsert(key, value);
     }
 
     @Override
     public void upsert(@NotNull final ByteBuffer key, @NotNull final ByteBuffer value, @NotNull final Duration ttl) {
+        stats.written(key.remaining() + value.remaining());
         memTable.upsert(key, value, ttl);
     }
 
+    /**
+     * Writes version of a key stamped by the coordinator of a replicated write.
+     * Versions are ordered by timestamp, so the write has no effect if there is a newer one.
+     *
+     * @param key   key
+     * @param value value made by {@link Value#at}
+     */
+    public void write(@NotNull final ByteBuffer key, @NotNull final Value value) {
+        stats.written(key.remaining() + Math.max(0, value.dataSize()));
+        memTable.putIfNewer(key, value);
+    }
+
+    /**
+     * Applies version of a key received from another replica.
+     * The version is kept only if it is newer than the local one.
+     *
+     * @param key   key
+     * @param value value with its original timestamp and expiration
+     * @return true if local version was replaced
+     */
+    public boolean repair(@NotNull final ByteBuffer key, @NotNull final Value value) {
+        final Cell latest = latest(key);
+        if (latest != null && latest.getValue().getTimeStamp() >= value.getTimeStamp()) {
+            return false;
+        }
+        final ByteBuffer data = value.getData();
+        stats.written(key.remaining() + (data == null ? 0 : data.remaining()));
+        return memTable.putIfNewer(key, value);
+    }
+
+    /**
+     * Adds table written by {@link FileTable#write(Iterator, File)}, possibly on another node,
+     * bypassing memTable. Versions of keys in the table win only if they are newer.
+     *
+     * @param table table file contents
+     * @throws IOException if table is malformed or can't be stored
+     */
+    public void ingest(@NotNull final ByteBuffer table) throws IOException {
+        if (table.remaining() < Integer.BYTES) {
+            throw new IOException("Malformed table: " + table.remaining() + " bytes");
+        }
+        final long ingested = memTable.reserveGeneration();
+        final StorageStats.Job job = stats.start(StorageStats.Kind.INGEST, ingested, fileTables);
+        final File tmp = new File(base, ingested + TABLE + TEMP);
+        try {
+            try (FileChannel fc = FileChannel.open(tmp.toPath(), StandardOpenOption.CREATE_NEW,
+                    StandardOpenOption.WRITE)) {
+                final ByteBuffer data = table.duplicate();
+                while (data.hasRemaining()) {
+                    fc.write(data);
+                }
+                fc.force(true);
+            }
+            install(job, ingested, tmp);
+        } finally {
+            Files.deleteIfExists(tmp.toPath());
+        }
+    }
+
+    /**
+     * Adds table file written by {@link FileTable#write(Iterator, File)} as it is, bypassing memTable.
+     * The file is hard linked into the storage folder, or copied if it's on another file system,
+     * so it must not be changed afterwards. Versions of keys in the table win only if they are newer.
+     *
+     * @param table table file
+     * @throws IOException if table is malformed or can't be stored
+     */
+    public void ingest(@NotNull final Path table) throws IOException {
+        if (!Files.isRegularFile(table) || Files.size(table) < Integer.BYTES) {
+            throw new IOException("Malformed table: " + table);
+        }
+        final long ingested = memTable.reserveGeneration();
+        final StorageStats.Job job = stats.start(StorageStats.Kind.INGEST, ingested, fileTables);
+        final File tmp = new File(base, ingested + TABLE + TEMP);
+        try {
+            try {
+                Files.createLink(tmp.toPath(), table);
+            } catch (IOException | UnsupportedOperationException e) {
+                Files.copy(table, tmp.toPath());
+                try (FileChannel fc = FileChannel.open(tmp.toPath(), StandardOpenOption.WRITE)) {
+                    fc.force(true);
+                }
+            }
+            install(job, ingested, tmp);
+        } finally {
+            Files.deleteIfExists(tmp.toPath());
+        }
+    }
+
+    /**
+     * Validates temporary table and makes it a table of given generation.
+     */
+    private void install(@NotNull final StorageStats.Job job,
+                         final long ingested,
+                         @NotNull final File tmp) throws IOException {
+        try {
+            new FileTable(tmp, valueLog).check();
+        } catch (IndexOutOfBoundsException | IllegalArgumentException e) {
+            throw new IOException("Malformed table: " + e.getMessage(), e);
+        }
+        final File file = new File(base, ingested + TABLE + SUFFIX);
+        Files.move(tmp.toPath(), file.toPath(), StandardCopyOption.ATOMIC_MOVE);
+        final FileTable added = new FileTable(file, valueLog);
+        synchronized (publishing) {
+            fileTables.add(added);
+            epoch.incrementAndGet();
+        }
+        job.written(added);
+        stats.finish(job, fileTables);
+    }
+
+    /**
+     * Writes the latest versions of keys including tombstones to standalone tables
+     * which {@link #ingest(Path)} accepts, see {@link FileTable#write(Iterator, File, long)}.
+     * Keys written meanwhile may be missing.
+     *
+     * @param to path of the first file to write, must not exist
+     * @return tables written
+     * @throws IOException if an I/O error occurred
+     */
+    @NotNull
+    public List<File> export(@NotNull final File to) throws IOException {
+        return FileTable.write(latestIterator(EMPTY), to, FileTable.MAX_BYTES);
+    }
+
+    /**
+     * Writes the latest versions of keys from the given one to a standalone table as long as they fit.
+     *
+     * @param from     the first key
+     * @param to       path of the file to write, must not exist
+     * @param maxBytes size limit of the table
+     * @return the first key left out or null if the table has all keys to the end
+     * @throws IOException if an I/O error occurred
+     */
+    @Nullable
+    public ByteBuffer export(@NotNull final ByteBuffer from,
+                             @NotNull final File to,
+                             final long maxBytes) throws IOException {
+        final PeekingIterator<Cell> cells = Iterators.peekingIterator(latestIterator(from));
+        FileTable.write(cells, to, maxBytes);
+        return cells.hasNext() ? cells.peek().getKey() : null;
+    }
+
+    /**
+     * Returns folder of files named by admin requests, see {@link #STAGING}.
+     *
+     * @return existing folder
+     * @throws IOException if folder can't be created
+     */
+    @NotNull
+    public File staging() throws IOException {
+        final File staging = new File(base, STAGING);
+        Files.createDirectories(staging.toPath());
+        return staging;
+    }
+
+    /**
+     * Makes checkpoint, a folder to open another LSMDao with, holding all data written before.
+     * Tables and value log segments are hard linked rather than copied, and the memTable is written
+     * as a table, so it takes time proportional to number of files. Files are never changed in place,
+     * so the checkpoint stays intact as this storage compacts and deletes its files.
+     *
+     * @param to folder of checkpoint to create on the same file system
+     * @return number of files in checkpoint
+     * @throws IOException if checkpoint exists or an I/O error occurred
+     */
+    public synchronized int checkpoint(@NotNull final File to) throws IOException {
+        if (to.exists()) {
+            throw new IOException("Checkpoint exists: " + to);
+        }
+        // Tables flushed after the memTable is taken are duplicated rather than lost
+        final Iterator<Cell> memory = memTable.iterator(EMPTY);
+        final Collection<FileTable> tables = new ArrayList<>(fileTables);
+        final File tmp = new File(to.getParentFile(), to.getName() + TEMP);
+        final File segments = new File(tmp, VALUE_LOG);
+        Files.createDirectories(segments.toPath());
+        try {
+            int files = 0;
+            if (memory.hasNext()) {
+                FileTable.write(memory, new File(tmp, memTable.reserveGeneration() + TABLE + SUFFIX));
+                files++;
+            }
+            for (final FileTable table : tables) {
+                Files.createLink(tmp.toPath().resolve(table.getPath().getFileName()), table.getPath());
+                files++;
+            }
+            // Tables point only to segments existing by now, compaction can't delete them meanwhile
+            files += valueLog.link(segments);
+            Files.move(tmp.toPath(), to.toPath(), StandardCopyOption.ATOMIC_MOVE);
+            return files;
+        } finally {
+            if (tmp.exists()) {
+                ru.mail.polis.Files.recursiveDelete(tmp);
+            }
+        }
+    }
+
     private void flush(final long currentGeneration,
-                       final boolean isCompactFlush,
                        @NotNull final Iterator<Cell> iterator) throws IOException {
         if (!iterator.hasNext()) return;
+        final StorageStats.Job job = stats.start(StorageStats.Kind.FLUSH, currentGeneration, fileTables);
         final File file = new File(base, currentGeneration + TABLE + SUFFIX);
-        FileTable.write(iterator, file);
-        if (isCompactFlush) {
-            fileTables.add(new FileTable(file));
+        final File tmp = new File(base, currentGeneration + TABLE + TEMP);
+        // Compaction running meanwhile doesn't see this table, so it must not collect segments it points to
+        final long pinned = valueLog.pin();
+        try {
+            Files.deleteIfExists(tmp.toPath());
+            FileTable.write(iterator, tmp, valueLog);
+            Files.move(tmp.toPath(), file.toPath(), StandardCopyOption.ATOMIC_MOVE);
+            final FileTable table = new FileTable(file, valueLog);
+            publish(table);
+            job.written(table);
+        } finally {
+            valueLog.unpin(pinned);
+        }
+        stats.finish(job, fileTables);
+    }
+
+    private void publish(@NotNull final FileTable table) {
+        synchronized (publishing) {
+            final FlushListener current = listener;
+            if (current != null) {
+                final Iterator<Cell> cells = table.iterator(EMPTY);
+                while (cells.hasNext()) {
+                    final Cell cell = cells.next();
+                    final Cell superseded = latestFlushed(cell.getKey());
+                    if (superseded == null
+                            || superseded.getValue().getTimeStamp() < cell.getValue().getTimeStamp()) {
+                        current.flushed(cell.getKey(), superseded, cell);
+                    }
+                }
+            }
+            fileTables.add(table);
         }
     }
 
     @Override
     public void remove(@NotNull final ByteBuffer key) {
+        stats.written(key.remaining());
         memTable.remove(key);
     }
 
+    @NotNull
+    public MemoryManager getMemoryManager() {
+        return memory;
+    }
+
+    @NotNull
+    public MetricRegistry getMetrics() {
+        return metrics;
+    }
+
+    @NotNull
+    public StorageStats getStats() {
+        return stats;
+    }
+
     @Override
-    public void compact() throws IOException {
-        memTable.compact(fileTables, generation, base);
+    public synchronized void compact() throws IOException {
+        final StorageStats.Job job = stats.start(StorageStats.Kind.COMPACTION, generation, fileTables);
+        final AtomicLong dropped = new AtomicLong();
+        try {
+            job.written(memTable.compact(fileTables, generation, base, valueLog, dropped));
+        } finally {
+            // Purged cells and cells of memTable are in the compacted table, no flush reports them
+            epoch.incrementAndGet();
+        }
+        job.dropped(dropped.get());
+        stats.finish(job, fileTables);
     }
 
     @Override
@@ -142,8 +577,11 @@ public final class LSMDao implements DAO {
         memTable.close();
         try {
             flushedThread.join();
+            valueLog.close();
         } catch (InterruptedException e) {
             Thread.currentThread().interrupt();
+        } catch (IOException e) {
+            log.error("Can't close value log", e);
         }
     }
 
@@ -152,16 +590,19 @@ public final class LSMDao implements DAO {
     }
 
     private void compactDir(final long preGender) throws IOException {
-        fileTables = new ArrayList<>();
+        fileTables = new CopyOnWriteArrayList<>();
         Files.walkFileTree(base.toPath(), EnumSet.of(FileVisitOption.FOLLOW_LINKS), 1, new SimpleFileVisitor<>() {
             @Override
             public FileVisitResult visitFile(final Path path, final BasicFileAttributes attrs) throws IOException {
                 final File file = path.toFile();
+                if (attrs.isDirectory()) {
+                    return FileVisitResult.CONTINUE;
+                }
                 final Matcher matcher = Pattern.compile(TABLE).matcher(file.getName());
                 if (file.getName().endsWith(SUFFIX) && matcher.find()) {
                     final long currentGeneration = getGeneration(file);
                     if (currentGeneration >= preGender) {
-                        fileTables.add(new FileTable(file));
+                        fileTables.add(new FileTable(file, valueLog));
                         return FileVisitResult.CONTINUE;
                     }
                 }
@@ -187,11 +628,8 @@ public final class LSMDao implements DAO {
                     final Iterator<Cell> data = toFlush.getData();
                     poisonRecieved = toFlush.isPoisonPill();
                     final boolean isCompactTable = toFlush.isCompacted();
-                    if (isCompactTable || poisonRecieved) {
-                        flush(toFlush.getGeneration(), true, data);
-                    } else {
-                        flush(toFlush.getGeneration(), false, data);
-                    }
+                    // Table must become visible on disk before it leaves the pending set
+                    flush(toFlush.getGeneration(), data);
                     if (isCompactTable) {
                         compactDir(toFlush.getGeneration());
                     } else {
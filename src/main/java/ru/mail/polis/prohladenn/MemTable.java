@@ -2,73 +2,158 @@ package ru.mail.polis.prohladenn;
 
 import com.google.common.collect.Iterators;
 import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
 
 import javax.annotation.concurrent.ThreadSafe;
 import java.nio.ByteBuffer;
 import java.time.Duration;
+import java.util.ArrayList;
 import java.util.Iterator;
-import java.util.SortedMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentNavigableMap;
 import java.util.concurrent.ConcurrentSkipListMap;
 import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
 
+/**
+ * Sorted in-memory table. Keys are split by hash into {@link #STRIPES} skip lists,
+ * so that concurrent writers rarely touch the same index nodes,
+ * and iterators merge the stripes back into key order. Point lookups search the stripe of the key only.
+ */
 @ThreadSafe
 public final class MemTable implements Table {
-    private final SortedMap<ByteBuffer, Value> map = new ConcurrentSkipListMap<>();
-    private final AtomicLong sizeInBytes = new AtomicLong();
+    // Power of two, at least one stripe per core
+    private static final int STRIPES =
+            Integer.highestOneBit(Math.max(1, Runtime.getRuntime().availableProcessors() - 1)) << 1;
+    // Skip list node together with its share of index nodes
+    private static final long NODE_OVERHEAD = 48;
+    // HeapByteBuffer object and header of its backing array
+    private static final long BUFFER_OVERHEAD = 64;
+    // Value object itself
+    private static final long VALUE_OVERHEAD = 24;
+
+    private final List<ConcurrentNavigableMap<ByteBuffer, Value>> stripes = new ArrayList<>(STRIPES);
+    private final LongAdder sizeInBytes = new LongAdder();
     private final AtomicLong generation = new AtomicLong();
+    private final MemoryManager memory;
 
-    MemTable(final long generation) {
+    MemTable(final long generation, @NotNull final MemoryManager memory) {
         this.generation.set(generation);
+        this.memory = memory;
+        for (int i = 0; i < STRIPES; i++) {
+            stripes.add(new ConcurrentSkipListMap<>());
+        }
+    }
+
+    @NotNull
+    private ConcurrentNavigableMap<ByteBuffer, Value> stripe(@NotNull final ByteBuffer key) {
+        final int hash = key.hashCode();
+        return stripes.get((hash ^ (hash >>> 16)) & (STRIPES - 1));
     }
 
+    /**
+     * Returns estimated heap footprint of the table including per-entry overhead.
+     *
+     * @return size in bytes
+     */
     @Override
     public long sizeInBytes() {
-        return sizeInBytes.get();
+        return sizeInBytes.sum();
     }
 
     @NotNull
     @Override
     public Iterator<Cell> iterator(@NotNull final ByteBuffer from) {
+        final List<Iterator<Map.Entry<ByteBuffer, Value>>> iterators = new ArrayList<>(STRIPES);
+        for (final ConcurrentNavigableMap<ByteBuffer, Value> stripe : stripes) {
+            iterators.add(stripe.tailMap(from).entrySet().iterator());
+        }
+        // Stripes hold disjoint keys, so merging needs no collapsing
         return Iterators.transform(
-                map.tailMap(from).entrySet().stream()
-                        .filter(e -> e.getValue().getTimeStamp() <= System.nanoTime()).iterator(),
+                Iterators.mergeSorted(iterators, Map.Entry.comparingByKey()),
                 e -> new Cell(e.getKey(), e.getValue()));
     }
 
+    @Nullable
+    @Override
+    public Cell get(@NotNull final ByteBuffer key) {
+        final Value value = stripe(key).get(key);
+        return value == null ? null : new Cell(key, value);
+    }
+
     @Override
     public void upsert(@NotNull final ByteBuffer key, @NotNull final ByteBuffer value) {
-        final Value previous = map.put(key, Value.of(value));
-        upsert(key, value, previous);
+        put(key, Value.of(value));
     }
 
     @Override
     public void upsert(@NotNull final ByteBuffer key, @NotNull final ByteBuffer value, @NotNull final Duration ttl) {
-        final Value previous = map.put(key, Value.tombstone(ttl.toMillis()));
-        upsert(key, value, previous);
+        put(key, Value.of(value, ttl.toMillis()));
+    }
+
+    private void put(@NotNull final ByteBuffer key, @NotNull final Value value) {
+        account(key, stripe(key).put(key, value), value);
     }
 
-    private void upsert(@NotNull final ByteBuffer key, @NotNull final ByteBuffer value, final Value previous) {
+    /**
+     * Puts value unless the table already has the same or a newer version of the key.
+     *
+     * @param key   key
+     * @param value value with its original timestamp
+     * @return true if value was put
+     */
+    boolean putIfNewer(@NotNull final ByteBuffer key, @NotNull final Value value) {
+        final ConcurrentNavigableMap<ByteBuffer, Value> map = stripe(key);
+        while (true) {
+            final Value previous = map.get(key);
+            if (previous == null) {
+                if (map.putIfAbsent(key, value) == null) {
+                    account(key, null, value);
+                    return true;
+                }
+            } else if (previous.getTimeStamp() >= value.getTimeStamp()) {
+                return false;
+            } else if (map.replace(key, previous, value)) {
+                account(key, previous, value);
+                return true;
+            }
+        }
+    }
+
+    private void account(@NotNull final ByteBuffer key, final Value previous, @NotNull final Value value) {
+        final long delta;
         if (previous == null) {
-            sizeInBytes.addAndGet(key.remaining() + value.remaining());
-        } else if (previous.isRemoved()) {
-            sizeInBytes.addAndGet(value.remaining());
+            delta = NODE_OVERHEAD + BUFFER_OVERHEAD + key.remaining() + sizeOf(value);
         } else {
-            sizeInBytes.addAndGet(value.remaining() - previous.getData().remaining());
+            delta = sizeOf(value) - sizeOf(previous);
+        }
+        sizeInBytes.add(delta);
+        memory.reserve(MemoryManager.Consumer.MEMTABLE, delta);
+    }
+
+    private static long sizeOf(@NotNull final Value value) {
+        final int size = value.dataSize();
+        if (size < 0) {
+            return VALUE_OVERHEAD;
         }
+        return VALUE_OVERHEAD + BUFFER_OVERHEAD + size;
     }
 
     @Override
     public boolean contains(@NotNull final ByteBuffer key) {
-        return map.containsKey(key);
+        return stripe(key).containsKey(key);
     }
 
     @Override
     public void remove(@NotNull final ByteBuffer key) {
-        final Value previous = map.put(key, Value.tombstone());
-        if (previous == null) {
-            sizeInBytes.addAndGet(key.remaining());
-        } else if (!previous.isRemoved()) {
-            sizeInBytes.addAndGet(-previous.getData().remaining());
-        }
+        put(key, Value.tombstone());
+    }
+
+    /**
+     * Gives reserved memory back to the manager once the table is on disk.
+     */
+    void release() {
+        memory.release(MemoryManager.Consumer.MEMTABLE, sizeInBytes.sumThenReset());
     }
 }
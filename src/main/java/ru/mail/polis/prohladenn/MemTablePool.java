@@ -2,6 +2,7 @@ package ru.mail.polis.prohladenn;
 
 import com.google.common.collect.Iterators;
 import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
 import ru.mail.polis.dao.Iters;
 
 import java.io.Closeable;
@@ -13,20 +14,28 @@ import java.nio.file.StandardCopyOption;
 import java.time.Duration;
 import java.util.ArrayList;
 import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
 import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
 import java.util.NavigableMap;
 import java.util.TreeMap;
 import java.util.concurrent.ArrayBlockingQueue;
 import java.util.concurrent.BlockingQueue;
 import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.concurrent.locks.ReadWriteLock;
 import java.util.concurrent.locks.ReentrantReadWriteLock;
 
 public class MemTablePool implements Table, Closeable {
 
     private static final String ALREADY_STOPPED = "Already stopped!";
-    private final NavigableMap<Long, Table> pendingToFlushTables;
+    // Under memory pressure tables are flushed once they reach this share of the threshold
+    private static final int PRESSURE_FLUSH_DIVIDER = 4;
+    private final NavigableMap<Long, MemTable> pendingToFlushTables;
     private final long memFlushThreshold;
+    private final MemoryManager memory;
     private final BlockingQueue<TableToFlush> flushingQueue;
     private final ReadWriteLock lock = new ReentrantReadWriteLock();
     private final AtomicBoolean stop = new AtomicBoolean();
@@ -39,13 +48,16 @@ public class MemTablePool implements Table, Closeable {
      *
      * @param startGeneration   generation
      * @param memFlushThreshold threshold when tables need to be flushed
+     * @param memory            node-wide memory manager
      */
     public MemTablePool(final long startGeneration,
-                        final long memFlushThreshold) {
+                        final long memFlushThreshold,
+                        @NotNull final MemoryManager memory) {
         this.generation = startGeneration;
         this.memFlushThreshold = memFlushThreshold;
-        this.currentMemTable = new MemTable(generation++);
-        this.ttlMemTable = new MemTable(generation);
+        this.memory = memory;
+        this.currentMemTable = new MemTable(generation++, memory);
+        this.ttlMemTable = new MemTable(generation, memory);
         this.pendingToFlushTables = new TreeMap<>();
         this.flushingQueue = new ArrayBlockingQueue<>(2);
     }
@@ -80,18 +92,37 @@ public class MemTablePool implements Table, Closeable {
         return Iters.collapseEquals(mergeIterator, Cell::getKey);
     }
 
+    @Nullable
+    @Override
+    public Cell get(@NotNull final ByteBuffer key) {
+        lock.readLock().lock();
+        try {
+            Cell latest = IterUtils.newer(currentMemTable.get(key), ttlMemTable.get(key));
+            for (final Table table : pendingToFlushTables.values()) {
+                latest = IterUtils.newer(latest, table.get(key));
+            }
+            return latest;
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
     private void enqueueFlush() {
+        // Writers run in parallel, only the one switching tables needs the lock exclusively
+        if (!shouldFlush()) {
+            return;
+        }
         TableToFlush tableToFlush = null;
         lock.writeLock().lock();
         try {
-            if (currentMemTable.sizeInBytes() > memFlushThreshold) {
+            if (shouldFlush()) {
                 tableToFlush = new TableToFlush(generation,
                         currentMemTable.iterator(LSMDao.EMPTY),
                         false);
                 pendingToFlushTables.put(generation, currentMemTable);
                 generation = generation + 1;
                 currentMemTable = ttlMemTable;
-                ttlMemTable = new MemTable(generation);
+                ttlMemTable = new MemTable(generation, memory);
             }
         } finally {
             lock.writeLock().unlock();
@@ -105,6 +136,12 @@ public class MemTablePool implements Table, Closeable {
         }
     }
 
+    private boolean shouldFlush() {
+        final long size = currentMemTable.sizeInBytes();
+        return size > memFlushThreshold
+                || (size > memFlushThreshold / PRESSURE_FLUSH_DIVIDER && memory.isUnderPressure());
+    }
+
     @Override
     public void upsert(@NotNull final ByteBuffer key, @NotNull final ByteBuffer value) {
         if (stop.get()) {
@@ -123,9 +160,30 @@ public class MemTablePool implements Table, Closeable {
         if (stop.get()) {
             throw new IllegalStateException(ALREADY_STOPPED);
         }
-        currentMemTable.upsert(key, value);
-        ttlMemTable.upsert(key, value, ttl);
+        if (currentMemTable.contains(key)) {
+            ttlMemTable.upsert(key, value, ttl);
+        } else {
+            currentMemTable.upsert(key, value, ttl);
+        }
+        enqueueFlush();
+    }
+
+    /**
+     * Puts value received from another replica, keeping its timestamp.
+     *
+     * @param key   key
+     * @param value value
+     * @return true if value was put, false if memTable has the same or a newer version
+     */
+    public boolean putIfNewer(@NotNull final ByteBuffer key, @NotNull final Value value) {
+        if (stop.get()) {
+            throw new IllegalStateException(ALREADY_STOPPED);
+        }
+        final boolean put = currentMemTable.contains(key)
+                ? ttlMemTable.putIfNewer(key, value)
+                : currentMemTable.putIfNewer(key, value);
         enqueueFlush();
+        return put;
     }
 
     @Override
@@ -145,6 +203,34 @@ public class MemTablePool implements Table, Closeable {
         enqueueFlush();
     }
 
+    /**
+     * Returns number of memTables waiting to be flushed.
+     *
+     * @return pending tables count
+     */
+    public int pendingFlushes() {
+        lock.readLock().lock();
+        try {
+            return pendingToFlushTables.size();
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Reserves generation no memTable will be flushed with, for a table created elsewhere.
+     *
+     * @return fresh generation
+     */
+    public long reserveGeneration() {
+        lock.writeLock().lock();
+        try {
+            return generation++;
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
     public TableToFlush takeToFlush() throws InterruptedException {
         return flushingQueue.take();
     }
@@ -157,7 +243,10 @@ public class MemTablePool implements Table, Closeable {
     public void flushed(final long generation) {
         lock.writeLock().lock();
         try {
-            pendingToFlushTables.remove(generation);
+            final MemTable table = pendingToFlushTables.remove(generation);
+            if (table != null) {
+                table.release();
+            }
         } finally {
             lock.writeLock().unlock();
         }
@@ -187,34 +276,64 @@ public class MemTablePool implements Table, Closeable {
     }
 
     /**
-     * MemTables compaction.
+     * MemTables compaction. Values are moved out of sparse value log segments
+     * and segments left without live values are deleted.
      *
      * @param fileTables collection of fileTables
      * @param generation generation of fileTables
      * @param base       directory
+     * @param log        value log
+     * @param dropped    counter of tombstones and expired cells dropped after {@link LSMDao#TOMBSTONE_GRACE}
+     * @return compacted table
      * @throws IOException if an I/O error occurred
      */
-    public void compact(@NotNull final Collection<FileTable> fileTables,
-                        final long generation,
-                        final File base) throws IOException {
-        final Iterator<Cell> alive;
-        lock.readLock().lock();
-        try {
-            alive = IterUtils.collapse(currentMemTable, fileTables, LSMDao.EMPTY);
-        } finally {
-            lock.readLock().unlock();
+    public FileTable compact(@NotNull final Collection<FileTable> fileTables,
+                             final long generation,
+                             final File base,
+                             @NotNull final ValueLog log,
+                             @NotNull final AtomicLong dropped) throws IOException {
+        // Tables being flushed or flushed meanwhile may point to protected segments
+        final long protectedFrom = log.protectedFrom();
+        // Tables flushed or ingested meanwhile stay as they are
+        final List<FileTable> compacting = new ArrayList<>(fileTables);
+        final long purgeBefore = System.currentTimeMillis() - LSMDao.TOMBSTONE_GRACE.toMillis();
+        final Map<Long, Long> live = new HashMap<>();
+        final Iterator<Cell> counted = alive(compacting, purgeBefore, new AtomicLong());
+        while (counted.hasNext()) {
+            final ValueLog.Pointer pointer = counted.next().getValue().getPointer();
+            if (pointer != null) {
+                live.merge(pointer.segmentId(), (long) pointer.length, Long::sum);
+            }
         }
+        final Collection<Long> sparse = new HashSet<>(log.sparse(live, protectedFrom));
+        live.clear();
         final File tmp = new File(base, generation + LSMDao.TABLE + LSMDao.TEMP);
-        FileTable.write(alive, tmp);
+        FileTable.write(alive(compacting, purgeBefore, dropped), tmp, log, live, sparse);
+        final FileTable compacted;
         lock.readLock().lock();
         try {
-            for (final FileTable fileTable : fileTables) {
+            for (final FileTable fileTable : compacting) {
                 Files.delete(fileTable.getPath());
             }
-            fileTables.clear();
+            fileTables.removeAll(compacting);
             final File file = new File(base, generation + LSMDao.TABLE + LSMDao.SUFFIX);
             Files.move(tmp.toPath(), file.toPath(), StandardCopyOption.ATOMIC_MOVE);
-            fileTables.add(new FileTable(file));
+            compacted = new FileTable(file, log);
+            fileTables.add(compacted);
+        } finally {
+            lock.readLock().unlock();
+        }
+        log.collect(live, protectedFrom);
+        return compacted;
+    }
+
+    @NotNull
+    private Iterator<Cell> alive(@NotNull final Collection<FileTable> fileTables,
+                                 final long purgeBefore,
+                                 @NotNull final AtomicLong dropped) {
+        lock.readLock().lock();
+        try {
+            return IterUtils.purge(currentMemTable, fileTables, purgeBefore, dropped);
         } finally {
             lock.readLock().unlock();
         }
@@ -0,0 +1,99 @@
+package ru.mail.polis.prohladenn;
+
+import org.jetbrains.annotations.NotNull;
+
+import javax.annotation.concurrent.ThreadSafe;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Node-wide heap budget shared by memTables, caches and in-flight requests.
+ */
+@ThreadSafe
+public final class MemoryManager {
+    private static final int PRESSURE_PERCENT = 75;
+
+    private final long budget;
+    private final long pressureWatermark;
+    private final AtomicLong used = new AtomicLong();
+    private final AtomicLongArray usedBy = new AtomicLongArray(Consumer.values().length);
+    private final AtomicLong rejected = new AtomicLong();
+
+    public enum Consumer {
+        MEMTABLE,
+        CACHE,
+        REQUEST
+    }
+
+    /**
+     * Creates memory manager.
+     *
+     * @param budget total bytes that may be reserved on this node
+     */
+    public MemoryManager(final long budget) {
+        assert budget > 0L;
+        this.budget = budget;
+        this.pressureWatermark = budget / 100 * PRESSURE_PERCENT;
+    }
+
+    /**
+     * Reserves memory if it fits into the budget.
+     *
+     * @param consumer who reserves
+     * @param bytes    amount of memory
+     * @return true if memory has been reserved
+     */
+    public boolean tryReserve(@NotNull final Consumer consumer, final long bytes) {
+        while (true) {
+            final long current = used.get();
+            if (current + bytes > budget) {
+                rejected.incrementAndGet();
+                return false;
+            }
+            if (used.compareAndSet(current, current + bytes)) {
+                usedBy.addAndGet(consumer.ordinal(), bytes);
+                return true;
+            }
+        }
+    }
+
+    /**
+     * Reserves memory unconditionally, e.g. for already admitted writes.
+     *
+     * @param consumer who reserves
+     * @param bytes    amount of memory, may be negative
+     */
+    public void reserve(@NotNull final Consumer consumer, final long bytes) {
+        used.addAndGet(bytes);
+        usedBy.addAndGet(consumer.ordinal(), bytes);
+    }
+
+    public void release(@NotNull final Consumer consumer, final long bytes) {
+        reserve(consumer, -bytes);
+    }
+
+    /**
+     * Tells whether usage is high enough to flush memTables ahead of their threshold.
+     *
+     * @return true if memory is under pressure
+     */
+    public boolean isUnderPressure() {
+        return used.get() > pressureWatermark;
+    }
+
+    public long getBudget() {
+        return budget;
+    }
+
+    public long getUsed() {
+        return used.get();
+    }
+
+    public long getUsed(@NotNull final Consumer consumer) {
+        return usedBy.get(consumer.ordinal());
+    }
+
+    public long getRejected() {
+        return rejected.get();
+    }
+}
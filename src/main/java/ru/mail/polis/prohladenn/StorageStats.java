@@ -0,0 +1,194 @@
+package ru.mail.polis.prohladenn;
+
+import org.jetbrains.annotations.NotNull;
+import ru.mail.polis.metrics.Counter;
+import ru.mail.polis.metrics.Histogram;
+import ru.mail.polis.metrics.MetricRegistry;
+
+import javax.annotation.concurrent.ThreadSafe;
+import java.util.ArrayDeque;
+import java.util.Collection;
+import java.util.Deque;
+import java.util.Iterator;
+import java.util.Locale;
+
+/**
+ * Amplification accounting of the storage and rolling history of flush and compaction jobs.
+ * <ul>
+ *     <li>write amplification is bytes written to tables per byte written by users</li>
+ *     <li>read amplification is disk tables consulted per read</li>
+ *     <li>space amplification is bytes on disk per live byte, measured by the last compaction</li>
+ * </ul>
+ */
+@ThreadSafe
+public final class StorageStats {
+    private static final int HISTORY = 256;
+
+    private final Counter userBytes;
+    private final Counter reads;
+    private final Counter readTables;
+    private final Counter flushBytes;
+    private final Counter compactionBytes;
+    private final Counter ingestBytes;
+    private final Counter tombstonesDropped;
+    private final Histogram flushDuration;
+    private final Histogram compactionDuration;
+    private final Deque<Job> history = new ArrayDeque<>(HISTORY);
+    private double spaceAmplification = Double.NaN;
+
+    public enum Kind {
+        FLUSH,
+        COMPACTION,
+        INGEST
+    }
+
+    /**
+     * Single flush or compaction.
+     */
+    public static final class Job {
+        private final Kind kind;
+        private final long generation;
+        private final long startedAt = System.currentTimeMillis();
+        private final long start = System.nanoTime();
+        private final int tablesBefore;
+        private final long diskBytesBefore;
+        private long duration;
+        private long bytesWritten;
+        private long cellsWritten;
+        private long tombstonesDropped;
+        private int tablesAfter;
+        private long diskBytesAfter;
+
+        Job(@NotNull final Kind kind,
+            final long generation,
+            @NotNull final Collection<FileTable> tables) {
+            this.kind = kind;
+            this.generation = generation;
+            this.tablesBefore = tables.size();
+            this.diskBytesBefore = diskBytes(tables);
+        }
+
+        void written(@NotNull final FileTable table) {
+            bytesWritten += table.sizeInBytes();
+            cellsWritten += table.rows();
+        }
+
+        void dropped(final long tombstones) {
+            tombstonesDropped += tombstones;
+        }
+
+        @Override
+        public String toString() {
+            return String.format(Locale.ENGLISH,
+                    "%d %s generation=%d duration=%.3fms written=%dB cells=%d tombstones_dropped=%d"
+                            + " tables=%d->%d disk=%dB->%dB",
+                    startedAt, kind.name().toLowerCase(Locale.ENGLISH), generation, duration / 1e6,
+                    bytesWritten, cellsWritten, tombstonesDropped,
+                    tablesBefore, tablesAfter, diskBytesBefore, diskBytesAfter);
+        }
+    }
+
+    StorageStats(@NotNull final MetricRegistry metrics) {
+        this.userBytes = metrics.counter("storage_user_bytes_total", "Key and value bytes written by users");
+        this.reads = metrics.counter("storage_reads_total", "Lookups and scans");
+        this.readTables = metrics.counter("storage_read_tables_total", "Disk tables consulted by reads");
+        this.flushBytes = metrics.counter("storage_flush_bytes_total", "Bytes written by flushes");
+        this.compactionBytes = metrics.counter("storage_compaction_bytes_total", "Bytes written by compactions");
+        this.ingestBytes = metrics.counter("storage_ingest_bytes_total", "Bytes of tables ingested as they are");
+        this.tombstonesDropped = metrics.counter("storage_tombstones_dropped_total",
+                "Tombstones and expired cells dropped by compactions");
+        this.flushDuration = metrics.histogram("storage_flush_duration_seconds", "MemTable flush duration");
+        this.compactionDuration = metrics.histogram("storage_compaction_duration_seconds", "Compaction duration");
+    }
+
+    private static long diskBytes(@NotNull final Collection<FileTable> tables) {
+        long result = 0;
+        for (final FileTable table : tables) {
+            result += table.sizeInBytes();
+        }
+        return result;
+    }
+
+    /**
+     * Returns key and value bytes written by users, grows with every write.
+     *
+     * @return bytes written
+     */
+    public long getUserBytes() {
+        return userBytes.get();
+    }
+
+    void written(final long bytes) {
+        userBytes.add(bytes);
+    }
+
+    void read(final int tables) {
+        reads.inc();
+        readTables.add(tables);
+    }
+
+    @NotNull
+    Job start(@NotNull final Kind kind,
+              final long generation,
+              @NotNull final Collection<FileTable> tables) {
+        return new Job(kind, generation, tables);
+    }
+
+    /**
+     * Completes job and puts it to history.
+     *
+     * @param job    started job
+     * @param tables tables on disk after the job
+     */
+    void finish(@NotNull final Job job,
+                @NotNull final Collection<FileTable> tables) {
+        job.duration = System.nanoTime() - job.start;
+        job.tablesAfter = tables.size();
+        job.diskBytesAfter = diskBytes(tables);
+        if (job.kind == Kind.FLUSH) {
+            flushBytes.add(job.bytesWritten);
+            flushDuration.record(job.duration);
+        } else if (job.kind == Kind.INGEST) {
+            ingestBytes.add(job.bytesWritten);
+        } else {
+            compactionBytes.add(job.bytesWritten);
+            tombstonesDropped.add(job.tombstonesDropped);
+            compactionDuration.record(job.duration);
+        }
+        synchronized (this) {
+            if (job.kind == Kind.COMPACTION && job.bytesWritten > 0) {
+                spaceAmplification = (double) job.diskBytesBefore / job.bytesWritten;
+            }
+            if (history.size() == HISTORY) {
+                history.removeFirst();
+            }
+            history.addLast(job);
+        }
+    }
+
+    private static double ratio(final long numerator, final long denominator) {
+        return denominator == 0 ? Double.NaN : (double) numerator / denominator;
+    }
+
+    /**
+     * Renders amplification summary followed by job history, the newest job first.
+     *
+     * @param jobs maximum number of jobs to render
+     * @return human readable report
+     */
+    @NotNull
+    public synchronized String report(final int jobs) {
+        final long written = flushBytes.get() + compactionBytes.get();
+        final StringBuilder result = new StringBuilder();
+        result.append(String.format(Locale.ENGLISH,
+                "write_amplification=%.3f read_amplification=%.3f space_amplification=%.3f%n"
+                        + "user_bytes=%d flush_bytes=%d compaction_bytes=%d reads=%d tombstones_dropped=%d%n",
+                ratio(written, userBytes.get()), ratio(readTables.get(), reads.get()), spaceAmplification,
+                userBytes.get(), flushBytes.get(), compactionBytes.get(), reads.get(), tombstonesDropped.get()));
+        final Iterator<Job> newest = history.descendingIterator();
+        for (int i = 0; i < jobs && newest.hasNext(); i++) {
+            result.append(newest.next()).append('\n');
+        }
+        return result.toString();
+    }
+}
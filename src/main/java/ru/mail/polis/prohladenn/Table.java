@@ -1,6 +1,7 @@
 package ru.mail.polis.prohladenn;
 
 import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
 
 import java.nio.ByteBuffer;
 import java.time.Duration;
@@ -12,6 +13,9 @@ public interface Table {
     @NotNull
     Iterator<Cell> iterator(@NotNull ByteBuffer from);
 
+    @Nullable
+    Cell get(@NotNull ByteBuffer key);
+
     void upsert(@NotNull ByteBuffer key, @NotNull ByteBuffer value);
 
     void upsert(@NotNull ByteBuffer key, @NotNull ByteBuffer value, @NotNull Duration ttl);
@@ -0,0 +1,166 @@
+package ru.mail.polis.prohladenn;
+
+import com.google.common.base.Charsets;
+import org.jetbrains.annotations.NotNull;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.NoSuchElementException;
+
+/**
+ * Bulk loads tables bypassing the write path of a node.
+ * Options are given as {@code --name=value} after a command:
+ * <ul>
+ *     <li>{@code build --input=<file> --output=<table>} writes a table of lines {@code <key>\t<value>}
+ *     sorted by key bytes in UTF-8, the table is ingested by {@code PUT /v0/admin/ingest} as body
+ *     or as {@code ?file=<table>} in the {@code staging} folder of the node, which links it without copying;</li>
+ *     <li>{@code import --data=<folder> --table=<table>} adds a table to storage of a stopped node;</li>
+ *     <li>{@code export --data=<folder> --output=<table>} writes a snapshot of storage of a stopped node,
+ *     {@code GET /v0/admin/export} returns the same of a running one.</li>
+ * </ul>
+ * Tables are at most {@link FileTable#MAX_BYTES}, the output of a larger input or storage is followed
+ * by tables named as it with suffixes {@code .1}, {@code .2} and so on.
+ */
+public final class TableTool {
+    private TableTool() {
+        // Not instantiatable
+    }
+
+    /**
+     * Runs command.
+     *
+     * @param args command and its options
+     * @throws IOException if an I/O error occurred or input is malformed
+     */
+    public static void main(final String[] args) throws IOException {
+        if (args.length == 0) {
+            throw new IllegalArgumentException("Expected build, import or export");
+        }
+        final Map<String, String> options = options(args);
+        switch (args[0]) {
+            case "build":
+                build(new File(option(options, "input")), new File(option(options, "output")));
+                break;
+            case "import":
+                try (LSMDao dao = open(new File(option(options, "data")))) {
+                    dao.ingest(new File(option(options, "table")).toPath());
+                }
+                break;
+            case "export":
+                try (LSMDao dao = open(new File(option(options, "data")))) {
+                    dao.export(new File(option(options, "output")));
+                }
+                break;
+            default:
+                throw new IllegalArgumentException("Unknown command: " + args[0]);
+        }
+    }
+
+    /**
+     * Writes tables of sorted lines {@code <key>\t<value>}.
+     *
+     * @param input  text file
+     * @param output the first table file, must not exist
+     * @throws IOException if an I/O error occurred
+     * @throws IllegalArgumentException if a line is malformed or keys are not ascending
+     */
+    static void build(@NotNull final File input, @NotNull final File output) throws IOException {
+        if (output.exists()) {
+            throw new IOException("Table exists: " + output);
+        }
+        try (BufferedReader in = Files.newBufferedReader(input.toPath(), Charsets.UTF_8)) {
+            FileTable.write(cells(in), output, FileTable.MAX_BYTES);
+        } catch (IOException | RuntimeException e) {
+            Files.deleteIfExists(output.toPath());
+            int part = 1;
+            while (Files.deleteIfExists(new File(output.getPath() + "." + part).toPath())) {
+                part++;
+            }
+            if (e instanceof UncheckedIOException) {
+                throw ((UncheckedIOException) e).getCause();
+            }
+            throw e;
+        }
+    }
+
+    @NotNull
+    private static Iterator<Cell> cells(@NotNull final BufferedReader in) {
+        return new Iterator<>() {
+            private ByteBuffer previous;
+            private String line = read();
+            private long number = 1;
+
+            private String read() {
+                try {
+                    return in.readLine();
+                } catch (IOException e) {
+                    throw new UncheckedIOException(e);
+                }
+            }
+
+            @Override
+            public boolean hasNext() {
+                return line != null;
+            }
+
+            @Override
+            public Cell next() {
+                if (!hasNext()) {
+                    throw new NoSuchElementException();
+                }
+                final int tab = line.indexOf('\t');
+                if (tab <= 0) {
+                    throw new IllegalArgumentException("No key at line " + number);
+                }
+                final ByteBuffer key = ByteBuffer.wrap(line.substring(0, tab).getBytes(Charsets.UTF_8));
+                if (previous != null && previous.compareTo(key) >= 0) {
+                    throw new IllegalArgumentException("Key is not ascending at line " + number);
+                }
+                final ByteBuffer value = ByteBuffer.wrap(line.substring(tab + 1).getBytes(Charsets.UTF_8));
+                previous = key;
+                line = read();
+                number++;
+                return new Cell(key, Value.of(value));
+            }
+        };
+    }
+
+    @NotNull
+    private static LSMDao open(@NotNull final File data) throws IOException {
+        if (!data.isDirectory()) {
+            throw new IOException("Not a directory: " + data);
+        }
+        final long heap = Runtime.getRuntime().maxMemory();
+        return new LSMDao(data, heap / 60, new MemoryManager(heap / 4));
+    }
+
+    @NotNull
+    private static Map<String, String> options(@NotNull final String... args) {
+        final Map<String, String> options = new HashMap<>();
+        for (int i = 1; i < args.length; i++) {
+            final String arg = args[i];
+            final int eq = arg.indexOf('=');
+            if (!arg.startsWith("--") || eq < 0) {
+                throw new IllegalArgumentException("Unexpected argument: " + arg);
+            }
+            options.put(arg.substring(2, eq), arg.substring(eq + 1));
+        }
+        return options;
+    }
+
+    @NotNull
+    private static String option(@NotNull final Map<String, String> options, @NotNull final String name) {
+        final String value = options.get(name);
+        if (value == null) {
+            throw new IllegalArgumentException("Missing --" + name);
+        }
+        return value;
+    }
+}
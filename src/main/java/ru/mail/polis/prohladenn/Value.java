@@ -1,47 +1,159 @@
 package ru.mail.polis.prohladenn;
 
 import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
 
 import java.nio.ByteBuffer;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
 
 public final class Value implements Comparable<Value> {
-    private static final long MILLI_TO_NANO = 1000000;
+    static final long NEVER_EXPIRES = Long.MAX_VALUE;
+    private static final AtomicLong LAST_TIMESTAMP = new AtomicLong();
 
     private final long ts;
     private final ByteBuffer data;
+    private final long expiresAt;
+    // Location of data kept in value log
+    private final ValueLog.Pointer pointer;
 
     public Value(final long ts, final ByteBuffer data) {
+        this(ts, data, NEVER_EXPIRES);
+    }
+
+    /**
+     * Creates value which turns into tombstone at given moment.
+     *
+     * @param ts        timestamp
+     * @param data      data or null for tombstone
+     * @param expiresAt wall clock millis when value expires
+     */
+    public Value(final long ts, final ByteBuffer data, final long expiresAt) {
         this.ts = ts;
         this.data = data;
+        this.expiresAt = expiresAt;
+        this.pointer = null;
+    }
+
+    /**
+     * Creates value which data is read from value log on demand.
+     *
+     * @param ts        timestamp
+     * @param pointer   location of data
+     * @param expiresAt wall clock millis when value expires
+     */
+    Value(final long ts, @NotNull final ValueLog.Pointer pointer, final long expiresAt) {
+        this.ts = ts;
+        this.data = null;
+        this.expiresAt = expiresAt;
+        this.pointer = pointer;
+    }
+
+    /**
+     * Returns timestamp for a new version. Timestamps are nanoseconds of wall clock,
+     * so versions of different nodes compare by time they were written at,
+     * and they are unique and ascending within a node.
+     *
+     * @return timestamp
+     */
+    public static long timestamp() {
+        final long now = TimeUnit.MILLISECONDS.toNanos(System.currentTimeMillis());
+        return LAST_TIMESTAMP.accumulateAndGet(now, (last, wall) -> Math.max(last + 1, wall));
     }
 
     public static Value of(final ByteBuffer data) {
-        return new Value(System.nanoTime(), data.duplicate());
+        return new Value(timestamp(), data.duplicate());
     }
 
-    public static Value tombstone(final long ttl) {
-        final long now = System.nanoTime();
-        return new Value(now + ttl * MILLI_TO_NANO, null);
+    public static Value of(final ByteBuffer data, final long ttl) {
+        return at(timestamp(), data, ttl);
     }
 
     public static Value tombstone() {
-        return new Value(System.nanoTime(), null);
+        return new Value(timestamp(), null);
+    }
+
+    /**
+     * Creates version stamped elsewhere, e.g. by the coordinator of a replicated write,
+     * so that every replica stores the same version.
+     *
+     * @param timestamp timestamp given by {@link #timestamp()}
+     * @param data      data or null for tombstone
+     * @param ttl       millis the value lives since its timestamp, negative if forever
+     * @return value
+     */
+    @NotNull
+    public static Value at(final long timestamp, @Nullable final ByteBuffer data, final long ttl) {
+        if (data == null) {
+            return new Value(timestamp, null);
+        }
+        final long expiresAt = ttl < 0 ? NEVER_EXPIRES : TimeUnit.NANOSECONDS.toMillis(timestamp) + ttl;
+        return new Value(timestamp, data.duplicate(), expiresAt);
     }
 
     public boolean isRemoved() {
-        return data == null;
+        return data == null && pointer == null || isExpired();
+    }
+
+    /**
+     * Returns size of stored data regardless of expiration.
+     *
+     * @return size in bytes or -1 for tombstone
+     */
+    int dataSize() {
+        if (pointer != null) {
+            return pointer.length;
+        }
+        return data == null ? -1 : data.remaining();
+    }
+
+    /**
+     * Returns location of data if it is kept in value log.
+     *
+     * @return pointer or null
+     */
+    ValueLog.Pointer getPointer() {
+        return pointer;
+    }
+
+    /**
+     * Returns data regardless of expiration, which may come meanwhile.
+     *
+     * @return data or null for tombstone
+     */
+    ByteBuffer storedData() {
+        if (pointer != null) {
+            return pointer.read().asReadOnlyBuffer();
+        }
+        return data == null ? null : data.asReadOnlyBuffer();
+    }
+
+    /**
+     * Returns wall clock millis since which the value is removed, tombstones are removed since they are written.
+     *
+     * @return millis or {@link #NEVER_EXPIRES} if the value is live
+     */
+    long removedAt() {
+        if (data == null && pointer == null) {
+            return TimeUnit.NANOSECONDS.toMillis(ts);
+        }
+        return expiresAt;
+    }
+
+    private boolean isExpired() {
+        return expiresAt != NEVER_EXPIRES && System.currentTimeMillis() >= expiresAt;
     }
 
     /**
      * Returns data.
      *
-     * @return data
+     * @return data or null if value is removed or expired
      */
     public ByteBuffer getData() {
-        if (data == null) {
+        if (isRemoved()) {
             return null;
         }
-        return data.asReadOnlyBuffer();
+        return pointer == null ? data.asReadOnlyBuffer() : pointer.read().asReadOnlyBuffer();
     }
 
     @Override
@@ -52,4 +164,8 @@ public final class Value implements Comparable<Value> {
     public long getTimeStamp() {
         return ts;
     }
+
+    public long getExpiresAt() {
+        return expiresAt;
+    }
 }
@@ -0,0 +1,359 @@
+package ru.mail.polis.prohladenn;
+
+import org.jetbrains.annotations.NotNull;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * Append-only log of large values, so that compaction moves pointers instead of value bytes.
+ * The log is a sequence of segment files {@code <id>.vlog}, each a sequence of records
+ * {@code int key length, key, long timestamp, int value length, value}.
+ * A pointer addresses value bytes of a record. Segments are mapped to memory once sealed.
+ * Space is reclaimed by compaction, see {@link #sparse} and {@link #collect}.
+ */
+public final class ValueLog {
+    /**
+     * Values of at least this size are written to the log on flush.
+     */
+    public static final int THRESHOLD = 4 * 1024;
+    static final long SEGMENT_BYTES = 64L * 1024 * 1024;
+    // Live values of less sparse segments are not moved by compaction
+    private static final double MIN_LIVE_RATIO = 0.5;
+    private static final String SUFFIX = ".vlog";
+    private static final Logger log = LoggerFactory.getLogger(ValueLog.class);
+
+    private final File dir;
+    private final ConcurrentMap<Long, Segment> segments = new ConcurrentHashMap<>();
+    // Number of tables being written per the lowest segment they may point to
+    private final NavigableMap<Long, Integer> pins = new TreeMap<>();
+    private Segment active;
+    private long nextId;
+
+    /**
+     * Location of a value in the log.
+     */
+    public static final class Pointer {
+        final Segment segment;
+        final long offset;
+        final int length;
+
+        private Pointer(@NotNull final Segment segment, final long offset, final int length) {
+            this.segment = segment;
+            this.offset = offset;
+            this.length = length;
+        }
+
+        /**
+         * Reads value.
+         *
+         * @return value bytes
+         * @throws UncheckedIOException if log can't be read
+         */
+        @NotNull
+        ByteBuffer read() {
+            return segment.read(offset, length);
+        }
+
+        long segmentId() {
+            return segment.id;
+        }
+    }
+
+    static final class Segment {
+        final long id;
+        final File file;
+        private volatile FileChannel channel;
+        private volatile ByteBuffer mapped;
+        private volatile long size;
+
+        Segment(final long id, @NotNull final File file) {
+            this.id = id;
+            this.file = file;
+        }
+
+        @NotNull
+        ByteBuffer read(final long offset, final int length) {
+            final FileChannel writing = channel;
+            if (mapped == null && writing != null) {
+                final ByteBuffer value = ByteBuffer.allocate(length);
+                try {
+                    while (value.hasRemaining()) {
+                        if (writing.read(value, offset + value.position()) < 0) {
+                            throw new IOException("Value log segment " + id + " is truncated");
+                        }
+                    }
+                    return value.flip();
+                } catch (ClosedChannelException e) {
+                    // Sealed meanwhile, mapped before the channel is closed
+                } catch (IOException e) {
+                    throw new UncheckedIOException(e);
+                }
+            }
+            return mapped.duplicate().position((int) offset).limit((int) offset + length).slice();
+        }
+
+        void seal() throws IOException {
+            final FileChannel writer = channel;
+            if (writer != null) {
+                writer.force(false);
+            }
+            try (FileChannel fc = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+                size = fc.size();
+                mapped = size == 0 ? ByteBuffer.allocate(0) : fc.map(FileChannel.MapMode.READ_ONLY, 0L, size);
+            }
+            channel = null;
+            if (writer != null) {
+                writer.close();
+            }
+        }
+    }
+
+    /**
+     * Opens log, existing segments become read-only.
+     *
+     * @param dir directory of segments, created if absent
+     * @throws IOException if an I/O error occurred
+     */
+    public ValueLog(@NotNull final File dir) throws IOException {
+        this.dir = dir;
+        Files.createDirectories(dir.toPath());
+        final File[] files = dir.listFiles((d, name) -> name.endsWith(SUFFIX));
+        long maxId = 0;
+        if (files != null) {
+            for (final File file : files) {
+                final String name = file.getName();
+                final long id = Long.parseLong(name.substring(0, name.length() - SUFFIX.length()));
+                final Segment segment = new Segment(id, file);
+                segment.seal();
+                segments.put(id, segment);
+                maxId = Math.max(maxId, id);
+            }
+        }
+        this.nextId = maxId + 1;
+    }
+
+    /**
+     * Appends value.
+     *
+     * @param key       key of value
+     * @param timestamp timestamp of value
+     * @param value     value
+     * @return pointer to value
+     * @throws IOException if an I/O error occurred
+     */
+    @NotNull
+    synchronized Pointer append(@NotNull final ByteBuffer key,
+                                final long timestamp,
+                                @NotNull final ByteBuffer value) throws IOException {
+        if (active == null || active.size >= SEGMENT_BYTES) {
+            roll();
+        }
+        final int length = value.remaining();
+        final ByteBuffer header = ByteBuffer.allocate(Integer.BYTES + key.remaining() + Long.BYTES + Integer.BYTES);
+        header.putInt(key.remaining()).put(key.duplicate()).putLong(timestamp).putInt(length).flip();
+        final long offset = active.size + header.remaining();
+        final ByteBuffer[] record = {header, value.duplicate()};
+        long remaining = header.remaining() + (long) length;
+        while (remaining > 0) {
+            remaining -= active.channel.write(record);
+        }
+        active.size = offset + length;
+        return new Pointer(active, offset, length);
+    }
+
+    private void roll() throws IOException {
+        if (active != null) {
+            active.seal();
+        }
+        final long id = nextId++;
+        final Segment segment = new Segment(id, new File(dir, id + SUFFIX));
+        segment.channel = FileChannel.open(segment.file.toPath(), StandardOpenOption.CREATE_NEW,
+                StandardOpenOption.WRITE, StandardOpenOption.READ);
+        segments.put(id, segment);
+        active = segment;
+    }
+
+    /**
+     * Returns segments tables written so far may point to. A table holding them reads its values
+     * after compaction deletes their files, since mapping of a deleted file stays valid while it is reachable.
+     *
+     * @return segments by id
+     */
+    @NotNull
+    Map<Long, Segment> snapshot() {
+        return Map.copyOf(segments);
+    }
+
+    /**
+     * Resolves pointer read from a table.
+     *
+     * @param segments segments of {@link #snapshot} taken when the table was opened
+     * @param segment  segment id
+     * @param offset   offset of value in segment
+     * @param length   value length
+     * @return pointer
+     * @throws IllegalStateException if segment does not exist
+     */
+    @NotNull
+    static Pointer pointer(@NotNull final Map<Long, Segment> segments,
+                           final long segment,
+                           final long offset,
+                           final int length) {
+        final Segment found = segments.get(segment);
+        if (found == null) {
+            throw new IllegalStateException("Value log segment " + segment + " is missing");
+        }
+        return new Pointer(found, offset, length);
+    }
+
+    /**
+     * Protects the current segment and later ones from {@link #collect} while a table is written,
+     * as the table is not among the tables compaction counts live values of.
+     *
+     * @return id to pass to {@link #unpin} once the table is added or abandoned
+     */
+    synchronized long pin() {
+        final long id = active == null ? nextId : active.id;
+        pins.merge(id, 1, Integer::sum);
+        return id;
+    }
+
+    /**
+     * Removes protection of {@link #pin}.
+     *
+     * @param id id returned by {@link #pin}
+     */
+    synchronized void unpin(final long id) {
+        pins.computeIfPresent(id, (k, count) -> count == 1 ? null : count - 1);
+    }
+
+    /**
+     * Returns id segments tables written from now on or being written may point to are greater or equal to.
+     *
+     * @return id of the current segment or the next one if there is none, lowered by tables being written
+     */
+    synchronized long protectedFrom() {
+        final long current = active == null ? nextId : active.id;
+        return pins.isEmpty() ? current : Math.min(current, pins.firstKey());
+    }
+
+    /**
+     * Forces values appended so far to disk, called before a table pointing to them is published.
+     *
+     * @throws IOException if an I/O error occurred
+     */
+    synchronized void sync() throws IOException {
+        if (active != null) {
+            active.channel.force(false);
+        }
+    }
+
+    /**
+     * Chooses segments whose live values compaction should move to the end of the log.
+     *
+     * @param live   bytes of live values by segment
+     * @param before only segments with lesser id are considered
+     * @return ids of sparse segments
+     */
+    @NotNull
+    List<Long> sparse(@NotNull final Map<Long, Long> live, final long before) {
+        final List<Long> sparse = new ArrayList<>();
+        for (final Segment segment : segments.values()) {
+            if (segment.id < before
+                    && live.getOrDefault(segment.id, 0L) < segment.size * MIN_LIVE_RATIO) {
+                sparse.add(segment.id);
+            }
+        }
+        return sparse;
+    }
+
+    /**
+     * Deletes segments without live values, called once compaction has replaced all tables.
+     *
+     * @param live   bytes of live values by segment in the compacted table
+     * @param before only segments with lesser id may be deleted,
+     *               as tables flushed during compaction may point to later ones
+     * @return number of bytes reclaimed
+     */
+    synchronized long collect(@NotNull final Map<Long, Long> live, final long before) {
+        long reclaimed = 0;
+        for (final Segment segment : new ArrayList<>(segments.values())) {
+            if (segment.id < before && segment != active && !live.containsKey(segment.id)) {
+                // Tables still reachable keep reading it through their snapshots
+                segments.remove(segment.id);
+                reclaimed += segment.size;
+                try {
+                    Files.delete(segment.file.toPath());
+                } catch (IOException e) {
+                    log.error("Can't delete value log segment {}", segment.file, e);
+                }
+            }
+        }
+        return reclaimed;
+    }
+
+    /**
+     * Hard links all segments into given directory, excluding deletion of segments meanwhile.
+     * Values appended to the current segment later show up in its link past the values of linked tables.
+     *
+     * @param to existing directory
+     * @return number of linked segments
+     * @throws IOException if an I/O error occurred
+     */
+    synchronized int link(@NotNull final File to) throws IOException {
+        for (final Segment segment : segments.values()) {
+            Files.createLink(new File(to, segment.file.getName()).toPath(), segment.file.toPath());
+        }
+        return segments.size();
+    }
+
+    /**
+     * Returns size of the log on disk.
+     *
+     * @return size in bytes
+     */
+    public long sizeInBytes() {
+        long size = 0;
+        for (final Segment segment : segments.values()) {
+            size += segment.size;
+        }
+        return size;
+    }
+
+    /**
+     * Returns number of segments.
+     *
+     * @return segments count
+     */
+    public int segments() {
+        return segments.size();
+    }
+
+    /**
+     * Seals the current segment.
+     *
+     * @throws IOException if an I/O error occurred
+     */
+    synchronized void close() throws IOException {
+        if (active != null) {
+            active.seal();
+            active = null;
+        }
+    }
+}
@@ -26,8 +26,9 @@ import org.jetbrains.annotations.NotNull;
 
 import ru.mail.polis.dao.DAO;
 import ru.mail.polis.service.prohladenn.BasicTopology;
+import ru.mail.polis.service.prohladenn.ConsistentHashTopology;
+import ru.mail.polis.service.prohladenn.Membership;
 import ru.mail.polis.service.prohladenn.MyHttpServer;
-import ru.mail.polis.service.prohladenn.Topology;
 
 /**
  * Constructs {@link Service} instances.
@@ -37,6 +38,16 @@ import ru.mail.polis.service.prohladenn.Topology;
 public final class ServiceFactory {
     private static final long MAX_HEAP = 256 * 1024 * 1024;
 
+    /**
+     * How keys are placed on nodes.
+     */
+    public enum Placement {
+        /** Key hash modulo number of nodes. */
+        MODULO,
+        /** Consistent hashing ring with virtual nodes. */
+        RING
+    }
+
     private ServiceFactory() {
         // Not supposed to be instantiated
     }
@@ -54,6 +65,24 @@ public final class ServiceFactory {
             final int port,
             @NotNull final DAO dao,
             @NotNull final Set<String> topology) throws IOException {
+        return create(port, dao, topology, Placement.RING);
+    }
+
+    /**
+     * Construct a storage instance with given key placement.
+     *
+     * @param port      port to bind HTTP server to
+     * @param dao       DAO to store the data
+     * @param topology  a list of all cluster endpoints {@code http://<host>:<port>} (including this one)
+     * @param placement how keys are placed on nodes, must be the same on all nodes
+     * @return a storage instance
+     */
+    @NotNull
+    public static Service create(
+            final int port,
+            @NotNull final DAO dao,
+            @NotNull final Set<String> topology,
+            @NotNull final Placement placement) throws IOException {
         if (Runtime.getRuntime().maxMemory() > MAX_HEAP) {
             throw new IllegalStateException("The heap is too big. Consider setting Xmx.");
         }
@@ -62,11 +91,13 @@ public final class ServiceFactory {
             throw new IllegalArgumentException("Port out of range");
         }
 
-        final Topology<String> nodes =
-                new BasicTopology(topology, "http://localhost:" + port);
+        final String me = "http://localhost:" + port;
+        final Membership nodes = new Membership(me, topology, members -> placement == Placement.RING
+                ? new ConsistentHashTopology(members, me)
+                : new BasicTopology(members, me));
         final Executor executor = Executors.newFixedThreadPool(Runtime.getRuntime().availableProcessors(),
                 new ThreadFactoryBuilder().setNameFormat(String.format("worker-%d",
-                        Runtime.getRuntime().availableProcessors())).build());
+                        Runtime.getRuntime().availableProcessors())).setDaemon(true).build());
         return new MyHttpServer(port, dao, executor, nodes);
     }
 }
@@ -0,0 +1,483 @@
+package ru.mail.polis.service.prohladenn;
+
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import ru.mail.polis.metrics.Counter;
+import ru.mail.polis.metrics.MetricRegistry;
+import ru.mail.polis.prohladenn.Cell;
+import ru.mail.polis.prohladenn.LSMDao;
+import ru.mail.polis.prohladenn.Value;
+
+import javax.annotation.concurrent.ThreadSafe;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.net.URI;
+import java.net.URLEncoder;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.function.IntSupplier;
+import java.util.function.Predicate;
+
+/**
+ * Background repair of replicas which missed writes.
+ * Two nodes compare {@link MerkleTree}s over keys they both replicate level by level,
+ * descending only into differing nodes, then exchange cells of differing leaves only,
+ * so the traffic depends on divergence rather than on dataset size.
+ * Leaf hashes over tables are adjusted by every flush and are rebuilt by a scan only after ingests,
+ * compactions and membership changes, versions in memTable are added on top of them for every tree.
+ * Requests of peers are served on a low-priority thread of their own.
+ * Replicas of a write store the version stamped by its coordinator, so their trees agree,
+ * and removals are kept for {@link LSMDao#TOMBSTONE_GRACE}, so they are repaired rather than undone,
+ * a node which was down longer than that must be wiped before it rejoins.
+ */
+@ThreadSafe
+final class AntiEntropy {
+    private static final Logger logger = LoggerFactory.getLogger(AntiEntropy.class);
+    private static final long INTERVAL_SECONDS = 30;
+    private static final Duration TIMEOUT = Duration.ofSeconds(10);
+    // Bounds work of one round, the rest is repaired by the next ones
+    private static final int MAX_LEAVES = 64;
+
+    private final LSMDao dao;
+    private final Topology<String> topology;
+    private final String me;
+    private final IntSupplier copies;
+    private final HttpClient client;
+    // Leaf hashes over the latest versions in tables per peer, guarded by publication of tables
+    private final Map<String, long[]> flushed = new HashMap<>();
+    private List<Object> flushedVersion = List.of();
+    private final Map<String, Snapshot> trees = new ConcurrentHashMap<>();
+    private final Counter rounds;
+    private final Counter received;
+    private final Counter sent;
+    private final ScheduledExecutorService scheduler;
+    private final ExecutorService serving;
+    private int nextPeer;
+
+    private static final class Snapshot {
+        final List<Object> version;
+        final MerkleTree tree;
+
+        Snapshot(@NotNull final List<Object> version, @NotNull final MerkleTree tree) {
+            this.version = version;
+            this.tree = tree;
+        }
+    }
+
+    /**
+     * Creates repair of keys stored on {@code copies} replicas.
+     *
+     * @param dao      local storage
+     * @param topology cluster topology
+     * @param copies   number of replicas of a key, changes with membership
+     * @param metrics  registry to report to
+     */
+    AntiEntropy(@NotNull final LSMDao dao,
+                @NotNull final Membership topology,
+                @NotNull final IntSupplier copies,
+                @NotNull final MetricRegistry metrics) {
+        this.dao = dao;
+        this.topology = topology;
+        this.copies = copies;
+        this.me = topology.me();
+        this.client = HttpClient.newBuilder().connectTimeout(TIMEOUT).build();
+        this.rounds = metrics.counter("repair_rounds_total", "Anti-entropy rounds with a peer");
+        this.received = metrics.counter("repair_cells_received_total", "Newer cells received from peers");
+        this.sent = metrics.counter("repair_cells_sent_total", "Cells sent to peers");
+        this.scheduler = Executors.newSingleThreadScheduledExecutor(new ThreadFactoryBuilder()
+                .setNameFormat("anti-entropy").setDaemon(true).setPriority(Thread.MIN_PRIORITY).build());
+        this.serving = Executors.newSingleThreadExecutor(new ThreadFactoryBuilder()
+                .setNameFormat("anti-entropy-serving").setDaemon(true).setPriority(Thread.MIN_PRIORITY).build());
+    }
+
+    void start() {
+        scheduler.scheduleWithFixedDelay(this::repairNext, INTERVAL_SECONDS, INTERVAL_SECONDS, TimeUnit.SECONDS);
+    }
+
+    void stop() {
+        scheduler.shutdownNow();
+        serving.shutdownNow();
+        dao.setFlushListener(null);
+    }
+
+    /**
+     * Returns executor of requests of peers, apart from foreground requests and at low priority.
+     *
+     * @return executor
+     */
+    @NotNull
+    Executor executor() {
+        return serving;
+    }
+
+    @NotNull
+    private List<String> peers() {
+        final List<String> peers = new ArrayList<>(topology.all());
+        peers.remove(me);
+        Collections.sort(peers);
+        return peers;
+    }
+
+    private void repairNext() {
+        final List<String> peers = peers();
+        if (peers.isEmpty()) {
+            return;
+        }
+        final String peer = peers.get(nextPeer % peers.size());
+        nextPeer = (nextPeer + 1) % peers.size();
+        try {
+            repair(peer);
+        } catch (IOException e) {
+            logger.info("Can't repair with {}: {}", peer, e.getMessage());
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Runs round with peer on the repair thread.
+     *
+     * @param peer peer
+     * @return future summary of the round
+     */
+    @NotNull
+    CompletableFuture<String> repairNow(@NotNull final String peer) {
+        final CompletableFuture<String> result = new CompletableFuture<>();
+        scheduler.execute(() -> {
+            try {
+                result.complete(repair(peer));
+            } catch (IOException e) {
+                result.completeExceptionally(e);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                result.completeExceptionally(e);
+            }
+        });
+        return result;
+    }
+
+    /**
+     * Checks that node is a peer to exchange trees with.
+     *
+     * @param node node
+     * @return true if node is another node of the cluster
+     */
+    boolean isPeer(@NotNull final String node) {
+        return peers().contains(node);
+    }
+
+    /**
+     * Synchronizes keys replicated by this node and peer.
+     *
+     * @param peer peer
+     * @return summary of the round
+     * @throws IOException          if peer failed
+     * @throws InterruptedException if interrupted
+     */
+    @NotNull
+    String repair(@NotNull final String peer) throws IOException, InterruptedException {
+        rounds.inc();
+        final MerkleTree tree = tree(peer);
+        List<Integer> nodes = List.of(1);
+        while (true) {
+            final ByteBuffer theirs = ByteBuffer.wrap(call(peer, "/v0/admin/merkle", "POST", ints(nodes)));
+            final List<Integer> differing = new ArrayList<>();
+            for (final int node : nodes) {
+                if (tree.hash(node) != theirs.getLong()) {
+                    differing.add(node);
+                }
+            }
+            if (differing.isEmpty() || MerkleTree.isLeaf(differing.get(0))) {
+                nodes = differing.subList(0, Math.min(differing.size(), MAX_LEAVES));
+                break;
+            }
+            nodes = new ArrayList<>(differing.size() * 2);
+            for (final int node : differing) {
+                nodes.add(2 * node);
+                nodes.add(2 * node + 1);
+            }
+        }
+        if (nodes.isEmpty()) {
+            return "in sync";
+        }
+        final List<Cell> local = cells(peer, nodes);
+        final Map<ByteBuffer, Long> theirs = new HashMap<>();
+        final int applied = apply(ByteBuffer.wrap(call(peer, "/v0/admin/merkle/cells", "POST", ints(nodes))), theirs);
+        final List<Cell> newer = new ArrayList<>();
+        for (final Cell cell : local) {
+            final Long timestamp = theirs.get(cell.getKey());
+            if (timestamp == null || timestamp < cell.getValue().getTimeStamp()) {
+                newer.add(cell);
+            }
+        }
+        if (!newer.isEmpty()) {
+            call(peer, "/v0/admin/merkle/cells", "PUT", encode(newer));
+            sent.add(newer.size());
+        }
+        return String.format(Locale.ENGLISH, "leaves=%d local=%d remote=%d received=%d sent=%d",
+                nodes.size(), local.size(), theirs.size(), applied, newer.size());
+    }
+
+    /**
+     * Returns hashes of tree nodes over keys replicated by this node and peer.
+     *
+     * @param peer  peer
+     * @param nodes tree node numbers
+     * @return hashes in the same order
+     */
+    @NotNull
+    byte[] hashes(@NotNull final String peer, @NotNull final byte[] nodes) {
+        final MerkleTree tree = tree(peer);
+        final ByteBuffer in = ByteBuffer.wrap(nodes);
+        final ByteBuffer out = ByteBuffer.allocate(nodes.length / Integer.BYTES * Long.BYTES);
+        while (in.remaining() >= Integer.BYTES) {
+            final int node = in.getInt();
+            if (!MerkleTree.isValid(node)) {
+                throw new IllegalArgumentException("Wrong tree node " + node);
+            }
+            out.putLong(tree.hash(node));
+        }
+        return out.array();
+    }
+
+    /**
+     * Returns cells in leaves of tree over keys replicated by this node and peer.
+     *
+     * @param peer   peer
+     * @param leaves leaf node numbers
+     * @return encoded cells
+     */
+    @NotNull
+    byte[] cells(@NotNull final String peer, @NotNull final byte[] leaves) {
+        final ByteBuffer in = ByteBuffer.wrap(leaves);
+        final List<Integer> nodes = new ArrayList<>();
+        while (in.remaining() >= Integer.BYTES) {
+            final int node = in.getInt();
+            if (!MerkleTree.isValid(node) || !MerkleTree.isLeaf(node)) {
+                throw new IllegalArgumentException("Wrong tree leaf " + node);
+            }
+            nodes.add(node);
+        }
+        return encode(cells(peer, nodes));
+    }
+
+    /**
+     * Applies cells sent by peer.
+     *
+     * @param cells encoded cells
+     * @return number of cells newer than local ones
+     */
+    int apply(@NotNull final byte[] cells) {
+        return apply(ByteBuffer.wrap(cells), new HashMap<>());
+    }
+
+    private int apply(@NotNull final ByteBuffer in, @NotNull final Map<ByteBuffer, Long> timestamps) {
+        int applied = 0;
+        while (in.hasRemaining()) {
+            final byte[] key = new byte[in.getInt()];
+            in.get(key);
+            final long timestamp = in.getLong();
+            final long expiresAt = in.getLong();
+            final int length = in.getInt();
+            final Value value;
+            if (length < 0) {
+                value = new Value(timestamp, null);
+            } else {
+                final byte[] data = new byte[length];
+                in.get(data);
+                value = new Value(timestamp, ByteBuffer.wrap(data), expiresAt);
+            }
+            timestamps.put(ByteBuffer.wrap(key), timestamp);
+            if (dao.repair(ByteBuffer.wrap(key), value)) {
+                applied++;
+            }
+        }
+        received.add(applied);
+        return applied;
+    }
+
+    @NotNull
+    private MerkleTree tree(@NotNull final String peer) {
+        return dao.withTablesFixed(() -> {
+            final List<Object> tables = List.of(dao.epoch(), copies.getAsInt(), peers());
+            if (!tables.equals(flushedVersion)) {
+                rebuild();
+                flushedVersion = tables;
+            }
+            final List<Object> version = List.of(tables, dao.getStats().getUserBytes());
+            final Snapshot snapshot = trees.get(peer);
+            if (snapshot != null && snapshot.version.equals(version)) {
+                return snapshot.tree;
+            }
+            final long[] base = flushed.get(peer);
+            final long[] leaves = base == null ? new long[MerkleTree.LEAVES] : base.clone();
+            final Predicate<ByteBuffer> shared = shared(peer);
+            final Iterator<Cell> cells = dao.memTableIterator();
+            while (cells.hasNext()) {
+                final Cell cell = cells.next();
+                final long timestamp = cell.getValue().getTimeStamp();
+                if (shared.test(cell.getKey())) {
+                    final Cell onDisk = dao.latestFlushed(cell.getKey());
+                    if (onDisk == null || onDisk.getValue().getTimeStamp() < timestamp) {
+                        if (onDisk != null) {
+                            MerkleTree.subtract(leaves, cell.getKey(), onDisk.getValue().getTimeStamp());
+                        }
+                        MerkleTree.add(leaves, cell.getKey(), timestamp);
+                    }
+                }
+            }
+            final MerkleTree tree = MerkleTree.of(leaves);
+            trees.put(peer, new Snapshot(version, tree));
+            return tree;
+        });
+    }
+
+    /**
+     * Scans tables, holding back publication of flushed tables meanwhile.
+     */
+    private void rebuild() {
+        dao.setFlushListener(this::flushed);
+        flushed.clear();
+        for (final String peer : peers()) {
+            flushed.put(peer, new long[MerkleTree.LEAVES]);
+        }
+        final Iterator<Cell> cells = dao.flushedIterator();
+        while (cells.hasNext()) {
+            final Cell cell = cells.next();
+            for (final long[] leaves : flushedShares(cell.getKey())) {
+                MerkleTree.add(leaves, cell.getKey(), cell.getValue().getTimeStamp());
+            }
+        }
+    }
+
+    private void flushed(@NotNull final ByteBuffer key, @Nullable final Cell superseded, @NotNull final Cell latest) {
+        for (final long[] leaves : flushedShares(key)) {
+            if (superseded != null) {
+                MerkleTree.subtract(leaves, key, superseded.getValue().getTimeStamp());
+            }
+            MerkleTree.add(leaves, key, latest.getValue().getTimeStamp());
+        }
+    }
+
+    @NotNull
+    private List<long[]> flushedShares(@NotNull final ByteBuffer key) {
+        final List<String> replicas = topology.replicasFor(key, copies.getAsInt());
+        if (!replicas.contains(me)) {
+            return List.of();
+        }
+        final List<long[]> result = new ArrayList<>(replicas.size());
+        for (final String replica : replicas) {
+            final long[] leaves = flushed.get(replica);
+            if (leaves != null) {
+                result.add(leaves);
+            }
+        }
+        return result;
+    }
+
+    @NotNull
+    private Predicate<ByteBuffer> shared(@NotNull final String peer) {
+        return key -> {
+            final List<String> replicas = topology.replicasFor(key, copies.getAsInt());
+            return replicas.contains(me) && replicas.contains(peer);
+        };
+    }
+
+    @NotNull
+    private List<Cell> cells(@NotNull final String peer, @NotNull final List<Integer> leaves) {
+        final boolean[] wanted = new boolean[MerkleTree.LEAVES * 2];
+        for (final int leaf : leaves) {
+            wanted[leaf] = true;
+        }
+        final Predicate<ByteBuffer> shared = shared(peer);
+        final List<Cell> result = new ArrayList<>();
+        final Iterator<Cell> cells = dao.latestIterator(ByteBuffer.allocate(0));
+        while (cells.hasNext()) {
+            final Cell cell = cells.next();
+            if (wanted[MerkleTree.leafOf(cell.getKey())] && shared.test(cell.getKey())) {
+                result.add(cell);
+            }
+        }
+        return result;
+    }
+
+    @NotNull
+    private static byte[] encode(@NotNull final List<Cell> cells) {
+        final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        try (DataOutputStream out = new DataOutputStream(bytes)) {
+            for (final Cell cell : cells) {
+                final ByteBuffer key = cell.getKey();
+                out.writeInt(key.remaining());
+                out.write(toArray(key));
+                out.writeLong(cell.getValue().getTimeStamp());
+                out.writeLong(cell.getValue().getExpiresAt());
+                // Expired values are sent as tombstones
+                final ByteBuffer data = cell.getValue().getData();
+                if (data == null) {
+                    out.writeInt(-1);
+                } else {
+                    out.writeInt(data.remaining());
+                    out.write(toArray(data));
+                }
+            }
+        } catch (IOException e) {
+            throw new IllegalStateException("Can't write to memory", e);
+        }
+        return bytes.toByteArray();
+    }
+
+    @NotNull
+    private static byte[] ints(@NotNull final List<Integer> values) {
+        final ByteBuffer buffer = ByteBuffer.allocate(values.size() * Integer.BYTES);
+        for (final int value : values) {
+            buffer.putInt(value);
+        }
+        return buffer.array();
+    }
+
+    @NotNull
+    private byte[] call(@NotNull final String peer,
+                        @NotNull final String path,
+                        @NotNull final String method,
+                        @NotNull final byte[] body) throws IOException, InterruptedException {
+        final URI uri = URI.create(peer + path + "?peer=" + URLEncoder.encode(me, StandardCharsets.UTF_8));
+        final HttpRequest request = HttpRequest.newBuilder(uri)
+                .timeout(TIMEOUT)
+                .method(method, HttpRequest.BodyPublishers.ofByteArray(body))
+                .build();
+        final HttpResponse<byte[]> response = client.send(request, HttpResponse.BodyHandlers.ofByteArray());
+        if (response.statusCode() / 100 != 2) {
+            throw new IOException(path + " answered " + response.statusCode());
+        }
+        return response.body();
+    }
+
+    @NotNull
+    private static byte[] toArray(@NotNull final ByteBuffer buffer) {
+        final byte[] bytes = new byte[buffer.remaining()];
+        buffer.duplicate().get(bytes);
+        return bytes;
+    }
+}
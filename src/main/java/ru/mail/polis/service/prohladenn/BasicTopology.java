@@ -3,7 +3,9 @@ package ru.mail.polis.service.prohladenn;
 import org.jetbrains.annotations.NotNull;
 
 import java.nio.ByteBuffer;
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.List;
 import java.util.Set;
 
 public class BasicTopology implements Topology<String> {
@@ -11,21 +13,37 @@ public class BasicTopology implements Topology<String> {
     private final String me;
     @NotNull
     private final String[] nodes;
+    @NotNull
+    private final Set<String> all;
+    @NotNull
+    private final List<List<List<String>>> replicas;
 
     /**
      * Creates new instance of basic realisation of topology.
      *
      * @param nodes all urls
-     * @param me    current url
+     * @param me    current url, absent from nodes once removed from the cluster
      */
-
     public BasicTopology(@NotNull final Set<String> nodes,
                          @NotNull final String me) {
-        assert nodes.contains(me);
         this.me = me;
         this.nodes = new String[nodes.size()];
         nodes.toArray(this.nodes);
         Arrays.sort(this.nodes);
+        this.all = Set.of(this.nodes);
+        final List<List<List<String>>> lists = new ArrayList<>(this.nodes.length);
+        for (int primary = 0; primary < this.nodes.length; primary++) {
+            final String[] successors = new String[this.nodes.length];
+            for (int i = 0; i < successors.length; i++) {
+                successors[i] = this.nodes[(primary + i) % this.nodes.length];
+            }
+            final List<List<String>> prefixes = new ArrayList<>(successors.length);
+            for (int count = 1; count <= successors.length; count++) {
+                prefixes.add(List.of(Arrays.copyOf(successors, count)));
+            }
+            lists.add(List.copyOf(prefixes));
+        }
+        this.replicas = List.copyOf(lists);
     }
 
     @Override
@@ -44,9 +62,18 @@ public class BasicTopology implements Topology<String> {
         return (key.hashCode() & Integer.MAX_VALUE) % nodes.length;
     }
 
+    @NotNull
+    @Override
+    public List<String> replicasFor(@NotNull final ByteBuffer key, final int count) {
+        if (count < 1 || count > nodes.length) {
+            throw new IllegalArgumentException("Wrong replicas count: " + count);
+        }
+        return replicas.get(indexPrimaryFor(key)).get(count - 1);
+    }
+
     @NotNull
     @Override
     public Set<String> all() {
-        return Set.of(nodes);
+        return all;
     }
 }
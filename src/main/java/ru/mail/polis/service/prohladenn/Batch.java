@@ -0,0 +1,226 @@
+package ru.mail.polis.service.prohladenn;
+
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+import ru.mail.polis.prohladenn.MemoryManager;
+
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+
+/**
+ * Body format of {@code /v0/batch}, all numbers are big-endian.
+ *
+ * <pre>
+ * GET, DELETE request: int key length, key, ...
+ * PUT request:         int key length, key, int value length, value, ...
+ * response:            int key length, key, int status, int value length (-1 if none), value, ...
+ * </pre>
+ * Results go in the order of keys in request and are streamed as soon as the preceding ones are ready.
+ * Status of a key is the one {@code /v0/entity} would answer with, e.g. 200, 404, 201, 202, 503 or 504.
+ * Request size is limited by the body limit and {@link #MAX_KEYS}, response is not held in memory as a whole.
+ */
+final class Batch {
+    static final int MAX_KEYS = 10_000;
+    // Keys sent to a replica in one request, so that the earliest results come back early
+    static final int PART_KEYS = 1_000;
+    // Values a replica sends in one reply, the rest of values in the part are answered with digests
+    static final long PART_BYTES = 1024 * 1024;
+    // Results written to socket at a time
+    private static final int CHUNK_BYTES = 256 * 1024;
+
+    private Batch() {
+        // Not supposed to be instantiated
+    }
+
+    /**
+     * Result of a single key.
+     */
+    static final class Result {
+        private static final Result UNAVAILABLE = new Result(503, null);
+        private static final Result TIMEOUT = new Result(504, null);
+
+        final int status;
+        @Nullable
+        final ByteBuffer value;
+
+        private Result(final int status, @Nullable final ByteBuffer value) {
+            this.status = status;
+            this.value = value;
+        }
+
+        /**
+         * Creates result of write.
+         *
+         * @param op    request operation
+         * @param acked whether {@code ack} replicas acknowledged the write
+         * @return result
+         */
+        @NotNull
+        static Result written(final byte op, final boolean acked) {
+            if (!acked) {
+                return TIMEOUT;
+            }
+            return new Result(op == Rpc.PUT ? 201 : 202, null);
+        }
+
+        /**
+         * Creates result of read.
+         *
+         * @param value value resolved from replies of {@code ack} replicas or null if there were not enough
+         * @return result
+         */
+        @NotNull
+        static Result read(@Nullable final Value value) {
+            if (value == null) {
+                return TIMEOUT;
+            }
+            return value.getState() == Value.State.PRESENT
+                    ? new Result(200, value.getBuffer())
+                    : new Result(404, null);
+        }
+    }
+
+    /**
+     * Response body of results in request order. Values of completed results are reserved
+     * in memory budget until written, results which do not fit are answered with 503.
+     * Next pieces are not asked for concurrently.
+     */
+    static final class Stream implements ChunkSource {
+        private final List<Rpc.Request> requests;
+        private final List<CompletableFuture<Result>> results;
+        private final MemoryManager memory;
+        private long reserved;
+        private boolean closed;
+        private int next;
+
+        /**
+         * Creates response body.
+         *
+         * @param requests requests
+         * @param results  future results of requests in the same order, never completed exceptionally
+         * @param memory   memory budget of node
+         */
+        Stream(@NotNull final List<Rpc.Request> requests,
+               @NotNull final List<CompletableFuture<Result>> results,
+               @NotNull final MemoryManager memory) {
+            this.requests = requests;
+            this.memory = memory;
+            this.results = new ArrayList<>(results.size());
+            for (final CompletableFuture<Result> result : results) {
+                this.results.add(result.thenApply(this::admit));
+            }
+        }
+
+        private synchronized Result admit(@NotNull final Result result) {
+            if (result.value == null) {
+                return result;
+            }
+            final int size = result.value.remaining();
+            if (closed || !memory.tryReserve(MemoryManager.Consumer.REQUEST, size)) {
+                return Result.UNAVAILABLE;
+            }
+            reserved += size;
+            return result;
+        }
+
+        private synchronized void release(final int size) {
+            if (!closed) {
+                reserved -= size;
+                memory.release(MemoryManager.Consumer.REQUEST, size);
+            }
+        }
+
+        @NotNull
+        @Override
+        public CompletableFuture<List<byte[]>> next() {
+            if (next == results.size()) {
+                return CompletableFuture.completedFuture(List.of());
+            }
+            return results.get(next).thenApply(ignored -> {
+                final List<byte[]> chunk = new ArrayList<>();
+                long bytes = 0;
+                while (next < results.size() && results.get(next).isDone() && bytes < CHUNK_BYTES) {
+                    final Result result = results.get(next).join();
+                    final byte[] piece = encode(requests.get(next).key, result);
+                    if (result.value != null) {
+                        release(result.value.remaining());
+                    }
+                    chunk.add(piece);
+                    bytes += piece.length;
+                    next++;
+                }
+                return chunk;
+            });
+        }
+
+        @Override
+        public synchronized void close() {
+            closed = true;
+            memory.release(MemoryManager.Consumer.REQUEST, reserved);
+            reserved = 0;
+        }
+    }
+
+    /**
+     * Parses request body.
+     *
+     * @param op    operation applied to every key
+     * @param ttl   time to live of values or -1
+     * @param trace trace id
+     * @param body  request body
+     * @return requests in order
+     * @throws IllegalArgumentException if body is malformed or has too many keys
+     */
+    @NotNull
+    static List<Rpc.Request> parse(final byte op,
+                                   final long ttl,
+                                   @NotNull final String trace,
+                                   @NotNull final byte[] body) {
+        final List<Rpc.Request> requests = new ArrayList<>();
+        final ByteBuffer in = ByteBuffer.wrap(body);
+        try {
+            while (in.hasRemaining()) {
+                if (requests.size() == MAX_KEYS) {
+                    throw new IllegalArgumentException("Too many keys");
+                }
+                final byte[] key = bytes(in);
+                if (key.length == 0) {
+                    throw new IllegalArgumentException("Empty key");
+                }
+                final Rpc.Request request = new Rpc.Request(op, ttl, trace, key, op == Rpc.PUT ? bytes(in) : null);
+                // Every replica stores the same version of a write
+                requests.add(op == Rpc.GET ? request : request.stamped(ru.mail.polis.prohladenn.Value.timestamp()));
+            }
+        } catch (BufferUnderflowException e) {
+            throw new IllegalArgumentException("Malformed batch", e);
+        }
+        return requests;
+    }
+
+    @NotNull
+    private static byte[] bytes(@NotNull final ByteBuffer in) {
+        final int length = in.getInt();
+        if (length < 0 || length > in.remaining()) {
+            throw new IllegalArgumentException("Malformed batch");
+        }
+        final byte[] bytes = new byte[length];
+        in.get(bytes);
+        return bytes;
+    }
+
+    @NotNull
+    private static byte[] encode(@NotNull final byte[] key, @NotNull final Result result) {
+        final int size = result.value == null ? 0 : result.value.remaining();
+        final ByteBuffer piece = ByteBuffer.allocate(Integer.BYTES * 3 + key.length + size);
+        piece.putInt(key.length).put(key).putInt(result.status);
+        if (result.value == null) {
+            piece.putInt(-1);
+        } else {
+            piece.putInt(size).put(result.value.duplicate());
+        }
+        return piece.array();
+    }
+}
@@ -0,0 +1,148 @@
+package ru.mail.polis.service.prohladenn;
+
+import com.google.common.base.Charsets;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.io.ByteArrayOutputStream;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+
+/**
+ * Compresses a chunked response body with {@code gzip} or {@code deflate} content coding.
+ * Payloads are fed as they come and compressed bytes are framed as chunks whenever
+ * the compressor produces them.
+ */
+final class ChunkEncoder {
+    private static final byte[] CRLF = "\r\n".getBytes(Charsets.UTF_8);
+    private static final byte[] GZIP_HEADER = {0x1f, (byte) 0x8b, Deflater.DEFLATED, 0, 0, 0, 0, 0, 0, (byte) 0xff};
+    private static final byte[] NONE = new byte[0];
+
+    @NotNull
+    private final String coding;
+    @NotNull
+    private final Deflater deflater;
+    @Nullable
+    private final CRC32 crc;
+    private final byte[] buffer = new byte[16 * 1024];
+    private boolean started;
+
+    private ChunkEncoder(@NotNull final String coding, final boolean gzip) {
+        this.coding = coding;
+        this.deflater = new Deflater(Deflater.BEST_SPEED, gzip);
+        this.crc = gzip ? new CRC32() : null;
+    }
+
+    /**
+     * Picks content coding accepted by client.
+     *
+     * @param accept value of {@code Accept-Encoding} header or null
+     * @return encoder or null if body should be sent as is
+     */
+    @Nullable
+    static ChunkEncoder of(@Nullable final String accept) {
+        if (accept == null) {
+            return null;
+        }
+        boolean deflate = false;
+        for (final String item : accept.split(",")) {
+            final String[] parts = item.split(";");
+            final String name = parts[0].trim();
+            if (parts.length > 1 && parts[1].trim().matches("q=0(\\.0*)?")) {
+                continue;
+            }
+            if ("gzip".equalsIgnoreCase(name)) {
+                return new ChunkEncoder("gzip", true);
+            }
+            deflate |= "deflate".equalsIgnoreCase(name);
+        }
+        return deflate ? new ChunkEncoder("deflate", false) : null;
+    }
+
+    /**
+     * Name of content coding.
+     *
+     * @return value of {@code Content-Encoding} header
+     */
+    @NotNull
+    String coding() {
+        return coding;
+    }
+
+    /**
+     * Compresses payload.
+     *
+     * @param payload data to append to body
+     * @param flush   whether everything given so far should be sent
+     * @return chunks to write, may be empty
+     */
+    @NotNull
+    byte[] encode(@NotNull final byte[] payload, final boolean flush) {
+        final ByteArrayOutputStream out = new ByteArrayOutputStream();
+        if (!started) {
+            started = true;
+            if (crc != null) {
+                out.writeBytes(GZIP_HEADER);
+            }
+        }
+        if (crc != null) {
+            crc.update(payload);
+        }
+        deflater.setInput(payload);
+        drain(out, flush ? Deflater.SYNC_FLUSH : Deflater.NO_FLUSH);
+        return chunk(out);
+    }
+
+    /**
+     * Completes body and releases compressor.
+     *
+     * @return the last chunks excluding the terminating one
+     */
+    @NotNull
+    byte[] finish() {
+        final ByteArrayOutputStream out = new ByteArrayOutputStream();
+        if (!started && crc != null) {
+            out.writeBytes(GZIP_HEADER);
+        }
+        deflater.finish();
+        while (!deflater.finished()) {
+            out.write(buffer, 0, deflater.deflate(buffer));
+        }
+        if (crc != null) {
+            writeIntLe(out, (int) crc.getValue());
+            writeIntLe(out, (int) deflater.getBytesRead());
+        }
+        deflater.end();
+        return chunk(out);
+    }
+
+    private void drain(@NotNull final ByteArrayOutputStream out, final int mode) {
+        while (true) {
+            final int length = deflater.deflate(buffer, 0, buffer.length, mode);
+            out.write(buffer, 0, length);
+            if (length < buffer.length && deflater.needsInput()) {
+                return;
+            }
+        }
+    }
+
+    private static void writeIntLe(@NotNull final ByteArrayOutputStream out, final int value) {
+        out.write(value);
+        out.write(value >>> 8);
+        out.write(value >>> 16);
+        out.write(value >>> 24);
+    }
+
+    @NotNull
+    private static byte[] chunk(@NotNull final ByteArrayOutputStream data) {
+        if (data.size() == 0) {
+            return NONE;
+        }
+        final ByteArrayOutputStream chunk = new ByteArrayOutputStream(data.size() + 16);
+        chunk.writeBytes(Integer.toHexString(data.size()).getBytes(Charsets.UTF_8));
+        chunk.writeBytes(CRLF);
+        chunk.writeBytes(data.toByteArray());
+        chunk.writeBytes(CRLF);
+        return chunk.toByteArray();
+    }
+}
@@ -0,0 +1,26 @@
+package ru.mail.polis.service.prohladenn;
+
+import org.jetbrains.annotations.NotNull;
+
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+
+/**
+ * Asynchronous source of response body pieces, pulled by a consumer whenever it is ready for more.
+ */
+interface ChunkSource {
+    /**
+     * Produces next pieces of body, never asked again before the returned future completes.
+     *
+     * @return future pieces, empty when there are no more
+     */
+    @NotNull
+    CompletableFuture<List<byte[]>> next();
+
+    /**
+     * Called when the consumer is gone before the source is exhausted.
+     */
+    default void close() {
+        // Nothing to release
+    }
+}
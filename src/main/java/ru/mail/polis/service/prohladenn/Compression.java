@@ -0,0 +1,99 @@
+package ru.mail.polis.service.prohladenn;
+
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.ByteBuffer;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * Deflate compression of values sent between nodes.
+ * Small values and values which do not shrink enough are sent as is.
+ */
+final class Compression {
+    static final int THRESHOLD = 512;
+
+    private static final ThreadLocal<Deflater> deflaters =
+            ThreadLocal.withInitial(() -> new Deflater(Deflater.BEST_SPEED));
+    private static final ThreadLocal<Inflater> inflaters = ThreadLocal.withInitial(Inflater::new);
+    private static final ThreadLocal<byte[]> buffers = ThreadLocal.withInitial(() -> new byte[64 * 1024]);
+
+    private Compression() {
+        // Not supposed to be instantiated
+    }
+
+    /**
+     * Compresses data if it is worth it.
+     *
+     * @param data data
+     * @return compressed data or null if it should be sent as is
+     */
+    @Nullable
+    static byte[] deflate(@NotNull final byte[] data) {
+        return deflate(ByteBuffer.wrap(data));
+    }
+
+    /**
+     * Compresses data if it is worth it without copying it to heap first.
+     *
+     * @param data data, its position is left unchanged
+     * @return compressed data or null if it should be sent as is
+     */
+    @Nullable
+    static byte[] deflate(@NotNull final ByteBuffer data) {
+        final int length = data.remaining();
+        if (length < THRESHOLD) {
+            return null;
+        }
+        final Deflater deflater = deflaters.get();
+        deflater.reset();
+        deflater.setInput(data.duplicate());
+        deflater.finish();
+        // Less than 1/8 saved is not worth inflating
+        final int limit = length - length / 8;
+        final ByteArrayOutputStream out = new ByteArrayOutputStream(limit);
+        final byte[] buffer = buffers.get();
+        while (!deflater.finished()) {
+            out.write(buffer, 0, deflater.deflate(buffer));
+            if (out.size() >= limit) {
+                return null;
+            }
+        }
+        return out.toByteArray();
+    }
+
+    /**
+     * Decompresses data produced by {@link #deflate}.
+     *
+     * @param data   compressed data
+     * @param length length of original data
+     * @return original data
+     * @throws IllegalArgumentException if data is corrupted
+     */
+    @NotNull
+    static byte[] inflate(@NotNull final byte[] data, final int length) {
+        final Inflater inflater = inflaters.get();
+        inflater.reset();
+        inflater.setInput(data);
+        final byte[] result = new byte[length];
+        try {
+            int offset = 0;
+            while (offset < length && !inflater.finished()) {
+                final int inflated = inflater.inflate(result, offset, length - offset);
+                if (inflated == 0 && (inflater.needsInput() || inflater.needsDictionary())) {
+                    break;
+                }
+                offset += inflated;
+            }
+            if (offset != length) {
+                throw new IllegalArgumentException("Compressed value of wrong length");
+            }
+        } catch (DataFormatException e) {
+            throw new IllegalArgumentException("Corrupted compressed value", e);
+        }
+        return result;
+    }
+}
@@ -0,0 +1,172 @@
+package ru.mail.polis.service.prohladenn;
+
+import org.jetbrains.annotations.NotNull;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * Consistent hashing ring with virtual nodes.
+ * Adding or removing a node moves about 1/N of the keys. Replica lists of every ring segment
+ * are computed once, so a lookup is a hash and a binary search without allocation.
+ */
+public class ConsistentHashTopology implements Topology<String> {
+    public static final int DEFAULT_VNODES = 256;
+
+    private static final long M = 0xC6A4A7935BD1E995L;
+    private static final int R = 47;
+
+    @NotNull
+    private final String me;
+    @NotNull
+    private final String[] nodes;
+    @NotNull
+    private final Set<String> all;
+    // Sorted positions of virtual nodes, segment i ends at ring[i]
+    @NotNull
+    private final long[] ring;
+    @NotNull
+    private final int[] owners;
+    @NotNull
+    private final List<List<List<String>>> replicas;
+
+    /**
+     * Creates ring with {@link #DEFAULT_VNODES} virtual nodes per node.
+     *
+     * @param nodes all urls
+     * @param me    current url, absent from nodes once removed from the cluster
+     */
+    public ConsistentHashTopology(@NotNull final Set<String> nodes,
+                                  @NotNull final String me) {
+        this(nodes, me, DEFAULT_VNODES);
+    }
+
+    /**
+     * Creates ring.
+     *
+     * @param nodes  all urls
+     * @param me     current url, absent from nodes once removed from the cluster
+     * @param vnodes virtual nodes per node
+     */
+    public ConsistentHashTopology(@NotNull final Set<String> nodes,
+                                  @NotNull final String me,
+                                  final int vnodes) {
+        assert vnodes > 0;
+        this.me = me;
+        this.nodes = nodes.toArray(new String[0]);
+        Arrays.sort(this.nodes);
+        this.all = Set.of(this.nodes);
+
+        final long[][] points = new long[this.nodes.length * vnodes][];
+        for (int node = 0; node < this.nodes.length; node++) {
+            for (int vnode = 0; vnode < vnodes; vnode++) {
+                final byte[] name = (this.nodes[node] + '#' + vnode).getBytes(StandardCharsets.UTF_8);
+                points[node * vnodes + vnode] = new long[]{hash(ByteBuffer.wrap(name)), node};
+            }
+        }
+        // Ties are broken by node so that every node builds the same ring
+        Arrays.sort(points, (a, b) -> a[0] == b[0] ? Long.compare(a[1], b[1]) : Long.compare(a[0], b[0]));
+        this.ring = new long[points.length];
+        this.owners = new int[points.length];
+        for (int i = 0; i < points.length; i++) {
+            ring[i] = points[i][0];
+            owners[i] = (int) points[i][1];
+        }
+
+        final List<List<List<String>>> lists = new ArrayList<>(ring.length);
+        for (int segment = 0; segment < ring.length; segment++) {
+            lists.add(successors(segment));
+        }
+        this.replicas = List.copyOf(lists);
+    }
+
+    @NotNull
+    private List<List<String>> successors(final int segment) {
+        final Set<String> distinct = new LinkedHashSet<>();
+        for (int i = 0; distinct.size() < nodes.length; i++) {
+            distinct.add(nodes[owners[(segment + i) % owners.length]]);
+        }
+        final String[] successors = distinct.toArray(new String[0]);
+        final List<List<String>> result = new ArrayList<>(successors.length);
+        for (int count = 1; count <= successors.length; count++) {
+            result.add(List.of(Arrays.copyOf(successors, count)));
+        }
+        return List.copyOf(result);
+    }
+
+    /**
+     * MurmurHash64A of remaining bytes, independent of buffer position and byte order.
+     *
+     * @param key key
+     * @return 64-bit hash
+     */
+    static long hash(@NotNull final ByteBuffer key) {
+        final int offset = key.position();
+        final int length = key.remaining();
+        final boolean swap = key.order() != ByteOrder.LITTLE_ENDIAN;
+        long h = length * M;
+        final int tail = length & ~7;
+        for (int i = 0; i < tail; i += Long.BYTES) {
+            final long raw = key.getLong(offset + i);
+            long k = swap ? Long.reverseBytes(raw) : raw;
+            k *= M;
+            k ^= k >>> R;
+            k *= M;
+            h ^= k;
+            h *= M;
+        }
+        if (tail < length) {
+            for (int i = length - 1; i >= tail; i--) {
+                h ^= (long) (key.get(offset + i) & 0xFF) << (Byte.SIZE * (i - tail));
+            }
+            h *= M;
+        }
+        h ^= h >>> R;
+        h *= M;
+        h ^= h >>> R;
+        return h;
+    }
+
+    private int segmentFor(@NotNull final ByteBuffer key) {
+        final int index = Arrays.binarySearch(ring, hash(key));
+        final int segment = index >= 0 ? index : -index - 1;
+        return segment == ring.length ? 0 : segment;
+    }
+
+    @Override
+    public boolean isMe(@NotNull final String node) {
+        return me.equals(node);
+    }
+
+    @NotNull
+    @Override
+    public String primaryFor(@NotNull final ByteBuffer key) {
+        return nodes[indexPrimaryFor(key)];
+    }
+
+    @Override
+    public int indexPrimaryFor(@NotNull final ByteBuffer key) {
+        return owners[segmentFor(key)];
+    }
+
+    @NotNull
+    @Override
+    public List<String> replicasFor(@NotNull final ByteBuffer key, final int count) {
+        if (count < 1 || count > nodes.length) {
+            throw new IllegalArgumentException("Wrong replicas count: " + count);
+        }
+        return replicas.get(segmentFor(key)).get(count - 1);
+    }
+
+    @NotNull
+    @Override
+    public Set<String> all() {
+        return all;
+    }
+}
@@ -0,0 +1,187 @@
+package ru.mail.polis.service.prohladenn;
+
+import com.google.common.base.Charsets;
+import org.jetbrains.annotations.NotNull;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import ru.mail.polis.prohladenn.Cell;
+import ru.mail.polis.prohladenn.FileTable;
+import ru.mail.polis.prohladenn.LSMDao;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.net.InetSocketAddress;
+import java.net.URI;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.TreeSet;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Moves keys to nodes which become their replicas when membership changes.
+ * Keys of a ring segment are spread over the whole key space, so tables can't be sent as ranges of files:
+ * cells of every destination are written to standalone tables of at most {@value #PART_BYTES} bytes,
+ * which are sent with {@link FileChannel#transferTo} and ingested by the destination as they are.
+ * The store is read once for all destinations.
+ * Every key is sent by its primary in the current ring only. Handed off cells keep the timestamps
+ * their coordinators assigned, so the destination keeps whichever version of a key is newer.
+ */
+final class Handoff {
+    private static final Logger logger = LoggerFactory.getLogger(Handoff.class);
+    // Fits a request body of the destination
+    static final int PART_BYTES = 8 * 1024 * 1024;
+    static final String INGEST_PATH = "/v0/admin/ingest";
+    private static final int TIMEOUT_MILLIS = (int) TimeUnit.MINUTES.toMillis(1);
+
+    @NotNull
+    private final LSMDao dao;
+    @NotNull
+    private final String me;
+
+    Handoff(@NotNull final LSMDao dao, @NotNull final String me) {
+        this.dao = dao;
+        this.me = me;
+    }
+
+    /**
+     * Sends keys of this node to their new replicas.
+     *
+     * @param from   current ring
+     * @param to     next ring
+     * @param copies number of replicas of a key in the current ring
+     * @return summary
+     * @throws IOException if a destination failed
+     */
+    @NotNull
+    String run(@NotNull final Topology<String> from,
+               @NotNull final Topology<String> to,
+               final int copies) throws IOException {
+        final int nextCopies = Membership.copies(copies, from, to);
+        final Set<String> destinations = new TreeSet<>(to.all());
+        destinations.removeAll(from.all());
+        // Nodes staying in the cluster may get new keys too unless every node has them all
+        if (nextCopies < to.all().size()) {
+            destinations.addAll(to.all());
+        }
+        destinations.remove(me);
+        final Map<String, Parts> parts = new TreeMap<>();
+        for (final String destination : destinations) {
+            parts.put(destination, new Parts(destination));
+        }
+        // One pass over the store, cells are split between destinations
+        final Iterator<Cell> cells = dao.latestIterator(LSMDao.EMPTY);
+        while (cells.hasNext()) {
+            final Cell cell = cells.next();
+            final List<String> owners = from.replicasFor(cell.getKey(), copies);
+            if (!me.equals(owners.get(0))) {
+                continue;
+            }
+            for (final String replica : to.replicasFor(cell.getKey(), nextCopies)) {
+                final Parts destination = parts.get(replica);
+                if (destination != null && !owners.contains(replica)) {
+                    destination.add(cell);
+                }
+            }
+        }
+        final StringBuilder summary = new StringBuilder();
+        for (final Parts destination : parts.values()) {
+            destination.send();
+            logger.info("Handed off {} tables of {} bytes to {}", destination.tables, destination.bytes,
+                    destination.destination);
+            summary.append(String.format(Locale.ENGLISH, "%s tables=%d bytes=%d%n",
+                    destination.destination, destination.tables, destination.bytes));
+        }
+        return summary.toString();
+    }
+
+    /**
+     * Cells of a destination, sent as a table before it would exceed {@value #PART_BYTES} bytes.
+     */
+    private static final class Parts {
+        private final String destination;
+        private final List<Cell> cells = new ArrayList<>();
+        private long size;
+        private long tables;
+        private long bytes;
+
+        Parts(@NotNull final String destination) {
+            this.destination = destination;
+        }
+
+        void add(@NotNull final Cell cell) throws IOException {
+            final ByteBuffer data = cell.getValue().getData();
+            // As written to table: offset, key size, key and timestamp, then expiration, value size and value if live
+            final long cellBytes = Integer.BYTES * 2 + cell.getKey().remaining() + Long.BYTES
+                    + (data == null ? 0 : Long.BYTES + Integer.BYTES + data.remaining());
+            // Number of cells and format end the table
+            if (size + cellBytes + Integer.BYTES + Long.BYTES > PART_BYTES) {
+                send();
+            }
+            cells.add(cell);
+            size += cellBytes;
+        }
+
+        void send() throws IOException {
+            if (cells.isEmpty()) {
+                return;
+            }
+            final File part = Files.createTempFile("handoff", LSMDao.SUFFIX).toFile();
+            try {
+                Files.delete(part.toPath());
+                FileTable.write(cells.iterator(), part);
+                bytes += transfer(destination, part);
+                tables++;
+            } finally {
+                Files.deleteIfExists(part.toPath());
+            }
+            cells.clear();
+            size = 0;
+        }
+    }
+
+    /**
+     * Sends table file as body of ingest request straight from page cache.
+     *
+     * @return bytes sent
+     */
+    private static long transfer(@NotNull final String destination, @NotNull final File table) throws IOException {
+        final URI uri = URI.create(destination);
+        try (SocketChannel socket = SocketChannel.open();
+             FileChannel file = FileChannel.open(table.toPath(), StandardOpenOption.READ)) {
+            socket.socket().connect(new InetSocketAddress(uri.getHost(), uri.getPort()), TIMEOUT_MILLIS);
+            socket.socket().setSoTimeout(TIMEOUT_MILLIS);
+            final long size = file.size();
+            final ByteBuffer head = ByteBuffer.wrap(("PUT " + INGEST_PATH + " HTTP/1.1\r\n"
+                    + "Host: " + uri.getHost() + ':' + uri.getPort() + "\r\n"
+                    + "Content-Length: " + size + "\r\n"
+                    + "Connection: close\r\n\r\n").getBytes(Charsets.UTF_8));
+            while (head.hasRemaining()) {
+                socket.write(head);
+            }
+            long position = 0;
+            while (position < size) {
+                position += file.transferTo(position, size - position, socket);
+            }
+            // Reads through socket adapter to honor timeout
+            final BufferedReader in = new BufferedReader(
+                    new InputStreamReader(socket.socket().getInputStream(), Charsets.UTF_8));
+            final String status = in.readLine();
+            if (status == null || !status.matches("HTTP/1\\.[01] 2\\d\\d .*")) {
+                throw new IOException(destination + " rejected table: " + status);
+            }
+            return size;
+        }
+    }
+}
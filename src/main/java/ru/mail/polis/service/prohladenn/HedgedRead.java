@@ -0,0 +1,94 @@
+package ru.mail.polis.service.prohladenn;
+
+import org.jetbrains.annotations.NotNull;
+
+import javax.annotation.concurrent.ThreadSafe;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Function;
+
+/**
+ * Read from {@code ack} replicas of the given candidates, in order of preference.
+ * Another candidate is asked when a replica fails or does not answer within its hedge delay,
+ * and the first {@code ack} answers win.
+ *
+ * @param <T> type of replica answer
+ */
+@ThreadSafe
+final class HedgedRead<T> {
+    private final List<String> candidates;
+    private final Function<String, CompletableFuture<T>> call;
+    private final PeerLatency latency;
+    private final Runnable hedged;
+    private final Quorum<T> quorum;
+    private final AtomicInteger next = new AtomicInteger();
+
+    private HedgedRead(@NotNull final List<String> candidates,
+                       final int ack,
+                       @NotNull final Function<String, CompletableFuture<T>> call,
+                       @NotNull final PeerLatency latency,
+                       @NotNull final Runnable hedged) {
+        this.candidates = candidates;
+        this.call = call;
+        this.latency = latency;
+        this.hedged = hedged;
+        this.quorum = new Quorum<>(ack, candidates.size());
+    }
+
+    /**
+     * Starts read.
+     *
+     * @param candidates replicas in order of preference
+     * @param ack        answers to wait for
+     * @param call       reads from replica, completes with {@code null} or exceptionally on failure
+     * @param latency    latency of replicas
+     * @param hedged     called on every request sent because of a slow replica
+     * @param <T>        type of replica answer
+     * @return future answers, see {@link Quorum#result()}
+     */
+    @NotNull
+    static <T> CompletableFuture<List<T>> start(@NotNull final List<String> candidates,
+                                                final int ack,
+                                                @NotNull final Function<String, CompletableFuture<T>> call,
+                                                @NotNull final PeerLatency latency,
+                                                @NotNull final Runnable hedged) {
+        final HedgedRead<T> read = new HedgedRead<>(candidates, ack, call, latency, hedged);
+        for (int i = 0; i < ack; i++) {
+            read.launch(false);
+        }
+        return read.quorum.result();
+    }
+
+    private void launch(final boolean hedge) {
+        if (quorum.result().isDone()) {
+            return;
+        }
+        final int index = next.getAndIncrement();
+        if (index >= candidates.size()) {
+            return;
+        }
+        if (hedge) {
+            hedged.run();
+        }
+        final String node = candidates.get(index);
+        final CompletableFuture<T> answer = call.apply(node);
+        answer.whenComplete((value, error) -> {
+            if (error == null && value != null) {
+                quorum.success(value);
+            } else {
+                quorum.failure();
+                // Replace failed replica right away
+                launch(false);
+            }
+        });
+        if (next.get() < candidates.size()) {
+            CompletableFuture.delayedExecutor(latency.hedgeDelay(node), TimeUnit.NANOSECONDS).execute(() -> {
+                if (!answer.isDone() && !quorum.result().isDone()) {
+                    launch(true);
+                }
+            });
+        }
+    }
+}
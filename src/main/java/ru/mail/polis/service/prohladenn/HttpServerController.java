@@ -2,36 +2,55 @@ package ru.mail.polis.service.prohladenn;
 
 import one.nio.http.Response;
 import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
 import ru.mail.polis.prohladenn.Bytes;
+import ru.mail.polis.prohladenn.Cell;
 import ru.mail.polis.prohladenn.LSMDao;
+import ru.mail.polis.service.prohladenn.factors.EntityTag;
 import ru.mail.polis.service.prohladenn.factors.ReplicaFactor;
 import ru.mail.polis.service.prohladenn.factors.TimeToLive;
 
-import java.net.URI;
-import java.net.http.HttpClient;
-import java.net.http.HttpRequest;
-import java.net.http.HttpRequest.BodyPublishers;
-import java.net.http.HttpResponse.BodyHandlers;
 import java.nio.ByteBuffer;
-import java.time.Duration;
+import java.nio.charset.StandardCharsets;
 import java.util.ArrayList;
-import java.util.Collection;
-import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
 import java.util.concurrent.CompletableFuture;
-import java.util.concurrent.ConcurrentLinkedQueue;
-import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
 import java.util.concurrent.Executor;
-import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Supplier;
 
 public class HttpServerController {
+    private static final Rpc.Reply DONE = new Rpc.Reply(Rpc.DONE, 0L, "", null);
+    private static final Rpc.Reply ERROR = new Rpc.Reply(Rpc.ERROR, 0L, "", null);
+    private static final String ETAG_HEADER = "ETag: ";
+
+    /**
+     * Value read from a replica.
+     */
+    private static final class Answer {
+        @NotNull
+        final String node;
+        @NotNull
+        final Value value;
+
+        Answer(@NotNull final String node, @NotNull final Value value) {
+            this.node = node;
+            this.value = value;
+        }
+    }
 
     @NotNull
     private final LSMDao dao;
 
     @NotNull
-    private final Map<String, HttpClient> pool;
+    private final Map<String, RpcClient> pool;
+
+    @NotNull
+    private final ConcurrentMap<String, WriteBatcher> writers = new ConcurrentHashMap<>();
 
     @NotNull
     private final Topology<String> replicas;
@@ -39,21 +58,52 @@ public class HttpServerController {
     @NotNull
     private final Executor executor;
 
+    @NotNull
+    private final ServiceMetrics metrics;
+
+    @NotNull
+    private final PeerLatency latency;
+
+    /**
+     * Quorum reads in progress per replication factor.
+     */
+    @NotNull
+    private final ConcurrentMap<ReplicaFactor, SingleFlight<ByteBuffer, Value>> reads = new ConcurrentHashMap<>();
+
+    /**
+     * Quorum reads of digests in progress per replication factor.
+     */
+    @NotNull
+    private final ConcurrentMap<ReplicaFactor, SingleFlight<ByteBuffer, Value>> digestReads =
+            new ConcurrentHashMap<>();
+
+    /**
+     * Local lookups in progress.
+     */
+    @NotNull
+    private final SingleFlight<ByteBuffer, Value> lookups;
+
     /**
      * Creates instance of HttpServer controller.
      *
      * @param dao      LSMDao
-     * @param pool     clients
+     * @param pool     clients of other nodes, grows as nodes join
      * @param replicas replicas
+     * @param executor executor for local operations
+     * @param metrics  service metrics
      */
-    public HttpServerController(@NotNull final LSMDao dao,
-                                @NotNull final Map<String, HttpClient> pool,
-                                @NotNull final Topology<String> replicas,
-                                @NotNull final Executor executor) {
+    HttpServerController(@NotNull final LSMDao dao,
+                         @NotNull final Map<String, RpcClient> pool,
+                         @NotNull final Topology<String> replicas,
+                         @NotNull final Executor executor,
+                         @NotNull final ServiceMetrics metrics) {
         this.dao = dao;
         this.pool = pool;
         this.replicas = replicas;
         this.executor = executor;
+        this.metrics = metrics;
+        this.latency = new PeerLatency(replicas.all());
+        this.lookups = new SingleFlight<>(metrics::coalescedLookup);
     }
 
     /**
@@ -70,7 +120,10 @@ public class HttpServerController {
         Response result;
         switch (value.getState()) {
             case PRESENT:
-                result = new Response(Response.OK, value.getData());
+                result = value.size() >= Value.STREAM_THRESHOLD
+                        ? new StreamedResponse(Response.OK, value.getBuffer())
+                        : new Response(Response.OK, value.getData());
+                result.addHeader(ETAG_HEADER + EntityTag.of(value.getTimeStamp()));
                 if (proxy) {
                     result.addHeader(MyHttpServer.TIMESTAMP_HEADER + value.getTimeStamp());
                 }
@@ -89,208 +142,519 @@ public class HttpServerController {
     }
 
     /**
-     * Returns status of get request.
+     * Reads value from replicas.
      *
-     * @param id      key
-     * @param rf      replication factor
-     * @param isProxy is proxy
-     * @return response
+     * @param id    key
+     * @param rf    replication factor
+     * @param tag   tags of {@code If-None-Match} header or null
+     * @param trace request trace
+     * @return future response, completed once {@code ack} replicas answered,
+     *     this node and the least loaded replicas are asked first and slow ones are hedged,
+     *     concurrent reads of the same key share a single quorum read
      */
-    public Response get(
+    @NotNull
+    public CompletableFuture<Response> get(
             @NotNull final String id,
             @NotNull final ReplicaFactor rf,
-            final boolean isProxy) {
+            @Nullable final EntityTag tag,
+            @NotNull final Trace trace) {
+        final byte[] key = id.getBytes(StandardCharsets.UTF_8);
         // Proxy
-        if (isProxy) {
-            return HttpServerController.from(Value.get(id, dao), true);
+        if (trace.isProxied()) {
+            return CompletableFuture.supplyAsync(() -> from(local(trace, () -> lookup(key)), true), executor);
         }
-        // Initialize
-        final Collection<Value> responses = new ArrayList<>(rf.getFrom());
-        final Collection<CompletableFuture<Value>> futures = new ConcurrentLinkedQueue<>();
-        // Async get
-        replicas(Bytes.strToBB(id), rf.getFrom()).forEach(node -> {
-            if (this.replicas.isMe(node)) {
-                futures.add(CompletableFuture.supplyAsync(() -> Value.get(id, dao)));
-            } else {
-                final HttpRequest httpRequest = getHttpRequest(node, id).GET().build();
-                futures.add(pool
-                        .get(node)
-                        .sendAsync(httpRequest, BodyHandlers.ofByteArray())
-                        .thenApply(Value::getValueFromResponse));
-            }
-        });
-        // Compliance replication factor
-        if (checkAckCountAndCollectResponses(futures, rf, responses) >= rf.getAck()) {
-            final Value value = responses.stream()
-                    .filter(cell -> !cell.getState().equals(Value.State.ABSENT))
-                    .max(Comparator.comparingLong(Value::getTimeStamp))
-                    .orElseGet(Value::absent);
-            return from(value, false);
+        final CompletableFuture<Response> response;
+        if (tag == null) {
+            response = flights(reads, rf).async(ByteBuffer.wrap(key), trace.getStart(), () -> read(key, rf, trace))
+                    .thenApply(value -> from(value, false));
         } else {
-            return new Response(Response.GATEWAY_TIMEOUT, Response.EMPTY);
+            // Replicas send timestamps only, the value is read if it has changed
+            response = flights(digestReads, rf).async(ByteBuffer.wrap(key), trace.getStart(),
+                    () -> digests(key, rf, trace))
+                    .thenCompose(value -> {
+                        if (value.getState() == Value.State.PRESENT && tag.matches(value.getTimeStamp())) {
+                            final Response notModified = new Response(Response.NOT_MODIFIED, Response.EMPTY);
+                            notModified.addHeader(ETAG_HEADER + EntityTag.of(value.getTimeStamp()));
+                            return CompletableFuture.completedFuture(notModified);
+                        }
+                        if (!value.isDigest()) {
+                            return CompletableFuture.completedFuture(from(value, false));
+                        }
+                        return flights(reads, rf).async(ByteBuffer.wrap(key), trace.getStart(),
+                                () -> read(key, rf, trace))
+                                .thenApply(full -> from(full, false));
+                    });
         }
+        return response.exceptionally(error -> new Response(Response.GATEWAY_TIMEOUT, Response.EMPTY));
+    }
+
+    @NotNull
+    private SingleFlight<ByteBuffer, Value> flights(
+            @NotNull final ConcurrentMap<ReplicaFactor, SingleFlight<ByteBuffer, Value>> flights,
+            @NotNull final ReplicaFactor rf) {
+        return flights.computeIfAbsent(rf, f -> new SingleFlight<>(metrics::coalescedRead));
     }
 
     /**
-     * Returns status of delete request.
+     * Reads the freshest timestamp, the value only if this node is a replica.
+     */
+    @NotNull
+    private CompletableFuture<Value> digests(@NotNull final byte[] key,
+                                             @NotNull final ReplicaFactor rf,
+                                             @NotNull final Trace trace) {
+        final List<String> nodes = latency.rank(this.replicas.replicasFor(ByteBuffer.wrap(key), rf.getFrom()),
+                this.replicas::isMe);
+        final Rpc.Request digest = new Rpc.Request(Rpc.DIGEST, TimeToLive.EMPTY.getTtl(), trace.getId(), key, null);
+        return HedgedRead.start(nodes, rf.getAck(), node -> read(node, digest, trace), latency, metrics::hedged)
+                .thenApply(answers -> {
+                    final List<Value> values = new ArrayList<>(answers.size());
+                    for (final Answer answer : answers) {
+                        values.add(answer.value);
+                    }
+                    return Value.merge(values);
+                });
+    }
+
+    @NotNull
+    private CompletableFuture<Value> read(@NotNull final byte[] key,
+                                          @NotNull final ReplicaFactor rf,
+                                          @NotNull final Trace trace) {
+        final List<String> nodes = latency.rank(this.replicas.replicasFor(ByteBuffer.wrap(key), rf.getFrom()),
+                this.replicas::isMe);
+        // Only one replica sends the value, others send timestamps
+        final String primary = nodes.stream().filter(this.replicas::isMe).findAny().orElse(nodes.get(0));
+        final Rpc.Request full = new Rpc.Request(Rpc.GET, TimeToLive.EMPTY.getTtl(), trace.getId(), key, null);
+        final Rpc.Request digest = new Rpc.Request(Rpc.DIGEST, TimeToLive.EMPTY.getTtl(), trace.getId(), key, null);
+        return HedgedRead.start(nodes, rf.getAck(),
+                node -> read(node, rf.getAck() == 1 || node.equals(primary) ? full : digest, trace),
+                latency, metrics::hedged)
+                .thenCompose(answers -> resolve(answers, full, trace));
+    }
+
+    @NotNull
+    private Value lookup(@NotNull final byte[] key) {
+        return lookups.sync(ByteBuffer.wrap(key), () -> Value.get(key, dao));
+    }
+
+    /**
+     * Makes reads which start after a write to key see it.
+     */
+    private void written(@NotNull final byte[] key) {
+        final ByteBuffer id = ByteBuffer.wrap(key);
+        for (final SingleFlight<ByteBuffer, Value> flights : reads.values()) {
+            flights.forget(id);
+        }
+        for (final SingleFlight<ByteBuffer, Value> flights : digestReads.values()) {
+            flights.forget(id);
+        }
+    }
+
+    /**
+     * Removes value on replicas.
      *
-     * @param id      key
-     * @param rf      replication factor
-     * @param isProxy is proxy
-     * @return response
+     * @param id    key
+     * @param rf    replication factor
+     * @param trace request trace
+     * @return future response, completed once {@code ack} replicas answered
      */
-    public Response delete(
+    @NotNull
+    public CompletableFuture<Response> delete(
             @NotNull final String id,
             @NotNull final ReplicaFactor rf,
-            final boolean isProxy) {
-        // Proxy
-        if (isProxy) {
-            dao.remove(Bytes.strToBB(id));
-            return new Response(Response.ACCEPTED, Response.EMPTY);
-        }
-        // Initialize
-        final Collection<CompletableFuture<Integer>> futures = new ConcurrentLinkedQueue<>();
-        // Async delete
-        replicas(Bytes.strToBB(id), rf.getFrom()).forEach(node -> {
-            if (this.replicas.isMe(node)) {
-                futures.add(CompletableFuture
-                        .runAsync(() -> dao.remove(Bytes.strToBB(id)), executor)
-                        .handle((s, t) -> checkThrowableAndGetCode(202, t)));
-            } else {
-                final HttpRequest httpRequest = getHttpRequest(node, id).DELETE().build();
-                futures.add(pool
-                        .get(node)
-                        .sendAsync(httpRequest, BodyHandlers.discarding())
-                        .handle((a, exp) -> a.statusCode()));
-            }
-        });
-        // Compliance replication factor
-        return checkAckCountAndCreateResponse(futures, rf, Response.ACCEPTED);
+            @NotNull final Trace trace) {
+        final byte[] key = id.getBytes(StandardCharsets.UTF_8);
+        final Rpc.Request request = new Rpc.Request(Rpc.DELETE, TimeToLive.EMPTY.getTtl(), trace.getId(), key, null)
+                .stamped(ru.mail.polis.prohladenn.Value.timestamp());
+        return write(request, rf, trace, () -> store(request))
+                .thenApply(acked -> {
+                    written(key);
+                    return response(acked, Response.ACCEPTED);
+                });
     }
 
     /**
-     * Returns status of upsert request.
+     * Stores value on replicas.
      *
-     * @param id      key
-     * @param rf      replication factor
-     * @param isProxy is proxy
-     * @return response
+     * @param id    key
+     * @param value value
+     * @param rf    replication factor
+     * @param ttl   time to live
+     * @param trace request trace
+     * @return future response, completed once {@code ack} replicas answered
      */
-    public Response upsert(
+    @NotNull
+    public CompletableFuture<Response> upsert(
             @NotNull final String id,
             @NotNull final byte[] value,
             @NotNull final ReplicaFactor rf,
             @NotNull final TimeToLive ttl,
-            final boolean isProxy) {
-        // Proxy
-        if (isProxy) {
-            if (ttl == TimeToLive.EMPTY) {
-                dao.upsert(Bytes.strToBB(id), ByteBuffer.wrap(value));
-            } else {
-                dao.upsert(Bytes.strToBB(id), ByteBuffer.wrap(value), Duration.ofMillis(ttl.getTtl()));
+            @NotNull final Trace trace) {
+        final byte[] key = id.getBytes(StandardCharsets.UTF_8);
+        final Rpc.Request request = new Rpc.Request(Rpc.PUT, ttl.getTtl(), trace.getId(), key, value)
+                .stamped(ru.mail.polis.prohladenn.Value.timestamp());
+        return write(request, rf, trace, () -> store(request))
+                .thenApply(acked -> {
+                    written(key);
+                    return response(acked, Response.CREATED);
+                });
+    }
+
+    /**
+     * Applies requests of a batch on replicas, sending one request per replica node.
+     *
+     * @param requests requests parsed by {@link Batch#parse}
+     * @param rf       replication factor of every key
+     * @param trace    request trace
+     * @return future result of every request in the same order, never completed exceptionally
+     */
+    @NotNull
+    public List<CompletableFuture<Batch.Result>> batch(
+            @NotNull final List<Rpc.Request> requests,
+            @NotNull final ReplicaFactor rf,
+            @NotNull final Trace trace) {
+        final List<Quorum<Answer>> quorums = new ArrayList<>(requests.size());
+        final Map<String, List<Integer>> groups = new HashMap<>();
+        for (int i = 0; i < requests.size(); i++) {
+            quorums.add(new Quorum<>(rf.getAck(), rf.getFrom()));
+            for (final String node : this.replicas.replicasFor(ByteBuffer.wrap(requests.get(i).key), rf.getFrom())) {
+                groups.computeIfAbsent(node, n -> new ArrayList<>()).add(i);
             }
-            return new Response(Response.CREATED, Response.EMPTY);
         }
-        // Initialize
-        final Collection<CompletableFuture<Integer>> futures = new ConcurrentLinkedQueue<>();
-        // Async upsert
-        replicas(Bytes.strToBB(id), rf.getFrom()).forEach(node -> {
-            if (this.replicas.isMe(node)) {
-                futures.add(CompletableFuture
-                        .runAsync(() -> {
-                            if (ttl == TimeToLive.EMPTY) {
-                                dao.upsert(Bytes.strToBB(id), ByteBuffer.wrap(value));
-                            } else {
-                                dao.upsert(Bytes.strToBB(id), ByteBuffer.wrap(value), Duration.ofMillis(ttl.getTtl()));
-                            }
-                        }, executor)
-                        .handle((s, t) -> checkThrowableAndGetCode(201, t)));
+        groups.forEach((node, indices) -> {
+            for (int from = 0; from < indices.size(); from += Batch.PART_KEYS) {
+                send(node, requests, indices.subList(from, Math.min(from + Batch.PART_KEYS, indices.size())),
+                        quorums, trace);
+            }
+        });
+        for (final Rpc.Request request : requests) {
+            if (request.op != Rpc.GET) {
+                for (final String node : this.replicas.handoffFor(ByteBuffer.wrap(request.key), rf.getFrom())) {
+                    handoff(node, request);
+                }
+            }
+        }
+        final List<CompletableFuture<Batch.Result>> results = new ArrayList<>(requests.size());
+        for (int i = 0; i < requests.size(); i++) {
+            final Rpc.Request request = requests.get(i);
+            if (request.op == Rpc.GET) {
+                // Digests of values which did not fit a reply are fetched one by one
+                results.add(quorums.get(i).result().thenCompose(answers -> resolve(answers, request, trace))
+                        .handle((value, error) -> Batch.Result.read(error == null ? value : null)));
             } else {
-                futures.add(pool
-                        .get(node)
-                        .sendAsync(
-                                getHttpRequest(node, id).PUT(BodyPublishers.ofByteArray(value)).build(),
-                                BodyHandlers.discarding())
-                        .handle((a, exp) -> a.statusCode()));
+                results.add(quorums.get(i).result()
+                        .handle((answers, error) -> Batch.Result.written(request.op, error == null)));
+            }
+        }
+        return results;
+    }
+
+    private void send(@NotNull final String node,
+                      @NotNull final List<Rpc.Request> requests,
+                      @NotNull final List<Integer> indices,
+                      @NotNull final List<Quorum<Answer>> quorums,
+                      @NotNull final Trace trace) {
+        final List<Rpc.Request> part = new ArrayList<>(indices.size());
+        for (final int index : indices) {
+            part.add(requests.get(index));
+        }
+        final Rpc.Request batch = new Rpc.Request(Rpc.BATCH, TimeToLive.EMPTY.getTtl(), trace.getId(),
+                new byte[0], Rpc.encodeBatch(part));
+        final CompletableFuture<Rpc.Reply> reply;
+        if (this.replicas.isMe(node)) {
+            reply = CompletableFuture.supplyAsync(() -> local(trace, () -> apply(batch)), executor);
+        } else {
+            final long sent = System.nanoTime();
+            reply = pool.get(node).call(batch).whenComplete((answer, error) ->
+                    traceReplica(trace, node, sent, answer, error));
+        }
+        reply.thenApply(answer -> answer.status == Rpc.DONE && answer.value != null
+                ? Rpc.readReplies(answer.value)
+                : List.<Rpc.Reply>of()
+        ).whenComplete((replies, error) -> {
+            for (int i = 0; i < indices.size(); i++) {
+                final Rpc.Reply answer = error == null && i < replies.size() ? replies.get(i) : ERROR;
+                final int index = indices.get(i);
+                // Writes are acknowledged without a value
+                collect(quorums.get(index), answer.status == Rpc.ERROR ? null : new Answer(node,
+                        requests.get(index).op == Rpc.GET ? answer.toValue() : Value.absent()), null);
             }
         });
-        // Compliance replication factor
-        return checkAckCountAndCreateResponse(futures, rf, Response.CREATED);
     }
 
-    private int checkThrowableAndGetCode(final int positiveCode, final Throwable throwable) {
-        return throwable == null ? positiveCode : -1;
+    /**
+     * Serves request of another node.
+     *
+     * @param request request
+     * @param trace   request trace
+     * @return future reply
+     */
+    @NotNull
+    CompletableFuture<Rpc.Reply> serve(
+            @NotNull final Rpc.Request request,
+            @NotNull final Trace trace) {
+        return CompletableFuture.supplyAsync(() -> local(trace, () -> apply(request)), executor)
+                .thenApply(reply -> reply.withTimings(trace.timings()));
+    }
+
+    @NotNull
+    private Rpc.Reply apply(@NotNull final Rpc.Request request) {
+        switch (request.op) {
+            case Rpc.GET:
+            case Rpc.DIGEST:
+                return reply(lookup(request.key), request.op == Rpc.DIGEST);
+            case Rpc.PUT:
+                if (request.value == null) {
+                    break;
+                }
+                store(request);
+                return DONE;
+            case Rpc.DELETE:
+                store(request);
+                return DONE;
+            case Rpc.BATCH:
+                if (request.value == null) {
+                    break;
+                }
+                return applyBatch(Rpc.readBatch(request.value));
+            case Rpc.RANGE:
+                return page(request.key, request.value);
+            default:
+                break;
+        }
+        return ERROR;
     }
 
-    private int checkAckCountAndCollectResponses(
-            final Collection<CompletableFuture<Value>> futures,
-            final ReplicaFactor rf,
-            final Collection<Value> responses) {
-        final AtomicInteger ackCount = new AtomicInteger(0);
-        final AtomicInteger ackCountElse = new AtomicInteger(0);
-        futures.forEach(future -> {
-            if ((rf.getAck() - ackCount.get()) > (rf.getFrom() - ackCountElse.get() - ackCount.get())) {
-                return;
+    @NotNull
+    private Rpc.Reply page(@NotNull final byte[] from, @Nullable final byte[] to) {
+        final ByteBuffer end = to == null ? null : ByteBuffer.wrap(to);
+        final Iterator<Cell> cells = dao.latestIterator(ByteBuffer.wrap(from));
+        final List<Rpc.Entry> entries = new ArrayList<>();
+        int bytes = 0;
+        while (entries.size() < Rpc.PAGE_ENTRIES && bytes < Rpc.PAGE_BYTES && cells.hasNext()) {
+            final Cell cell = cells.next();
+            if (end != null && cell.getKey().compareTo(end) >= 0) {
+                return new Rpc.Reply(Rpc.ABSENT, 0L, "", Rpc.encodeEntries(entries));
             }
-            try {
-                final Value value = future.get();
-                if (value == null) {
-                    ackCountElse.incrementAndGet();
-                } else {
-                    responses.add(value);
-                    ackCount.incrementAndGet();
+            final ByteBuffer data = cell.getValue().getData();
+            final Rpc.Entry entry = new Rpc.Entry(Bytes.toArray(cell.getKey()), cell.getValue().getTimeStamp(),
+                    data == null ? null : Bytes.toArray(data));
+            entries.add(entry);
+            bytes += entry.size();
+        }
+        return new Rpc.Reply(cells.hasNext() ? Rpc.PRESENT : Rpc.ABSENT, 0L, "", Rpc.encodeEntries(entries));
+    }
+
+    /**
+     * Scans range of keys over all nodes.
+     *
+     * @param start  first key
+     * @param end    key after the last one or null
+     * @param copies number of replicas of a key
+     * @return source of records
+     */
+    @NotNull
+    RecordSource range(@NotNull final byte[] start, @Nullable final byte[] end, final int copies) {
+        return new RangeScan(new ArrayList<>(this.replicas.all()), start, copies, (node, from) -> {
+            final Rpc.Request request = new Rpc.Request(Rpc.RANGE, TimeToLive.EMPTY.getTtl(), "", from, end);
+            return this.replicas.isMe(node)
+                    ? CompletableFuture.supplyAsync(() -> apply(request), executor)
+                    : pool.get(node).call(request);
+        });
+    }
+
+    @NotNull
+    private Rpc.Reply applyBatch(@NotNull final List<Rpc.Request> requests) {
+        final List<Rpc.Reply> replies = new ArrayList<>(requests.size());
+        long bytes = 0;
+        for (final Rpc.Request part : requests) {
+            if (part.op == Rpc.GET) {
+                // Values past the limit are answered with digests to keep the reply within a frame
+                final Value value = lookup(part.key);
+                final boolean digest = bytes >= Batch.PART_BYTES;
+                if (!digest && value.getState() == Value.State.PRESENT) {
+                    bytes += value.size();
                 }
-            } catch (InterruptedException | ExecutionException e) {
-                ackCountElse.incrementAndGet();
+                replies.add(reply(value, digest));
+            } else {
+                replies.add(part.op == Rpc.BATCH ? ERROR : apply(part));
             }
+        }
+        return new Rpc.Reply(Rpc.DONE, 0L, "", Rpc.encodeReplies(replies));
+    }
+
+    @NotNull
+    private static Rpc.Reply reply(@NotNull final Value value, final boolean digest) {
+        switch (value.getState()) {
+            case PRESENT:
+                return digest ? new Rpc.Reply(Rpc.PRESENT, value.getTimeStamp(), "", null)
+                        : Rpc.Reply.stored(value.getTimeStamp(), value.getBuffer());
+            case REMOVED:
+                return new Rpc.Reply(Rpc.REMOVED, value.getTimeStamp(), "", null);
+            default:
+                return new Rpc.Reply(Rpc.ABSENT, 0L, "", null);
+        }
+    }
+
+    @NotNull
+    private CompletableFuture<Answer> read(@NotNull final String node,
+                                           @NotNull final Rpc.Request request,
+                                           @NotNull final Trace trace) {
+        latency.sent(node);
+        final long sent = System.nanoTime();
+        if (this.replicas.isMe(node)) {
+            return CompletableFuture.supplyAsync(() -> local(trace, () -> lookup(request.key)), executor)
+                    .thenApply(value -> new Answer(node, value))
+                    .whenComplete((answer, error) -> latency.record(node, System.nanoTime() - sent));
+        }
+        return pool.get(node).call(request).handle((reply, error) -> {
+            latency.record(node, System.nanoTime() - sent);
+            traceReplica(trace, node, sent, reply, error);
+            return error == null && reply.status != Rpc.ERROR ? new Answer(node, reply.toValue()) : null;
         });
-        return ackCount.get();
     }
 
-    private Response checkAckCountAndCreateResponse(
-            final Collection<CompletableFuture<Integer>> futures,
-            final ReplicaFactor rf,
-            final String response) {
-        final AtomicInteger ackCount = new AtomicInteger(0);
-        final AtomicInteger ackCountElse = new AtomicInteger(0);
-        futures.forEach(future -> {
-            if ((rf.getAck() - ackCount.get()) > (rf.getFrom() - ackCountElse.get() - ackCount.get())) {
-                return;
+    /**
+     * Picks the freshest answer, fetching its value if only a digest came.
+     */
+    @NotNull
+    private CompletableFuture<Value> resolve(@NotNull final List<Answer> answers,
+                                             @NotNull final Rpc.Request full,
+                                             @NotNull final Trace trace) {
+        final List<Value> values = new ArrayList<>(answers.size());
+        for (final Answer answer : answers) {
+            values.add(answer.value);
+        }
+        final Value freshest = Value.merge(values);
+        if (!freshest.isDigest()) {
+            return CompletableFuture.completedFuture(freshest);
+        }
+        final List<String> holders = new ArrayList<>(answers.size());
+        for (final Answer answer : answers) {
+            if (answer.value.getTimeStamp() == freshest.getTimeStamp()) {
+                holders.add(answer.node);
             }
-            try {
-                if (future.get() == Integer.parseInt(response.substring(0, 3))) {
-                    ackCount.incrementAndGet();
-                } else {
-                    ackCountElse.incrementAndGet();
-                }
-            } catch (InterruptedException | ExecutionException e) {
-                ackCountElse.incrementAndGet();
+        }
+        metrics.digestFetched();
+        return fetch(holders, 0, full, trace);
+    }
+
+    @NotNull
+    private CompletableFuture<Value> fetch(@NotNull final List<String> holders,
+                                           final int index,
+                                           @NotNull final Rpc.Request full,
+                                           @NotNull final Trace trace) {
+        if (index == holders.size()) {
+            return CompletableFuture.failedFuture(new Quorum.NotEnoughReplicasException(1, 0));
+        }
+        return read(holders.get(index), full, trace).thenCompose(answer -> answer == null || answer.value.isDigest()
+                ? fetch(holders, index + 1, full, trace)
+                : CompletableFuture.completedFuture(answer.value));
+    }
+
+    @NotNull
+    private static Response response(final boolean acked, @NotNull final String status) {
+        return new Response(acked ? status : Response.GATEWAY_TIMEOUT, Response.EMPTY);
+    }
+
+    @NotNull
+    private CompletableFuture<Boolean> write(
+            @NotNull final Rpc.Request request,
+            @NotNull final ReplicaFactor rf,
+            @NotNull final Trace trace,
+            @NotNull final Supplier<Void> operation) {
+        // Proxy
+        if (trace.isProxied()) {
+            return CompletableFuture.supplyAsync(() -> local(trace, operation), executor)
+                    .thenApply(ignored -> true);
+        }
+        final Quorum<Boolean> quorum = new Quorum<>(rf.getAck(), rf.getFrom());
+        for (final String node : this.replicas.replicasFor(ByteBuffer.wrap(request.key), rf.getFrom())) {
+            if (this.replicas.isMe(node)) {
+                CompletableFuture.supplyAsync(() -> local(trace, operation), executor)
+                        .whenComplete((ignored, error) -> collect(quorum, true, error));
+            } else {
+                final long sent = System.nanoTime();
+                writer(node).write(request).whenComplete((reply, error) -> {
+                    traceReplica(trace, node, sent, reply, error);
+                    collect(quorum, error == null && reply.status == Rpc.DONE ? Boolean.TRUE : null, error);
+                });
             }
-        });
-        if (ackCount.get() >= rf.getAck()) {
-            return new Response(response, Response.EMPTY);
         }
-        return new Response(Response.GATEWAY_TIMEOUT, Response.EMPTY);
+        // Nodes joining take writes made during handoff, their answers don't count
+        for (final String node : this.replicas.handoffFor(ByteBuffer.wrap(request.key), rf.getFrom())) {
+            handoff(node, request);
+        }
+        return quorum.result().handle((acks, error) -> error == null);
+    }
+
+    private void handoff(@NotNull final String node, @NotNull final Rpc.Request request) {
+        if (this.replicas.isMe(node)) {
+            CompletableFuture.runAsync(() -> apply(request), executor);
+        } else {
+            writer(node).write(request).whenComplete((reply, error) -> {
+                if (error != null) {
+                    metrics.replicaFailed(node, error);
+                }
+            });
+        }
+    }
+
+    @NotNull
+    private WriteBatcher writer(@NotNull final String node) {
+        return writers.computeIfAbsent(node, n -> new WriteBatcher(pool.get(n)));
+    }
+
+    /**
+     * Forgets node which left the cluster.
+     *
+     * @param node node
+     */
+    void disconnected(@NotNull final String node) {
+        writers.remove(node);
+    }
+
+    private static <T> void collect(@NotNull final Quorum<T> quorum,
+                                    final T answer,
+                                    final Throwable error) {
+        if (error == null && answer != null) {
+            quorum.success(answer);
+        } else {
+            quorum.failure();
+        }
     }
 
-    private HttpRequest.Builder getHttpRequest(final String node, final String id) {
-        return HttpRequest.newBuilder()
-                .uri(URI.create(node + MyHttpServer.URL + id))
-                .setHeader(MyHttpServer.PROXY_HEADER_DEFAULT, MyHttpServer.PROXY_HEADER_VALUE)
-                .timeout(Duration.ofSeconds(1));
+    /**
+     * Stores version written by {@link Rpc#PUT} or {@link Rpc#DELETE} with timestamp of its coordinator.
+     */
+    private Void store(@NotNull final Rpc.Request request) {
+        final long timestamp = request.timestamp == Rpc.UNSTAMPED
+                ? ru.mail.polis.prohladenn.Value.timestamp()
+                : request.timestamp;
+        final ByteBuffer data = request.op == Rpc.PUT ? ByteBuffer.wrap(request.value) : null;
+        dao.write(ByteBuffer.wrap(request.key), ru.mail.polis.prohladenn.Value.at(timestamp, data, request.ttl));
+        lookups.forget(ByteBuffer.wrap(request.key));
+        return null;
     }
 
-    private List<String> replicas(final ByteBuffer id, final int count) {
-        final String[] nodes = this.replicas.all().toArray(new String[0]);
-        if (count > nodes.length) {
-            throw new IllegalArgumentException("Wrong input data");
+    private static <T> T local(@NotNull final Trace trace,
+                               @NotNull final Supplier<T> operation) {
+        final long start = System.nanoTime();
+        trace.span(Trace.QUEUE, trace.getStart(), start);
+        try {
+            return operation.get();
+        } finally {
+            trace.span(Trace.LOCAL, start, System.nanoTime());
         }
-        int index = this.replicas.indexPrimaryFor(id);
-        final String[] result = new String[count];
-        for (int j = 0; j < count; j++) {
-            result[j] = nodes[index];
-            index = (index + 1) % nodes.length;
+    }
+
+    private void traceReplica(@NotNull final Trace trace,
+                              @NotNull final String node,
+                              final long sent,
+                              final Rpc.Reply reply,
+                              final Throwable error) {
+        if (error != null) {
+            metrics.replicaFailed(node, error);
         }
-        return List.of(result);
+        trace.remote(node, sent, System.nanoTime(), error == null ? reply.timings : null);
     }
 }
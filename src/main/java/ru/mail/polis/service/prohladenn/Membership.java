@@ -0,0 +1,196 @@
+package ru.mail.polis.service.prohladenn;
+
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import javax.annotation.concurrent.ThreadSafe;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+import java.util.function.Function;
+
+/**
+ * Versioned topology which nodes may join and leave at runtime.
+ * A change goes in two steps: once prepared, requests are still served by the current ring
+ * while writes also reach nodes of the next ring, and keys are handed off in background;
+ * once committed, the next ring becomes current.
+ */
+@ThreadSafe
+public final class Membership implements Topology<String> {
+    @NotNull
+    private final String me;
+    @NotNull
+    private final Function<Set<String>, Topology<String>> placement;
+    @NotNull
+    private volatile State state;
+
+    private static final class State {
+        final long version;
+        @NotNull
+        final Topology<String> current;
+        // Version and ring being handed off to
+        final long nextVersion;
+        @Nullable
+        final Topology<String> next;
+
+        State(final long version,
+              @NotNull final Topology<String> current,
+              final long nextVersion,
+              @Nullable final Topology<String> next) {
+            this.version = version;
+            this.current = current;
+            this.nextVersion = nextVersion;
+            this.next = next;
+        }
+    }
+
+    /**
+     * Creates membership of version zero.
+     *
+     * @param me        current url
+     * @param nodes     all urls
+     * @param placement builds ring of given nodes, the same on all nodes
+     */
+    public Membership(@NotNull final String me,
+                      @NotNull final Set<String> nodes,
+                      @NotNull final Function<Set<String>, Topology<String>> placement) {
+        this.me = me;
+        this.placement = placement;
+        this.state = new State(0L, placement.apply(nodes), 0L, null);
+    }
+
+    @NotNull
+    String me() {
+        return me;
+    }
+
+    long version() {
+        return state.version;
+    }
+
+    /**
+     * Returns ring being handed off to.
+     *
+     * @return next ring or null if membership is not changing
+     */
+    @Nullable
+    Topology<String> next() {
+        return state.next;
+    }
+
+    /**
+     * Starts change of membership.
+     *
+     * @param version version of the next ring, greater than the current one
+     * @param nodes   all urls of the next ring
+     * @return current and next rings
+     * @throws IllegalStateException if version is stale or another change is in progress
+     */
+    @NotNull
+    synchronized List<Topology<String>> prepare(final long version, @NotNull final Set<String> nodes) {
+        final State current = state;
+        if (version <= current.version) {
+            throw new IllegalStateException("Version " + version + " is not newer than " + current.version);
+        }
+        if (current.next != null && (current.nextVersion != version || !current.next.all().equals(nodes))) {
+            throw new IllegalStateException("Version " + current.nextVersion + " is being handed off");
+        }
+        final Topology<String> next = current.next == null ? placement.apply(nodes) : current.next;
+        state = new State(current.version, current.current, version, next);
+        return List.of(current.current, next);
+    }
+
+    /**
+     * Makes the next ring current.
+     *
+     * @param version version given to {@link #prepare}
+     * @return the previous ring or null if the version was committed already
+     * @throws IllegalStateException if version was not prepared
+     */
+    @Nullable
+    synchronized Topology<String> commit(final long version) {
+        final State current = state;
+        if (current.version == version) {
+            return null;
+        }
+        if (current.next == null || current.nextVersion != version) {
+            throw new IllegalStateException("Version " + version + " is not prepared");
+        }
+        state = new State(version, current.next, 0L, null);
+        return current.current;
+    }
+
+    /**
+     * Gives up change of membership, the current ring stays.
+     *
+     * @param version version given to {@link #prepare}
+     */
+    synchronized void abort(final long version) {
+        final State current = state;
+        if (current.next != null && current.nextVersion == version) {
+            state = new State(current.version, current.current, 0L, null);
+        }
+    }
+
+    /**
+     * Maps number of replicas of a key to the next ring,
+     * a key replicated on every node stays replicated on every node.
+     *
+     * @param count number of replicas in the current ring
+     * @param from  current ring
+     * @param to    next ring
+     * @return number of replicas in the next ring
+     */
+    static int copies(final int count,
+                      @NotNull final Topology<String> from,
+                      @NotNull final Topology<String> to) {
+        final int size = to.all().size();
+        return count == from.all().size() ? size : Math.min(count, size);
+    }
+
+    @Override
+    public boolean isMe(@NotNull final String node) {
+        return me.equals(node);
+    }
+
+    @NotNull
+    @Override
+    public String primaryFor(@NotNull final ByteBuffer key) {
+        return state.current.primaryFor(key);
+    }
+
+    @Override
+    public int indexPrimaryFor(@NotNull final ByteBuffer key) {
+        return state.current.indexPrimaryFor(key);
+    }
+
+    @NotNull
+    @Override
+    public List<String> replicasFor(@NotNull final ByteBuffer key, final int count) {
+        return state.current.replicasFor(key, count);
+    }
+
+    @NotNull
+    @Override
+    public Set<String> all() {
+        return state.current.all();
+    }
+
+    @NotNull
+    @Override
+    public List<String> handoffFor(@NotNull final ByteBuffer key, final int count) {
+        final State current = state;
+        if (current.next == null) {
+            return List.of();
+        }
+        final List<String> replicas = current.current.replicasFor(key, count);
+        final List<String> handoff = new ArrayList<>();
+        for (final String node : current.next.replicasFor(key, copies(count, current.current, current.next))) {
+            if (!replicas.contains(node)) {
+                handoff.add(node);
+            }
+        }
+        return handoff;
+    }
+}
@@ -0,0 +1,98 @@
+package ru.mail.polis.service.prohladenn;
+
+import org.jetbrains.annotations.NotNull;
+
+import javax.annotation.concurrent.Immutable;
+import java.nio.ByteBuffer;
+
+/**
+ * Hash tree over key hash ranges: leaf {@code i} covers keys whose {@link ConsistentHashTopology#hash}
+ * starts with bits of {@code i}. Leaf hash is a sum of hashes of key and timestamp of its cells,
+ * so it does not depend on iteration order and is adjusted as versions change, and inner nodes hash their children.
+ * Nodes are numbered as in a binary heap: root is 1, children of {@code i} are {@code 2i} and {@code 2i + 1}.
+ */
+@Immutable
+final class MerkleTree {
+    static final int DEPTH = 10;
+    static final int LEAVES = 1 << DEPTH;
+    private static final long M = 0xC6A4A7935BD1E995L;
+
+    private final long[] nodes;
+
+    private MerkleTree(@NotNull final long[] nodes) {
+        this.nodes = nodes;
+    }
+
+    /**
+     * Builds tree over leaf hashes.
+     *
+     * @param leaves hashes of leaves, see {@link #add}
+     * @return tree
+     */
+    @NotNull
+    static MerkleTree of(@NotNull final long[] leaves) {
+        final long[] nodes = new long[LEAVES * 2];
+        System.arraycopy(leaves, 0, nodes, LEAVES, LEAVES);
+        for (int i = LEAVES - 1; i > 0; i--) {
+            nodes[i] = mix(nodes[2 * i] * M + nodes[2 * i + 1]);
+        }
+        return new MerkleTree(nodes);
+    }
+
+    /**
+     * Adds version of key to hash of its leaf.
+     *
+     * @param leaves    hashes of leaves
+     * @param key       key
+     * @param timestamp timestamp of version
+     */
+    static void add(@NotNull final long[] leaves, @NotNull final ByteBuffer key, final long timestamp) {
+        final long hash = ConsistentHashTopology.hash(key);
+        leaves[leaf(hash)] += mix(hash ^ timestamp);
+    }
+
+    /**
+     * Removes version of key added by {@link #add} from hash of its leaf.
+     *
+     * @param leaves    hashes of leaves
+     * @param key       key
+     * @param timestamp timestamp of version
+     */
+    static void subtract(@NotNull final long[] leaves, @NotNull final ByteBuffer key, final long timestamp) {
+        final long hash = ConsistentHashTopology.hash(key);
+        leaves[leaf(hash)] -= mix(hash ^ timestamp);
+    }
+
+    /**
+     * Returns leaf covering key.
+     *
+     * @param key key
+     * @return leaf node number
+     */
+    static int leafOf(@NotNull final ByteBuffer key) {
+        return LEAVES + leaf(ConsistentHashTopology.hash(key));
+    }
+
+    private static int leaf(final long hash) {
+        return (int) (hash >>> (Long.SIZE - DEPTH));
+    }
+
+    static boolean isLeaf(final int node) {
+        return node >= LEAVES;
+    }
+
+    static boolean isValid(final int node) {
+        return node > 0 && node < LEAVES * 2;
+    }
+
+    long hash(final int node) {
+        return nodes[node];
+    }
+
+    private static long mix(final long value) {
+        long h = value * M;
+        h ^= h >>> 47;
+        h *= M;
+        return h ^ (h >>> 47);
+    }
+}
@@ -11,24 +11,42 @@ import one.nio.http.HttpServerConfig;
 import one.nio.net.Socket;
 import one.nio.server.AcceptorConfig;
 import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import ru.mail.polis.Record;
 import ru.mail.polis.dao.DAO;
+import ru.mail.polis.metrics.Histogram;
+import ru.mail.polis.metrics.MetricRegistry;
 import ru.mail.polis.prohladenn.LSMDao;
+import ru.mail.polis.prohladenn.MemoryManager;
 import ru.mail.polis.service.Service;
+import ru.mail.polis.service.prohladenn.factors.EntityTag;
 import ru.mail.polis.service.prohladenn.factors.ReplicaFactor;
 import ru.mail.polis.service.prohladenn.factors.TimeToLive;
 
 import java.io.IOException;
-import java.net.http.HttpClient;
+import java.net.InetAddress;
+import java.net.URI;
+import java.net.URLEncoder;
+import java.net.UnknownHostException;
 import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
 import java.nio.charset.Charset;
-import java.util.HashMap;
+import java.nio.file.Files;
+import java.nio.file.InvalidPathException;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.HashSet;
 import java.util.Iterator;
-import java.util.Map;
-import java.util.NoSuchElementException;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
 import java.util.concurrent.Executor;
+import java.util.function.Supplier;
 
 public class MyHttpServer extends HttpServer implements Service {
 
@@ -36,8 +54,17 @@ public class MyHttpServer extends HttpServer implements Service {
     public static final String PROXY_HEADER_DEFAULT = "X-OK-Proxy";
     public static final String PROXY_HEADER_VALUE = "True";
     public static final String TIMESTAMP_HEADER = "X-OK-Timestamp: ";
-    public static final String TIMESTAMP_HEADER_DEFAULT = "X-OK-Timestamp";
+    public static final String TRACE_HEADER = "X-OK-Trace: ";
+    public static final String TRACE_HEADER_DEFAULT = "X-OK-Trace";
+    public static final String TIMINGS_HEADER = "X-OK-Trace-Timings: ";
+    public static final String TIMINGS_HEADER_DEFAULT = "X-OK-Trace-Timings";
+    // Parameter from of the next table of an export, encoded to be passed as is
+    public static final String EXPORT_NEXT_HEADER = "X-OK-Export-Next: ";
+    private static final String IF_NONE_MATCH_HEADER = "If-None-Match:";
     public static final String URL = "/v0/entity?id=";
+    private static final long SLOW_REQUEST_MILLIS = 100;
+    private static final int DEFAULT_JOBS = 32;
+    private static final long RPC_TIMEOUT_MILLIS = 1000;
 
     private static final Logger logger = LoggerFactory.getLogger(MyHttpServer.class);
     @NotNull
@@ -47,13 +74,31 @@ public class MyHttpServer extends HttpServer implements Service {
     private final Executor executor;
 
     @NotNull
-    private final Topology<String> replicas;
+    private final Membership replicas;
 
     @NotNull
-    private final ReplicaFactor defaultRF;
+    private final HttpServerController controller;
 
     @NotNull
-    private final HttpServerController controller;
+    private final MemoryManager memory;
+
+    @NotNull
+    private final MetricRegistry registry;
+
+    @NotNull
+    private final ServiceMetrics metrics;
+
+    @NotNull
+    private final ConcurrentMap<String, RpcClient> pool = new ConcurrentHashMap<>();
+
+    @NotNull
+    private final AntiEntropy antiEntropy;
+
+    @NotNull
+    private final Rebalancer rebalancer;
+
+    @NotNull
+    private final SlowTraces traces = new SlowTraces(SLOW_REQUEST_MILLIS);
 
     /**
      * Create new instance of Service.
@@ -61,23 +106,41 @@ public class MyHttpServer extends HttpServer implements Service {
      * @param port     port of service
      * @param dao      dao
      * @param executor executor
+     * @param replicas cluster membership
      */
     public MyHttpServer(
             final int port,
             @NotNull final DAO dao,
             @NotNull final Executor executor,
-            @NotNull final Topology<String> replicas) throws IOException {
+            @NotNull final Membership replicas) throws IOException {
         super(from(port));
         this.dao = (LSMDao) dao;
+        this.memory = this.dao.getMemoryManager();
+        this.registry = this.dao.getMetrics();
+        this.metrics = new ServiceMetrics(registry, replicas.all(), executor);
         this.executor = executor;
-        this.defaultRF = new ReplicaFactor(replicas.all().size() / 2 + 1, replicas.all().size());
         this.replicas = replicas;
+        connect(replicas.all());
+        controller = new HttpServerController(this.dao, pool, this.replicas, this.executor, metrics);
+        this.antiEntropy = new AntiEntropy(this.dao, this.replicas, () -> defaultRF().getFrom(), registry);
+        this.rebalancer = new Rebalancer(replicas, new Handoff(this.dao, replicas.me()));
+    }
 
-        final Map<String, HttpClient> pool = new HashMap<>();
-        for (final String node : this.replicas.all()) {
-            pool.put(node, HttpClient.newBuilder().build());
+    private void connect(@NotNull final Set<String> nodes) {
+        for (final String node : nodes) {
+            if (!replicas.isMe(node)) {
+                pool.computeIfAbsent(node, n -> new RpcClient(n, RPC_TIMEOUT_MILLIS, executor));
+            }
         }
-        controller = new HttpServerController(this.dao, pool, this.replicas, this.executor);
+    }
+
+    /**
+     * Majority of the current ring out of all its nodes.
+     */
+    @NotNull
+    private ReplicaFactor defaultRF() {
+        final int size = replicas.all().size();
+        return new ReplicaFactor(size / 2 + 1, size);
     }
 
     private static HttpServerConfig from(final int port) {
@@ -106,7 +169,7 @@ public class MyHttpServer extends HttpServer implements Service {
 
     @Override
     public HttpSession createSession(@NotNull final Socket socket) {
-        return new StorageSession(socket, this);
+        return new StorageSession(socket, this, memory);
     }
 
     @Path("/v0/status")
@@ -114,6 +177,489 @@ public class MyHttpServer extends HttpServer implements Service {
         return new Response(Response.OK, Response.EMPTY);
     }
 
+    /**
+     * Exposes storage and service metrics.
+     *
+     * @return metrics in Prometheus text format
+     */
+    @Path("/v0/metrics")
+    public Response metrics() {
+        final Response response = new Response(Response.OK, registry.scrape().getBytes(Charsets.UTF_8));
+        response.addHeader("Content-Type: text/plain; version=0.0.4; charset=utf-8");
+        return response;
+    }
+
+    /**
+     * Returns recent traces of slow requests.
+     *
+     * @return traces, the newest first
+     */
+    @Path("/v0/traces")
+    public Response traces() {
+        return new Response(Response.OK, traces.dump().getBytes(Charsets.UTF_8));
+    }
+
+    /**
+     * Returns storage amplification and recent flush and compaction jobs.
+     *
+     * @param jobs maximum number of jobs to return
+     * @return storage report
+     */
+    @Path("/v0/admin/storage")
+    public Response storage(@Param("jobs") final String jobs) {
+        final int limit;
+        try {
+            limit = jobs == null ? DEFAULT_JOBS : Integer.parseInt(jobs);
+        } catch (NumberFormatException e) {
+            return new Response(Response.BAD_REQUEST, "Wrong jobs".getBytes(Charset.defaultCharset()));
+        }
+        return new Response(Response.OK, dao.getStats().report(limit).getBytes(Charsets.UTF_8));
+    }
+
+    /**
+     * Returns hashes of Merkle tree nodes over keys replicated by this node and peer.
+     *
+     * @param peer    peer asking
+     * @param request request with tree node numbers as ints in body
+     * @param session http session
+     */
+    @Path("/v0/admin/merkle")
+    public void merkle(
+            @Param("peer") final String peer,
+            @NotNull final Request request,
+            @NotNull final HttpSession session) {
+        if (request.getMethod() != Request.METHOD_POST) {
+            sendResponse(session, new Response(Response.METHOD_NOT_ALLOWED, Response.EMPTY));
+            return;
+        }
+        repairTask(session, peer, () -> new Response(Response.OK, antiEntropy.hashes(peer, request.getBody())));
+    }
+
+    /**
+     * Exchanges cells of differing Merkle tree leaves.
+     * POST returns cells of leaves given in body, PUT applies cells given in body.
+     *
+     * @param peer    peer asking
+     * @param request request
+     * @param session http session
+     */
+    @Path("/v0/admin/merkle/cells")
+    public void merkleCells(
+            @Param("peer") final String peer,
+            @NotNull final Request request,
+            @NotNull final HttpSession session) {
+        switch (request.getMethod()) {
+            case Request.METHOD_POST:
+                repairTask(session, peer, () -> new Response(Response.OK, antiEntropy.cells(peer, request.getBody())));
+                break;
+            case Request.METHOD_PUT:
+                repairTask(session, peer, () -> {
+                    antiEntropy.apply(request.getBody());
+                    return new Response(Response.CREATED, Response.EMPTY);
+                });
+                break;
+            default:
+                sendResponse(session, new Response(Response.METHOD_NOT_ALLOWED, Response.EMPTY));
+                break;
+        }
+    }
+
+    /**
+     * Runs anti-entropy round with peer right away.
+     *
+     * @param peer    peer to repair with
+     * @param request request
+     * @param session http session
+     */
+    @Path("/v0/admin/repair")
+    public void repair(
+            @Param("peer") final String peer,
+            @NotNull final Request request,
+            @NotNull final HttpSession session) {
+        if (request.getMethod() != Request.METHOD_POST) {
+            sendResponse(session, new Response(Response.METHOD_NOT_ALLOWED, Response.EMPTY));
+            return;
+        }
+        if (peer == null || !antiEntropy.isPeer(peer)) {
+            sendResponse(session, new Response(Response.BAD_REQUEST, "Wrong peer".getBytes(Charset.defaultCharset())));
+            return;
+        }
+        antiEntropy.repairNow(peer).whenComplete((summary, error) -> sendResponse(session, error == null
+                ? new Response(Response.OK, summary.getBytes(Charsets.UTF_8))
+                : new Response(Response.GATEWAY_TIMEOUT, String.valueOf(error.getMessage()).getBytes(Charsets.UTF_8))));
+    }
+
+    /**
+     * Shows or changes membership of the cluster.
+     * GET returns version and nodes of the current ring, PUT changes nodes to ones given in body
+     * one per line with this node coordinating the change, POST runs {@code step} of a change
+     * coordinated by another node, see {@link Rebalancer}.
+     * Changes are accepted only from hosts of nodes of the current or the next ring.
+     *
+     * @param step    prepare, commit or abort
+     * @param version version of the next ring
+     * @param request request
+     * @param session http session
+     */
+    @Path(Rebalancer.PATH)
+    public void topology(
+            @Param("step") final String step,
+            @Param("version") final String version,
+            @NotNull final Request request,
+            @NotNull final HttpSession session) {
+        if (request.getMethod() != Request.METHOD_GET && !fromMember(session)) {
+            sendResponse(session, new Response(Response.FORBIDDEN, "Not a member".getBytes(Charsets.UTF_8)));
+            return;
+        }
+        switch (request.getMethod()) {
+            case Request.METHOD_GET:
+                sendResponse(session, new Response(Response.OK, ("version=" + replicas.version() + '\n'
+                        + Rebalancer.format(replicas.all())).getBytes(Charsets.UTF_8)));
+                break;
+            case Request.METHOD_PUT:
+                final Set<String> nodes;
+                try {
+                    nodes = Rebalancer.parse(body(request));
+                } catch (IllegalArgumentException e) {
+                    sendResponse(session, new Response(Response.BAD_REQUEST, e.getMessage().getBytes(Charsets.UTF_8)));
+                    return;
+                }
+                topologyTask(session, () -> rebalancer.change(nodes));
+                break;
+            case Request.METHOD_POST:
+                topologyStep(step, version, request, session);
+                break;
+            default:
+                sendResponse(session, new Response(Response.METHOD_NOT_ALLOWED, Response.EMPTY));
+                break;
+        }
+    }
+
+    private void topologyStep(
+            @Nullable final String step,
+            @Nullable final String version,
+            @NotNull final Request request,
+            @NotNull final HttpSession session) {
+        final long next;
+        try {
+            next = Long.parseLong(String.valueOf(version));
+        } catch (NumberFormatException e) {
+            sendResponse(session, new Response(Response.BAD_REQUEST, "Wrong version".getBytes(Charsets.UTF_8)));
+            return;
+        }
+        switch (String.valueOf(step)) {
+            case "prepare":
+                final Set<String> nodes;
+                try {
+                    nodes = Rebalancer.parse(body(request));
+                } catch (IllegalArgumentException e) {
+                    sendResponse(session, new Response(Response.BAD_REQUEST, e.getMessage().getBytes(Charsets.UTF_8)));
+                    return;
+                }
+                // Writes to new nodes start right away
+                connect(nodes);
+                topologyTask(session, () -> rebalancer.prepare(next, nodes, defaultRF().getFrom()));
+                break;
+            case "commit":
+                topologyTask(session, () -> {
+                    final Topology<String> previous = replicas.commit(next);
+                    if (previous != null) {
+                        disconnect(previous.all());
+                    }
+                    return CompletableFuture.completedFuture("");
+                });
+                break;
+            case "abort":
+                final Topology<String> abandoned = replicas.next();
+                replicas.abort(next);
+                if (abandoned != null) {
+                    disconnect(abandoned.all());
+                }
+                sendResponse(session, new Response(Response.OK, Response.EMPTY));
+                break;
+            default:
+                sendResponse(session, new Response(Response.BAD_REQUEST, "Wrong step".getBytes(Charsets.UTF_8)));
+                break;
+        }
+    }
+
+    /**
+     * Tells whether request came from the host of a node of the current or the next ring.
+     */
+    private boolean fromMember(@NotNull final HttpSession session) {
+        final String remote = session.getRemoteHost();
+        if (remote == null) {
+            return false;
+        }
+        final Set<String> members = new HashSet<>(replicas.all());
+        final Topology<String> next = replicas.next();
+        if (next != null) {
+            members.addAll(next.all());
+        }
+        for (final String member : members) {
+            try {
+                for (final InetAddress address : InetAddress.getAllByName(URI.create(member).getHost())) {
+                    if (remote.equals(address.getHostAddress())) {
+                        return true;
+                    }
+                }
+            } catch (UnknownHostException e) {
+                logger.debug("Can't resolve {}", member, e);
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Closes clients of nodes which are members of neither the current nor the next ring.
+     */
+    private void disconnect(@NotNull final Set<String> nodes) {
+        final Topology<String> next = replicas.next();
+        for (final String node : nodes) {
+            if (!replicas.all().contains(node) && (next == null || !next.all().contains(node))) {
+                final RpcClient client = pool.remove(node);
+                if (client != null) {
+                    controller.disconnected(node);
+                    client.close();
+                }
+            }
+        }
+    }
+
+    private void topologyTask(
+            @NotNull final HttpSession session,
+            @NotNull final Supplier<CompletableFuture<String>> task) {
+        final CompletableFuture<String> result;
+        try {
+            result = task.get();
+        } catch (IllegalStateException e) {
+            sendResponse(session, new Response(Response.CONFLICT, e.getMessage().getBytes(Charsets.UTF_8)));
+            return;
+        }
+        result.whenComplete((summary, error) -> {
+            if (error == null) {
+                sendResponse(session, new Response(Response.OK, summary.getBytes(Charsets.UTF_8)));
+                return;
+            }
+            final Throwable cause = error instanceof CompletionException && error.getCause() != null
+                    ? error.getCause() : error;
+            logger.error("Membership change failed", cause);
+            sendResponse(session, new Response(cause instanceof IllegalStateException
+                    ? Response.CONFLICT : Response.INTERNAL_ERROR,
+                    String.valueOf(cause.getMessage()).getBytes(Charsets.UTF_8)));
+        });
+    }
+
+    @NotNull
+    private static String body(@NotNull final Request request) {
+        return request.getBody() == null ? "" : new String(request.getBody(), Charsets.UTF_8);
+    }
+
+    /**
+     * Adds table handed off by another node, see {@link Handoff}, or bulk loaded by a client,
+     * see {@link ru.mail.polis.prohladenn.TableTool}.
+     * The table is given either as body or as {@code file} on disk of this node which is linked without copying.
+     * The file must be in the {@link LSMDao#STAGING} folder of the storage.
+     *
+     * @param file    path of table file relative to the staging folder
+     * @param request request with table file as body unless file is given
+     * @param session http session
+     */
+    @Path(Handoff.INGEST_PATH)
+    public void ingest(
+            @Param("file") final String file,
+            @NotNull final Request request,
+            @NotNull final HttpSession session) {
+        if (request.getMethod() != Request.METHOD_PUT) {
+            sendResponse(session, new Response(Response.METHOD_NOT_ALLOWED, Response.EMPTY));
+            return;
+        }
+        final byte[] body = request.getBody();
+        if (file == null ? body == null : body != null && body.length > 0) {
+            sendResponse(session, new Response(Response.BAD_REQUEST, Response.EMPTY));
+            return;
+        }
+        final java.nio.file.Path table = file == null ? null : staged(file);
+        if (file != null && table == null) {
+            sendResponse(session, new Response(Response.BAD_REQUEST, "Wrong file".getBytes(Charsets.UTF_8)));
+            return;
+        }
+        CompletableFuture.runAsync(() -> {
+            try {
+                if (table == null) {
+                    dao.ingest(ByteBuffer.wrap(body));
+                } else {
+                    dao.ingest(table);
+                }
+            } catch (IOException e) {
+                throw new CompletionException(e);
+            }
+        }, executor).whenComplete((ignored, error) -> {
+            if (error == null) {
+                sendResponse(session, new Response(Response.CREATED, Response.EMPTY));
+            } else {
+                logger.error("Can't ingest table", error);
+                sendResponse(session, new Response(Response.BAD_REQUEST,
+                        String.valueOf(error.getMessage()).getBytes(Charsets.UTF_8)));
+            }
+        });
+    }
+
+    /**
+     * Returns the latest versions of keys of this node including tombstones as a table file,
+     * which {@link #ingest} of another node accepts as body. A table holds keys as long as it fits a request body,
+     * {@link #EXPORT_NEXT_HEADER} gives {@code from} of the next one unless the table holds all keys to the end.
+     * The body is sent from the mapped file without copying.
+     *
+     * @param from    the first key, the very first if absent
+     * @param request request
+     * @param session http session
+     */
+    @Path("/v0/admin/export")
+    public void export(
+            @Param("from") final String from,
+            @NotNull final Request request,
+            @NotNull final HttpSession session) {
+        if (request.getMethod() != Request.METHOD_GET) {
+            sendResponse(session, new Response(Response.METHOD_NOT_ALLOWED, Response.EMPTY));
+            return;
+        }
+        CompletableFuture.supplyAsync(() -> {
+            try {
+                return export(from == null ? LSMDao.EMPTY : ByteBuffer.wrap(from.getBytes(Charsets.UTF_8)));
+            } catch (IOException e) {
+                throw new CompletionException(e);
+            }
+        }, executor).whenComplete((response, error) -> {
+            if (error == null) {
+                sendResponse(session, response);
+            } else {
+                logger.error("Can't export tables", error);
+                sendResponse(session, new Response(Response.INTERNAL_ERROR,
+                        String.valueOf(error.getMessage()).getBytes(Charsets.UTF_8)));
+            }
+        });
+    }
+
+    /**
+     * Makes checkpoint of storage of this node in {@code dir}, see {@link LSMDao#checkpoint}.
+     * A node started with a copy of the checkpoint as its folder has all data written before.
+     *
+     * @param dir     absent folder relative to the {@link LSMDao#STAGING} folder of the storage
+     * @param request request
+     * @param session http session
+     */
+    @Path("/v0/admin/checkpoint")
+    public void checkpoint(
+            @Param("dir") final String dir,
+            @NotNull final Request request,
+            @NotNull final HttpSession session) {
+        if (request.getMethod() != Request.METHOD_POST) {
+            sendResponse(session, new Response(Response.METHOD_NOT_ALLOWED, Response.EMPTY));
+            return;
+        }
+        if (dir == null || dir.isEmpty()) {
+            sendResponse(session, new Response(Response.BAD_REQUEST, "No dir".getBytes(Charsets.UTF_8)));
+            return;
+        }
+        final java.nio.file.Path to = staged(dir);
+        if (to == null) {
+            sendResponse(session, new Response(Response.BAD_REQUEST, "Wrong dir".getBytes(Charsets.UTF_8)));
+            return;
+        }
+        CompletableFuture.supplyAsync(() -> {
+            try {
+                return dao.checkpoint(to.toFile());
+            } catch (IOException e) {
+                throw new CompletionException(e);
+            }
+        }, executor).whenComplete((files, error) -> {
+            if (error == null) {
+                sendResponse(session, new Response(Response.CREATED,
+                        ("files=" + files + '\n').getBytes(Charsets.UTF_8)));
+            } else {
+                logger.error("Can't make checkpoint", error);
+                sendResponse(session, new Response(Response.INTERNAL_ERROR,
+                        String.valueOf(error.getMessage()).getBytes(Charsets.UTF_8)));
+            }
+        });
+    }
+
+    /**
+     * Resolves path given by a client against the staging folder of the storage,
+     * so that requests can't read, link or write files elsewhere.
+     *
+     * @return absolute path or null if the path is malformed or leads out of the folder
+     */
+    @Nullable
+    private java.nio.file.Path staged(@NotNull final String name) {
+        try {
+            final java.nio.file.Path given = Paths.get(name);
+            for (final java.nio.file.Path element : given) {
+                if ("..".equals(element.toString())) {
+                    return null;
+                }
+            }
+            final java.nio.file.Path root = dao.staging().toPath().toRealPath();
+            final java.nio.file.Path resolved = root.resolve(given).normalize();
+            // Links inside the folder must not lead out of it either
+            java.nio.file.Path existing = resolved;
+            while (existing != null && !Files.exists(existing)) {
+                existing = existing.getParent();
+            }
+            if (resolved.equals(root) || existing == null || !existing.toRealPath().startsWith(root)) {
+                return null;
+            }
+            return resolved;
+        } catch (IOException | InvalidPathException e) {
+            logger.debug("Wrong path {}", name, e);
+            return null;
+        }
+    }
+
+    @NotNull
+    private Response export(@NotNull final ByteBuffer from) throws IOException {
+        final java.nio.file.Path file = Files.createTempFile("export", LSMDao.SUFFIX);
+        try {
+            Files.delete(file);
+            final ByteBuffer next = dao.export(from, file.toFile(), StorageSession.MAX_BODY);
+            try (FileChannel fc = FileChannel.open(file, StandardOpenOption.READ)) {
+                // Mapping outlives the file
+                final Response response = new StreamedResponse(Response.OK,
+                        fc.map(FileChannel.MapMode.READ_ONLY, 0, fc.size()));
+                if (next != null) {
+                    response.addHeader(EXPORT_NEXT_HEADER
+                            + URLEncoder.encode(Charsets.UTF_8.decode(next.duplicate()).toString(), Charsets.UTF_8));
+                }
+                return response;
+            }
+        } finally {
+            Files.deleteIfExists(file);
+        }
+    }
+
+    private void repairTask(
+            @NotNull final HttpSession session,
+            final String peer,
+            @NotNull final Supplier<Response> task) {
+        if (peer == null || !antiEntropy.isPeer(peer)) {
+            sendResponse(session, new Response(Response.BAD_REQUEST, "Wrong peer".getBytes(Charset.defaultCharset())));
+            return;
+        }
+        // Scans storage, so neither on selector thread nor among foreground requests
+        CompletableFuture.supplyAsync(task, antiEntropy.executor()).whenComplete((response, error) -> {
+            if (error == null) {
+                sendResponse(session, response);
+            } else if (error.getCause() instanceof IllegalArgumentException) {
+                sendResponse(session, new Response(Response.BAD_REQUEST,
+                        error.getCause().getMessage().getBytes(Charsets.UTF_8)));
+            } else {
+                logger.error("Repair request failed", error);
+                sendResponse(session, new Response(Response.INTERNAL_ERROR, Response.EMPTY));
+            }
+        });
+    }
+
     /**
      * Main worker method.
      *
@@ -129,31 +675,39 @@ public class MyHttpServer extends HttpServer implements Service {
             @Param("replicas") final String replicas,
             @NotNull final Request request,
             @NotNull final HttpSession session) {
+        final long start = System.nanoTime();
         if (id == null || id.isEmpty()) {
             sendResponse(session, new Response(Response.BAD_REQUEST, "No ID".getBytes(Charset.defaultCharset())));
             return;
         }
-        final ReplicaFactor rf;
-        try {
-            rf = replicas == null ? defaultRF : ReplicaFactor.of(replicas);
-            if (rf.getAck() < 1 || rf.getFrom() < rf.getAck() || rf.getFrom() > this.replicas.all().size()) {
-                throw new IllegalArgumentException("From is too big");
-            }
-        } catch (IllegalArgumentException e) {
+        final ReplicaFactor rf = replicaFactor(replicas);
+        if (rf == null) {
             sendResponse(session, new Response(Response.BAD_REQUEST, "Wrong BF".getBytes(Charset.defaultCharset())));
             return;
         }
         final TimeToLive ttlf = ttl == null ? TimeToLive.EMPTY : TimeToLive.of(ttl);
         final boolean proxied = request.getHeader(PROXY_HEADER) != null;
+        final Histogram latency = metrics.request(request.getMethod(), rf, proxied);
+        final Trace trace = new Trace(request.getHeader(TRACE_HEADER),
+                ServiceMetrics.methodName(request.getMethod()), id, proxied, start);
         switch (request.getMethod()) {
             case Request.METHOD_GET:
-                executeAsync(session, () -> controller.get(id, rf, proxied));
+                final String match = request.getHeader(IF_NONE_MATCH_HEADER);
+                respond(session, latency, trace,
+                        controller.get(id, rf, match == null ? null : EntityTag.of(match), trace));
                 break;
             case Request.METHOD_PUT:
-                executeAsync(session, () -> controller.upsert(id, request.getBody(), rf, ttlf, proxied));
+                final byte[] body = request.getBody();
+                if (body == null) {
+                    sendResponse(session, new Response(Response.BAD_REQUEST,
+                            "No body".getBytes(Charset.defaultCharset())));
+                    break;
+                }
+                // Body is reserved by session until the response is sent
+                respond(session, latency, trace, controller.upsert(id, body, rf, ttlf, trace));
                 break;
             case Request.METHOD_DELETE:
-                executeAsync(session, () -> controller.delete(id, rf, proxied));
+                respond(session, latency, trace, controller.delete(id, rf, trace));
                 break;
             default:
                 sendResponse(session, new Response(Response.METHOD_NOT_ALLOWED,
@@ -163,7 +717,88 @@ public class MyHttpServer extends HttpServer implements Service {
     }
 
     /**
-     * Worker method includes limits.
+     * Applies the same operation to many keys with one request per replica node.
+     * POST reads keys, PUT upserts values and DELETE removes keys, see {@link Batch} for body format.
+     *
+     * @param ttl      time to live of values
+     * @param replicas count of replicas of every key
+     * @param request  http request
+     * @param session  http session
+     */
+    @Path("/v0/batch")
+    public void batch(
+            @Param("ttl") final String ttl,
+            @Param("replicas") final String replicas,
+            @NotNull final Request request,
+            @NotNull final HttpSession session) {
+        final long start = System.nanoTime();
+        final ReplicaFactor rf = replicaFactor(replicas);
+        final byte op = batchOp(request.getMethod());
+        if (op == Rpc.ERROR) {
+            sendResponse(session, new Response(Response.METHOD_NOT_ALLOWED, Response.EMPTY));
+            return;
+        }
+        final byte[] body = request.getBody();
+        if (rf == null || body == null) {
+            sendResponse(session, new Response(Response.BAD_REQUEST, Response.EMPTY));
+            return;
+        }
+        final int method = op == Rpc.GET ? Request.METHOD_GET : request.getMethod();
+        final Trace trace = new Trace(request.getHeader(TRACE_HEADER), "BATCH " + ServiceMetrics.methodName(method),
+                "", false, start);
+        final List<Rpc.Request> requests;
+        try {
+            requests = Batch.parse(op, ttl == null ? TimeToLive.EMPTY.getTtl() : TimeToLive.of(ttl).getTtl(),
+                    trace.getId(), body);
+        } catch (IllegalArgumentException e) {
+            sendResponse(session, new Response(Response.BAD_REQUEST, e.getMessage().getBytes(Charsets.UTF_8)));
+            return;
+        }
+        final List<CompletableFuture<Batch.Result>> results = controller.batch(requests, rf, trace);
+        final Histogram latency = metrics.batch(method);
+        CompletableFuture.allOf(results.toArray(new CompletableFuture<?>[0])).whenComplete((ignored, error) -> {
+            final long end = System.nanoTime();
+            if (latency != null) {
+                latency.record(end - trace.getStart());
+            }
+            traces.complete(trace, end);
+        });
+        try {
+            ((StorageSession) session).stream(new Batch.Stream(requests, results, memory),
+                    ChunkEncoder.of(request.getHeader("Accept-Encoding:")));
+        } catch (IOException e) {
+            sendResponse(session, new Response(Response.INTERNAL_ERROR, Response.EMPTY));
+        }
+    }
+
+    private static byte batchOp(final int method) {
+        switch (method) {
+            case Request.METHOD_POST:
+                return Rpc.GET;
+            case Request.METHOD_PUT:
+                return Rpc.PUT;
+            case Request.METHOD_DELETE:
+                return Rpc.DELETE;
+            default:
+                return Rpc.ERROR;
+        }
+    }
+
+    @Nullable
+    private ReplicaFactor replicaFactor(@Nullable final String replicas) {
+        try {
+            final ReplicaFactor rf = replicas == null ? defaultRF() : ReplicaFactor.of(replicas);
+            if (rf.getAck() < 1 || rf.getFrom() < rf.getAck() || rf.getFrom() > this.replicas.all().size()) {
+                return null;
+            }
+            return rf;
+        } catch (IllegalArgumentException e) {
+            return null;
+        }
+    }
+
+    /**
+     * Streams records of range merged from all nodes, or local ones for a proxied request.
      *
      * @param request http request
      * @param session http session
@@ -186,16 +821,80 @@ public class MyHttpServer extends HttpServer implements Service {
             sendResponse(session, new Response(Response.METHOD_NOT_ALLOWED, Response.EMPTY));
             return;
         }
+        final ChunkEncoder encoder = ChunkEncoder.of(request.getHeader("Accept-Encoding:"));
         try {
+            if (replicas.all().size() > 1 && request.getHeader(PROXY_HEADER) == null) {
+                ((StorageSession) session).stream(controller.range(start.getBytes(Charsets.UTF_8),
+                        end == null ? null : end.getBytes(Charsets.UTF_8), defaultRF().getFrom()), encoder);
+                return;
+            }
             final Iterator<Record> records = dao.range(ByteBuffer.wrap(start.getBytes(Charsets.UTF_8)),
                     end == null ? null : ByteBuffer.wrap(end.getBytes(Charsets.UTF_8)));
-            ((StorageSession) session).stream(records);
+            ((StorageSession) session).stream(records, encoder);
         } catch (IOException e) {
             sendResponse(session, new Response(Response.INTERNAL_ERROR,
                     e.getMessage().getBytes(Charset.defaultCharset())));
         }
     }
 
+    /**
+     * Serves request of another node sent over inter-node protocol.
+     *
+     * @param session session the request came from
+     * @param id      request id to answer with
+     * @param request request
+     */
+    void serve(@NotNull final StorageSession session,
+               final long id,
+               @NotNull final Rpc.Request request) {
+        final Trace trace = new Trace(request.trace, ServiceMetrics.methodName(method(request.op)),
+                new String(request.key, Charsets.UTF_8), true, System.nanoTime());
+        final Histogram latency = metrics.request(method(request.op), defaultRF(), true);
+        controller.serve(request, trace).whenComplete((reply, error) -> {
+            if (error == null) {
+                session.reply(id, reply);
+            } else {
+                logger.error("Unable to process request {}", trace.getId(), error);
+                session.reply(id, new Rpc.Reply(Rpc.ERROR, 0L, trace.timings(), null));
+            }
+            final long end = System.nanoTime();
+            if (latency != null) {
+                latency.record(end - trace.getStart());
+            }
+            traces.complete(trace, end);
+        });
+    }
+
+    private static int method(final byte op) {
+        switch (op) {
+            case Rpc.GET:
+            case Rpc.DIGEST:
+                return Request.METHOD_GET;
+            case Rpc.PUT:
+                return Request.METHOD_PUT;
+            case Rpc.DELETE:
+                return Request.METHOD_DELETE;
+            default:
+                return 0;
+        }
+    }
+
+    @Override
+    public synchronized void start() {
+        super.start();
+        antiEntropy.start();
+    }
+
+    @Override
+    public synchronized void stop() {
+        antiEntropy.stop();
+        rebalancer.stop();
+        super.stop();
+        for (final RpcClient client : pool.values()) {
+            client.close();
+        }
+    }
+
     @Override
     public void handleDefault(
             @NotNull final Request request,
@@ -203,31 +902,26 @@ public class MyHttpServer extends HttpServer implements Service {
         sendResponse(session, new Response(Response.BAD_REQUEST, Response.EMPTY));
     }
 
-    private void executeAsync(
+    private void respond(
             @NotNull final HttpSession session,
-            @NotNull final Action action) {
-        executor.execute(() -> {
-            try {
-                session.sendResponse(action.act());
-            } catch (IOException e) {
-                try {
-                    session.sendError(Response.INTERNAL_ERROR, "Error while send response");
-                } catch (IOException ex) {
-                    logger.error("Unable to create response", ex);
-                }
-            } catch (NoSuchElementException e) {
-                try {
-                    session.sendError(Response.NOT_FOUND, null);
-                } catch (IOException ex) {
-                    logger.error("Unable to send error", ex);
+            @Nullable final Histogram latency,
+            @NotNull final Trace trace,
+            @NotNull final CompletableFuture<Response> response) {
+        response.whenComplete((result, error) -> {
+            if (error == null) {
+                if (trace.isProxied()) {
+                    result.addHeader(TIMINGS_HEADER + trace.timings());
                 }
+                sendResponse(session, result);
+            } else {
+                logger.error("Unable to process request {}", trace.getId(), error);
+                sendResponse(session, new Response(Response.INTERNAL_ERROR, Response.EMPTY));
             }
+            final long end = System.nanoTime();
+            if (latency != null) {
+                latency.record(end - trace.getStart());
+            }
+            traces.complete(trace, end);
         });
     }
-
-    @FunctionalInterface
-    private interface Action {
-        Response act();
-    }
-
 }
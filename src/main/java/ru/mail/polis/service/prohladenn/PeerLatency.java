@@ -0,0 +1,159 @@
+package ru.mail.polis.service.prohladenn;
+
+import org.jetbrains.annotations.NotNull;
+
+import javax.annotation.concurrent.ThreadSafe;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.function.Predicate;
+
+/**
+ * Recent latency of every node as seen by this coordinator.
+ * Keeps a ring of the last {@value #SAMPLES} samples per node and refreshes
+ * the hedge percentile every {@value #REFRESH} samples,
+ * so lookups on the request path are plain volatile reads.
+ * Replicas are ranked C3 style by moving average latency penalized by requests in flight,
+ * so a struggling node is asked only when others fail or are slow.
+ */
+@ThreadSafe
+final class PeerLatency {
+    private static final int SAMPLES = 128;
+    private static final int REFRESH = 16;
+    private static final double HEDGE_PERCENTILE = 95.0;
+    private static final long MIN_HEDGE_NANOS = TimeUnit.MILLISECONDS.toNanos(1);
+    private static final long DEFAULT_HEDGE_NANOS = TimeUnit.MILLISECONDS.toNanos(20);
+    // Weight of the latest sample in the moving average
+    private static final double ALPHA = 0.1;
+    private static final double BADNESS = 2.0;
+
+    private final ConcurrentMap<String, Peer> peers = new ConcurrentHashMap<>();
+
+    private static final class Peer {
+        private final AtomicLongArray samples = new AtomicLongArray(SAMPLES);
+        private final AtomicLong count = new AtomicLong();
+        private volatile long hedge = DEFAULT_HEDGE_NANOS;
+        private final AtomicLong average = new AtomicLong(Double.doubleToLongBits(0.0));
+        private final AtomicInteger inFlight = new AtomicInteger();
+
+        void record(final long nanos) {
+            inFlight.decrementAndGet();
+            average.updateAndGet(bits -> {
+                final double previous = Double.longBitsToDouble(bits);
+                return Double.doubleToLongBits(previous == 0.0 ? nanos : previous + ALPHA * (nanos - previous));
+            });
+            final long n = count.getAndIncrement();
+            samples.set((int) (n % SAMPLES), nanos);
+            if ((n + 1) % REFRESH == 0) {
+                refresh((int) Math.min(n + 1, SAMPLES));
+            }
+        }
+
+        private void refresh(final int size) {
+            final long[] sorted = new long[size];
+            for (int i = 0; i < size; i++) {
+                sorted[i] = samples.get(i);
+            }
+            Arrays.sort(sorted);
+            hedge = Math.max(MIN_HEDGE_NANOS, sorted[(int) Math.ceil(HEDGE_PERCENTILE / 100 * size) - 1]);
+        }
+
+        /**
+         * Expected wait, cubic in requests in flight as a queue at the node grows.
+         */
+        double score() {
+            final double queue = 1 + Math.max(0, inFlight.get());
+            return Double.longBitsToDouble(average.get()) * queue * queue * queue;
+        }
+    }
+
+    PeerLatency(@NotNull final Set<String> nodes) {
+        for (final String node : nodes) {
+            peers.put(node, new Peer());
+        }
+    }
+
+    /**
+     * Marks request to node sent, {@link #record} must follow once it completes.
+     *
+     * @param node node
+     */
+    void sent(@NotNull final String node) {
+        peers.computeIfAbsent(node, n -> new Peer()).inFlight.incrementAndGet();
+    }
+
+    /**
+     * Records duration of a request to node, failed requests included.
+     *
+     * @param node  node
+     * @param nanos duration in nanoseconds
+     */
+    void record(@NotNull final String node, final long nanos) {
+        peers.computeIfAbsent(node, n -> new Peer()).record(nanos);
+    }
+
+    /**
+     * Orders replicas to ask, this node first if it's a replica as it needs no network hop.
+     * Other replicas keep their ring order, so that the same key is read from the same replicas,
+     * unless {@link Peer#score()} of a replica is worse than the best by more than {@value #BADNESS} times,
+     * such replicas go last, the worst at the end.
+     *
+     * @param nodes replicas in ring order
+     * @param local tells this node
+     * @return replicas in order of preference
+     */
+    @NotNull
+    List<String> rank(@NotNull final List<String> nodes, @NotNull final Predicate<String> local) {
+        final List<String> ranked = new ArrayList<>(nodes.size());
+        final List<String> remote = new ArrayList<>(nodes.size());
+        // Scores change meanwhile, sorting needs them fixed
+        final Map<String, Double> scores = new HashMap<>();
+        double best = Double.MAX_VALUE;
+        for (final String node : nodes) {
+            if (local.test(node)) {
+                ranked.add(node);
+            } else {
+                final double score = score(node);
+                remote.add(node);
+                scores.put(node, score);
+                if (score > 0.0) {
+                    best = Math.min(best, score);
+                }
+            }
+        }
+        final double limit = best * BADNESS;
+        // Stable, replicas within the limit keep their order
+        remote.sort(Comparator.comparingDouble(node -> scores.get(node) > limit ? scores.get(node) : 0.0));
+        ranked.addAll(remote);
+        return ranked;
+    }
+
+    /**
+     * Returns score of node, zero until enough samples are collected so that it keeps its place.
+     */
+    private double score(@NotNull final String node) {
+        final Peer peer = peers.get(node);
+        return peer == null || peer.count.get() < REFRESH ? 0.0 : peer.score();
+    }
+
+    /**
+     * Returns how long to wait for node before asking another replica.
+     *
+     * @param node node
+     * @return delay in nanoseconds
+     */
+    long hedgeDelay(@NotNull final String node) {
+        final Peer peer = peers.get(node);
+        return peer == null ? DEFAULT_HEDGE_NANOS : peer.hedge;
+    }
+}
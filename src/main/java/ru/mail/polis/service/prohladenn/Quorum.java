@@ -0,0 +1,74 @@
+package ru.mail.polis.service.prohladenn;
+
+import org.jetbrains.annotations.NotNull;
+
+import javax.annotation.concurrent.ThreadSafe;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Collects replica answers and completes as soon as {@code ack} of them succeed
+ * or success becomes impossible, whatever order replicas answer in.
+ *
+ * @param <T> type of replica answer
+ */
+@ThreadSafe
+final class Quorum<T> {
+    private final int ack;
+    private final int maxFailures;
+    private final AtomicInteger successes = new AtomicInteger();
+    private final AtomicInteger failures = new AtomicInteger();
+    private final Collection<T> answers;
+    private final CompletableFuture<List<T>> result = new CompletableFuture<>();
+
+    Quorum(final int ack, final int from) {
+        assert 0 < ack && ack <= from;
+        this.ack = ack;
+        this.maxFailures = from - ack;
+        this.answers = new ArrayList<>(from);
+    }
+
+    /**
+     * Completes with the first {@code ack} successful answers
+     * or with {@link NotEnoughReplicasException}.
+     *
+     * @return future answers
+     */
+    @NotNull
+    CompletableFuture<List<T>> result() {
+        return result;
+    }
+
+    void success(@NotNull final T answer) {
+        synchronized (answers) {
+            if (answers.size() < ack) {
+                answers.add(answer);
+            }
+        }
+        if (successes.incrementAndGet() == ack) {
+            synchronized (answers) {
+                result.complete(List.copyOf(answers));
+            }
+        }
+    }
+
+    void failure() {
+        if (failures.incrementAndGet() == maxFailures + 1) {
+            result.completeExceptionally(new NotEnoughReplicasException(ack, successes.get()));
+        }
+    }
+
+    /**
+     * Less than {@code ack} replicas succeeded.
+     */
+    static final class NotEnoughReplicasException extends RuntimeException {
+        private static final long serialVersionUID = 1L;
+
+        NotEnoughReplicasException(final int ack, final int successes) {
+            super("Not enough replicas: " + successes + " of " + ack, null, false, false);
+        }
+    }
+}
@@ -0,0 +1,166 @@
+package ru.mail.polis.service.prohladenn;
+
+import org.jetbrains.annotations.NotNull;
+import ru.mail.polis.Record;
+
+import javax.annotation.concurrent.NotThreadSafe;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Deque;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.function.Function;
+
+/**
+ * Range scan over all nodes of the cluster. Every node is read page by page, a page is requested
+ * only when the previous one is consumed, so memory is bounded whatever the range size.
+ * Versions of a key from different replicas are resolved by timestamp and removed keys are skipped.
+ * The scan survives failures of less than {@code copies} nodes, as every key has a replica elsewhere.
+ */
+@NotThreadSafe
+final class RangeScan implements RecordSource {
+    private static final int BATCH = 256;
+
+    private final List<Source> sources;
+    private final int copies;
+    private int failed;
+
+    private final class Source {
+        private final String node;
+        private final Function<byte[], CompletableFuture<Rpc.Reply>> fetch;
+        private final Deque<Rpc.Entry> buffer = new ArrayDeque<>();
+        private byte[] from;
+        private boolean exhausted;
+
+        Source(@NotNull final String node,
+               @NotNull final byte[] from,
+               @NotNull final Function<byte[], CompletableFuture<Rpc.Reply>> fetch) {
+            this.node = node;
+            this.from = from;
+            this.fetch = fetch;
+        }
+
+        @NotNull
+        CompletableFuture<Void> fill() {
+            return fetch.apply(from).handle((reply, error) -> {
+                if (error != null || reply.status == Rpc.ERROR || reply.value == null) {
+                    failed++;
+                    exhausted = true;
+                    return null;
+                }
+                final List<Rpc.Entry> entries = Rpc.readEntries(reply.value);
+                buffer.addAll(entries);
+                if (reply.status == Rpc.PRESENT && !entries.isEmpty()) {
+                    // The smallest key after the last one
+                    from = Arrays.copyOf(entries.get(entries.size() - 1).key,
+                            entries.get(entries.size() - 1).key.length + 1);
+                } else {
+                    exhausted = true;
+                }
+                return null;
+            });
+        }
+
+        @Override
+        public String toString() {
+            return node;
+        }
+    }
+
+    /**
+     * Creates scan.
+     *
+     * @param nodes  all nodes of the cluster
+     * @param start  first key
+     * @param copies number of replicas of a key
+     * @param fetch  requests {@link Rpc#RANGE} page from node starting with key
+     */
+    RangeScan(@NotNull final List<String> nodes,
+              @NotNull final byte[] start,
+              final int copies,
+              @NotNull final PageFetcher fetch) {
+        this.copies = copies;
+        this.sources = new ArrayList<>(nodes.size());
+        for (final String node : nodes) {
+            sources.add(new Source(node, start, from -> fetch.fetch(node, from)));
+        }
+    }
+
+    /**
+     * Requests page of node.
+     */
+    @FunctionalInterface
+    interface PageFetcher {
+        @NotNull
+        CompletableFuture<Rpc.Reply> fetch(@NotNull String node, @NotNull byte[] from);
+    }
+
+    @NotNull
+    @Override
+    public CompletableFuture<List<Record>> next() {
+        final List<CompletableFuture<Void>> fills = new ArrayList<>();
+        for (final Source source : sources) {
+            if (source.buffer.isEmpty() && !source.exhausted) {
+                fills.add(source.fill());
+            }
+        }
+        return CompletableFuture.allOf(fills.toArray(new CompletableFuture<?>[0])).thenCompose(ignored -> {
+            if (failed >= copies) {
+                throw new CompletionException(new IOException("Not enough replicas to scan: " + sources));
+            }
+            final List<Record> records = merge();
+            return records.isEmpty() && !isExhausted() ? next() : CompletableFuture.completedFuture(records);
+        });
+    }
+
+    private boolean isExhausted() {
+        for (final Source source : sources) {
+            if (!source.buffer.isEmpty() || !source.exhausted) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    @NotNull
+    private List<Record> merge() {
+        final List<Record> records = new ArrayList<>();
+        while (records.size() < BATCH) {
+            ByteBuffer key = null;
+            for (final Source source : sources) {
+                if (source.buffer.isEmpty()) {
+                    if (!source.exhausted) {
+                        // Can't tell the next key until the page comes
+                        return records;
+                    }
+                    continue;
+                }
+                final ByteBuffer head = ByteBuffer.wrap(source.buffer.peekFirst().key);
+                if (key == null || head.compareTo(key) < 0) {
+                    key = head;
+                }
+            }
+            if (key == null) {
+                return records;
+            }
+            Rpc.Entry newest = null;
+            for (final Source source : sources) {
+                final Rpc.Entry head = source.buffer.peekFirst();
+                if (head != null && key.equals(ByteBuffer.wrap(head.key))) {
+                    source.buffer.removeFirst();
+                    if (newest == null || head.timestamp > newest.timestamp) {
+                        newest = head;
+                    }
+                }
+            }
+            if (newest != null && newest.value != null) {
+                records.add(Record.of(key, ByteBuffer.wrap(newest.value)));
+            }
+        }
+        return records;
+    }
+}
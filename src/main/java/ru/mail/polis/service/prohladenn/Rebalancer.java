@@ -0,0 +1,173 @@
+package ru.mail.polis.service.prohladenn;
+
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import org.jetbrains.annotations.NotNull;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.annotation.concurrent.ThreadSafe;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * Changes membership of a running cluster.
+ * The node asked to change it coordinates every node of the current and the next ring:
+ * first all of them prepare the next ring and hand their keys off to new replicas,
+ * writing to both rings meanwhile, then all of them commit the next ring.
+ * If a node fails to prepare, the change is aborted everywhere and the current ring stays.
+ */
+@ThreadSafe
+final class Rebalancer {
+    private static final Logger logger = LoggerFactory.getLogger(Rebalancer.class);
+    static final String PATH = "/v0/admin/topology";
+    private static final Duration TIMEOUT = Duration.ofSeconds(10);
+    private static final Duration HANDOFF_TIMEOUT = Duration.ofMinutes(30);
+
+    @NotNull
+    private final Membership membership;
+    @NotNull
+    private final Handoff handoff;
+    @NotNull
+    private final HttpClient client;
+    @NotNull
+    private final ExecutorService transfers;
+
+    Rebalancer(@NotNull final Membership membership, @NotNull final Handoff handoff) {
+        this.membership = membership;
+        this.handoff = handoff;
+        this.client = HttpClient.newBuilder().connectTimeout(TIMEOUT).build();
+        this.transfers = Executors.newSingleThreadExecutor(new ThreadFactoryBuilder()
+                .setNameFormat("handoff").setDaemon(true).build());
+    }
+
+    /**
+     * Parses list of nodes.
+     *
+     * @param body urls {@code http://<host>:<port>} one per line
+     * @return nodes in order
+     * @throws IllegalArgumentException if there are no nodes or an url is wrong
+     */
+    @NotNull
+    static Set<String> parse(@NotNull final String body) {
+        final Set<String> nodes = new LinkedHashSet<>();
+        for (final String line : body.split("\n")) {
+            final String node = line.trim();
+            if (node.isEmpty()) {
+                continue;
+            }
+            final URI uri = URI.create(node);
+            if (!"http".equals(uri.getScheme()) || uri.getHost() == null || uri.getPort() < 0
+                    || !uri.getRawPath().isEmpty()) {
+                throw new IllegalArgumentException("Wrong node " + node);
+            }
+            nodes.add(node);
+        }
+        if (nodes.isEmpty()) {
+            throw new IllegalArgumentException("No nodes");
+        }
+        return nodes;
+    }
+
+    @NotNull
+    static String format(@NotNull final Set<String> nodes) {
+        return String.join("\n", new TreeSet<>(nodes)) + '\n';
+    }
+
+    /**
+     * Changes membership of the cluster, this node coordinates.
+     *
+     * @param nodes all nodes of the next ring
+     * @return future summary of handoff by every node
+     */
+    @NotNull
+    CompletableFuture<String> change(@NotNull final Set<String> nodes) {
+        if (membership.next() != null) {
+            return CompletableFuture.failedFuture(new IllegalStateException("Membership is changing"));
+        }
+        final long version = membership.version() + 1;
+        final Set<String> everyone = new TreeSet<>(membership.all());
+        everyone.addAll(nodes);
+        final String body = format(nodes);
+        logger.info("Changing membership to version {}: {}", version, nodes);
+        final CompletableFuture<String> prepared = broadcast(everyone, "prepare", version, body, HANDOFF_TIMEOUT);
+        // Failure of prepare is reported once every node has given the change up
+        return prepared.handle((summary, error) -> error == null ? "commit" : "abort")
+                .thenCompose(step -> broadcast(everyone, step, version, "", TIMEOUT))
+                .thenApply(result -> "version=" + version + '\n' + prepared.join() + result);
+    }
+
+    @NotNull
+    private CompletableFuture<String> broadcast(@NotNull final Set<String> nodes,
+                                                @NotNull final String step,
+                                                final long version,
+                                                @NotNull final String body,
+                                                @NotNull final Duration timeout) {
+        final List<CompletableFuture<String>> replies = new ArrayList<>(nodes.size());
+        for (final String node : nodes) {
+            final HttpRequest request = HttpRequest.newBuilder(
+                    URI.create(node + PATH + "?step=" + step + "&version=" + version))
+                    .timeout(timeout)
+                    .POST(HttpRequest.BodyPublishers.ofString(body, StandardCharsets.UTF_8))
+                    .build();
+            replies.add(client.sendAsync(request, HttpResponse.BodyHandlers.ofString(StandardCharsets.UTF_8))
+                    .thenApply(response -> {
+                        if (response.statusCode() / 100 != 2) {
+                            throw new UncheckedIOException(new IOException(
+                                    node + " failed to " + step + ": " + response.statusCode() + ' '
+                                            + response.body()));
+                        }
+                        return response.body();
+                    }));
+        }
+        return CompletableFuture.allOf(replies.toArray(new CompletableFuture<?>[0])).thenApply(ignored -> {
+            final StringBuilder result = new StringBuilder();
+            for (final CompletableFuture<String> reply : replies) {
+                result.append(reply.join());
+            }
+            return result.toString();
+        });
+    }
+
+    /**
+     * Starts writing to the next ring and hands keys of this node off.
+     *
+     * @param version version of the next ring
+     * @param nodes   all nodes of the next ring
+     * @param copies  number of replicas of a key in the current ring
+     * @return future summary, completed once keys are handed off
+     */
+    @NotNull
+    CompletableFuture<String> prepare(final long version, @NotNull final Set<String> nodes, final int copies) {
+        final List<Topology<String>> rings;
+        try {
+            rings = membership.prepare(version, nodes);
+        } catch (IllegalStateException e) {
+            return CompletableFuture.failedFuture(e);
+        }
+        return CompletableFuture.supplyAsync(() -> {
+            try {
+                return handoff.run(rings.get(0), rings.get(1), copies);
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        }, transfers);
+    }
+
+    void stop() {
+        transfers.shutdownNow();
+    }
+}
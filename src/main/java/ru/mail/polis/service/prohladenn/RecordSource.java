@@ -0,0 +1,20 @@
+package ru.mail.polis.service.prohladenn;
+
+import org.jetbrains.annotations.NotNull;
+import ru.mail.polis.Record;
+
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+
+/**
+ * Asynchronous source of records in key order, pulled by a consumer whenever it is ready for more.
+ */
+interface RecordSource {
+    /**
+     * Produces next records, never asked again before the returned future completes.
+     *
+     * @return future records, empty when there are no more
+     */
+    @NotNull
+    CompletableFuture<List<Record>> next();
+}
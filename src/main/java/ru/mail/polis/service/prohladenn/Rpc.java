@@ -0,0 +1,479 @@
+package ru.mail.polis.service.prohladenn;
+
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+import ru.mail.polis.prohladenn.Bytes;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Binary protocol of inter-node requests, multiplexed with HTTP on the same port.
+ * A connection starts with {@link #MAGIC}, which can not start an HTTP request,
+ * followed by length-prefixed frames. Every frame carries a request id, so many requests
+ * may be in flight on one connection and replies may come in any order.
+ *
+ * <pre>
+ * request: int length, long id, byte op, long ttl, long timestamp, short trace length, trace,
+ *          int key length, key, int value length (-1 if none), value
+ * reply:   int length, long id, byte status, long timestamp, short timings length, timings,
+ *          int value length (-1 if none), value
+ * </pre>
+ * A {@link #BATCH} request and its reply carry frames of requests and replies numbered from zero as value.
+ * Values of requests and replies of at least {@link Compression#THRESHOLD} bytes may be deflated,
+ * then the value length has {@link #COMPRESSED} bit set and is followed by int length of original value.
+ * Frames inside a batch are never deflated, the value of the batch is deflated as a whole instead.
+ * Writes carry the timestamp given by their coordinator, so that every replica stores the same version,
+ * other requests carry {@link #UNSTAMPED}.
+ */
+final class Rpc {
+    static final byte MAGIC = (byte) 0xB1;
+    static final int MAX_FRAME = 64 * 1024 * 1024;
+    static final int COMPRESSED = 1 << 30;
+
+    static final byte GET = 1;
+    static final byte PUT = 2;
+    static final byte DELETE = 3;
+    // GET answered with timestamp and state only
+    static final byte DIGEST = 4;
+    // Requests of other kinds encoded as value, answered with their replies as value
+    static final byte BATCH = 5;
+    // Page of latest cells from key to value (exclusive, none if null), answered with entries as value
+    // and PRESENT status if there are more of them
+    static final byte RANGE = 6;
+    static final int PAGE_ENTRIES = 1024;
+    static final int PAGE_BYTES = 1024 * 1024;
+
+    static final byte PRESENT = 1;
+    static final byte REMOVED = 2;
+    static final byte ABSENT = 3;
+    static final byte DONE = 4;
+    static final byte ERROR = 5;
+
+    static final long UNSTAMPED = 0L;
+
+    private static final int REQUEST_HEADER = Long.BYTES + 1 + Long.BYTES * 2 + Short.BYTES + Integer.BYTES * 2;
+    private static final int REPLY_HEADER = Long.BYTES + 1 + Long.BYTES + Short.BYTES + Integer.BYTES;
+
+    private Rpc() {
+        // Not supposed to be instantiated
+    }
+
+    static final class Request {
+        final byte op;
+        final long ttl;
+        final long timestamp;
+        @NotNull
+        final String trace;
+        @NotNull
+        final byte[] key;
+        @Nullable
+        final byte[] value;
+
+        Request(final byte op,
+                final long ttl,
+                @NotNull final String trace,
+                @NotNull final byte[] key,
+                @Nullable final byte[] value) {
+            this.op = op;
+            this.ttl = ttl;
+            this.timestamp = UNSTAMPED;
+            this.trace = trace;
+            this.key = key;
+            this.value = value;
+        }
+
+        private Request(@NotNull final Request request, final long timestamp) {
+            this.op = request.op;
+            this.ttl = request.ttl;
+            this.timestamp = timestamp;
+            this.trace = request.trace;
+            this.key = request.key;
+            this.value = request.value;
+        }
+
+        /**
+         * Returns the same request carrying timestamp of the version it writes.
+         *
+         * @param timestamp timestamp given by {@link ru.mail.polis.prohladenn.Value#timestamp()}
+         * @return stamped request
+         */
+        @NotNull
+        Request stamped(final long timestamp) {
+            return new Request(this, timestamp);
+        }
+
+        /**
+         * Encodes request frame.
+         *
+         * @param id request id
+         * @return frame ready to be written
+         */
+        @NotNull
+        ByteBuffer encode(final long id) {
+            return encode(id, true);
+        }
+
+        @NotNull
+        private ByteBuffer encode(final long id, final boolean deflate) {
+            final byte[] traceBytes = header(trace);
+            final byte[] packed = value == null || !deflate ? null : Compression.deflate(value);
+            final int length = REQUEST_HEADER + traceBytes.length + key.length + size(value, packed);
+            final ByteBuffer frame = ByteBuffer.allocate(Integer.BYTES + length);
+            frame.putInt(length).putLong(id).put(op).putLong(ttl).putLong(timestamp)
+                    .putShort((short) traceBytes.length).put(traceBytes)
+                    .putInt(key.length).put(key);
+            putValue(frame, value, packed);
+            return frame.flip();
+        }
+    }
+
+    static final class Reply {
+        final byte status;
+        final long timestamp;
+        @NotNull
+        final String timings;
+        @Nullable
+        final byte[] value;
+        // Value read from storage, encoded straight from its buffer rather than copied to value
+        @Nullable
+        private final ByteBuffer stored;
+
+        Reply(final byte status,
+              final long timestamp,
+              @NotNull final String timings,
+              @Nullable final byte[] value) {
+            this(status, timestamp, timings, value, null);
+        }
+
+        private Reply(final byte status,
+                      final long timestamp,
+                      @NotNull final String timings,
+                      @Nullable final byte[] value,
+                      @Nullable final ByteBuffer stored) {
+            this.status = status;
+            this.timestamp = timestamp;
+            this.timings = timings;
+            this.value = value;
+            this.stored = stored;
+        }
+
+        /**
+         * Creates reply with present value which is not copied until the reply is encoded.
+         *
+         * @param timestamp timestamp of value
+         * @param value     value, which must not be modified
+         * @return reply
+         */
+        @NotNull
+        static Reply stored(final long timestamp, @NotNull final ByteBuffer value) {
+            return new Reply(PRESENT, timestamp, "", null, value);
+        }
+
+        /**
+         * Copies reply with other timings.
+         *
+         * @param timings timings of replica
+         * @return reply
+         */
+        @NotNull
+        Reply withTimings(@NotNull final String timings) {
+            return new Reply(status, timestamp, timings, value, stored);
+        }
+
+        /**
+         * Encodes reply frame.
+         *
+         * @param id id of request being answered
+         * @return frame ready to be written
+         */
+        @NotNull
+        byte[] encode(final long id) {
+            return encode(id, true);
+        }
+
+        @NotNull
+        private byte[] encode(final long id, final boolean deflate) {
+            final byte[] timingsBytes = header(timings);
+            final ByteBuffer data = data();
+            final byte[] packed = data == null || !deflate ? null : Compression.deflate(data);
+            final int length = REPLY_HEADER + timingsBytes.length + size(data, packed);
+            final ByteBuffer frame = ByteBuffer.allocate(Integer.BYTES + length);
+            frame.putInt(length).putLong(id).put(status).putLong(timestamp)
+                    .putShort((short) timingsBytes.length).put(timingsBytes);
+            if (data == null) {
+                frame.putInt(-1);
+            } else if (packed == null) {
+                frame.putInt(data.remaining()).put(data);
+            } else {
+                frame.putInt(packed.length | COMPRESSED).putInt(data.remaining()).put(packed);
+            }
+            return frame.array();
+        }
+
+        private static int size(@Nullable final ByteBuffer data, @Nullable final byte[] packed) {
+            if (packed != null) {
+                return Integer.BYTES + packed.length;
+            }
+            return data == null ? 0 : data.remaining();
+        }
+
+        @Nullable
+        private ByteBuffer data() {
+            if (stored != null) {
+                return stored.duplicate();
+            }
+            return value == null ? null : ByteBuffer.wrap(value);
+        }
+
+        @NotNull
+        Value toValue() {
+            switch (status) {
+                case PRESENT:
+                    final ByteBuffer data = data();
+                    return data == null ? Value.digest(timestamp) : Value.present(Bytes.toArray(data), timestamp);
+                case REMOVED:
+                    return Value.removed(timestamp);
+                case ABSENT:
+                    return Value.absent();
+                default:
+                    throw new IllegalStateException("Not a read reply: " + status);
+            }
+        }
+    }
+
+    /**
+     * Latest version of a key in a {@link #RANGE} page.
+     */
+    static final class Entry {
+        @NotNull
+        final byte[] key;
+        final long timestamp;
+        @Nullable
+        final byte[] value;
+
+        Entry(@NotNull final byte[] key, final long timestamp, @Nullable final byte[] value) {
+            this.key = key;
+            this.timestamp = timestamp;
+            this.value = value;
+        }
+
+        int size() {
+            return key.length + (value == null ? 0 : value.length);
+        }
+    }
+
+    /**
+     * Encodes entries of a page.
+     *
+     * @param entries entries
+     * @return value of {@link #RANGE} reply
+     */
+    @NotNull
+    static byte[] encodeEntries(@NotNull final List<Entry> entries) {
+        int length = 0;
+        for (final Entry entry : entries) {
+            length += Integer.BYTES * 2 + Long.BYTES + entry.size();
+        }
+        final ByteBuffer page = ByteBuffer.allocate(length);
+        for (final Entry entry : entries) {
+            page.putInt(entry.key.length).put(entry.key).putLong(entry.timestamp);
+            putValue(page, entry.value);
+        }
+        return page.array();
+    }
+
+    /**
+     * Decodes entries of a page.
+     *
+     * @param page value of {@link #RANGE} reply
+     * @return entries in key order
+     */
+    @NotNull
+    static List<Entry> readEntries(@NotNull final byte[] page) {
+        final List<Entry> entries = new ArrayList<>();
+        final ByteBuffer in = ByteBuffer.wrap(page);
+        while (in.hasRemaining()) {
+            final byte[] key = new byte[in.getInt()];
+            in.get(key);
+            final long timestamp = in.getLong();
+            entries.add(new Entry(key, timestamp, bytes(in)));
+        }
+        return entries;
+    }
+
+    private static void putValue(@NotNull final ByteBuffer frame, @Nullable final byte[] value) {
+        if (value == null) {
+            frame.putInt(-1);
+        } else {
+            frame.putInt(value.length).put(value);
+        }
+    }
+
+    private static int size(@Nullable final byte[] value, @Nullable final byte[] packed) {
+        if (packed != null) {
+            return Integer.BYTES + packed.length;
+        }
+        return value == null ? 0 : value.length;
+    }
+
+    private static void putValue(@NotNull final ByteBuffer frame,
+                                 @Nullable final byte[] value,
+                                 @Nullable final byte[] packed) {
+        if (value == null || packed == null) {
+            putValue(frame, value);
+        } else {
+            frame.putInt(packed.length | COMPRESSED).putInt(value.length).put(packed);
+        }
+    }
+
+    /**
+     * Decodes request frame following the request id.
+     *
+     * @param frame frame positioned after the id
+     * @return request
+     */
+    @NotNull
+    static Request readRequest(@NotNull final ByteBuffer frame) {
+        final byte op = frame.get();
+        final long ttl = frame.getLong();
+        final long timestamp = frame.getLong();
+        final String trace = string(frame);
+        final byte[] key = new byte[frame.getInt()];
+        frame.get(key);
+        return new Request(op, ttl, trace, key, bytes(frame)).stamped(timestamp);
+    }
+
+    /**
+     * Decodes reply frame following the request id.
+     *
+     * @param frame frame positioned after the id
+     * @return reply
+     */
+    @NotNull
+    static Reply readReply(@NotNull final ByteBuffer frame) {
+        final byte status = frame.get();
+        final long timestamp = frame.getLong();
+        final String timings = string(frame);
+        return new Reply(status, timestamp, timings, bytes(frame));
+    }
+
+    /**
+     * Encodes requests as value of a batch.
+     *
+     * @param requests requests
+     * @return frames numbered in order
+     */
+    @NotNull
+    static byte[] encodeBatch(@NotNull final List<Request> requests) {
+        final ByteBuffer[] frames = new ByteBuffer[requests.size()];
+        int length = 0;
+        for (int i = 0; i < frames.length; i++) {
+            frames[i] = requests.get(i).encode(i, false);
+            length += frames[i].remaining();
+        }
+        final ByteBuffer batch = ByteBuffer.allocate(length);
+        for (final ByteBuffer frame : frames) {
+            batch.put(frame);
+        }
+        return batch.array();
+    }
+
+    /**
+     * Decodes requests of a batch.
+     *
+     * @param batch value of batch request
+     * @return requests in order
+     */
+    @NotNull
+    static List<Request> readBatch(@NotNull final byte[] batch) {
+        final List<Request> requests = new ArrayList<>();
+        final ByteBuffer frames = ByteBuffer.wrap(batch);
+        while (frames.hasRemaining()) {
+            requests.add(readRequest(next(frames, requests.size())));
+        }
+        return requests;
+    }
+
+    /**
+     * Encodes replies as value of a batch reply.
+     *
+     * @param replies replies to requests of batch in order
+     * @return frames numbered in order
+     */
+    @NotNull
+    static byte[] encodeReplies(@NotNull final List<Reply> replies) {
+        final ByteArrayOutputStream frames = new ByteArrayOutputStream();
+        for (int i = 0; i < replies.size(); i++) {
+            frames.writeBytes(replies.get(i).encode(i, false));
+        }
+        return frames.toByteArray();
+    }
+
+    /**
+     * Decodes replies of a batch.
+     *
+     * @param batch value of batch reply
+     * @return replies in order
+     */
+    @NotNull
+    static List<Reply> readReplies(@NotNull final byte[] batch) {
+        final List<Reply> replies = new ArrayList<>();
+        final ByteBuffer frames = ByteBuffer.wrap(batch);
+        while (frames.hasRemaining()) {
+            replies.add(readReply(next(frames, replies.size())));
+        }
+        return replies;
+    }
+
+    @NotNull
+    private static ByteBuffer next(@NotNull final ByteBuffer frames, final long expected) {
+        final int length = frames.getInt();
+        final ByteBuffer frame = frames.slice().limit(length);
+        frames.position(frames.position() + length);
+        if (frame.getLong() != expected) {
+            throw new IllegalArgumentException("Batch frames are out of order");
+        }
+        return frame;
+    }
+
+    /**
+     * Encodes trace or timings, truncated to fit the short length prefix as they are for diagnostics only.
+     */
+    @NotNull
+    private static byte[] header(@NotNull final String text) {
+        final byte[] bytes = text.getBytes(StandardCharsets.UTF_8);
+        return bytes.length <= Short.MAX_VALUE ? bytes : Arrays.copyOf(bytes, Short.MAX_VALUE);
+    }
+
+    @NotNull
+    private static String string(@NotNull final ByteBuffer frame) {
+        final byte[] bytes = new byte[frame.getShort()];
+        frame.get(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    @Nullable
+    private static byte[] bytes(@NotNull final ByteBuffer frame) {
+        final int length = frame.getInt();
+        if (length < 0) {
+            return null;
+        }
+        if ((length & COMPRESSED) != 0) {
+            final int original = frame.getInt();
+            if (original < 0 || original > MAX_FRAME) {
+                throw new IllegalArgumentException("Wrong value length " + original);
+            }
+            final byte[] packed = new byte[length & ~COMPRESSED];
+            frame.get(packed);
+            return Compression.inflate(packed, original);
+        }
+        final byte[] bytes = new byte[length];
+        frame.get(bytes);
+        return bytes;
+    }
+}
@@ -0,0 +1,210 @@
+package ru.mail.polis.service.prohladenn;
+
+import org.jetbrains.annotations.NotNull;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.annotation.concurrent.ThreadSafe;
+import java.io.BufferedInputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.URI;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Pipelined {@link Rpc} client of a single peer over one persistent connection.
+ * Callers only enqueue frames: the writer thread connects on demand and writes queued frames
+ * in batches, the reader thread matches replies to requests by id and completes them on the executor,
+ * so that callbacks of replies don't hold up reading of others.
+ */
+@ThreadSafe
+final class RpcClient implements Closeable {
+    private static final Logger logger = LoggerFactory.getLogger(RpcClient.class);
+    private static final int CONNECT_TIMEOUT_MILLIS = 1000;
+    private static final int BATCH = 64;
+
+    private final String node;
+    private final InetSocketAddress address;
+    private final long timeoutMillis;
+    private final Executor executor;
+    private final AtomicLong ids = new AtomicLong();
+    private final BlockingQueue<ByteBuffer> outgoing = new LinkedBlockingQueue<>();
+    private final ConcurrentMap<Long, CompletableFuture<Rpc.Reply>> pending = new ConcurrentHashMap<>();
+    private final Thread writer;
+    private volatile SocketChannel channel;
+    private volatile boolean closed;
+
+    /**
+     * Creates client, connection is established with the first request.
+     *
+     * @param node          peer endpoint {@code http://<host>:<port>}
+     * @param timeoutMillis time to wait for a reply
+     * @param executor      executor completing replies
+     */
+    RpcClient(@NotNull final String node, final long timeoutMillis, @NotNull final Executor executor) {
+        final URI uri = URI.create(node);
+        this.node = node;
+        this.address = new InetSocketAddress(uri.getHost(), uri.getPort());
+        this.timeoutMillis = timeoutMillis;
+        this.executor = executor;
+        this.writer = new Thread(this::write, "rpc-writer-" + uri.getPort());
+        writer.setDaemon(true);
+        writer.start();
+    }
+
+    /**
+     * Sends request.
+     *
+     * @param request request
+     * @return future reply, fails on timeout or connection loss
+     */
+    @NotNull
+    CompletableFuture<Rpc.Reply> call(@NotNull final Rpc.Request request) {
+        final long id = ids.incrementAndGet();
+        final CompletableFuture<Rpc.Reply> reply = new CompletableFuture<>();
+        pending.put(id, reply);
+        if (closed) {
+            fail(id, new IOException("Client is closed"));
+        } else {
+            outgoing.add(request.encode(id));
+        }
+        return reply.orTimeout(timeoutMillis, TimeUnit.MILLISECONDS)
+                .whenComplete((result, error) -> pending.remove(id));
+    }
+
+    private void fail(final long id, @NotNull final Throwable error) {
+        final CompletableFuture<Rpc.Reply> reply = pending.remove(id);
+        if (reply != null) {
+            reply.completeExceptionally(error);
+        }
+    }
+
+    private void write() {
+        final List<ByteBuffer> batch = new ArrayList<>(BATCH);
+        while (!closed) {
+            try {
+                batch.add(outgoing.take());
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return;
+            }
+            outgoing.drainTo(batch, BATCH - 1);
+            final ByteBuffer[] frames = batch.toArray(new ByteBuffer[0]);
+            batch.clear();
+            SocketChannel current = null;
+            try {
+                current = connect();
+                long remaining = 0;
+                for (final ByteBuffer frame : frames) {
+                    remaining += frame.remaining();
+                }
+                while (remaining > 0) {
+                    remaining -= current.write(frames);
+                }
+            } catch (IOException e) {
+                for (final ByteBuffer frame : frames) {
+                    fail(frame.getLong(Integer.BYTES), e);
+                }
+                disconnect(current, e);
+            }
+        }
+    }
+
+    @NotNull
+    private SocketChannel connect() throws IOException {
+        final SocketChannel current = channel;
+        if (current != null && current.isOpen()) {
+            return current;
+        }
+        final SocketChannel opened = SocketChannel.open();
+        try {
+            opened.socket().setTcpNoDelay(true);
+            opened.socket().connect(address, CONNECT_TIMEOUT_MILLIS);
+            opened.write(ByteBuffer.wrap(new byte[]{Rpc.MAGIC}));
+        } catch (IOException e) {
+            opened.close();
+            throw e;
+        }
+        channel = opened;
+        final Thread reader = new Thread(() -> read(opened), "rpc-reader-" + address.getPort());
+        reader.setDaemon(true);
+        reader.start();
+        return opened;
+    }
+
+    private void read(@NotNull final SocketChannel source) {
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(Channels.newInputStream(source)))) {
+            while (true) {
+                final int length = in.readInt();
+                if (length < Long.BYTES || length > Rpc.MAX_FRAME) {
+                    throw new IOException("Wrong frame length " + length);
+                }
+                final byte[] frame = new byte[length];
+                in.readFully(frame);
+                final ByteBuffer buffer = ByteBuffer.wrap(frame);
+                final long id = buffer.getLong();
+                final Rpc.Reply parsed = Rpc.readReply(buffer);
+                final CompletableFuture<Rpc.Reply> reply = pending.remove(id);
+                if (reply != null) {
+                    complete(reply, parsed);
+                }
+            }
+        } catch (IOException e) {
+            disconnect(source, e);
+        } catch (RuntimeException e) {
+            // Stream is out of sync after a malformed frame
+            disconnect(source, new IOException("Malformed reply from " + node, e));
+        }
+    }
+
+    private void complete(@NotNull final CompletableFuture<Rpc.Reply> reply, @NotNull final Rpc.Reply parsed) {
+        try {
+            executor.execute(() -> reply.complete(parsed));
+        } catch (RejectedExecutionException e) {
+            reply.complete(parsed);
+        }
+    }
+
+    private void disconnect(final SocketChannel current, @NotNull final IOException cause) {
+        if (current == null) {
+            return;
+        }
+        try {
+            current.close();
+        } catch (IOException e) {
+            logger.debug("Can't close connection to {}", node, e);
+        }
+        if (channel == current) {
+            channel = null;
+            if (!closed) {
+                logger.info("Connection to {} lost: {}", node, cause.getMessage());
+            }
+            // Requests written to the lost connection will never be answered
+            for (final Long id : pending.keySet()) {
+                fail(id, cause);
+            }
+        }
+    }
+
+    @Override
+    public void close() {
+        closed = true;
+        writer.interrupt();
+        disconnect(channel, new IOException("Client is closed"));
+    }
+}
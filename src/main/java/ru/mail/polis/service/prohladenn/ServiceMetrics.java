@@ -0,0 +1,178 @@
+package ru.mail.polis.service.prohladenn;
+
+import one.nio.http.Request;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+import ru.mail.polis.metrics.Counter;
+import ru.mail.polis.metrics.Histogram;
+import ru.mail.polis.metrics.MetricRegistry;
+import ru.mail.polis.service.prohladenn.factors.ReplicaFactor;
+
+import javax.annotation.concurrent.ThreadSafe;
+import java.net.http.HttpTimeoutException;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * Service level metrics. Request histograms are resolved by array index,
+ * so the request path neither allocates nor looks anything up in the registry.
+ */
+@ThreadSafe
+final class ServiceMetrics {
+    private static final String[] METHODS = {"GET", "PUT", "DELETE"};
+    private static final String[] ROLES = {"coordinated", "proxied"};
+
+    private final MetricRegistry registry;
+    private final int size;
+    private final AtomicReferenceArray<Histogram> requests;
+    private final Map<String, Counter> failures;
+    private final Map<String, Counter> timeouts;
+    private final Histogram[] batches;
+    private final Counter hedged;
+    private final Counter digestFetches;
+    private final Counter coalescedReads;
+    private final Counter coalescedLookups;
+
+    ServiceMetrics(@NotNull final MetricRegistry registry,
+                   @NotNull final Set<String> nodes,
+                   @NotNull final Executor executor) {
+        this.registry = registry;
+        this.size = nodes.size() + 1;
+        this.requests = new AtomicReferenceArray<>(METHODS.length * ROLES.length * size * size);
+        this.failures = new HashMap<>();
+        this.timeouts = new HashMap<>();
+        this.batches = new Histogram[METHODS.length];
+        for (int i = 0; i < METHODS.length; i++) {
+            batches[i] = registry.histogram("http_batch_duration_seconds", "Latency of batch requests",
+                    "method", METHODS[i]);
+        }
+        this.hedged = registry.counter("hedged_reads_total", "Reads sent to another replica as one was slow");
+        this.digestFetches = registry.counter("digest_fetches_total",
+                "Reads of value from another replica as the freshest answer was a digest");
+        this.coalescedReads = registry.counter("coalesced_reads_total",
+                "Reads attached to an identical read in progress", "level", "coordinator");
+        this.coalescedLookups = registry.counter("coalesced_reads_total",
+                "Reads attached to an identical read in progress", "level", "local");
+        for (final String node : nodes) {
+            failures.put(node, registry.counter("replica_failures_total",
+                    "Failed requests to replicas", "node", node));
+            timeouts.put(node, registry.counter("replica_timeouts_total",
+                    "Timed out requests to replicas", "node", node));
+        }
+        if (executor instanceof ThreadPoolExecutor) {
+            final ThreadPoolExecutor pool = (ThreadPoolExecutor) executor;
+            registry.gauge("executor_queue_depth", "Tasks waiting for a worker", () -> pool.getQueue().size());
+            registry.gauge("executor_active_threads", "Workers running tasks", pool::getActiveCount);
+        }
+    }
+
+    /**
+     * Returns latency histogram for requests of given kind.
+     *
+     * @param method  one-nio request method
+     * @param rf      replica factor, ignored for proxied requests
+     * @param proxied whether request came from another node
+     * @return histogram, or null for methods which are not tracked
+     */
+    @Nullable
+    Histogram request(final int method,
+                      @NotNull final ReplicaFactor rf,
+                      final boolean proxied) {
+        final int methodIndex = methodIndex(method);
+        if (methodIndex < 0) {
+            return null;
+        }
+        final int ack = proxied ? 0 : rf.getAck();
+        final int from = proxied ? 0 : rf.getFrom();
+        final int role = proxied ? 1 : 0;
+        if (from >= size) {
+            // The cluster has grown since start
+            return histogram(methodIndex, role, ack, from);
+        }
+        final int index = ((methodIndex * ROLES.length + role) * size + from) * size + ack;
+        Histogram histogram = requests.get(index);
+        if (histogram == null) {
+            // Registry returns the same series to racing threads
+            histogram = histogram(methodIndex, role, ack, from);
+            requests.set(index, histogram);
+        }
+        return histogram;
+    }
+
+    @NotNull
+    private Histogram histogram(final int methodIndex, final int role, final int ack, final int from) {
+        return registry.histogram("http_request_duration_seconds", "Latency of entity requests",
+                "method", METHODS[methodIndex],
+                "replicas", role == 1 ? "-" : ack + "/" + from,
+                "role", ROLES[role]);
+    }
+
+    /**
+     * Returns latency histogram for batch requests.
+     *
+     * @param method one-nio request method applied to keys
+     * @return histogram, or null for methods which are not tracked
+     */
+    @Nullable
+    Histogram batch(final int method) {
+        final int methodIndex = methodIndex(method);
+        return methodIndex < 0 ? null : batches[methodIndex];
+    }
+
+    /**
+     * Accounts failed request to replica.
+     *
+     * @param node  replica
+     * @param error cause of failure
+     */
+    void replicaFailed(@NotNull final String node, @NotNull final Throwable error) {
+        final Throwable cause = error instanceof CompletionException && error.getCause() != null
+                ? error.getCause() : error;
+        final Counter counter = cause instanceof HttpTimeoutException || cause instanceof TimeoutException
+                ? timeouts.get(node) : failures.get(node);
+        if (counter != null) {
+            counter.inc();
+        }
+    }
+
+    void hedged() {
+        hedged.inc();
+    }
+
+    void digestFetched() {
+        digestFetches.inc();
+    }
+
+    void coalescedRead() {
+        coalescedReads.inc();
+    }
+
+    void coalescedLookup() {
+        coalescedLookups.inc();
+    }
+
+    @NotNull
+    static String methodName(final int method) {
+        final int index = methodIndex(method);
+        return index < 0 ? "OTHER" : METHODS[index];
+    }
+
+    private static int methodIndex(final int method) {
+        switch (method) {
+            case Request.METHOD_GET:
+                return 0;
+            case Request.METHOD_PUT:
+                return 1;
+            case Request.METHOD_DELETE:
+                return 2;
+            default:
+                return -1;
+        }
+    }
+}
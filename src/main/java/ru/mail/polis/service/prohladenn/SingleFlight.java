@@ -0,0 +1,120 @@
+package ru.mail.polis.service.prohladenn;
+
+import org.jetbrains.annotations.NotNull;
+
+import javax.annotation.concurrent.ThreadSafe;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.function.Supplier;
+
+/**
+ * Coalesces concurrent identical reads: callers asking for a key which is already being read
+ * get the result of that read instead of starting their own.
+ * Asynchronous reads only join a read which started after they arrived, so they see every write
+ * acknowledged before, whichever node applied it.
+ * Writers call {@link #forget} once a write is applied locally, so local reads which arrive later
+ * never get a result read before the write.
+ *
+ * @param <K> type of key
+ * @param <V> type of result
+ */
+@ThreadSafe
+final class SingleFlight<K, V> {
+    private final ConcurrentMap<K, Flight<V>> inflight = new ConcurrentHashMap<>();
+    private final Runnable coalesced;
+
+    /**
+     * Creates coalescing layer.
+     *
+     * @param coalesced called for every read attached to another one
+     */
+    SingleFlight(@NotNull final Runnable coalesced) {
+        this.coalesced = coalesced;
+    }
+
+    /**
+     * Reads asynchronously unless the same key is being read by a read started after arrival.
+     *
+     * @param key     key
+     * @param arrival arrival time of the caller in nanoseconds
+     * @param read    starts read
+     * @return future result
+     */
+    @NotNull
+    CompletableFuture<V> async(@NotNull final K key,
+                               final long arrival,
+                               @NotNull final Supplier<CompletableFuture<V>> read) {
+        final Flight<V> flight = new Flight<>(System.nanoTime());
+        // A read started earlier may miss a write acknowledged before the caller arrived
+        final Flight<V> current = inflight.merge(key, flight,
+                (existing, started) -> existing.started - arrival >= 0 ? existing : started);
+        if (current != flight) {
+            coalesced.run();
+            return current.result;
+        }
+        try {
+            read.get().whenComplete((value, error) -> {
+                inflight.remove(key, flight);
+                if (error == null) {
+                    flight.result.complete(value);
+                } else {
+                    flight.result.completeExceptionally(error);
+                }
+            });
+        } catch (RuntimeException e) {
+            inflight.remove(key, flight);
+            flight.result.completeExceptionally(e);
+        }
+        return flight.result;
+    }
+
+    /**
+     * Reads in the calling thread unless the same key is being read, then waits for that read.
+     *
+     * @param key  key
+     * @param read performs read
+     * @return result
+     */
+    V sync(@NotNull final K key, @NotNull final Supplier<V> read) {
+        final Flight<V> flight = new Flight<>(System.nanoTime());
+        final Flight<V> existing = inflight.putIfAbsent(key, flight);
+        if (existing != null) {
+            coalesced.run();
+            try {
+                return existing.result.join();
+            } catch (CompletionException e) {
+                throw e.getCause() instanceof RuntimeException ? (RuntimeException) e.getCause() : e;
+            }
+        }
+        try {
+            final V value = read.get();
+            inflight.remove(key, flight);
+            flight.result.complete(value);
+            return value;
+        } catch (RuntimeException e) {
+            inflight.remove(key, flight);
+            flight.result.completeExceptionally(e);
+            throw e;
+        }
+    }
+
+    /**
+     * Detaches reads in progress from key, called after a write to it is applied.
+     *
+     * @param key key
+     */
+    void forget(@NotNull final K key) {
+        inflight.remove(key);
+    }
+
+    private static final class Flight<V> {
+        private final long started;
+        private final CompletableFuture<V> result = new CompletableFuture<>();
+
+        Flight(final long started) {
+            this.started = started;
+        }
+    }
+}
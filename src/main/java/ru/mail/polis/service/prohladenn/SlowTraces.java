@@ -0,0 +1,59 @@
+package ru.mail.polis.service.prohladenn;
+
+import org.jetbrains.annotations.NotNull;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.annotation.concurrent.ThreadSafe;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * Keeps the most recent traces of requests slower than the threshold and logs them.
+ */
+@ThreadSafe
+final class SlowTraces {
+    private static final Logger logger = LoggerFactory.getLogger(SlowTraces.class);
+    private static final int CAPACITY = 128;
+
+    private final long thresholdNanos;
+    private final AtomicReferenceArray<Trace> recent = new AtomicReferenceArray<>(CAPACITY);
+    private final AtomicLong next = new AtomicLong();
+
+    SlowTraces(final long thresholdMillis) {
+        this.thresholdNanos = TimeUnit.MILLISECONDS.toNanos(thresholdMillis);
+    }
+
+    /**
+     * Completes trace and keeps it if the request was slow.
+     *
+     * @param trace request trace
+     * @param end   completion time in nanoseconds
+     */
+    void complete(@NotNull final Trace trace, final long end) {
+        if (trace.finish(end) < thresholdNanos) {
+            return;
+        }
+        recent.set((int) (next.getAndIncrement() % CAPACITY), trace);
+        logger.info("Slow request {}", trace);
+    }
+
+    /**
+     * Renders kept traces, the newest first.
+     *
+     * @return one trace per line
+     */
+    @NotNull
+    String dump() {
+        final StringBuilder result = new StringBuilder();
+        final long last = next.get();
+        for (long i = last - 1; i >= Math.max(0L, last - CAPACITY); i--) {
+            final Trace trace = recent.get((int) (i % CAPACITY));
+            if (trace != null) {
+                result.append(trace).append('\n');
+            }
+        }
+        return result.toString();
+    }
+}
@@ -3,18 +3,30 @@ package ru.mail.polis.service.prohladenn;
 import com.google.common.base.Charsets;
 
 import one.nio.http.HttpServer;
+import one.nio.http.HttpException;
 import one.nio.http.HttpSession;
+import one.nio.http.Request;
 import one.nio.http.Response;
 import one.nio.net.Socket;
+import one.nio.net.SocketClosedException;
 import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import ru.mail.polis.Record;
 import ru.mail.polis.prohladenn.Bytes;
+import ru.mail.polis.prohladenn.MemoryManager;
 
 import java.io.IOException;
 import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.IdentityHashMap;
 import java.util.Iterator;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 public final class StorageSession extends HttpSession {
 
@@ -22,26 +34,282 @@ public final class StorageSession extends HttpSession {
     private static final byte[] LF = "\n".getBytes(Charsets.UTF_8);
     private static final byte[] EMPTY_CHUNK = "0\r\n\r\n".getBytes(Charsets.UTF_8);
     private static final Logger logger = LoggerFactory.getLogger(StorageSession.class);
+    // Fits a single inter-node frame with room to spare, admitted by declared length against memory budget
+    static final int MAX_BODY = Rpc.MAX_FRAME / 2;
 
+    private final MemoryManager memory;
+    // Requests whose bodies are reserved until their responses are sent
+    private final Set<Request> admitted = Collections.newSetFromMap(new IdentityHashMap<>());
     private Iterator<Record> records;
+    private volatile ChunkEncoder encoder;
+    private volatile ChunkSource source;
+    private final AtomicBoolean pulling = new AtomicBoolean();
+    // Decided by the first byte of connection
+    private boolean http;
+    private ByteBuffer rpc;
 
-    StorageSession(@NotNull final Socket socket, @NotNull final HttpServer server) {
+    StorageSession(@NotNull final Socket socket,
+                   @NotNull final HttpServer server,
+                   @NotNull final MemoryManager memory) {
         super(socket, server);
+        this.memory = memory;
     }
 
-    void stream(@NotNull final Iterator<Record> records) throws IOException {
+    @Override
+    protected void processRead(final byte[] buffer) throws IOException {
+        if (http) {
+            processHttp(buffer);
+            return;
+        }
+        try {
+            if (rpc == null) {
+                if (read(buffer, 0, 1) == 0) {
+                    return;
+                }
+                if (buffer[0] != Rpc.MAGIC) {
+                    http = true;
+                    fragment[0] = buffer[0];
+                    fragmentLength = 1;
+                    processHttp(buffer);
+                    return;
+                }
+                rpc = ByteBuffer.allocate(buffer.length);
+            }
+            final int length = read(buffer, 0, buffer.length);
+            processFrames(buffer, length);
+        } catch (SocketClosedException e) {
+            handleSocketClosed();
+        }
+    }
+
+    private void processHttp(final byte[] buffer) throws IOException {
+        try {
+            super.processRead(buffer);
+        } catch (RejectedExecutionException e) {
+            sendError(Response.SERVICE_UNAVAILABLE, "Memory limit exceeded");
+        }
+    }
+
+    /**
+     * Reserves memory for body by its declared length before the body is allocated, so that
+     * concurrent large requests are rejected rather than exhaust heap.
+     */
+    @Override
+    protected int startParsingRequestBody(final String contentLengthHeader,
+                                          final byte[] buffer,
+                                          final int bufferOffset,
+                                          final int remaining) throws IOException, HttpException {
+        final int length;
+        try {
+            length = Integer.parseInt(contentLengthHeader);
+        } catch (NumberFormatException e) {
+            return super.startParsingRequestBody(contentLengthHeader, buffer, bufferOffset, remaining);
+        }
+        if (length < 0 || length > getMaxRequestBodyLength()) {
+            return super.startParsingRequestBody(contentLengthHeader, buffer, bufferOffset, remaining);
+        }
+        if (!memory.tryReserve(MemoryManager.Consumer.REQUEST, length)) {
+            throw new RejectedExecutionException("Memory limit exceeded");
+        }
+        synchronized (this) {
+            admitted.add(parsing);
+        }
+        return super.startParsingRequestBody(contentLengthHeader, buffer, bufferOffset, remaining);
+    }
+
+    private synchronized void release(@Nullable final Request request) {
+        if (request != null && admitted.remove(request)) {
+            memory.release(MemoryManager.Consumer.REQUEST, request.getBody().length);
+        }
+    }
+
+    @Override
+    public synchronized void sendResponse(final Response response) throws IOException {
+        release(handling);
+        super.sendResponse(response);
+    }
+
+    @Override
+    public synchronized void close() {
+        // Request being handled keeps its reservation until it is responded to
+        for (final Request request : admitted.toArray(new Request[0])) {
+            if (request != handling) {
+                release(request);
+            }
+        }
+        final ChunkSource current = source;
+        source = null;
+        if (current != null) {
+            current.close();
+        }
+        super.close();
+    }
+
+    private void processFrames(final byte[] buffer, final int length) throws IOException {
+        if (rpc.remaining() < length) {
+            final ByteBuffer grown = ByteBuffer.allocate(Math.max(rpc.capacity() * 2, rpc.position() + length));
+            rpc = grown.put(rpc.flip());
+        }
+        rpc.put(buffer, 0, length).flip();
+        while (rpc.remaining() >= Integer.BYTES) {
+            final int frameLength = rpc.getInt(rpc.position());
+            if (frameLength < Long.BYTES || frameLength > Rpc.MAX_FRAME) {
+                throw new IOException("Wrong frame length " + frameLength);
+            }
+            if (rpc.remaining() < Integer.BYTES + frameLength) {
+                if (rpc.capacity() < Integer.BYTES + frameLength) {
+                    rpc = ByteBuffer.allocate(Integer.BYTES + frameLength).put(rpc).flip();
+                }
+                break;
+            }
+            rpc.getInt();
+            final ByteBuffer frame = rpc.slice().limit(frameLength);
+            rpc.position(rpc.position() + frameLength);
+            final long id = frame.getLong();
+            ((MyHttpServer) server).serve(this, id, Rpc.readRequest(frame));
+        }
+        rpc.compact();
+    }
+
+    /**
+     * Sends reply to request of inter-node protocol.
+     *
+     * @param id    request id
+     * @param reply reply
+     */
+    void reply(final long id, @NotNull final Rpc.Reply reply) {
+        final byte[] frame = reply.encode(id);
+        try {
+            write(frame, 0, frame.length);
+        } catch (IOException e) {
+            logger.debug("Can't send reply", e);
+        }
+    }
+
+    /**
+     * Streams records of iterator as they are written to socket.
+     *
+     * @param records records
+     * @param encoder compressor of body or null
+     * @throws IOException if an I/O error occurred
+     */
+    void stream(@NotNull final Iterator<Record> records, @Nullable final ChunkEncoder encoder) throws IOException {
         this.records = records;
+        start(encoder);
+        next();
+    }
+
+    /**
+     * Streams records of asynchronous source. Next records are pulled only when
+     * the previous ones are written to socket, so a slow client slows the source down.
+     *
+     * @param source  source of records
+     * @param encoder compressor of body or null
+     * @throws IOException if an I/O error occurred
+     */
+    void stream(@NotNull final RecordSource source, @Nullable final ChunkEncoder encoder) throws IOException {
+        stream(() -> source.next().thenApply(StorageSession::payloads), encoder);
+    }
 
+    /**
+     * Streams pieces of body produced by asynchronous source. Next pieces are pulled only when
+     * the previous ones are written to socket, the source is closed if the connection is closed earlier.
+     *
+     * @param source  source of body pieces
+     * @param encoder compressor of body or null
+     * @throws IOException if an I/O error occurred
+     */
+    void stream(@NotNull final ChunkSource source, @Nullable final ChunkEncoder encoder) throws IOException {
+        this.source = source;
+        start(encoder);
+        pull();
+    }
+
+    private void start(@Nullable final ChunkEncoder encoder) throws IOException {
+        this.encoder = encoder;
         final Response response = new Response(Response.OK);
         response.addHeader("Transfer-Encoding: chunked");
+        if (encoder != null) {
+            response.addHeader("Content-Encoding: " + encoder.coding());
+            response.addHeader("Vary: Accept-Encoding");
+        }
         writeResponse(response, false);
-        next();
+    }
+
+    private void send(@NotNull final Record record, final boolean flush) throws IOException {
+        final ChunkEncoder current = encoder;
+        final byte[] chunk = current == null ? chunk(record) : current.encode(payload(record), flush);
+        if (chunk.length > 0) {
+            write(chunk, 0, chunk.length);
+        }
+    }
+
+    private void send(@NotNull final byte[] payload, final boolean flush) throws IOException {
+        final ChunkEncoder current = encoder;
+        final byte[] chunk = current == null ? chunk(payload) : current.encode(payload, flush);
+        if (chunk.length > 0) {
+            write(chunk, 0, chunk.length);
+        }
+    }
+
+    @Override
+    protected int getMaxRequestBodyLength() {
+        return MAX_BODY;
+    }
+
+    @Override
+    protected void writeResponse(final Response response, final boolean includeBody) throws IOException {
+        if (response instanceof StreamedResponse) {
+            super.writeResponse(response, false);
+            if (includeBody) {
+                write(((StreamedResponse) response).item());
+            }
+        } else {
+            super.writeResponse(response, includeBody);
+        }
     }
 
     @Override
     protected void processWrite() throws Exception {
         super.processWrite();
-        next();
+        if (records != null) {
+            next();
+        } else if (source != null && isDrained()) {
+            pull();
+        }
+    }
+
+    private synchronized boolean isDrained() {
+        return queueHead == null;
+    }
+
+    private void pull() {
+        final ChunkSource current = source;
+        if (current == null || !pulling.compareAndSet(false, true)) {
+            return;
+        }
+        current.next().whenComplete((batch, error) -> {
+            try {
+                if (error != null) {
+                    logger.error("Stream failed", error);
+                    // Client sees the response cut short rather than incomplete data
+                    close();
+                } else if (batch.isEmpty()) {
+                    finish();
+                } else {
+                    for (int i = 0; i < batch.size(); i++) {
+                        send(batch.get(i), i == batch.size() - 1);
+                    }
+                    pulling.set(false);
+                    if (isDrained()) {
+                        pull();
+                    }
+                }
+            } catch (IOException e) {
+                logger.debug("Can't write stream", e);
+                close();
+            }
+        });
     }
 
     private void next() throws IOException {
@@ -49,37 +317,79 @@ public final class StorageSession extends HttpSession {
             throw new IllegalStateException("Data can't be null");
         }
         while (records.hasNext() && queueHead == null) {
-            final Record record = records.next();
-            final byte[] key = Bytes.toArray(record.getKey());
-            final byte[] value = Bytes.toArray(record.getValue());
-            final int payloadLength = key.length + LF.length + value.length;
-            final String size = Integer.toHexString(payloadLength);
-            final int chunkLength = size.length() + CRLF.length + payloadLength + CRLF.length;
-            buildChunk(size, key, value, chunkLength);
+            send(records.next(), false);
         }
         if (!records.hasNext()) {
-            write(EMPTY_CHUNK, 0, EMPTY_CHUNK.length);
+            finish();
+        }
+    }
 
-            server.incRequestsProcessed();
+    private synchronized void finish() throws IOException {
+        release(handling);
+        records = null;
+        source = null;
+        pulling.set(false);
+        if (encoder != null) {
+            final byte[] last = encoder.finish();
+            encoder = null;
+            write(last, 0, last.length);
+        }
+        write(EMPTY_CHUNK, 0, EMPTY_CHUNK.length);
 
-            if ((handling = pipeline.pollFirst()) != null) {
-                if (handling == FIN) {
-                    scheduleClose();
-                } else {
-                    try {
-                        server.handleRequest(handling, this);
-                    } catch (IOException e) {
-                        logger.error("Can't process next request" + handling, e);
-                    }
+        server.incRequestsProcessed();
+
+        if ((handling = pipeline.pollFirst()) != null) {
+            if (handling == FIN) {
+                scheduleClose();
+            } else {
+                try {
+                    server.handleRequest(handling, this);
+                } catch (IOException e) {
+                    logger.error("Can't process next request" + handling, e);
                 }
             }
         }
     }
 
-    private void buildChunk(@NotNull final String size,
-                            final byte[] key,
-                            final byte[] value,
-                            final int chunkLength) throws IOException {
+    @NotNull
+    private static List<byte[]> payloads(@NotNull final List<Record> records) {
+        final List<byte[]> payloads = new ArrayList<>(records.size());
+        for (final Record record : records) {
+            payloads.add(payload(record));
+        }
+        return payloads;
+    }
+
+    @NotNull
+    private static byte[] payload(@NotNull final Record record) {
+        final ByteBuffer key = record.getKey();
+        final ByteBuffer value = record.getValue();
+        final byte[] payload = new byte[key.remaining() + LF.length + value.remaining()];
+        ByteBuffer.wrap(payload).put(key.duplicate()).put(LF).put(value.duplicate());
+        return payload;
+    }
+
+    @NotNull
+    private static byte[] chunk(@NotNull final byte[] payload) {
+        final byte[] size = Integer.toHexString(payload.length).getBytes(Charsets.UTF_8);
+        final byte[] chunk = new byte[size.length + CRLF.length + payload.length + CRLF.length];
+        ByteBuffer.wrap(chunk).put(size).put(CRLF).put(payload).put(CRLF);
+        return chunk;
+    }
+
+    /**
+     * Encodes record as a single chunk of chunked transfer encoding.
+     *
+     * @param record record to encode
+     * @return chunk bytes
+     */
+    @NotNull
+    static byte[] chunk(@NotNull final Record record) {
+        final byte[] key = Bytes.toArray(record.getKey());
+        final byte[] value = Bytes.toArray(record.getValue());
+        final int payloadLength = key.length + LF.length + value.length;
+        final String size = Integer.toHexString(payloadLength);
+        final int chunkLength = size.length() + CRLF.length + payloadLength + CRLF.length;
         final byte[] chunk = new byte[chunkLength];
         final ByteBuffer buffer = ByteBuffer.wrap(chunk);
         buffer.put(size.getBytes(Charsets.UTF_8));
@@ -88,6 +398,6 @@ public final class StorageSession extends HttpSession {
         buffer.put(LF);
         buffer.put(value);
         buffer.put(CRLF);
-        write(chunk, 0, chunk.length);
+        return chunk;
     }
 }
@@ -0,0 +1,99 @@
+package ru.mail.polis.service.prohladenn;
+
+import one.nio.http.Response;
+import one.nio.net.Session;
+import one.nio.net.Socket;
+import org.jetbrains.annotations.NotNull;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * Response with body written to socket straight from buffer, see {@link StorageSession}.
+ * Saves copying a large value into a heap array of the whole response,
+ * read-only heap buffers of the memTable are written through a small reusable chunk.
+ */
+final class StreamedResponse extends Response {
+    private static final int CHUNK_BYTES = 64 * 1024;
+
+    @NotNull
+    private final ByteBuffer body;
+
+    /**
+     * Creates response.
+     *
+     * @param resultCode status line
+     * @param body       body, read from its position to limit
+     */
+    StreamedResponse(@NotNull final String resultCode, @NotNull final ByteBuffer body) {
+        super(resultCode);
+        this.body = body;
+        addHeader("Content-Length: " + body.remaining());
+    }
+
+    /**
+     * Copies body, prefer {@link #item()}.
+     *
+     * @return body
+     */
+    @Override
+    public byte[] getBody() {
+        final byte[] copy = new byte[body.remaining()];
+        body.duplicate().get(copy);
+        return copy;
+    }
+
+    /**
+     * Creates item writing body to socket as it becomes writable.
+     *
+     * @return queue item
+     */
+    @NotNull
+    Session.QueueItem item() {
+        final ByteBuffer remaining = body.duplicate();
+        if (remaining.isDirect() || remaining.hasArray()) {
+            return new Session.QueueItem() {
+                @Override
+                public int remaining() {
+                    return remaining.remaining();
+                }
+
+                @Override
+                public int write(final Socket socket) throws IOException {
+                    return socket.write(remaining);
+                }
+            };
+        }
+        // Socket writes a heap buffer from its array only, a read-only one goes through a chunk instead of a copy
+        return new Session.QueueItem() {
+            private final byte[] chunk = new byte[Math.min(CHUNK_BYTES, remaining.remaining())];
+            private int offset;
+            private int length;
+
+            @Override
+            public int remaining() {
+                return length - offset + remaining.remaining();
+            }
+
+            @Override
+            public int write(final Socket socket) throws IOException {
+                int written = 0;
+                while (remaining() > 0) {
+                    if (offset == length) {
+                        length = Math.min(chunk.length, remaining.remaining());
+                        remaining.get(chunk, 0, length);
+                        offset = 0;
+                    }
+                    final int bytes = socket.write(chunk, offset, length - offset);
+                    offset += bytes;
+                    written += bytes;
+                    if (offset < length) {
+                        // Socket buffer is full
+                        break;
+                    }
+                }
+                return written;
+            }
+        };
+    }
+}
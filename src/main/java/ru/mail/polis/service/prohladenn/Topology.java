@@ -4,6 +4,7 @@ import org.jetbrains.annotations.NotNull;
 
 import javax.annotation.concurrent.ThreadSafe;
 import java.nio.ByteBuffer;
+import java.util.List;
 import java.util.Set;
 
 @ThreadSafe
@@ -15,6 +16,28 @@ public interface Topology<T> {
 
     int indexPrimaryFor(@NotNull ByteBuffer key);
 
+    /**
+     * Returns nodes responsible for the key, primary first.
+     *
+     * @param key   key
+     * @param count number of replicas, at most size of the cluster
+     * @return distinct nodes
+     */
+    @NotNull
+    List<T> replicasFor(@NotNull ByteBuffer key, int count);
+
     @NotNull
     Set<T> all();
+
+    /**
+     * Returns nodes which are about to become responsible for the key and should get its writes too.
+     *
+     * @param key   key
+     * @param count number of replicas
+     * @return nodes not among {@link #replicasFor} ones, empty unless membership is changing
+     */
+    @NotNull
+    default List<T> handoffFor(@NotNull final ByteBuffer key, final int count) {
+        return List.of();
+    }
 }
@@ -0,0 +1,159 @@
+package ru.mail.polis.service.prohladenn;
+
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import javax.annotation.concurrent.ThreadSafe;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Phase timings of a single request on this node.
+ * Coordinator keeps replica spans together with timings reported by replicas themselves,
+ * so it is visible whether time went into our queue, the storage or a peer.
+ */
+@ThreadSafe
+public final class Trace {
+    public static final String QUEUE = "queue";
+    public static final String LOCAL = "local";
+
+    private final String id;
+    private final String method;
+    private final String key;
+    private final boolean proxied;
+    private final long start;
+    private final List<Span> spans = new ArrayList<>(4);
+    private long duration = -1L;
+
+    private static final class Span {
+        final String name;
+        final long offset;
+        final long duration;
+        @Nullable
+        final String remote;
+
+        Span(@NotNull final String name,
+             final long offset,
+             final long duration,
+             @Nullable final String remote) {
+            this.name = name;
+            this.offset = offset;
+            this.duration = duration;
+            this.remote = remote;
+        }
+    }
+
+    /**
+     * Starts trace of a request.
+     *
+     * @param id      id given by coordinator or null to generate a new one
+     * @param method  request method
+     * @param key     requested key
+     * @param proxied whether request came from another node
+     * @param start   arrival time in nanoseconds
+     */
+    public Trace(@Nullable final String id,
+                 @NotNull final String method,
+                 @NotNull final String key,
+                 final boolean proxied,
+                 final long start) {
+        this.id = id == null || id.isEmpty() ? Long.toHexString(ThreadLocalRandom.current().nextLong()) : id;
+        this.method = method;
+        this.key = key;
+        this.proxied = proxied;
+        this.start = start;
+    }
+
+    @NotNull
+    public String getId() {
+        return id;
+    }
+
+    public boolean isProxied() {
+        return proxied;
+    }
+
+    public long getStart() {
+        return start;
+    }
+
+    /**
+     * Records phase of this node.
+     *
+     * @param name phase name
+     * @param from phase start in nanoseconds
+     * @param to   phase end in nanoseconds
+     */
+    public synchronized void span(@NotNull final String name, final long from, final long to) {
+        spans.add(new Span(name, from - start, to - from, null));
+    }
+
+    /**
+     * Records request to replica.
+     *
+     * @param node    replica
+     * @param from    send time in nanoseconds
+     * @param to      receive time in nanoseconds
+     * @param timings phases reported by replica, null if it did not answer
+     */
+    public synchronized void remote(@NotNull final String node,
+                                    final long from,
+                                    final long to,
+                                    @Nullable final String timings) {
+        spans.add(new Span(node, from - start, to - from, timings == null ? "failed" : timings));
+    }
+
+    /**
+     * Completes trace.
+     *
+     * @param end completion time in nanoseconds
+     * @return total duration in nanoseconds
+     */
+    public synchronized long finish(final long end) {
+        duration = end - start;
+        return duration;
+    }
+
+    /**
+     * Returns own phases to be reported back to coordinator.
+     *
+     * @return phases as {@code name=micros} separated by semicolon
+     */
+    @NotNull
+    public synchronized String timings() {
+        final StringBuilder result = new StringBuilder();
+        for (final Span span : spans) {
+            if (span.remote != null) {
+                continue;
+            }
+            if (result.length() > 0) {
+                result.append(';');
+            }
+            result.append(span.name).append('=').append(TimeUnit.NANOSECONDS.toMicros(span.duration));
+        }
+        return result.toString();
+    }
+
+    @Override
+    public synchronized String toString() {
+        final StringBuilder result = new StringBuilder();
+        result.append(id).append(' ').append(method).append(' ').append(key)
+                .append(proxied ? " proxied" : " coordinated")
+                .append(" total=").append(millis(duration));
+        for (final Span span : spans) {
+            result.append(' ').append(span.name).append("@+").append(millis(span.offset))
+                    .append('=').append(millis(span.duration));
+            if (span.remote != null) {
+                result.append('[').append(span.remote).append(']');
+            }
+        }
+        return result.toString();
+    }
+
+    private static String millis(final long nanos) {
+        return String.format(Locale.ENGLISH, "%.3fms", nanos / 1e6);
+    }
+}
@@ -1,27 +1,26 @@
 package ru.mail.polis.service.prohladenn;
 
-import one.nio.http.Response;
 import org.jetbrains.annotations.NotNull;
 import ru.mail.polis.prohladenn.Cell;
 import ru.mail.polis.prohladenn.LSMDao;
 
-import java.io.IOException;
-import java.net.http.HttpResponse;
 import java.nio.ByteBuffer;
 import java.nio.charset.StandardCharsets;
-import java.util.Arrays;
 import java.util.Collection;
 import java.util.Comparator;
-import java.util.Iterator;
-import java.util.Locale;
-
-import static ru.mail.polis.service.prohladenn.MyHttpServer.TIMESTAMP_HEADER_DEFAULT;
 
 public final class Value implements Comparable<Value> {
+    /**
+     * Values of at least this size are not copied out of storage and are streamed to clients.
+     */
+    public static final int STREAM_THRESHOLD = 64 * 1024;
+
     private static final Value ABSENT = new Value(-1, null, State.ABSENT);
 
     private final long ts;
-    private byte[] data;
+    private final byte[] data;
+    // Large value as stored, must not be modified
+    private final ByteBuffer buffer;
 
     public enum State {
         PRESENT,
@@ -31,57 +30,76 @@ public final class Value implements Comparable<Value> {
 
     private final State state;
 
+    /**
+     * Creates value, data is not copied and must not be modified afterwards.
+     *
+     * @param ts    timestamp
+     * @param data  data or null
+     * @param state state
+     */
     Value(final long ts, final byte[] data, @NotNull final State state) {
         this.ts = ts;
-        if (data != null) {
-            this.data = new byte[data.length];
-            System.arraycopy(data, 0, this.data, 0, data.length);
-        }
+        this.data = data;
+        this.buffer = null;
         this.state = state;
     }
 
+    private Value(final long ts, @NotNull final ByteBuffer buffer) {
+        this.ts = ts;
+        this.data = null;
+        this.buffer = buffer.duplicate();
+        this.state = State.PRESENT;
+    }
+
     @NotNull
     public State getState() {
         return state;
     }
 
     /**
-     * Returns data.
+     * Returns data, which must not be modified.
+     * Data of a large value read from storage is copied to heap on every call.
      *
      * @return data
      */
     public byte[] getData() {
+        if (buffer != null) {
+            final byte[] copy = new byte[buffer.remaining()];
+            buffer.duplicate().get(copy);
+            return copy;
+        }
         if (data == null) {
             throw new IllegalArgumentException("Cell data is null");
         }
-        return Arrays.copyOf(data, data.length);
+        return data;
     }
 
     /**
-     * Returns data.
+     * Returns data without copying it.
      *
-     * @param response response
-     * @return data
+     * @return data, which must not be modified
      */
-    public static Value getValueFromResponse(@NotNull final HttpResponse<byte[]> response) {
-        final String timestamp = response
-                .headers()
-                .firstValue(TIMESTAMP_HEADER_DEFAULT.toLowerCase(Locale.ENGLISH))
-                .orElse(null);
-        if (timestamp == null) {
-            return Value.absent();
+    @NotNull
+    public ByteBuffer getBuffer() {
+        if (buffer != null) {
+            return buffer.duplicate();
         }
-        switch (response.statusCode()) {
-            case 200: {
-                return Value.present(response.body(), Long.parseLong(timestamp));
-            }
-            case 404: {
-                return Value.removed(Long.parseLong(timestamp));
-            }
-            default: {
-                return Value.absent();
-            }
+        if (data == null) {
+            throw new IllegalArgumentException("Cell data is null");
+        }
+        return ByteBuffer.wrap(data);
+    }
+
+    /**
+     * Returns data length.
+     *
+     * @return length of data
+     */
+    public int size() {
+        if (buffer != null) {
+            return buffer.remaining();
         }
+        return data == null ? 0 : data.length;
     }
 
     @Override
@@ -99,6 +117,25 @@ public final class Value implements Comparable<Value> {
         return new Value(timestamp, data, State.PRESENT);
     }
 
+    /**
+     * Creates present value known by timestamp only.
+     *
+     * @param timestamp timestamp
+     * @return value without data
+     */
+    public static Value digest(final long timestamp) {
+        return new Value(timestamp, null, State.PRESENT);
+    }
+
+    /**
+     * Checks if value is present, but its data was not fetched.
+     *
+     * @return true if value is a digest
+     */
+    public boolean isDigest() {
+        return state == State.PRESENT && data == null && buffer == null;
+    }
+
     public static Value removed(final long ts) {
         return new Value(ts, null, State.REMOVED);
     }
@@ -108,7 +145,7 @@ public final class Value implements Comparable<Value> {
     }
 
     /**
-     * Merge and get latest value.
+     * Merge and get latest value, of equally recent ones a value with data rather than a digest.
      *
      * @param values collection
      * @return merged value of collection
@@ -117,40 +154,10 @@ public final class Value implements Comparable<Value> {
     public static Value merge(@NotNull final Collection<Value> values) {
         return values.stream()
                 .filter(value -> value.getState() != State.ABSENT)
-                .max(Comparator.comparingLong(Value::getTimeStamp))
+                .max(Comparator.comparingLong(Value::getTimeStamp).thenComparing(value -> !value.isDigest()))
                 .orElseGet(Value::absent);
     }
 
-    /**
-     * Get value from response.
-     *
-     * @param response response
-     * @return value
-     * @throws IOException if an I/O error occurred
-     */
-    @NotNull
-    public static Value from(@NotNull final Response response) throws IOException {
-        final String ts = response.getHeader(MyHttpServer.TIMESTAMP_HEADER);
-        final int status = response.getStatus();
-        if (status == 200) {
-            if (ts == null) {
-                throw new IllegalArgumentException("Wrong input data");
-            }
-            return Value.present(
-                    response.getBody(),
-                    Long.parseLong(ts)
-            );
-        } else if (status == 404) {
-            if (ts == null) {
-                return Value.absent();
-            } else {
-                return Value.removed(Long.parseLong(ts));
-            }
-        } else {
-            throw new IOException("Wrong status");
-        }
-    }
-
     public static Value get(final String key, @NotNull final LSMDao dao) {
         return get(key.getBytes(StandardCharsets.UTF_8), dao);
     }
@@ -163,21 +170,17 @@ public final class Value implements Comparable<Value> {
      * @return value from dao
      */
     public static Value get(final byte[] key, @NotNull final LSMDao dao) {
-        final ByteBuffer k = ByteBuffer.wrap(key);
-        final Iterator<Cell> cells = dao.latestIterator(k);
-        if (!cells.hasNext()) {
-            return Value.absent();
-        }
-
-        final Cell cell = cells.next();
-        if (!cell.getKey().equals(k)) {
+        final Cell cell = dao.latest(ByteBuffer.wrap(key));
+        if (cell == null) {
             return Value.absent();
         }
 
-        if (cell.getValue().getData() == null) {
+        final ByteBuffer v = cell.getValue().getData();
+        if (v == null) {
             return Value.removed(cell.getValue().getTimeStamp());
+        } else if (v.remaining() >= STREAM_THRESHOLD) {
+            return new Value(cell.getValue().getTimeStamp(), v);
         } else {
-            final ByteBuffer v = cell.getValue().getData();
             final byte[] buf = new byte[v.remaining()];
             v.duplicate().get(buf);
             return Value.present(buf, cell.getValue().getTimeStamp());
@@ -0,0 +1,138 @@
+package ru.mail.polis.service.prohladenn;
+
+import org.jetbrains.annotations.NotNull;
+import ru.mail.polis.service.prohladenn.factors.TimeToLive;
+
+import javax.annotation.concurrent.GuardedBy;
+import javax.annotation.concurrent.ThreadSafe;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Groups writes to a single peer into {@link Rpc#BATCH} requests.
+ * A write to an idle peer is sent at once. While a batch is awaiting reply, writes accumulate
+ * and are sent when the reply comes, when {@link #MAX_ENTRIES} are queued or after
+ * {@link #WINDOW_MICROS}, whichever is first, so batches grow with load only.
+ */
+@ThreadSafe
+final class WriteBatcher {
+    static final int MAX_ENTRIES = 256;
+    static final long WINDOW_MICROS = 300;
+
+    private final RpcClient client;
+    private final Executor timer = CompletableFuture.delayedExecutor(WINDOW_MICROS, TimeUnit.MICROSECONDS);
+    private final Object lock = new Object();
+    @GuardedBy("lock")
+    private List<Rpc.Request> requests = new ArrayList<>();
+    @GuardedBy("lock")
+    private List<CompletableFuture<Rpc.Reply>> replies = new ArrayList<>();
+    @GuardedBy("lock")
+    private int inflight;
+    @GuardedBy("lock")
+    private boolean scheduled;
+
+    /**
+     * Creates batcher.
+     *
+     * @param client client of peer
+     */
+    WriteBatcher(@NotNull final RpcClient client) {
+        this.client = client;
+    }
+
+    /**
+     * Sends write, possibly with others.
+     *
+     * @param request {@link Rpc#PUT} or {@link Rpc#DELETE} request
+     * @return future reply to this request
+     */
+    @NotNull
+    CompletableFuture<Rpc.Reply> write(@NotNull final Rpc.Request request) {
+        final CompletableFuture<Rpc.Reply> reply = new CompletableFuture<>();
+        boolean flush = false;
+        synchronized (lock) {
+            requests.add(request);
+            replies.add(reply);
+            if (inflight == 0 || requests.size() >= MAX_ENTRIES) {
+                flush = true;
+            } else if (!scheduled) {
+                scheduled = true;
+                timer.execute(this::expire);
+            }
+        }
+        if (flush) {
+            flush();
+        }
+        return reply;
+    }
+
+    private void expire() {
+        synchronized (lock) {
+            scheduled = false;
+        }
+        flush();
+    }
+
+    private void flush() {
+        final List<Rpc.Request> batch;
+        final List<CompletableFuture<Rpc.Reply>> waiting;
+        synchronized (lock) {
+            if (requests.isEmpty()) {
+                return;
+            }
+            batch = requests;
+            waiting = replies;
+            requests = new ArrayList<>();
+            replies = new ArrayList<>();
+            inflight++;
+        }
+        send(batch, waiting).whenComplete((ignored, error) -> {
+            synchronized (lock) {
+                inflight--;
+            }
+            flush();
+        });
+    }
+
+    @NotNull
+    private CompletableFuture<Void> send(@NotNull final List<Rpc.Request> batch,
+                                         @NotNull final List<CompletableFuture<Rpc.Reply>> waiting) {
+        if (batch.size() == 1) {
+            return client.call(batch.get(0)).handle((reply, error) -> {
+                complete(waiting.get(0), reply, error);
+                return null;
+            });
+        }
+        final Rpc.Request request = new Rpc.Request(Rpc.BATCH, TimeToLive.EMPTY.getTtl(), batch.get(0).trace,
+                new byte[0], Rpc.encodeBatch(batch));
+        return client.call(request).handle((reply, error) -> {
+            final List<Rpc.Reply> parts = error == null && reply.status == Rpc.DONE && reply.value != null
+                    ? Rpc.readReplies(reply.value)
+                    : List.of();
+            for (int i = 0; i < waiting.size(); i++) {
+                if (i < parts.size()) {
+                    final Rpc.Reply part = parts.get(i);
+                    waiting.get(i).complete(new Rpc.Reply(part.status, part.timestamp, reply.timings, part.value));
+                } else if (error == null) {
+                    waiting.get(i).complete(new Rpc.Reply(Rpc.ERROR, 0L, reply.timings, null));
+                } else {
+                    waiting.get(i).completeExceptionally(error);
+                }
+            }
+            return null;
+        });
+    }
+
+    private static void complete(@NotNull final CompletableFuture<Rpc.Reply> waiting,
+                                 final Rpc.Reply reply,
+                                 final Throwable error) {
+        if (error == null) {
+            waiting.complete(reply);
+        } else {
+            waiting.completeExceptionally(error);
+        }
+    }
+}
@@ -0,0 +1,63 @@
+package ru.mail.polis.service.prohladenn.factors;
+
+import org.jetbrains.annotations.NotNull;
+
+import java.util.HashSet;
+import java.util.Set;
+
+/**
+ * Entity tags of {@code If-None-Match} header. The tag of a value is its timestamp,
+ * assigned by the coordinator of the write and stored by every replica,
+ * so a tag doesn't depend on which replicas answered a read.
+ */
+public class EntityTag {
+    private final Set<Long> timestamps;
+    private final boolean any;
+
+    private EntityTag(@NotNull final Set<Long> timestamps, final boolean any) {
+        this.timestamps = timestamps;
+        this.any = any;
+    }
+
+    /**
+     * Parses {@code If-None-Match} header, tags not produced by {@link #of(long)} never match.
+     *
+     * @param value header value
+     * @return tags
+     */
+    @NotNull
+    public static EntityTag of(@NotNull final String value) {
+        final Set<Long> timestamps = new HashSet<>();
+        for (final String item : value.split(",")) {
+            final String trimmed = item.trim();
+            if ("*".equals(trimmed)) {
+                return new EntityTag(timestamps, true);
+            }
+            // Weak comparison
+            final String tag = trimmed.startsWith("W/") ? trimmed.substring(2) : trimmed;
+            if (tag.length() > 2 && tag.charAt(0) == '"' && tag.charAt(tag.length() - 1) == '"') {
+                try {
+                    timestamps.add(Long.parseLong(tag.substring(1, tag.length() - 1)));
+                } catch (NumberFormatException e) {
+                    // Not ours
+                }
+            }
+        }
+        return new EntityTag(timestamps, false);
+    }
+
+    /**
+     * Formats tag of value.
+     *
+     * @param timestamp value timestamp
+     * @return value of {@code ETag} header
+     */
+    @NotNull
+    public static String of(final long timestamp) {
+        return "\"" + timestamp + "\"";
+    }
+
+    public boolean matches(final long timestamp) {
+        return any || timestamps.contains(timestamp);
+    }
+}
@@ -36,4 +36,21 @@ public class ReplicaFactor {
     public int getFrom() {
         return from;
     }
+
+    @Override
+    public boolean equals(final Object o) {
+        if (this == o) {
+            return true;
+        }
+        if (!(o instanceof ReplicaFactor)) {
+            return false;
+        }
+        final ReplicaFactor that = (ReplicaFactor) o;
+        return ack == that.ack && from == that.from;
+    }
+
+    @Override
+    public int hashCode() {
+        return 31 * ack + from;
+    }
 }
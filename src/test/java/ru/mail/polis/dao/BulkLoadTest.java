@@ -0,0 +1,151 @@
+package ru.mail.polis.dao;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import ru.mail.polis.Record;
+import ru.mail.polis.TestBase;
+import ru.mail.polis.prohladenn.LSMDao;
+import ru.mail.polis.prohladenn.TableTool;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.TreeMap;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Tests for tables built offline and ingested bypassing the write path.
+ */
+class BulkLoadTest extends TestBase {
+    @Test
+    void buildAndIngest(@TempDir File dir) throws IOException {
+        final File data = new File(dir, "data");
+        assertTrue(data.mkdir());
+        final Map<String, String> expected = new TreeMap<>();
+        for (int i = 0; i < 1000; i++) {
+            expected.put(randomId(), Integer.toString(i));
+        }
+        final StringBuilder lines = new StringBuilder();
+        expected.forEach((key, value) -> lines.append(key).append('\t').append(value).append('\n'));
+        final File input = new File(dir, "input.tsv");
+        Files.writeString(input.toPath(), lines);
+        final File table = new File(dir, "bulk" + LSMDao.SUFFIX);
+        TableTool.main(new String[]{"build", "--input=" + input, "--output=" + table});
+
+        final String overwritten = expected.keySet().iterator().next();
+        try (DAO dao = DAOFactory.create(data)) {
+            dao.upsert(buffer("older"), buffer("value"));
+            ((LSMDao) dao).ingest(table.toPath());
+            dao.upsert(buffer(overwritten), buffer("newer"));
+        }
+        // Source stays intact once linked
+        assertTrue(table.exists());
+        expected.put(overwritten, "newer");
+        expected.put("older", "value");
+        try (DAO dao = DAOFactory.create(data)) {
+            check(dao, expected);
+            dao.compact();
+            check(dao, expected);
+        }
+    }
+
+    @Test
+    void rejectUnsorted(@TempDir File dir) throws IOException {
+        final File input = new File(dir, "input.tsv");
+        Files.write(input.toPath(), List.of("b\t1", "a\t2"));
+        final File table = new File(dir, "bulk" + LSMDao.SUFFIX);
+        assertThrows(IllegalArgumentException.class,
+                () -> TableTool.main(new String[]{"build", "--input=" + input, "--output=" + table}));
+        assertFalse(table.exists());
+    }
+
+    @Test
+    void rejectMalformed(@TempDir File dir) throws IOException {
+        final File data = new File(dir, "data");
+        assertTrue(data.mkdir());
+        final File table = new File(dir, "bulk" + LSMDao.SUFFIX);
+        Files.write(table.toPath(), new byte[]{0, 0, 0, 5, 1, 2, 3});
+        try (DAO dao = DAOFactory.create(data)) {
+            assertThrows(IOException.class, () -> ((LSMDao) dao).ingest(table.toPath()));
+            assertFalse(dao.iterator(LSMDao.EMPTY).hasNext());
+        }
+        try (DAO dao = DAOFactory.create(data)) {
+            assertFalse(dao.iterator(LSMDao.EMPTY).hasNext());
+        }
+    }
+
+    @Test
+    void exportAndImport(@TempDir File dir) throws IOException {
+        final File source = new File(dir, "source");
+        final File target = new File(dir, "target");
+        assertTrue(source.mkdir());
+        assertTrue(target.mkdir());
+        final ByteBuffer removed = randomKeyBuffer();
+        final ByteBuffer key = randomKeyBuffer();
+        final ByteBuffer value = randomBuffer(64 * 1024);
+        try (DAO dao = DAOFactory.create(target)) {
+            dao.upsert(removed, randomValueBuffer());
+        }
+        try (DAO dao = DAOFactory.create(source)) {
+            dao.upsert(removed, randomValueBuffer());
+            dao.remove(removed);
+            dao.upsert(key, value);
+        }
+        final File table = new File(dir, "snapshot" + LSMDao.SUFFIX);
+        TableTool.main(new String[]{"export", "--data=" + source, "--output=" + table});
+        TableTool.main(new String[]{"import", "--data=" + target, "--table=" + table});
+        try (DAO dao = DAOFactory.create(target)) {
+            assertThrows(NoSuchElementException.class, () -> dao.get(removed));
+            assertEquals(value, dao.get(key));
+        }
+    }
+
+    @Test
+    void exportInParts(@TempDir File dir) throws IOException {
+        final File source = new File(dir, "source");
+        final File target = new File(dir, "target");
+        assertTrue(source.mkdir());
+        assertTrue(target.mkdir());
+        final Map<String, String> expected = new TreeMap<>();
+        for (int i = 0; i < 1000; i++) {
+            expected.put(randomId(), randomId());
+        }
+        try (LSMDao from = (LSMDao) DAOFactory.create(source);
+             LSMDao to = (LSMDao) DAOFactory.create(target)) {
+            for (final Map.Entry<String, String> entry : expected.entrySet()) {
+                from.upsert(buffer(entry.getKey()), buffer(entry.getValue()));
+            }
+            int parts = 0;
+            ByteBuffer next = LSMDao.EMPTY;
+            while (next != null) {
+                final File table = new File(dir, "part" + parts++ + LSMDao.SUFFIX);
+                next = from.export(next, table, 16 * 1024);
+                assertTrue(table.length() <= 16 * 1024);
+                to.ingest(table.toPath());
+            }
+            assertTrue(parts > 1);
+            check(to, expected);
+        }
+    }
+
+    private static ByteBuffer buffer(final String text) {
+        return ByteBuffer.wrap(text.getBytes(StandardCharsets.UTF_8));
+    }
+
+    private static void check(final DAO dao, final Map<String, String> expected) throws IOException {
+        final Iterator<Record> records = dao.iterator(LSMDao.EMPTY);
+        for (final Map.Entry<String, String> entry : expected.entrySet()) {
+            final Record record = records.next();
+            assertEquals(buffer(entry.getKey()), record.getKey());
+            assertEquals(buffer(entry.getValue()), record.getValue());
+        }
+        assertFalse(records.hasNext());
+    }
+}
@@ -0,0 +1,72 @@
+package ru.mail.polis.dao;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import ru.mail.polis.Record;
+import ru.mail.polis.TestBase;
+import ru.mail.polis.prohladenn.LSMDao;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.TreeMap;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Tests for checkpoints of hard linked storage files.
+ */
+class CheckpointTest extends TestBase {
+    private static final int LARGE = 64 * 1024;
+
+    @Test
+    void survivesCompaction(@TempDir File dir) throws IOException {
+        final File data = new File(dir, "data");
+        final File checkpoint = new File(dir, "checkpoint");
+        assertTrue(data.mkdir());
+        final Map<ByteBuffer, ByteBuffer> expected = new TreeMap<>();
+        for (int round = 0; round < 3; round++) {
+            try (DAO dao = DAOFactory.create(data)) {
+                for (int i = 0; i < 20; i++) {
+                    final ByteBuffer key = randomKeyBuffer();
+                    final ByteBuffer value = i % 2 == 0 ? randomBuffer(LARGE) : randomValueBuffer();
+                    dao.upsert(key, value);
+                    expected.put(key, value);
+                }
+            }
+        }
+        try (DAO dao = DAOFactory.create(data)) {
+            // Some data is in memTable only
+            final ByteBuffer key = randomKeyBuffer();
+            final ByteBuffer value = randomBuffer(LARGE);
+            dao.upsert(key, value);
+            expected.put(key, value);
+            final ByteBuffer removed = expected.keySet().iterator().next();
+            dao.remove(removed);
+            expected.remove(removed);
+
+            assertTrue(((LSMDao) dao).checkpoint(checkpoint) > 0);
+            assertThrows(IOException.class, () -> ((LSMDao) dao).checkpoint(checkpoint));
+            // Storage drops and rewrites the files linked
+            for (final ByteBuffer overwritten : expected.keySet()) {
+                dao.upsert(overwritten, randomBuffer(LARGE));
+            }
+            dao.compact();
+        }
+        try (DAO dao = DAOFactory.create(checkpoint)) {
+            check(dao, expected);
+        }
+    }
+
+    private static void check(final DAO dao, final Map<ByteBuffer, ByteBuffer> expected) throws IOException {
+        final Iterator<Record> records = dao.iterator(LSMDao.EMPTY);
+        for (final Map.Entry<ByteBuffer, ByteBuffer> entry : expected.entrySet()) {
+            final Record record = records.next();
+            assertEquals(entry.getKey(), record.getKey());
+            assertEquals(entry.getValue(), record.getValue());
+        }
+        assertFalse(records.hasNext());
+    }
+}
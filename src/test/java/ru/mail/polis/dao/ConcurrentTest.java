@@ -3,8 +3,12 @@ package ru.mail.polis.dao;
 import java.io.File;
 import java.io.IOException;
 import java.nio.ByteBuffer;
+import java.util.Iterator;
 import java.util.Map;
+import java.util.Queue;
 import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ConcurrentSkipListMap;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.ThreadPoolExecutor;
 import java.util.concurrent.TimeUnit;
@@ -18,6 +22,8 @@ import ru.mail.polis.Record;
 import ru.mail.polis.TestBase;
 
 import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
 
 /**
  * Concurrency tests for {@link DAO}.
@@ -59,6 +65,48 @@ class ConcurrentTest extends TestBase {
         concurrentReadWrite(10, 1_000_000, data);
     }
 
+    @Test
+    void sortedScanAfterConcurrentWrites(@TempDir File data) throws IOException, InterruptedException {
+        final int threadsCount = 8;
+        final Map<ByteBuffer, ByteBuffer> expected = new ConcurrentSkipListMap<>();
+        final Queue<Throwable> errors = new ConcurrentLinkedQueue<>();
+        try (final DAO dao = DAOFactory.create(data)) {
+            final Thread[] writers = new Thread[threadsCount];
+            for (int i = 0; i < threadsCount; i++) {
+                writers[i] = new Thread(() -> {
+                    for (int j = 0; j < 1000; j++) {
+                        final ByteBuffer key = randomKeyBuffer();
+                        final ByteBuffer value = randomValueBuffer();
+                        try {
+                            dao.upsert(key, value);
+                        } catch (IOException e) {
+                            throw new RuntimeException(e);
+                        }
+                        expected.put(key, value);
+                    }
+                });
+                writers[i].setUncaughtExceptionHandler((writer, e) -> errors.add(e));
+                writers[i].start();
+            }
+            for (final Thread writer : writers) {
+                writer.join();
+            }
+            assertTrue(errors.isEmpty(), () -> "Writers failed: " + errors);
+            // Point lookups search the stripe of the key only
+            for (final Map.Entry<ByteBuffer, ByteBuffer> entry : expected.entrySet()) {
+                assertEquals(entry.getValue(), dao.get(entry.getKey()));
+            }
+            // Keys of all stripes come back merged in order
+            final Iterator<Record> records = dao.iterator(ByteBuffer.allocate(0));
+            for (final Map.Entry<ByteBuffer, ByteBuffer> entry : expected.entrySet()) {
+                final Record record = records.next();
+                assertEquals(entry.getKey(), record.getKey());
+                assertEquals(entry.getValue(), record.getValue());
+            }
+            assertFalse(records.hasNext());
+        }
+    }
+
     private void concurrentWrites(int threadsCount,
                                   int recordsCount, int samplePeriod,
                                   @NotNull final File data)
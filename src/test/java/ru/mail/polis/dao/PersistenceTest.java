@@ -21,10 +21,12 @@ import org.junit.jupiter.api.Test;
 import org.junit.jupiter.api.io.TempDir;
 import ru.mail.polis.Files;
 import ru.mail.polis.TestBase;
+import ru.mail.polis.prohladenn.LSMDao;
 
 import java.io.File;
 import java.io.IOException;
 import java.nio.ByteBuffer;
+import java.nio.file.Path;
 import java.util.ArrayList;
 import java.util.Collection;
 import java.util.HashMap;
@@ -257,4 +259,27 @@ class PersistenceTest extends TestBase {
             }
         }
     }
+
+    @Test
+    void convertOlderFormat(@TempDir File data) throws IOException {
+        // Table of a live cell and a tombstone without expiration as written before the format trailer
+        final ByteBuffer table = ByteBuffer.allocate(18 + 13 + Integer.BYTES * 3);
+        table.putInt(1).put((byte) 'k').putLong(1L).putInt(1).put((byte) 'v');
+        table.putInt(1).put((byte) 'm').putLong(-2L);
+        table.putInt(0).putInt(18).putInt(2);
+        java.nio.file.Files.write(Path.of(data.getPath(), 1 + LSMDao.TABLE + LSMDao.SUFFIX), table.array());
+        for (int i = 0; i < 2; i++) {
+            try (DAO dao = DAOFactory.create(data)) {
+                assertEquals(ByteBuffer.wrap(new byte[]{'v'}), dao.get(ByteBuffer.wrap(new byte[]{'k'})));
+                assertThrows(NoSuchElementException.class, () -> dao.get(ByteBuffer.wrap(new byte[]{'m'})));
+            }
+        }
+    }
+
+    @Test
+    void rejectUnknownFormat(@TempDir File data) throws IOException {
+        java.nio.file.Files.write(Path.of(data.getPath(), 1 + LSMDao.TABLE + LSMDao.SUFFIX), new byte[]{1, 2, 3, 4, 5});
+        final IOException e = assertThrows(IOException.class, () -> DAOFactory.create(data));
+        assertTrue(e.getMessage().contains("format"));
+    }
 }
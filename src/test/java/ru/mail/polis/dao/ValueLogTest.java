@@ -0,0 +1,114 @@
+package ru.mail.polis.dao;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import ru.mail.polis.Files;
+import ru.mail.polis.Record;
+import ru.mail.polis.TestBase;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.TreeMap;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Tests for values separated from tables into the value log.
+ */
+class ValueLogTest extends TestBase {
+    private static final int LARGE = 64 * 1024;
+
+    @Test
+    void mixedSizes(@TempDir File data) throws IOException {
+        final Map<ByteBuffer, ByteBuffer> expected = new TreeMap<>();
+        for (int round = 0; round < 3; round++) {
+            try (DAO dao = DAOFactory.create(data)) {
+                for (int i = 0; i < 20; i++) {
+                    final ByteBuffer key = randomKeyBuffer();
+                    final ByteBuffer value = i % 2 == 0 ? randomBuffer(LARGE) : randomValueBuffer();
+                    dao.upsert(key, value);
+                    expected.put(key, value);
+                }
+            }
+        }
+        try (DAO dao = DAOFactory.create(data)) {
+            final Iterator<ByteBuffer> keys = expected.keySet().iterator();
+            for (int i = 0; i < 10; i++) {
+                final ByteBuffer key = keys.next();
+                dao.remove(key);
+                keys.remove();
+            }
+            check(dao, expected);
+            dao.compact();
+            check(dao, expected);
+        }
+        try (DAO dao = DAOFactory.create(data)) {
+            check(dao, expected);
+        }
+    }
+
+    @Test
+    void reclaimOverwritten(@TempDir File data) throws IOException {
+        final ByteBuffer key = randomKeyBuffer();
+        final ByteBuffer value = randomBuffer(LARGE);
+        for (int round = 0; round < 100; round++) {
+            try (DAO dao = DAOFactory.create(data)) {
+                dao.upsert(key, randomBuffer(LARGE));
+            }
+        }
+        try (DAO dao = DAOFactory.create(data)) {
+            dao.upsert(key, value);
+            dao.compact();
+            assertEquals(value, dao.get(key));
+        }
+        assertTrue(Files.directorySize(data) < 4 * LARGE);
+        try (DAO dao = DAOFactory.create(data)) {
+            assertEquals(value, dao.get(key));
+        }
+    }
+
+    @Test
+    void scanAcrossCompactions(@TempDir File data) throws IOException {
+        final Map<ByteBuffer, ByteBuffer> expected = new TreeMap<>();
+        try (DAO dao = DAOFactory.create(data)) {
+            for (int i = 0; i < 10; i++) {
+                final ByteBuffer key = randomKeyBuffer();
+                final ByteBuffer value = randomBuffer(LARGE);
+                dao.upsert(key, value);
+                expected.put(key, value);
+            }
+        }
+        try (DAO dao = DAOFactory.create(data)) {
+            final Iterator<Record> records = dao.iterator(ByteBuffer.allocate(0));
+            // Segments of values being scanned are deleted by the compactions meanwhile
+            for (int round = 0; round < 3; round++) {
+                for (final ByteBuffer key : expected.keySet()) {
+                    dao.upsert(key, randomBuffer(LARGE));
+                }
+                dao.compact();
+            }
+            for (final Map.Entry<ByteBuffer, ByteBuffer> entry : expected.entrySet()) {
+                final Record record = records.next();
+                assertEquals(entry.getKey(), record.getKey());
+                assertEquals(entry.getValue(), record.getValue());
+            }
+            assertFalse(records.hasNext());
+        }
+    }
+
+    private static void check(final DAO dao, final Map<ByteBuffer, ByteBuffer> expected) throws IOException {
+        for (final Map.Entry<ByteBuffer, ByteBuffer> entry : expected.entrySet()) {
+            assertEquals(entry.getValue(), dao.get(entry.getKey()));
+        }
+        final Iterator<Record> records = dao.iterator(ByteBuffer.allocate(0));
+        for (final Map.Entry<ByteBuffer, ByteBuffer> entry : expected.entrySet()) {
+            final Record record = records.next();
+            assertEquals(entry.getKey(), record.getKey());
+            assertEquals(entry.getValue(), record.getValue());
+        }
+        assertFalse(records.hasNext());
+    }
+}
@@ -0,0 +1,56 @@
+package ru.mail.polis.load;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.Random;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class LatencyHistogramTest {
+    @Test
+    void empty() {
+        final LatencyHistogram histogram = new LatencyHistogram();
+        assertEquals(0L, histogram.getCount());
+        assertEquals(0L, histogram.percentile(99));
+    }
+
+    @Test
+    void bucketsAreContiguous() {
+        int previous = -1;
+        for (long value = 0; value < 1 << 20; value++) {
+            final int index = LatencyHistogram.indexOf(value);
+            assertTrue(index == previous || index == previous + 1);
+            assertTrue(LatencyHistogram.highestEquivalent(index) >= value);
+            previous = index;
+        }
+    }
+
+    @Test
+    void percentilesWithinPrecision() {
+        final LatencyHistogram histogram = new LatencyHistogram();
+        for (long value = 1; value <= 100_000; value++) {
+            histogram.record(value);
+        }
+        assertEquals(100_000L, histogram.getCount());
+        assertEquals(100_000L, histogram.getMax());
+        assertEquals(50_000.0, histogram.percentile(50), 50_000 * 0.02);
+        assertEquals(99_000.0, histogram.percentile(99), 99_000 * 0.02);
+        assertEquals(100_000L, histogram.percentile(100));
+    }
+
+    @Test
+    void zipfianPrefersHotKeys() {
+        final KeyChooser.ZipfianRank rank = new KeyChooser.ZipfianRank(1000);
+        final Random random = new Random(1);
+        int hot = 0;
+        for (int i = 0; i < 10_000; i++) {
+            final long next = rank.next(random);
+            assertTrue(0 <= next && next < 1000);
+            if (next < 10) {
+                hot++;
+            }
+        }
+        // First 1% of ranks receive about 40% of requests for theta 0.99
+        assertTrue(hot > 3000);
+    }
+}
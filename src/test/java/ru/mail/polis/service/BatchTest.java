@@ -0,0 +1,167 @@
+package ru.mail.polis.service;
+
+import one.nio.http.HttpClient;
+import one.nio.http.Request;
+import one.nio.http.Response;
+import one.nio.net.ConnectionString;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import ru.mail.polis.Files;
+import ru.mail.polis.TestBase;
+import ru.mail.polis.dao.DAO;
+import ru.mail.polis.dao.DAOFactory;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Tests for {@code /v0/batch} on a three node cluster.
+ */
+class BatchTest extends TestBase {
+    private static final Duration TIMEOUT = Duration.ofMinutes(1);
+    private static final int NODES = 3;
+    private final File[] data = new File[NODES];
+    private final DAO[] daos = new DAO[NODES];
+    private final Service[] storages = new Service[NODES];
+    private HttpClient client;
+
+    @BeforeEach
+    void beforeEach() throws Exception {
+        final int[] ports = new int[NODES];
+        final Set<String> topology = new LinkedHashSet<>();
+        for (int i = 0; i < NODES; i++) {
+            ports[i] = randomPort();
+            topology.add(endpoint(ports[i]));
+        }
+        for (int i = 0; i < NODES; i++) {
+            data[i] = Files.createTempDirectory();
+            daos[i] = DAOFactory.create(data[i]);
+            storages[i] = ServiceFactory.create(ports[i], daos[i], topology);
+            storages[i].start();
+        }
+        Thread.sleep(TimeUnit.SECONDS.toMillis(1));
+        client = new HttpClient(new ConnectionString(endpoint(ports[0]) + "?timeout=" + TIMEOUT.toMillis() / 2));
+    }
+
+    @AfterEach
+    void afterEach() throws IOException {
+        client.close();
+        for (int i = 0; i < NODES; i++) {
+            storages[i].stop();
+            daos[i].close();
+            Files.recursiveDelete(data[i]);
+        }
+    }
+
+    private static byte[] body(final List<String> keys, final List<byte[]> values) throws IOException {
+        final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        try (DataOutputStream out = new DataOutputStream(bytes)) {
+            for (int i = 0; i < keys.size(); i++) {
+                final byte[] key = keys.get(i).getBytes(StandardCharsets.UTF_8);
+                out.writeInt(key.length);
+                out.write(key);
+                if (values != null) {
+                    out.writeInt(values.get(i).length);
+                    out.write(values.get(i));
+                }
+            }
+        }
+        return bytes.toByteArray();
+    }
+
+    private Response batch(final int method, final String query, final byte[] body) throws Exception {
+        final Request request = client.createRequest(method, "/v0/batch" + query);
+        request.addHeader("Content-Length: " + body.length);
+        request.setBody(body);
+        return client.invoke(request);
+    }
+
+    private static void assertResults(final Response response,
+                                      final List<String> keys,
+                                      final int status,
+                                      final List<byte[]> values) {
+        assertEquals(200, response.getStatus());
+        final ByteBuffer in = ByteBuffer.wrap(response.getBody());
+        for (int i = 0; i < keys.size(); i++) {
+            final byte[] key = new byte[in.getInt()];
+            in.get(key);
+            assertEquals(keys.get(i), new String(key, StandardCharsets.UTF_8));
+            assertEquals(status, in.getInt());
+            final int length = in.getInt();
+            if (values == null) {
+                assertEquals(-1, length);
+            } else {
+                final byte[] value = new byte[length];
+                in.get(value);
+                assertArrayEquals(values.get(i), value);
+            }
+        }
+        assertFalse(in.hasRemaining());
+    }
+
+    @Test
+    void upsertGetDelete() {
+        assertTimeoutPreemptively(TIMEOUT, () -> {
+            final List<String> keys = new ArrayList<>();
+            final List<byte[]> values = new ArrayList<>();
+            for (int i = 0; i < 50; i++) {
+                keys.add(randomId());
+                values.add(randomValue());
+            }
+            assertResults(batch(Request.METHOD_PUT, "?replicas=2/3", body(keys, values)), keys, 201, null);
+            assertResults(batch(Request.METHOD_POST, "?replicas=2/3", body(keys, null)), keys, 200, values);
+            final Response single = client.get("/v0/entity?id=" + keys.get(0) + "&replicas=2/3");
+            assertArrayEquals(values.get(0), single.getBody());
+            assertResults(batch(Request.METHOD_DELETE, "?replicas=2/3", body(keys, null)), keys, 202, null);
+            assertResults(batch(Request.METHOD_POST, "?replicas=2/3", body(keys, null)), keys, 404, null);
+        });
+    }
+
+    @Test
+    void valuesPastReplyLimit() {
+        assertTimeoutPreemptively(TIMEOUT, () -> {
+            // Together values exceed a single reply of a replica, the rest are fetched separately
+            final List<String> keys = new ArrayList<>();
+            final List<byte[]> values = new ArrayList<>();
+            for (int i = 0; i < 5; i++) {
+                keys.add(randomId());
+                values.add(randomBuffer(512 * 1024).array());
+                final Response put = client.put("/v0/entity?id=" + keys.get(i) + "&replicas=3/3", values.get(i));
+                assertEquals(201, put.getStatus());
+            }
+            assertResults(batch(Request.METHOD_POST, "?replicas=3/3", body(keys, null)), keys, 200, values);
+        });
+    }
+
+    @Test
+    void unavailableReplicas() {
+        assertTimeoutPreemptively(TIMEOUT, () -> {
+            final List<String> keys = List.of(randomId(), randomId());
+            storages[1].stop();
+            storages[2].stop();
+            assertResults(batch(Request.METHOD_POST, "?replicas=2/3", body(keys, null)), keys, 504, null);
+        });
+    }
+
+    @Test
+    void badRequests() {
+        assertTimeoutPreemptively(TIMEOUT, () -> {
+            assertEquals(400, batch(Request.METHOD_POST, "", new byte[]{0, 0, 0, 100, 1}).getStatus());
+            assertEquals(400, batch(Request.METHOD_PUT, "?replicas=4/3", new byte[0]).getStatus());
+            assertEquals(405, client.get("/v0/batch").getStatus());
+        });
+    }
+}
@@ -0,0 +1,151 @@
+package ru.mail.polis.service;
+
+import one.nio.http.HttpClient;
+import one.nio.http.Request;
+import one.nio.http.Response;
+import one.nio.net.ConnectionString;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import ru.mail.polis.Files;
+import ru.mail.polis.TestBase;
+import ru.mail.polis.dao.DAO;
+import ru.mail.polis.dao.DAOFactory;
+import ru.mail.polis.prohladenn.LSMDao;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.time.Duration;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Set;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Tests for exporting storage of a node and ingesting it into another one, and for checkpoints.
+ */
+class BulkLoadTest extends TestBase {
+    private static final Duration TIMEOUT = Duration.ofMinutes(1);
+    private static final int NODES = 2;
+    private final File[] data = new File[NODES];
+    private final DAO[] daos = new DAO[NODES];
+    private final Service[] storages = new Service[NODES];
+    private final HttpClient[] clients = new HttpClient[NODES];
+
+    @BeforeEach
+    void beforeEach() throws Exception {
+        for (int i = 0; i < NODES; i++) {
+            final int port = randomPort();
+            final String endpoint = endpoint(port);
+            data[i] = Files.createTempDirectory();
+            daos[i] = DAOFactory.create(data[i]);
+            // Separate single node clusters
+            storages[i] = ServiceFactory.create(port, daos[i], Set.of(endpoint));
+            storages[i].start();
+            clients[i] = new HttpClient(new ConnectionString(endpoint + "?timeout=" + TIMEOUT.toMillis() / 2));
+        }
+    }
+
+    @AfterEach
+    void afterEach() throws IOException {
+        for (int i = 0; i < NODES; i++) {
+            clients[i].close();
+            storages[i].stop();
+            daos[i].close();
+            Files.recursiveDelete(data[i]);
+        }
+    }
+
+    private Response ingest(final String query, final byte[] body) throws Exception {
+        final Request request = clients[1].createRequest(Request.METHOD_PUT, "/v0/admin/ingest" + query);
+        request.addHeader("Content-Length: " + body.length);
+        request.setBody(body);
+        return clients[1].invoke(request);
+    }
+
+    @Test
+    void exportAndIngest() {
+        assertTimeoutPreemptively(TIMEOUT, () -> {
+            final Map<String, byte[]> values = new HashMap<>();
+            for (int i = 0; i < 100; i++) {
+                final String id = randomId();
+                final byte[] value = i % 10 == 0 ? new byte[64 * 1024] : randomValue();
+                values.put(id, value);
+                assertEquals(201, clients[0].put("/v0/entity?id=" + id, value).getStatus());
+            }
+            final String deleted = randomId();
+            assertEquals(201, clients[1].put("/v0/entity?id=" + deleted, randomValue()).getStatus());
+            assertEquals(202, clients[0].delete("/v0/entity?id=" + deleted).getStatus());
+
+            final Response export = clients[0].get("/v0/admin/export");
+            assertEquals(200, export.getStatus());
+            assertEquals(201, ingest("", export.getBody()).getStatus());
+            for (final Map.Entry<String, byte[]> entry : values.entrySet()) {
+                final Response response = clients[1].get("/v0/entity?id=" + entry.getKey());
+                assertEquals(200, response.getStatus());
+                assertArrayEquals(entry.getValue(), response.getBody());
+            }
+            assertEquals(404, clients[1].get("/v0/entity?id=" + deleted).getStatus());
+        });
+    }
+
+    @Test
+    void ingestFile() {
+        assertTimeoutPreemptively(TIMEOUT, () -> {
+            final String id = randomId();
+            final byte[] value = randomValue();
+            assertEquals(201, clients[0].put("/v0/entity?id=" + id, value).getStatus());
+            final byte[] exported = clients[0].get("/v0/admin/export").getBody();
+            final File staging = new File(data[1], LSMDao.STAGING);
+            java.nio.file.Files.createDirectories(staging.toPath());
+            final String name = randomId() + ".db";
+            final File table = new File(staging, name);
+            java.nio.file.Files.write(table.toPath(), exported);
+            assertEquals(201, ingest("?file=" + name, new byte[0]).getStatus());
+            assertArrayEquals(value, clients[1].get("/v0/entity?id=" + id).getBody());
+            assertEquals(201, ingest("?file=" + table.getAbsolutePath(), new byte[0]).getStatus());
+            assertEquals(400, ingest("?file=" + name + ".missing", new byte[0]).getStatus());
+            assertEquals(400, ingest("?file=" + name, value).getStatus());
+        });
+    }
+
+    @Test
+    void ingestOutsideStaging() {
+        assertTimeoutPreemptively(TIMEOUT, () -> {
+            final File table = new File(data[1].getParentFile(), randomId() + ".db");
+            try {
+                java.nio.file.Files.write(table.toPath(), clients[0].get("/v0/admin/export").getBody());
+                assertEquals(400, ingest("?file=" + table.getAbsolutePath(), new byte[0]).getStatus());
+                assertEquals(400, ingest("?file=../../" + table.getName(), new byte[0]).getStatus());
+                assertEquals(400, ingest("?file=", new byte[0]).getStatus());
+            } finally {
+                java.nio.file.Files.deleteIfExists(table.toPath());
+            }
+        });
+    }
+
+    @Test
+    void checkpointInStaging() {
+        assertTimeoutPreemptively(TIMEOUT, () -> {
+            final String id = randomId();
+            final byte[] value = randomValue();
+            assertEquals(201, clients[0].put("/v0/entity?id=" + id, value).getStatus());
+            assertEquals(201, checkpoint("checkpoint").getStatus());
+            final File checkpoint = new File(new File(data[0], LSMDao.STAGING), "checkpoint");
+            try (DAO dao = DAOFactory.create(checkpoint)) {
+                assertEquals(ByteBuffer.wrap(value), dao.get(ByteBuffer.wrap(id.getBytes(UTF_8))));
+            }
+            final File outside = new File(data[0].getParentFile(), randomId());
+            assertEquals(400, checkpoint(outside.getAbsolutePath()).getStatus());
+            assertEquals(400, checkpoint("../" + outside.getName()).getStatus());
+            assertFalse(outside.exists());
+        });
+    }
+
+    private Response checkpoint(final String dir) throws Exception {
+        return clients[0].post("/v0/admin/checkpoint?dir=" + dir);
+    }
+}
@@ -0,0 +1,179 @@
+package ru.mail.polis.service;
+
+import one.nio.http.HttpClient;
+import one.nio.http.Request;
+import one.nio.http.Response;
+import one.nio.net.ConnectionString;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import ru.mail.polis.Files;
+import ru.mail.polis.dao.DAO;
+import ru.mail.polis.dao.DAOFactory;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.util.Collections;
+import java.util.LinkedHashSet;
+import java.util.Locale;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.InflaterInputStream;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Tests for {@code /v0/entities} merged from all nodes of a three node cluster.
+ */
+class ClusterRangeTest extends ClusterTestBase {
+    private static final Duration TIMEOUT = Duration.ofMinutes(1);
+    private static final int NODES = 3;
+    private final int[] ports = new int[NODES];
+    private final File[] data = new File[NODES];
+    private final DAO[] daos = new DAO[NODES];
+    private final Service[] storages = new Service[NODES];
+
+    @BeforeEach
+    void beforeEach() throws Exception {
+        endpoints = new LinkedHashSet<>();
+        for (int i = 0; i < NODES; i++) {
+            ports[i] = randomPort();
+            endpoints.add(endpoint(ports[i]));
+        }
+        for (int i = 0; i < NODES; i++) {
+            data[i] = Files.createTempDirectory();
+            daos[i] = DAOFactory.create(data[i]);
+            storages[i] = ServiceFactory.create(ports[i], daos[i], endpoints);
+            start(i, storages[i]);
+        }
+    }
+
+    @AfterEach
+    void afterEach() throws IOException {
+        for (int i = 0; i < NODES; i++) {
+            stop(i, storages[i]);
+            daos[i].close();
+            Files.recursiveDelete(data[i]);
+        }
+        endpoints = Collections.emptySet();
+    }
+
+    private byte[] range(final int node, final String start, final String end) throws Exception {
+        return range(node, start, end, null);
+    }
+
+    private byte[] range(final int node,
+                         final String start,
+                         final String end,
+                         final String coding) throws Exception {
+        final HttpClient client = new HttpClient(new ConnectionString(
+                endpoint(ports[node]) + "?timeout=" + TIMEOUT.toMillis() / 2));
+        try {
+            final Request request = client.createRequest(Request.METHOD_GET,
+                    "/v0/entities?start=" + start + "&end=" + end);
+            if (coding != null) {
+                request.addHeader("Accept-Encoding: " + coding);
+            }
+            final Response response = client.invoke(request);
+            assertEquals(200, response.getStatus());
+            assertEquals(coding, response.getHeader("Content-Encoding: "));
+            if (coding == null) {
+                return response.getBody();
+            }
+            final ByteArrayInputStream body = new ByteArrayInputStream(response.getBody());
+            try (InputStream in = "gzip".equals(coding) ? new GZIPInputStream(body) : new InflaterInputStream(body)) {
+                return in.readAllBytes();
+            }
+        } finally {
+            client.close();
+        }
+    }
+
+    private static byte[] chunks(final Map<String, String> records) throws IOException {
+        final ByteArrayOutputStream out = new ByteArrayOutputStream();
+        for (final Map.Entry<String, String> record : records.entrySet()) {
+            out.write(record.getKey().getBytes(StandardCharsets.UTF_8));
+            out.write('\n');
+            out.write(record.getValue().getBytes(StandardCharsets.UTF_8));
+        }
+        return out.toByteArray();
+    }
+
+    private static String key(final int i) {
+        return String.format(Locale.ENGLISH, "key%05d", i);
+    }
+
+    @Test
+    void mergedFromAllNodes() {
+        assertTimeoutPreemptively(TIMEOUT, () -> {
+            final Map<String, String> expected = new TreeMap<>();
+            // More keys than fit a page, each on a single node
+            for (int i = 0; i < 1500; i++) {
+                final String value = "value" + i;
+                assertEquals(201, upsert(i % NODES, key(i), value.getBytes(StandardCharsets.UTF_8), 1, 1)
+                        .getStatus());
+                expected.put(key(i), value);
+            }
+            for (int i = 0; i < 1500; i += 7) {
+                assertEquals(202, delete((i + 1) % NODES, key(i), NODES, NODES).getStatus());
+                expected.remove(key(i));
+            }
+            for (int i = 1; i < 1500; i += 5) {
+                final String value = "newer" + i;
+                assertEquals(201, upsert((i + 2) % NODES, key(i), value.getBytes(StandardCharsets.UTF_8), 1, 1)
+                        .getStatus());
+                expected.put(key(i), value);
+            }
+            final byte[] all = chunks(expected);
+            for (int node = 0; node < NODES; node++) {
+                assertArrayEquals(all, range(node, key(0), key(1500)));
+            }
+            assertArrayEquals(chunks(((TreeMap<String, String>) expected).subMap(key(100), key(200))),
+                    range(1, key(100), key(200)));
+        });
+    }
+
+    @Test
+    void compressed() {
+        assertTimeoutPreemptively(TIMEOUT, () -> {
+            final Map<String, String> expected = new TreeMap<>();
+            for (int i = 0; i < 300; i++) {
+                // Large compressible values are deflated between nodes too
+                final String value = ("{\"value\": " + i + "}").repeat(i % 3 == 0 ? 100 : 1);
+                assertEquals(201, upsert(i % NODES, key(i), value.getBytes(StandardCharsets.UTF_8), 2, 3)
+                        .getStatus());
+                expected.put(key(i), value);
+            }
+            for (int i = 0; i < 300; i += 3) {
+                final Response response = get((i + 1) % NODES, key(i), 3, 3);
+                assertEquals(expected.get(key(i)), new String(response.getBody(), StandardCharsets.UTF_8));
+            }
+            final byte[] all = chunks(expected);
+            assertArrayEquals(all, range(0, key(0), key(300), "gzip"));
+            assertArrayEquals(all, range(1, key(0), key(300), "deflate"));
+            assertArrayEquals(all, range(2, key(0), key(300), null));
+        });
+    }
+
+    @Test
+    void survivesNodeFailure() {
+        assertTimeoutPreemptively(TIMEOUT, () -> {
+            final Map<String, String> expected = new TreeMap<>();
+            for (int i = 0; i < 100; i++) {
+                final String value = "value" + i;
+                assertEquals(201, upsert(0, key(i), value.getBytes(StandardCharsets.UTF_8), 2, 2).getStatus());
+                expected.put(key(i), value);
+            }
+            stop(2, storages[2]);
+            TimeUnit.MILLISECONDS.sleep(100);
+            assertArrayEquals(chunks(expected), range(0, key(0), key(100)));
+        });
+    }
+}
@@ -0,0 +1,106 @@
+package ru.mail.polis.service;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import ru.mail.polis.Files;
+import ru.mail.polis.dao.DAO;
+import ru.mail.polis.dao.DAOFactory;
+
+import java.io.File;
+import java.io.IOException;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Tests for many concurrent replicated writes, which are sent to peers in batches.
+ */
+class ConcurrentWritesTest extends ClusterTestBase {
+    private static final Duration TIMEOUT = Duration.ofMinutes(1);
+    private static final int NODES = 3;
+    private static final int THREADS = 8;
+    private static final int WRITES = 200;
+    private final File[] data = new File[NODES];
+    private final DAO[] daos = new DAO[NODES];
+    private final Service[] storages = new Service[NODES];
+
+    @BeforeEach
+    void beforeEach() throws Exception {
+        final int[] ports = new int[NODES];
+        endpoints = new LinkedHashSet<>();
+        for (int i = 0; i < NODES; i++) {
+            ports[i] = randomPort();
+            endpoints.add(endpoint(ports[i]));
+        }
+        for (int i = 0; i < NODES; i++) {
+            data[i] = Files.createTempDirectory();
+            daos[i] = DAOFactory.create(data[i]);
+            storages[i] = ServiceFactory.create(ports[i], daos[i], endpoints);
+            start(i, storages[i]);
+        }
+    }
+
+    @AfterEach
+    void afterEach() throws IOException {
+        for (int i = 0; i < NODES; i++) {
+            stop(i, storages[i]);
+            daos[i].close();
+            Files.recursiveDelete(data[i]);
+        }
+        endpoints = Collections.emptySet();
+    }
+
+    @Test
+    void allWritesApplied() {
+        assertTimeoutPreemptively(TIMEOUT, () -> {
+            final List<String> keys = new ArrayList<>();
+            final List<byte[]> values = new ArrayList<>();
+            for (int i = 0; i < THREADS * WRITES; i++) {
+                keys.add(randomId());
+                values.add(randomValue());
+            }
+            // Create clients before they are shared
+            for (int node = 0; node < NODES; node++) {
+                get(node, keys.get(0));
+            }
+            final ExecutorService executor = Executors.newFixedThreadPool(THREADS);
+            try {
+                final List<Future<?>> writers = new ArrayList<>();
+                for (int t = 0; t < THREADS; t++) {
+                    final int thread = t;
+                    writers.add(executor.submit(() -> {
+                        for (int i = thread; i < keys.size(); i += THREADS) {
+                            final int status = i % 5 == 0
+                                    ? delete(i % NODES, keys.get(i), NODES, NODES).getStatus()
+                                    : upsert(i % NODES, keys.get(i), values.get(i), NODES, NODES).getStatus();
+                            assertEquals(i % 5 == 0 ? 202 : 201, status);
+                        }
+                        return null;
+                    }));
+                }
+                for (final Future<?> writer : writers) {
+                    writer.get();
+                }
+            } finally {
+                executor.shutdown();
+            }
+            for (int i = 0; i < keys.size(); i++) {
+                for (int node = 0; node < NODES; node++) {
+                    if (i % 5 == 0) {
+                        assertEquals(404, get(node, keys.get(i)).getStatus());
+                    } else {
+                        assertArrayEquals(values.get(i), get(node, keys.get(i)).getBody());
+                    }
+                }
+            }
+        });
+    }
+}
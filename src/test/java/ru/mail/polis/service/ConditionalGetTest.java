@@ -0,0 +1,125 @@
+package ru.mail.polis.service;
+
+import one.nio.http.HttpClient;
+import one.nio.http.Request;
+import one.nio.http.Response;
+import one.nio.net.ConnectionString;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import ru.mail.polis.Files;
+import ru.mail.polis.TestBase;
+import ru.mail.polis.dao.DAO;
+import ru.mail.polis.dao.DAOFactory;
+
+import java.io.File;
+import java.io.IOException;
+import java.time.Duration;
+import java.util.LinkedHashSet;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Tests for {@code ETag} and {@code If-None-Match} of {@code /v0/entity} on a three node cluster.
+ */
+class ConditionalGetTest extends TestBase {
+    private static final Duration TIMEOUT = Duration.ofMinutes(1);
+    private static final int NODES = 3;
+    private final File[] data = new File[NODES];
+    private final DAO[] daos = new DAO[NODES];
+    private final Service[] storages = new Service[NODES];
+    private final int[] ports = new int[NODES];
+    private HttpClient client;
+
+    @BeforeEach
+    void beforeEach() throws Exception {
+        final Set<String> topology = new LinkedHashSet<>();
+        for (int i = 0; i < NODES; i++) {
+            ports[i] = randomPort();
+            topology.add(endpoint(ports[i]));
+        }
+        for (int i = 0; i < NODES; i++) {
+            data[i] = Files.createTempDirectory();
+            daos[i] = DAOFactory.create(data[i]);
+            storages[i] = ServiceFactory.create(ports[i], daos[i], topology);
+            storages[i].start();
+        }
+        Thread.sleep(TimeUnit.SECONDS.toMillis(1));
+        client = new HttpClient(new ConnectionString(endpoint(ports[0]) + "?timeout=" + TIMEOUT.toMillis() / 2));
+    }
+
+    @AfterEach
+    void afterEach() throws IOException {
+        client.close();
+        for (int i = 0; i < NODES; i++) {
+            storages[i].stop();
+            daos[i].close();
+            Files.recursiveDelete(data[i]);
+        }
+    }
+
+    private Response get(final String id, final String match) throws Exception {
+        final Request request = client.createRequest(Request.METHOD_GET, "/v0/entity?id=" + id + "&replicas=2/3");
+        if (match != null) {
+            request.addHeader("If-None-Match: " + match);
+        }
+        return client.invoke(request);
+    }
+
+    @Test
+    void notModified() {
+        assertTimeoutPreemptively(TIMEOUT, () -> {
+            final String id = randomId();
+            final byte[] value = randomValue();
+            assertEquals(201, client.put("/v0/entity?id=" + id + "&replicas=3/3", value).getStatus());
+            final Response first = get(id, null);
+            assertEquals(200, first.getStatus());
+            final String tag = first.getHeader("ETag: ");
+            assertNotNull(tag);
+
+            final Response cached = get(id, tag);
+            assertEquals(304, cached.getStatus());
+            assertEquals(0, cached.getBody().length);
+            assertEquals(tag, cached.getHeader("ETag: "));
+            assertEquals(304, get(id, "\"1\", W/" + tag).getStatus());
+            assertEquals(304, get(id, "*").getStatus());
+
+            final byte[] updated = randomValue();
+            assertEquals(201, client.put("/v0/entity?id=" + id + "&replicas=3/3", updated).getStatus());
+            final Response changed = get(id, tag);
+            assertEquals(200, changed.getStatus());
+            assertArrayEquals(updated, changed.getBody());
+            assertNotEquals(tag, changed.getHeader("ETag: "));
+
+            assertEquals(202, client.delete("/v0/entity?id=" + id + "&replicas=3/3").getStatus());
+            assertEquals(404, get(id, "*").getStatus());
+        });
+    }
+
+    @Test
+    void sameTagOnEveryReplica() {
+        assertTimeoutPreemptively(TIMEOUT, () -> {
+            final String id = randomId();
+            assertEquals(201, client.put("/v0/entity?id=" + id + "&replicas=3/3", randomValue()).getStatus());
+            final String tag = get(id, null).getHeader("ETag: ");
+            assertNotNull(tag);
+            for (int i = 0; i < NODES; i++) {
+                final HttpClient node = new HttpClient(
+                        new ConnectionString(endpoint(ports[i]) + "?timeout=" + TIMEOUT.toMillis() / 2));
+                try {
+                    final Response local = node.get("/v0/entity?id=" + id + "&replicas=1/3");
+                    assertEquals(200, local.getStatus());
+                    assertEquals(tag, local.getHeader("ETag: "));
+                    final Request request = node.createRequest(Request.METHOD_GET,
+                            "/v0/entity?id=" + id + "&replicas=1/3");
+                    request.addHeader("If-None-Match: " + tag);
+                    assertEquals(304, node.invoke(request).getStatus());
+                } finally {
+                    node.close();
+                }
+            }
+        });
+    }
+}
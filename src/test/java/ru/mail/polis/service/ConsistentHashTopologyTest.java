@@ -0,0 +1,86 @@
+package ru.mail.polis.service;
+
+import org.junit.jupiter.api.Test;
+import ru.mail.polis.TestBase;
+import ru.mail.polis.service.prohladenn.ConsistentHashTopology;
+import ru.mail.polis.service.prohladenn.Topology;
+
+import java.nio.ByteBuffer;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Placement properties of {@link ConsistentHashTopology}.
+ */
+class ConsistentHashTopologyTest extends TestBase {
+    private static final int KEYS = 20_000;
+
+    private static Set<String> nodes(final int count) {
+        final Set<String> result = new LinkedHashSet<>();
+        for (int i = 0; i < count; i++) {
+            result.add(endpoint(8080 + i));
+        }
+        return result;
+    }
+
+    private static ByteBuffer key(final int i) {
+        return ByteBuffer.wrap(("key" + i).getBytes());
+    }
+
+    @Test
+    void sameOnEveryNode() {
+        final Set<String> nodes = nodes(3);
+        final Topology<String> first = new ConsistentHashTopology(nodes, endpoint(8080));
+        final Topology<String> second = new ConsistentHashTopology(nodes, endpoint(8082));
+        for (int i = 0; i < KEYS; i++) {
+            final List<String> replicas = first.replicasFor(key(i), 3);
+            assertEquals(replicas, second.replicasFor(key(i), 3));
+            assertEquals(3, new HashSet<>(replicas).size());
+            assertEquals(first.primaryFor(key(i)), replicas.get(0));
+            assertEquals(replicas.subList(0, 2), first.replicasFor(key(i), 2));
+        }
+    }
+
+    @Test
+    void balanced() {
+        final int size = 5;
+        final Topology<String> topology = new ConsistentHashTopology(nodes(size), endpoint(8080));
+        final Map<String, Integer> load = new HashMap<>();
+        for (int i = 0; i < KEYS; i++) {
+            load.merge(topology.primaryFor(key(i)), 1, Integer::sum);
+        }
+        assertEquals(size, load.size());
+        for (final int keys : load.values()) {
+            assertTrue(keys > KEYS / size * 0.7 && keys < KEYS / size * 1.3, load::toString);
+        }
+    }
+
+    @Test
+    void growingMovesFewKeys() {
+        final Topology<String> before = new ConsistentHashTopology(nodes(4), endpoint(8080));
+        final Topology<String> after = new ConsistentHashTopology(nodes(5), endpoint(8080));
+        int moved = 0;
+        for (int i = 0; i < KEYS; i++) {
+            final String primary = after.primaryFor(key(i));
+            if (!primary.equals(before.primaryFor(key(i)))) {
+                // Keys only move to the new node
+                assertEquals(endpoint(8084), primary);
+                moved++;
+            }
+        }
+        assertTrue(moved > KEYS / 5 * 0.7 && moved < KEYS / 5 * 1.3, "Moved keys");
+    }
+
+    @Test
+    void wrongCount() {
+        final Topology<String> topology = new ConsistentHashTopology(nodes(2), endpoint(8080));
+        assertThrows(IllegalArgumentException.class, () -> topology.replicasFor(key(0), 3));
+        assertThrows(IllegalArgumentException.class, () -> topology.replicasFor(key(0), 0));
+    }
+}
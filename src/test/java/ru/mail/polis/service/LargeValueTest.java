@@ -0,0 +1,99 @@
+package ru.mail.polis.service;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import ru.mail.polis.Files;
+import ru.mail.polis.dao.DAO;
+import ru.mail.polis.dao.DAOFactory;
+
+import java.io.File;
+import java.io.IOException;
+import java.time.Duration;
+import java.util.Collections;
+import java.util.LinkedHashSet;
+import java.util.concurrent.ThreadLocalRandom;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Tests for values large enough to be streamed from storage.
+ */
+class LargeValueTest extends ClusterTestBase {
+    private static final Duration TIMEOUT = Duration.ofMinutes(1);
+    private static final int NODES = 3;
+    private final File[] data = new File[NODES];
+    private final DAO[] daos = new DAO[NODES];
+    private final Service[] storages = new Service[NODES];
+
+    @BeforeEach
+    void beforeEach() throws Exception {
+        final int[] ports = new int[NODES];
+        endpoints = new LinkedHashSet<>();
+        for (int i = 0; i < NODES; i++) {
+            ports[i] = randomPort();
+            endpoints.add(endpoint(ports[i]));
+        }
+        for (int i = 0; i < NODES; i++) {
+            data[i] = Files.createTempDirectory();
+            daos[i] = DAOFactory.create(data[i]);
+            storages[i] = ServiceFactory.create(ports[i], daos[i], endpoints);
+            start(i, storages[i]);
+        }
+    }
+
+    @AfterEach
+    void afterEach() throws IOException {
+        for (int i = 0; i < NODES; i++) {
+            stop(i, storages[i]);
+            daos[i].close();
+            Files.recursiveDelete(data[i]);
+        }
+        endpoints = Collections.emptySet();
+    }
+
+    private static byte[] largeValue() {
+        final byte[] value = new byte[4 * 1024 * 1024 + 17];
+        ThreadLocalRandom.current().nextBytes(value);
+        return value;
+    }
+
+    @Test
+    void fromMemoryAndDisk() {
+        assertTimeoutPreemptively(TIMEOUT, () -> {
+            final String key = randomId();
+            final byte[] value = largeValue();
+            assertEquals(201, upsert(0, key, value, NODES, NODES).getStatus());
+            for (int node = 0; node < NODES; node++) {
+                assertArrayEquals(value, get(node, key, 1, 1).getBody());
+                assertArrayEquals(value, get(node, key, 2, NODES).getBody());
+            }
+            for (final DAO dao : daos) {
+                dao.compact();
+            }
+            for (int node = 0; node < NODES; node++) {
+                assertArrayEquals(value, get(node, key, 1, 1).getBody());
+                assertArrayEquals(value, get(node, key, NODES, NODES).getBody());
+            }
+            // Small values follow on the same connection
+            final String small = randomId();
+            final byte[] smallValue = randomValue();
+            assertEquals(201, upsert(0, small, smallValue, NODES, NODES).getStatus());
+            assertArrayEquals(smallValue, get(0, small, NODES, NODES).getBody());
+        });
+    }
+
+    @Test
+    void releaseBodiesAfterResponse() {
+        assertTimeoutPreemptively(TIMEOUT, () -> {
+            // Together bodies exceed memory budget of the node, each one is released once answered
+            final String key = randomId();
+            byte[] value = null;
+            for (int i = 0; i < 24; i++) {
+                value = largeValue();
+                assertEquals(201, upsert(0, key, value, NODES, NODES).getStatus());
+            }
+            assertArrayEquals(value, get(0, key, NODES, NODES).getBody());
+        });
+    }
+}
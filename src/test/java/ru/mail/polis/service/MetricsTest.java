@@ -0,0 +1,119 @@
+package ru.mail.polis.service;
+
+import one.nio.http.HttpClient;
+import one.nio.http.Response;
+import one.nio.net.ConnectionString;
+import org.junit.jupiter.api.AfterAll;
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.Test;
+import ru.mail.polis.Files;
+import ru.mail.polis.TestBase;
+import ru.mail.polis.dao.DAO;
+import ru.mail.polis.dao.DAOFactory;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.util.Collections;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Tests for {@code /v0/metrics}, {@code /v0/traces} and {@code /v0/admin/storage} endpoints.
+ */
+class MetricsTest extends TestBase {
+    private static final Duration TIMEOUT = Duration.ofMinutes(1);
+    private static File data;
+    private static DAO dao;
+    private static Service storage;
+    private static HttpClient client;
+
+    @BeforeAll
+    static void beforeAll() throws Exception {
+        final int port = randomPort();
+        data = Files.createTempDirectory();
+        dao = DAOFactory.create(data);
+        storage = ServiceFactory.create(port, dao, Collections.singleton(endpoint(port)));
+        storage.start();
+        Thread.sleep(TimeUnit.SECONDS.toMillis(1));
+        client = new HttpClient(new ConnectionString(
+                "http://localhost:" + port + "?timeout=" + (TIMEOUT.toMillis() / 2)));
+    }
+
+    @AfterAll
+    static void afterAll() throws IOException {
+        client.close();
+        storage.stop();
+        dao.close();
+        Files.recursiveDelete(data);
+    }
+
+    private static String scrape() throws Exception {
+        final Response response = client.get("/v0/metrics");
+        assertEquals(200, response.getStatus());
+        return new String(response.getBody(), StandardCharsets.UTF_8);
+    }
+
+    @Test
+    void requestsAreCounted() {
+        assertTimeoutPreemptively(TIMEOUT, () -> {
+            final String key = randomId();
+            assertEquals(201, client.put("/v0/entity?id=" + key + "&replicas=1/1", randomValue()).getStatus());
+            assertEquals(200, client.get("/v0/entity?id=" + key + "&replicas=1/1").getStatus());
+            assertEquals(200, client.get("/v0/entity?id=" + key + "&replicas=1/1").getStatus());
+            final String metrics = scrape();
+            assertTrue(metrics.contains("# TYPE http_request_duration_seconds histogram\n"));
+            assertTrue(metrics.contains(
+                    "http_request_duration_seconds_count{method=\"GET\",replicas=\"1/1\",role=\"coordinated\"} 2\n"));
+            assertTrue(metrics.contains(
+                    "http_request_duration_seconds_count{method=\"PUT\",replicas=\"1/1\",role=\"coordinated\"} 1\n"));
+            assertTrue(metrics.contains(
+                    "http_request_duration_seconds_bucket{method=\"GET\",replicas=\"1/1\",role=\"coordinated\","
+                            + "le=\"+Inf\"} 2\n"));
+        });
+    }
+
+    @Test
+    void storageIsExposed() {
+        assertTimeoutPreemptively(TIMEOUT, () -> {
+            final String metrics = scrape();
+            assertTrue(metrics.contains("# TYPE storage_memtable_bytes gauge\n"));
+            assertTrue(metrics.contains("storage_pending_flushes "));
+            assertTrue(metrics.contains("storage_tables "));
+            assertTrue(metrics.contains("storage_flush_duration_seconds_count 0\n"));
+            assertTrue(metrics.contains("memory_used_bytes{consumer=\"memtable\"} "));
+            assertTrue(metrics.contains("executor_queue_depth "));
+        });
+    }
+
+    @Test
+    void replicaReportsTimings() {
+        assertTimeoutPreemptively(TIMEOUT, () -> {
+            final Response response = client.get("/v0/entity?id=" + randomId(),
+                    "X-OK-Proxy: True", "X-OK-Trace: 1234abcd");
+            assertEquals(404, response.getStatus());
+            final String timings = response.getHeader("X-OK-Trace-Timings: ");
+            assertNotNull(timings);
+            assertTrue(timings.startsWith("queue="));
+            assertTrue(timings.contains(";local="));
+            assertEquals(200, client.get("/v0/traces").getStatus());
+        });
+    }
+
+    @Test
+    void storageReport() {
+        assertTimeoutPreemptively(TIMEOUT, () -> {
+            dao.compact();
+            final Response response = client.get("/v0/admin/storage?jobs=1");
+            assertEquals(200, response.getStatus());
+            final String[] lines = new String(response.getBody(), StandardCharsets.UTF_8).split("\n");
+            assertTrue(lines[0].startsWith("write_amplification="));
+            assertTrue(lines[1].startsWith("user_bytes="));
+            assertEquals(3, lines.length);
+            assertTrue(lines[2].contains(" compaction "));
+            assertEquals(400, client.get("/v0/admin/storage?jobs=many").getStatus());
+        });
+    }
+}
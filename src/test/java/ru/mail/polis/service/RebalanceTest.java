@@ -0,0 +1,134 @@
+package ru.mail.polis.service;
+
+import one.nio.http.HttpClient;
+import one.nio.http.Request;
+import one.nio.http.Response;
+import one.nio.net.ConnectionString;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import ru.mail.polis.Files;
+import ru.mail.polis.TestBase;
+import ru.mail.polis.dao.DAO;
+import ru.mail.polis.dao.DAOFactory;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Tests for nodes joining and leaving a running cluster.
+ */
+class RebalanceTest extends TestBase {
+    private static final Duration TIMEOUT = Duration.ofMinutes(1);
+    private static final int NODES = 3;
+    private final File[] data = new File[NODES];
+    private final DAO[] daos = new DAO[NODES];
+    private final Service[] storages = new Service[NODES];
+    private final HttpClient[] clients = new HttpClient[NODES];
+    private final String[] endpoints = new String[NODES];
+
+    @BeforeEach
+    void beforeEach() throws Exception {
+        final int[] ports = new int[NODES];
+        for (int i = 0; i < NODES; i++) {
+            ports[i] = randomPort();
+            endpoints[i] = endpoint(ports[i]);
+        }
+        for (int i = 0; i < NODES; i++) {
+            data[i] = Files.createTempDirectory();
+            daos[i] = DAOFactory.create(data[i]);
+            // The last node is not a member yet
+            final Set<String> topology = i < NODES - 1 ? Set.of(endpoints[0], endpoints[1]) : Set.of(endpoints[i]);
+            storages[i] = ServiceFactory.create(ports[i], daos[i], topology);
+            storages[i].start();
+            clients[i] = new HttpClient(new ConnectionString(endpoints[i] + "?timeout=" + TIMEOUT.toMillis() / 2));
+        }
+        Thread.sleep(TimeUnit.SECONDS.toMillis(1));
+    }
+
+    @AfterEach
+    void afterEach() throws IOException {
+        for (int i = 0; i < NODES; i++) {
+            clients[i].close();
+            storages[i].stop();
+            daos[i].close();
+            Files.recursiveDelete(data[i]);
+        }
+    }
+
+    private Response change(final int node, final String... members) throws Exception {
+        final Request request = clients[node].createRequest(Request.METHOD_PUT, "/v0/admin/topology");
+        final byte[] body = String.join("\n", members).getBytes(StandardCharsets.UTF_8);
+        request.addHeader("Content-Length: " + body.length);
+        request.setBody(body);
+        return clients[node].invoke(request);
+    }
+
+    private String topology(final int node) throws Exception {
+        final Response response = clients[node].get("/v0/admin/topology");
+        assertEquals(200, response.getStatus());
+        return new String(response.getBody(), StandardCharsets.UTF_8);
+    }
+
+    @Test
+    void joinAndLeave() {
+        assertTimeoutPreemptively(TIMEOUT, () -> {
+            final Map<String, byte[]> values = new HashMap<>();
+            for (int i = 0; i < 200; i++) {
+                final String id = randomId();
+                final byte[] value = i % 50 == 0 ? new byte[16 * 1024] : randomValue();
+                values.put(id, value);
+                assertEquals(201, clients[0].put("/v0/entity?id=" + id + "&replicas=2/2", value).getStatus());
+            }
+            final String deleted = values.keySet().iterator().next();
+            assertEquals(202, clients[1].delete("/v0/entity?id=" + deleted + "&replicas=2/2").getStatus());
+            values.remove(deleted);
+
+            assertEquals(200, change(0, endpoints).getStatus());
+            for (int node = 0; node < NODES; node++) {
+                assertTrue(topology(node).startsWith("version=1\n"));
+                assertTrue(topology(node).contains(endpoints[2]));
+            }
+            // Every key was handed off to the new replica
+            for (final Map.Entry<String, byte[]> entry : values.entrySet()) {
+                final ByteBuffer key = ByteBuffer.wrap(entry.getKey().getBytes(StandardCharsets.UTF_8));
+                assertEquals(ByteBuffer.wrap(entry.getValue()), daos[2].get(key));
+            }
+            final Response tombstone = clients[2].get("/v0/entity?id=" + deleted + "&replicas=1/3");
+            assertEquals(404, tombstone.getStatus());
+            for (final Map.Entry<String, byte[]> entry : values.entrySet()) {
+                final Response response = clients[2].get("/v0/entity?id=" + entry.getKey() + "&replicas=3/3");
+                assertEquals(200, response.getStatus());
+                assertArrayEquals(entry.getValue(), response.getBody());
+            }
+
+            assertEquals(200, change(2, endpoints[0], endpoints[2]).getStatus());
+            assertTrue(topology(0).startsWith("version=2\n"));
+            assertFalse(topology(0).contains(endpoints[1]));
+            final String id = randomId();
+            final byte[] value = randomValue();
+            assertEquals(201, clients[0].put("/v0/entity?id=" + id + "&replicas=2/2", value).getStatus());
+            assertArrayEquals(value, clients[2].get("/v0/entity?id=" + id + "&replicas=2/2").getBody());
+            assertEquals(400, clients[0].get("/v0/entity?id=" + id + "&replicas=3/3").getStatus());
+        });
+    }
+
+    @Test
+    void staleChangeIsRejected() {
+        assertTimeoutPreemptively(TIMEOUT, () -> {
+            final Response response = clients[0].post("/v0/admin/topology?step=commit&version=5");
+            assertEquals(409, response.getStatus());
+            assertEquals(400, change(0, "localhost").getStatus());
+            assertTrue(topology(0).startsWith("version=0\n"));
+        });
+    }
+}
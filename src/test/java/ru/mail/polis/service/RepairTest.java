@@ -0,0 +1,173 @@
+package ru.mail.polis.service;
+
+import one.nio.http.HttpClient;
+import one.nio.http.Response;
+import one.nio.net.ConnectionString;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import ru.mail.polis.Files;
+import ru.mail.polis.TestBase;
+import ru.mail.polis.dao.DAO;
+import ru.mail.polis.dao.DAOFactory;
+
+import java.io.File;
+import java.io.IOException;
+import java.net.URLEncoder;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Tests for Merkle tree anti-entropy repair between two replicas.
+ */
+class RepairTest extends TestBase {
+    private static final Duration TIMEOUT = Duration.ofMinutes(1);
+    private final File[] data = new File[2];
+    private final DAO[] daos = new DAO[2];
+    private final Service[] storages = new Service[2];
+    private final HttpClient[] clients = new HttpClient[2];
+    private final int[] ports = new int[2];
+    private final String[] endpoints = new String[2];
+
+    @BeforeEach
+    void beforeEach() throws Exception {
+        for (int i = 0; i < 2; i++) {
+            ports[i] = randomPort();
+            endpoints[i] = endpoint(ports[i]);
+        }
+        final Set<String> topology = new LinkedHashSet<>(Arrays.asList(endpoints));
+        for (int i = 0; i < 2; i++) {
+            data[i] = Files.createTempDirectory();
+            daos[i] = DAOFactory.create(data[i]);
+            storages[i] = ServiceFactory.create(ports[i], daos[i], topology);
+            storages[i].start();
+            clients[i] = new HttpClient(new ConnectionString(endpoints[i] + "?timeout=" + TIMEOUT.toMillis() / 2));
+        }
+        Thread.sleep(TimeUnit.SECONDS.toMillis(1));
+    }
+
+    @AfterEach
+    void afterEach() throws IOException {
+        for (int i = 0; i < 2; i++) {
+            clients[i].close();
+            storages[i].stop();
+            daos[i].close();
+            Files.recursiveDelete(data[i]);
+        }
+    }
+
+    private String repair(final int node, final int peer) throws Exception {
+        final Response response = clients[node].post(
+                "/v0/admin/repair?peer=" + URLEncoder.encode(endpoints[peer], StandardCharsets.UTF_8));
+        assertEquals(200, response.getStatus());
+        return new String(response.getBody(), StandardCharsets.UTF_8);
+    }
+
+    @Test
+    void missedWritesAreRepaired() {
+        assertTimeoutPreemptively(TIMEOUT, () -> {
+            final List<ByteBuffer> keys = new ArrayList<>();
+            for (int i = 0; i < 100; i++) {
+                final ByteBuffer key = randomKeyBuffer();
+                keys.add(key);
+                daos[0].upsert(key, key);
+            }
+            // Every round repairs a bounded number of ranges
+            int rounds = 0;
+            while (!"in sync".equals(repair(0, 1))) {
+                rounds++;
+            }
+            assertTrue(rounds >= 2);
+            for (final ByteBuffer key : keys) {
+                assertEquals(key, daos[1].get(key));
+            }
+            assertEquals("in sync", repair(1, 0));
+        });
+    }
+
+    @Test
+    void removalWins() {
+        assertTimeoutPreemptively(TIMEOUT, () -> {
+            final ByteBuffer key = randomKeyBuffer();
+            final ByteBuffer value = randomValueBuffer();
+            daos[0].upsert(key, value);
+            daos[1].upsert(key, value);
+            daos[1].remove(key);
+            repair(0, 1);
+            assertThrows(NoSuchElementException.class, () -> daos[0].get(key));
+            assertThrows(NoSuchElementException.class, () -> daos[1].get(key));
+        });
+    }
+
+    @Test
+    void removalSurvivesCompaction() {
+        assertTimeoutPreemptively(TIMEOUT, () -> {
+            final ByteBuffer key = randomKeyBuffer();
+            final ByteBuffer value = randomValueBuffer();
+            daos[0].upsert(key, value);
+            daos[1].upsert(key, value);
+            daos[0].remove(key);
+            // Tombstone stays for a grace period, so the peer is repaired instead of bringing the value back
+            daos[0].compact();
+            repair(0, 1);
+            assertThrows(NoSuchElementException.class, () -> daos[0].get(key));
+            assertThrows(NoSuchElementException.class, () -> daos[1].get(key));
+        });
+    }
+
+    @Test
+    void flushedOverwritesAreRepaired() {
+        assertTimeoutPreemptively(TIMEOUT, () -> {
+            final List<ByteBuffer> keys = new ArrayList<>();
+            for (int i = 0; i < 50; i++) {
+                keys.add(randomKeyBuffer());
+            }
+            for (int round = 0; round < 3; round++) {
+                // Overwrites exceed memTable, so flushes supersede versions hashed in the previous round
+                for (final ByteBuffer key : keys) {
+                    daos[0].upsert(key, randomBuffer(128 * 1024));
+                }
+                while (!"in sync".equals(repair(0, 1))) {
+                    Thread.yield();
+                }
+            }
+            for (final ByteBuffer key : keys) {
+                assertEquals(daos[0].get(key), daos[1].get(key));
+            }
+            assertEquals("in sync", repair(1, 0));
+        });
+    }
+
+    @Test
+    void replicatedWritesAreInSync() {
+        assertTimeoutPreemptively(TIMEOUT, () -> {
+            for (int i = 0; i < 100; i++) {
+                final String id = randomId();
+                assertEquals(201, clients[i % 2].put("/v0/entity?id=" + id + "&replicas=2/2", randomValue())
+                        .getStatus());
+                if (i % 10 == 0) {
+                    assertEquals(202, clients[1 - i % 2].delete("/v0/entity?id=" + id + "&replicas=2/2")
+                            .getStatus());
+                }
+            }
+            // Replicas store versions stamped by coordinators, so they hash the same
+            assertEquals("in sync", repair(0, 1));
+        });
+    }
+
+    @Test
+    void unknownPeer() {
+        assertTimeoutPreemptively(TIMEOUT, () -> assertEquals(400,
+                clients[0].post("/v0/admin/repair?peer=http%3A%2F%2Flocalhost%3A1").getStatus()));
+    }
+}
@@ -17,6 +17,7 @@
 package ru.mail.polis.service;
 
 import one.nio.http.HttpClient;
+import one.nio.http.Request;
 import one.nio.http.Response;
 import one.nio.net.ConnectionString;
 import org.jetbrains.annotations.NotNull;
@@ -292,4 +293,12 @@ class SingleNodeTest extends TestBase {
             assertEquals(404, get(key).getStatus());
         });
     }
+
+    @Test
+    void upsertWithoutBody() {
+        assertTimeoutPreemptively(TIMEOUT, () -> {
+            final Request request = client.createRequest(Request.METHOD_PUT, path(randomId()));
+            assertEquals(400, client.invoke(request).getStatus());
+        });
+    }
 }
@@ -0,0 +1,39 @@
+package ru.mail.polis.service;
+
+import org.junit.jupiter.api.Test;
+import ru.mail.polis.TestBase;
+import ru.mail.polis.service.prohladenn.Value;
+
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Merging of {@link Value} replies of replicas.
+ */
+class ValueTest extends TestBase {
+    @Test
+    void latestWins() {
+        final byte[] data = randomValue();
+        final Value merged = Value.merge(List.of(Value.present(randomValue(), 1), Value.present(data, 2),
+                Value.absent()));
+        assertEquals(2, merged.getTimeStamp());
+        assertArrayEquals(data, merged.getData());
+    }
+
+    @Test
+    void dataWinsOverDigestOfSameTimestamp() {
+        final byte[] data = randomValue();
+        final Value first = Value.merge(List.of(Value.digest(2), Value.present(data, 2), Value.digest(1)));
+        assertFalse(first.isDigest());
+        assertArrayEquals(data, first.getData());
+        final Value last = Value.merge(List.of(Value.present(data, 2), Value.digest(2)));
+        assertFalse(last.isDigest());
+        assertArrayEquals(data, last.getData());
+    }
+
+    @Test
+    void absentOnlyIsAbsent() {
+        assertSame(Value.absent(), Value.merge(List.of(Value.absent())));
+    }
+}